@@ -76,6 +76,12 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
     private static final int CONTEXTMEMU_SHUTDOWN = 8;
     private static final int CONTEXTMENU_TOGGLE_IGNORE_BELL = 9;
     private static final int CONTEXTMENU_TOGGLE_AUTO_SCROLL = 10;
+    private static final int CONTEXTMENU_TOGGLE_SCROLLBACK_ON_DISK = 11;
+    private static final int CONTEXTMENU_SET_TRANSCRIPT_SIZE = 12;
+
+    /** The history sizes which can be chosen, as rows and the megabytes of memory they may take. */
+    private static final int[] TRANSCRIPT_ROWS_CHOICES = {2000, 5000, 20000, 100000};
+    private static final int[] TRANSCRIPT_MEMORY_MB_CHOICES = {8, 32, 64, 128};
 
     private static final int PERMISSION_REQUEST_CODE_NOTIFICATIONS = 1000;
 
@@ -235,6 +241,14 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
                 }
             }
 
+            @Override
+            public void onTextChanged(TerminalSession changedSession, int top, int left, int bottom, int right, int scrollDelta) {
+                if (!mIsVisible) return;
+                if (mTerminalView.getCurrentSession() == changedSession) {
+                    mTerminalView.onScreenUpdated(top, left, bottom, right, scrollDelta);
+                }
+            }
+
             @Override
             public void onTitleChanged(TerminalSession updatedSession) {
                 return;
@@ -287,6 +301,8 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
 
                     try {
                         TerminalSession session = startQemu();
+                        if (mSettings.isScrollbackOnDisk()) session.setScrollbackFile(getScrollbackFile());
+                        applyTranscriptSize(session);
                         mTerminalView.attachSession(session);
                         mTermService.setSession(session);
                     } catch (WindowManager.BadTokenException e) {
@@ -607,6 +623,9 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
             .setCheckable(true).setChecked(mSettings.isBellIgnored());
         menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_AUTO_SCROLL, Menu.NONE, R.string.menu_toggle_scrolling)
             .setCheckable(true).setChecked(mSettings.isAutoScrollDisabled());
+        menu.add(Menu.NONE, CONTEXTMENU_TOGGLE_SCROLLBACK_ON_DISK, Menu.NONE, R.string.menu_toggle_scrollback_on_disk)
+            .setCheckable(true).setChecked(mSettings.isScrollbackOnDisk());
+        menu.add(Menu.NONE, CONTEXTMENU_SET_TRANSCRIPT_SIZE, Menu.NONE, R.string.menu_set_transcript_size);
     }
 
     @Override
@@ -752,11 +771,58 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
                     }
                 }
                 return false;
+            case CONTEXTMENU_TOGGLE_SCROLLBACK_ON_DISK:
+                boolean scrollbackOnDisk = !mSettings.isScrollbackOnDisk();
+                mSettings.setScrollbackOnDisk(this, scrollbackOnDisk);
+                if (mTermService != null && mTermService.getSession() != null) {
+                    mTermService.getSession().setScrollbackFile(scrollbackOnDisk ? getScrollbackFile() : null);
+                }
+                if (scrollbackOnDisk) {
+                    Toast.makeText(this, R.string.toast_scrollback_on_disk_enabled, Toast.LENGTH_LONG).show();
+                } else {
+                    Toast.makeText(this, R.string.toast_scrollback_on_disk_disabled, Toast.LENGTH_LONG).show();
+                }
+                return true;
+            case CONTEXTMENU_SET_TRANSCRIPT_SIZE: {
+                String[] choices = new String[TRANSCRIPT_ROWS_CHOICES.length];
+                int checkedChoice = -1;
+                for (int i = 0; i < choices.length; i++) {
+                    choices[i] = getString(R.string.dialog_transcript_size_choice,
+                        TRANSCRIPT_ROWS_CHOICES[i], TRANSCRIPT_MEMORY_MB_CHOICES[i]);
+                    if (TRANSCRIPT_ROWS_CHOICES[i] == mSettings.getTranscriptRows()) checkedChoice = i;
+                }
+                new AlertDialog.Builder(this)
+                    .setTitle(R.string.dialog_transcript_size_title)
+                    .setSingleChoiceItems(choices, checkedChoice, (dialog, which) -> {
+                        dialog.dismiss();
+                        mSettings.setTranscriptRows(this, TRANSCRIPT_ROWS_CHOICES[which]);
+                        mSettings.setTranscriptMemoryMb(this, TRANSCRIPT_MEMORY_MB_CHOICES[which]);
+                        TerminalSession session = mTerminalView.getCurrentSession();
+                        if (session != null) applyTranscriptSize(session);
+                    }).setNegativeButton(R.string.cancel_label,
+                    ((dialog, which) -> dialog.dismiss())).show();
+                return true;
+            }
             default:
                 return super.onContextItemSelected(item);
         }
     }
 
+    /**
+     * Limit the history of a session to the size chosen.
+     */
+    private void applyTranscriptSize(TerminalSession session) {
+        session.setTranscriptRows(mSettings.getTranscriptRows());
+        session.setMemoryBudget(mSettings.getTranscriptMemoryMb() * 1024L * 1024L);
+    }
+
+    /**
+     * The file in the cache directory where lines scrolling out of the history are kept, if enabled.
+     */
+    private File getScrollbackFile() {
+        return new File(getCacheDir(), "scrollback");
+    }
+
     /**
      * Paste text from clipboard.
      */
@@ -791,7 +857,7 @@ public final class TerminalActivity extends Activity implements ServiceConnectio
             return;
         }
 
-        String text = currentSession.getEmulator().getScreen().getTranscriptText();
+        String text = currentSession.getSnapshot().getScreen().getTranscriptText();
         LinkedHashSet<CharSequence> urlSet = extractUrls(text);
 
         if (urlSet.isEmpty()) {
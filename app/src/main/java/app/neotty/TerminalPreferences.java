@@ -28,11 +28,17 @@ public class TerminalPreferences {
     private static final String PREF_DATA_VERSION = "data_version";
     private static final String PREF_DEFAULT_SSH_USER = "default_ssh_user";
     private static final String PREF_DISABLE_AUTO_SCROLLING = "disable_auto_scrolling";
+    private static final String PREF_SCROLLBACK_ON_DISK = "scrollback_on_disk";
+    private static final String PREF_TRANSCRIPT_ROWS = "transcript_rows";
+    private static final String PREF_TRANSCRIPT_MEMORY_MB = "transcript_memory_mb";
 
     private boolean mFirstRun;
     private boolean mShowExtraKeys;
     private boolean mIgnoreBellCharacter;
     private boolean mDisableAutoScroll;
+    private boolean mScrollbackOnDisk;
+    private int mTranscriptRows;
+    private int mTranscriptMemoryMb;
     private int mDataVersion;
     private String mDefaultSshUser;
 
@@ -41,6 +47,9 @@ public class TerminalPreferences {
         mShowExtraKeys = prefs.getBoolean(PREF_SHOW_EXTRA_KEYS, true);
         mIgnoreBellCharacter = prefs.getBoolean(PREF_IGNORE_BELL, false);
         mDisableAutoScroll = prefs.getBoolean(PREF_DISABLE_AUTO_SCROLLING, false);
+        mScrollbackOnDisk = prefs.getBoolean(PREF_SCROLLBACK_ON_DISK, false);
+        mTranscriptRows = prefs.getInt(PREF_TRANSCRIPT_ROWS, 5000);
+        mTranscriptMemoryMb = prefs.getInt(PREF_TRANSCRIPT_MEMORY_MB, 32);
         mDataVersion = prefs.getInt(PREF_DATA_VERSION, 0);
         mDefaultSshUser = prefs.getString(PREF_DEFAULT_SSH_USER, "root");
     }
@@ -76,6 +85,36 @@ public class TerminalPreferences {
                 .putBoolean(PREF_DISABLE_AUTO_SCROLLING, newValue).apply();
     }
 
+    public boolean isScrollbackOnDisk() {
+        return mScrollbackOnDisk;
+    }
+
+    public void setScrollbackOnDisk(Context context, boolean newValue) {
+        mScrollbackOnDisk = newValue;
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+            .putBoolean(PREF_SCROLLBACK_ON_DISK, newValue).apply();
+    }
+
+    public int getTranscriptRows() {
+        return mTranscriptRows;
+    }
+
+    public void setTranscriptRows(Context context, int newValue) {
+        mTranscriptRows = newValue;
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+            .putInt(PREF_TRANSCRIPT_ROWS, newValue).apply();
+    }
+
+    public int getTranscriptMemoryMb() {
+        return mTranscriptMemoryMb;
+    }
+
+    public void setTranscriptMemoryMb(Context context, int newValue) {
+        mTranscriptMemoryMb = newValue;
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+            .putInt(PREF_TRANSCRIPT_MEMORY_MB, newValue).apply();
+    }
+
     public void updateDataVersion(Context context) {
         mDataVersion = BuildConfig.VERSION_CODE;
         PreferenceManager.getDefaultSharedPreferences(context).edit()
@@ -102,10 +102,19 @@ public class TerminalService extends Service implements SessionChangedCallback {
     public void onDestroy() {
         if (mWakeLock != null) mWakeLock.release();
         if (mWifiLock != null) mWifiLock.release();
-        if (mTerminalSession != null) mTerminalSession.finishIfRunning();
+        if (mTerminalSession != null) {
+            mTerminalSession.finishIfRunning();
+            mTerminalSession.setScrollbackFile(null);
+        }
         stopForeground(true);
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        if (mTerminalSession != null) mTerminalSession.trimMemory(level);
+    }
+
     @SuppressLint({"Wakelock", "WakelockTimeout"})
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
@@ -167,6 +176,13 @@ public class TerminalService extends Service implements SessionChangedCallback {
         }
     }
 
+    @Override
+    public void onTextChanged(TerminalSession changedSession, int top, int left, int bottom, int right, int scrollDelta) {
+        if (mSessionChangeCallback != null) {
+            mSessionChangeCallback.onTextChanged(changedSession, top, left, bottom, right, scrollDelta);
+        }
+    }
+
     @Override
     public void onTitleChanged(TerminalSession changedSession) {
         if (mSessionChangeCallback != null) mSessionChangeCallback.onTitleChanged(changedSession);
@@ -0,0 +1,127 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import java.util.Arrays;
+
+/**
+ * Incremental base64 decoder, fed one character at a time, which collects the decoded bytes in a growable buffer.
+ * Used for file transfers embedded in escape sequences, which may be megabytes long.
+ * <p>
+ * Both the standard and the URL safe alphabets are accepted. Padding ends a quantum, after which decoding continues,
+ * so concatenated base64 strings decode as one. Whitespace and other characters outside the alphabet are ignored.
+ */
+final class Base64Decoder {
+
+    /** Decoded data beyond this size is dropped. */
+    static final int MAX_LENGTH = 32 * 1024 * 1024;
+
+    /** Buffers larger than this are not kept around after {@link #reset()}. */
+    private static final int MAX_RETAINED_LENGTH = 64 * 1024;
+
+    private static final int INITIAL_CAPACITY = 4096;
+
+    /** Maps an ASCII character to its six bit value, or -1 if not part of the alphabet. */
+    private static final byte[] DECODE_TABLE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE_TABLE, (byte) -1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < alphabet.length(); i++)
+            DECODE_TABLE[alphabet.charAt(i)] = (byte) i;
+        DECODE_TABLE['-'] = 62;
+        DECODE_TABLE['_'] = 63;
+    }
+
+    private byte[] mBuffer = new byte[0];
+    private int mLength;
+
+    /** The bits of the current quantum, six for each of the {@link #mQuantumChars} characters seen so far. */
+    private int mQuantum;
+    private int mQuantumChars;
+
+    /** Start decoding, expecting about the specified number of decoded bytes, or 0 if unknown. */
+    public void start(int expectedLength) {
+        reset();
+        ensureCapacity(Math.max(INITIAL_CAPACITY, Math.min(expectedLength, MAX_LENGTH)));
+    }
+
+    /** Forget the decoded data, releasing large buffers. */
+    public void reset() {
+        if (mBuffer.length > MAX_RETAINED_LENGTH) mBuffer = new byte[0];
+        mLength = 0;
+        mQuantum = 0;
+        mQuantumChars = 0;
+    }
+
+    /** Process the next character of the base64 data. */
+    public void consume(int c) {
+        if (c == '=') {
+            flushQuantum();
+            return;
+        }
+        int value = (c < DECODE_TABLE.length) ? DECODE_TABLE[c] : -1;
+        if (value < 0) return;
+        mQuantum = (mQuantum << 6) | value;
+        if (++mQuantumChars == 4) {
+            ensureCapacity(mLength + 3);
+            if (mLength + 3 <= mBuffer.length) {
+                mBuffer[mLength++] = (byte) (mQuantum >> 16);
+                mBuffer[mLength++] = (byte) (mQuantum >> 8);
+                mBuffer[mLength++] = (byte) mQuantum;
+            }
+            mQuantum = 0;
+            mQuantumChars = 0;
+        }
+    }
+
+    /** Decode what remains of an unpadded final quantum. */
+    public void finish() {
+        flushQuantum();
+    }
+
+    /** The buffer holding the decoded data in its first {@link #getLength()} bytes. */
+    public byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    private void flushQuantum() {
+        // A single character carries less than a byte and is dropped.
+        int bytes = mQuantumChars - 1;
+        if (bytes > 0) {
+            int bits = mQuantum << (6 * (4 - mQuantumChars));
+            ensureCapacity(mLength + bytes);
+            if (mLength + bytes <= mBuffer.length) {
+                mBuffer[mLength++] = (byte) (bits >> 16);
+                if (bytes == 2) mBuffer[mLength++] = (byte) (bits >> 8);
+            }
+        }
+        mQuantum = 0;
+        mQuantumChars = 0;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mBuffer.length || mBuffer.length >= MAX_LENGTH) return;
+        int newCapacity = Math.min(MAX_LENGTH, Math.max(capacity, mBuffer.length * 2));
+        mBuffer = Arrays.copyOf(mBuffer, newCapacity);
+    }
+
+}
@@ -23,6 +23,7 @@ final class ByteQueue {
     private int mHead;
     private int mStoredBytes;
     private boolean mOpen = true;
+    private boolean mFinished;
 
     public ByteQueue(int size) {
         mBuffer = new byte[size];
@@ -33,8 +34,18 @@ final class ByteQueue {
         notify();
     }
 
+    /** Stop accepting writes, while the bytes already written can still be read before -1 is returned. */
+    public synchronized void finish() {
+        mFinished = true;
+        notify();
+    }
+
+    public synchronized boolean isFinished() {
+        return mFinished;
+    }
+
     public synchronized int read(byte[] buffer, boolean block) {
-        while (mStoredBytes == 0 && mOpen) {
+        while (mStoredBytes == 0 && mOpen && !mFinished) {
             if (block) {
                 try {
                     wait();
@@ -45,7 +56,7 @@ final class ByteQueue {
                 return 0;
             }
         }
-        if (!mOpen) return -1;
+        if (!mOpen || mStoredBytes == 0) return -1;
 
         int totalRead = 0;
         int bufferLength = mBuffer.length;
@@ -70,7 +81,7 @@ final class ByteQueue {
     /**
      * Attempt to write the specified portion of the provided buffer to the queue.
      * <p/>
-     * Returns whether the output was totally written, false if it was closed before.
+     * Returns whether the output was totally written, false if it was closed or finished before.
      */
     public boolean write(byte[] buffer, int offset, int lengthToWrite) {
         if (lengthToWrite + offset > buffer.length) {
@@ -83,14 +94,14 @@ final class ByteQueue {
 
         synchronized (this) {
             while (lengthToWrite > 0) {
-                while (bufferLength == mStoredBytes && mOpen) {
+                while (bufferLength == mStoredBytes && mOpen && !mFinished) {
                     try {
                         wait();
                     } catch (InterruptedException e) {
                         // Ignore.
                     }
                 }
-                if (!mOpen) return false;
+                if (!mOpen || mFinished) return false;
                 final boolean wasEmpty = mStoredBytes == 0;
                 int bytesToWriteBeforeWaiting = Math.min(lengthToWrite, bufferLength - mStoredBytes);
                 lengthToWrite -= bytesToWriteBeforeWaiting;
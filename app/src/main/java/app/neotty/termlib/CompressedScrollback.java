@@ -0,0 +1,127 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * A {@link Scrollback} keeping the rows in memory, with each chunk compressed by {@link Deflater}. Terminal output
+ * compresses well, as it repeats prompts, log prefixes and spaces, so a chunk is usually several times smaller than
+ * the rows it holds.
+ */
+public final class CompressedScrollback extends Scrollback {
+
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private final Inflater mInflater = new Inflater();
+    /** The buffer chunks are compressed into, before being copied to a chunk of the right size. */
+    private byte[] mCompressBuffer = new byte[16 * 1024];
+
+    /** The compressed chunks kept, the first of which is the chunk {@link #mFirstChunk}. */
+    private byte[][] mChunks = new byte[16][];
+    /** The size of each chunk in {@link #mChunks} before it was compressed. */
+    private int[] mChunkLengths = new int[16];
+    private int mFirstChunk;
+    private int mChunkCount;
+    private long mCompressedSize;
+
+    /** Create an empty scrollback, which drops its oldest rows when it has more than the specified number of rows. */
+    public CompressedScrollback(int maxRows) {
+        super(maxRows);
+    }
+
+    /** The number of bytes taken by the compressed chunks. */
+    public synchronized long getCompressedSize() {
+        return mCompressedSize;
+    }
+
+    @Override
+    void writeChunk(int chunk, byte[] data, int length) {
+        mDeflater.reset();
+        mDeflater.setInput(data, 0, length);
+        mDeflater.finish();
+        int compressedLength = 0;
+        while (!mDeflater.finished()) {
+            if (compressedLength == mCompressBuffer.length)
+                mCompressBuffer = Arrays.copyOf(mCompressBuffer, 2 * mCompressBuffer.length);
+            compressedLength += mDeflater.deflate(mCompressBuffer, compressedLength, mCompressBuffer.length - compressedLength);
+        }
+
+        if (mChunkCount == mChunks.length) {
+            mChunks = Arrays.copyOf(mChunks, 2 * mChunkCount);
+            mChunkLengths = Arrays.copyOf(mChunkLengths, 2 * mChunkCount);
+        }
+        mChunks[mChunkCount] = Arrays.copyOf(mCompressBuffer, compressedLength);
+        mChunkLengths[mChunkCount++] = length;
+        mCompressedSize += compressedLength;
+    }
+
+    @Override
+    ByteBuffer readChunk(int chunk) throws IOException {
+        final int i = chunk - mFirstChunk;
+        final byte[] data = new byte[mChunkLengths[i]];
+        mInflater.reset();
+        mInflater.setInput(mChunks[i]);
+        try {
+            int length = 0;
+            while (length < data.length && !mInflater.finished()) {
+                length += mInflater.inflate(data, length, data.length - length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    @Override
+    void dropChunk(int chunk) {
+        mCompressedSize -= mChunks[0].length;
+        System.arraycopy(mChunks, 1, mChunks, 0, --mChunkCount);
+        System.arraycopy(mChunkLengths, 1, mChunkLengths, 0, mChunkCount);
+        mChunks[mChunkCount] = null;
+        mFirstChunk = chunk + 1;
+    }
+
+    @Override
+    void clearChunks() {
+        Arrays.fill(mChunks, null);
+        mFirstChunk = mChunkCount = 0;
+        mCompressedSize = 0;
+    }
+
+    @Override
+    void closeChunks() {
+        clearChunks();
+        mDeflater.end();
+        mInflater.end();
+    }
+
+    @Override
+    long getChunksMemoryUsage() {
+        return mCompressedSize + mCompressBuffer.length + 16L * mChunks.length;
+    }
+
+    @Override
+    long getChunkMemoryUsage(int chunk) {
+        return mChunks[chunk - mFirstChunk].length;
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Decodes the encoded images, such as PNG or JPEG, sent by OSC 1337 sequences or the kitty graphics protocol. Only
+ * their size is read while the sequence is processed, so that the cells of an image can be reserved right away with an
+ * {@link ImageRegistry.Image#placeholder(int, int, float, float) placeholder}, while the pixels are decoded on a
+ * background thread at the size the image is shown at, rather than at its full resolution.
+ */
+final class ImageLoader {
+
+    /** A single thread for all emulators, as decoding several large images at once would take too much memory. */
+    private static final Executor EXECUTOR = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TermImageLoader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private ImageLoader() {
+    }
+
+    /** Decodes an image on the background thread. */
+    interface Decoder {
+        /** The decoded image, or null if it could not be decoded. */
+        ImageRegistry.Image decode();
+    }
+
+    /** Run a task decoding an image on the background thread. */
+    static void execute(Runnable task) {
+        EXECUTOR.execute(task);
+    }
+
+    /** The width and height in pixels of an encoded image, or null if it cannot be decoded, without decoding it. */
+    static int[] decodeSize(byte[] data, int length) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+        return new int[]{options.outWidth, options.outHeight};
+    }
+
+    /**
+     * The width and height in pixels to show an image at, which is its own size unless a width or height is requested.
+     * With the aspect ratio preserved, the image is scaled to fit the requested width and height, and also to fit
+     * maxWidth, the width left on the screen. Otherwise it is stretched to the requested size, and later cut off at the
+     * edge of the screen.
+     *
+     * @param width  the requested width, or 0 or less to not request one
+     * @param height the requested height, or 0 or less to not request one
+     */
+    static int[] computeSize(int imageWidth, int imageHeight, int width, int height, boolean aspect, int maxWidth) {
+        if (aspect) {
+            double factor = (double) maxWidth / imageWidth;
+            if (width <= 0 && height <= 0) factor = Math.min(factor, 1);
+            if (width > 0) factor = Math.min(factor, (double) width / imageWidth);
+            if (height > 0) factor = Math.min(factor, (double) height / imageHeight);
+            return new int[]{Math.max(1, (int) (factor * imageWidth)), Math.max(1, (int) (factor * imageHeight))};
+        }
+        return new int[]{(width > 0) ? width : imageWidth, (height > 0) ? height : imageHeight};
+    }
+
+    /**
+     * The largest power of two, for {@link BitmapFactory.Options#inSampleSize}, by which an image can be subsampled
+     * while decoding it and still be at least as large as the size it is shown at.
+     */
+    static int computeSampleSize(int imageWidth, int imageHeight, int width, int height) {
+        int sampleSize = 1;
+        while (imageWidth / (2 * sampleSize) >= width && imageHeight / (2 * sampleSize) >= height) sampleSize *= 2;
+        return sampleSize;
+    }
+
+    /**
+     * Decode an image of the specified size in pixels to show it at the specified width and height, in a bitmap padded
+     * to whole cells. Returns null if it could not be decoded.
+     */
+    static ImageRegistry.Image decode(byte[] data, int imageWidth, int imageHeight, int width, int height, int cellW, int cellH) {
+        Bitmap bitmap = decodeBitmap(data, imageWidth, imageHeight, width, height);
+        if (bitmap == null) return null;
+        final int paddedWidth = (width + cellW - 1) / cellW * cellW, paddedHeight = (height + cellH - 1) / cellH * cellH;
+        if (paddedWidth != width || paddedHeight != height) {
+            final int[] pixels = new int[width * height];
+            bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+            bitmap.recycle();
+            bitmap = Bitmap.createBitmap(paddedWidth, paddedHeight, Bitmap.Config.ARGB_8888);
+            bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+        }
+        return new ImageRegistry.Image(bitmap, paddedWidth, paddedHeight, cellW, cellH, bitmap.getAllocationByteCount());
+    }
+
+    /**
+     * Decode an image of the specified size in pixels into a bitmap of the specified width and height. Returns null if
+     * it could not be decoded.
+     */
+    static Bitmap decodeBitmap(byte[] data, int imageWidth, int imageHeight, int width, int height) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = computeSampleSize(imageWidth, imageHeight, width, height);
+        final Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (bitmap == null || (bitmap.getWidth() == width && bitmap.getHeight() == height)) return bitmap;
+        final Bitmap scaled = Bitmap.createScaledBitmap(bitmap, width, height, true);
+        if (scaled != bitmap) bitmap.recycle();
+        return scaled;
+    }
+
+}
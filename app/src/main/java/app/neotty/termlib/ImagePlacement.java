@@ -0,0 +1,111 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+/**
+ * An image of an {@link ImageRegistry} drawn over a rectangle of cells, anchored at its top left cell.
+ * <p>
+ * Each row which a placement covers holds a {@link Slice} of it, so that the placement is scrolled, reflowed and kept
+ * in the history along with the rows, and is shared with snapshots along with them. Cells written over a placement cut
+ * them out of the slice of their row, see {@link TerminalRow#removeImageSlices(int, int, boolean)}, unless it is an
+ * {@link #mOverlay overlay}.
+ */
+public final class ImagePlacement {
+
+    /** The id of the image in the {@link ImageRegistry}. */
+    final int mImageId;
+    /** The id given to the placement by the kitty graphics protocol, or 0 if none. */
+    final int mPlacementId;
+    /**
+     * The part of the image shown, in tiles of the size of a cell of the image, see
+     * {@link ImageRegistry.Image#mCellWidth}, which is scaled to the cells of the placement.
+     */
+    final float mSourceColumn, mSourceRow, mSourceColumns, mSourceRows;
+    /** The size of the placement in cells. */
+    public final int mColumns, mRows;
+    /** Placements with a higher z-order are drawn over the ones with a lower one, and the ones below zero below text. */
+    public final int mZ;
+    /**
+     * If the placement is drawn over the cells instead of replacing them, as with the kitty graphics protocol, so that
+     * writing cells does not cut it. It is removed along with the rows, or explicitly.
+     */
+    final boolean mOverlay;
+
+    /** A placement showing the top left tiles of an image, one for each cell. */
+    ImagePlacement(int imageId, int columns, int rows, int z) {
+        this(imageId, 0, 0, 0, columns, rows, columns, rows, z, false);
+    }
+
+    ImagePlacement(int imageId, int placementId, float sourceColumn, float sourceRow, float sourceColumns,
+                   float sourceRows, int columns, int rows, int z, boolean overlay) {
+        mImageId = imageId;
+        mPlacementId = placementId;
+        mSourceColumn = sourceColumn;
+        mSourceRow = sourceRow;
+        mSourceColumns = sourceColumns;
+        mSourceRows = sourceRows;
+        mColumns = columns;
+        mRows = rows;
+        mZ = z;
+        mOverlay = overlay;
+    }
+
+    /** The part of a placement shown by a row: some of the columns of one of its rows, starting at a column of the row. */
+    public static final class Slice {
+        public final ImagePlacement mPlacement;
+        /** The column of the row where the slice starts. */
+        public final int mColumn;
+        /** The first column of the placement shown, and the number of columns shown. */
+        public final int mPlacementColumn, mColumns;
+        /** The row of the placement shown, from 0 to mPlacement.mRows - 1. */
+        public final int mRow;
+
+        Slice(ImagePlacement placement, int column, int placementColumn, int columns, int row) {
+            mPlacement = placement;
+            mColumn = column;
+            mPlacementColumn = placementColumn;
+            mColumns = columns;
+            mRow = row;
+        }
+
+        /** The column of the row after the slice. */
+        public int getEndColumn() {
+            return mColumn + mColumns;
+        }
+
+        /** The part of this slice within the columns from startColumn (inclusive) to endColumn (exclusive), or null. */
+        Slice clip(int startColumn, int endColumn) {
+            startColumn = Math.max(startColumn, mColumn);
+            endColumn = Math.min(endColumn, getEndColumn());
+            if (startColumn >= endColumn) return null;
+            if (startColumn == mColumn && endColumn == getEndColumn()) return this;
+            return new Slice(mPlacement, startColumn, mPlacementColumn + startColumn - mColumn, endColumn - startColumn, mRow);
+        }
+
+        /** This slice moved to start at the specified column. */
+        Slice moveTo(int column) {
+            return (column == mColumn) ? this : new Slice(mPlacement, column, mPlacementColumn, mColumns, mRow);
+        }
+
+        /** If the slice continues this one on the next row, so that they can be drawn together. */
+        public boolean isContinuedBy(Slice slice) {
+            return slice.mPlacement == mPlacement && slice.mRow == mRow + 1 && slice.mColumn == mColumn
+                && slice.mPlacementColumn == mPlacementColumn && slice.mColumns == mColumns;
+        }
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * The images shown by the {@link TerminalBuffer}:s of an emulator, by the id kept by each {@link ImagePlacement}.
+ * <p>
+ * Each image counts the rows of the buffers which show it, as kept by the buffers in {@link TerminalRow#mImageIds}, and
+ * is dropped once no row shows it, nor the {@link KittyGraphics} keeping it to be displayed later. The images take at
+ * most {@link #setMemoryBudget(long) a number of bytes}, beyond which the pixels of the images used least recently are
+ * dropped, although their ids stay taken until no row shows them, so that the rows do not show another image.
+ * <p>
+ * Images are never changed, but replaced, so that a {@link #snapshot()} can be drawn on another thread.
+ */
+final class ImageRegistry {
+
+    /** The number of ids. */
+    static final int MAX_IMAGES = 1 << 16;
+    /** The number of bytes the images may take by default. */
+    static final long DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024;
+
+    /** An image cut into tiles of the size of a cell. */
+    static final class Image {
+        /** The pixels, or null if they could not be allocated or have not been decoded yet. */
+        final Bitmap mBitmap;
+        /** The size of the bitmap in pixels. */
+        final int mWidth, mHeight;
+        /** The size in pixels of the tile of the bitmap shown by a cell, which is fractional once downscaled. */
+        final float mCellWidth, mCellHeight;
+        /** The number of bytes taken by the pixels. */
+        final long mBytes;
+        final boolean mDownscaled;
+        /** If this image only reserves the cells of an image being decoded, see {@link #replace(int, Image, Image)}. */
+        final boolean mPlaceholder;
+
+        Image(Bitmap bitmap, int width, int height, float cellWidth, float cellHeight, long bytes) {
+            this(bitmap, width, height, cellWidth, cellHeight, bytes, false, false);
+        }
+
+        private Image(Bitmap bitmap, int width, int height, float cellWidth, float cellHeight, long bytes,
+                      boolean downscaled, boolean placeholder) {
+            mBitmap = bitmap;
+            mWidth = width;
+            mHeight = height;
+            mCellWidth = cellWidth;
+            mCellHeight = cellHeight;
+            mBytes = bytes;
+            mDownscaled = downscaled;
+            mPlaceholder = placeholder;
+        }
+
+        /** An image of the specified size without pixels, to show nothing until the image has been decoded. */
+        static Image placeholder(int width, int height, float cellWidth, float cellHeight) {
+            return new Image(null, width, height, cellWidth, cellHeight, 0, false, true);
+        }
+
+        /** An image of half the size in each direction, or null if it is too small or has already been downscaled. */
+        Image downscaled() {
+            if (mDownscaled || mPlaceholder || mCellWidth < 2 || mCellHeight < 2) return null;
+            final int width = mWidth / 2, height = mHeight / 2;
+            final Bitmap bitmap = (mBitmap == null) ? null : Bitmap.createScaledBitmap(mBitmap, width, height, true);
+            return new Image(bitmap, width, height, mCellWidth * width / mWidth, mCellHeight * height / mHeight,
+                mBytes * width * height / ((long) mWidth * mHeight), true, false);
+        }
+    }
+
+    /** The images at the time of a {@link #snapshot()}, sorted by id. */
+    static final class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(new int[0], new Image[0]);
+
+        private final int[] mIds;
+        private final Image[] mImages;
+
+        private Snapshot(int[] ids, Image[] images) {
+            mIds = ids;
+            mImages = images;
+        }
+
+        /** The image with the specified id, or null if there is none or its pixels have been dropped. */
+        Image get(int id) {
+            final int i = Arrays.binarySearch(mIds, id);
+            return (i < 0) ? null : mImages[i];
+        }
+    }
+
+    /** What is known of an id which is taken. */
+    private static final class Entry {
+        /** The image, or null if its pixels have been dropped to stay within the budget. */
+        Image mImage;
+        /** The number of rows showing the image. */
+        int mReferences;
+        /** The value of {@link #mUseCount} when the image was last shown, to drop the least recently used first. */
+        long mLastUse;
+    }
+
+    private final HashMap<Integer, Entry> mEntries = new HashMap<>();
+    /** The id tried first for the next image, so that ids are not reused soon after they are freed. */
+    private int mNextId;
+    /** The number of entries without references, which {@link #collect()} removes. */
+    private int mUnreferenced;
+    private long mUseCount;
+    private long mMemoryUsage;
+    private long mMemoryBudget = DEFAULT_MEMORY_BUDGET;
+    /** The last snapshot, which is reused as long as no image has been added, dropped or replaced since. */
+    private Snapshot mSnapshot = Snapshot.EMPTY;
+    private boolean mChanged;
+
+    /**
+     * Add an image, which is not shown by any row yet and so is dropped by the next {@link #collect()} unless a row has
+     * been {@link #retain(int) retained} for it before. Returns its id, or -1 if all ids are taken.
+     */
+    int add(Image image) {
+        collect();
+        if (mEntries.size() == MAX_IMAGES) return -1;
+        while (mEntries.containsKey(mNextId)) mNextId = (mNextId + 1) % MAX_IMAGES;
+        final int id = mNextId;
+        mNextId = (mNextId + 1) % MAX_IMAGES;
+
+        final Entry entry = new Entry();
+        entry.mImage = image;
+        entry.mLastUse = ++mUseCount;
+        mEntries.put(id, entry);
+        mUnreferenced++;
+        mMemoryUsage += image.mBytes;
+        mChanged = true;
+        trim(mMemoryBudget, id);
+        return id;
+    }
+
+    /** Note that a row shows the image with the specified id. */
+    void retain(int id) {
+        final Entry entry = mEntries.get(id);
+        if (entry == null) return;
+        if (entry.mReferences++ == 0) mUnreferenced--;
+        entry.mLastUse = ++mUseCount;
+    }
+
+    /** Note that a row no longer shows the image with the specified id, which is dropped by {@link #collect()} if unused. */
+    void release(int id) {
+        final Entry entry = mEntries.get(id);
+        if (entry != null && --entry.mReferences == 0) mUnreferenced++;
+    }
+
+    /** Note that the image with the specified id is shown on the screen, so that it is not dropped before older ones. */
+    void touch(int id) {
+        final Entry entry = mEntries.get(id);
+        if (entry != null) entry.mLastUse = ++mUseCount;
+    }
+
+    /**
+     * Replace the image with the specified id by a {@link Image#downscaled() downscaled} one, as it has scrolled far
+     * into the history where it is not likely to be looked at closely.
+     */
+    void downscale(int id) {
+        final Entry entry = mEntries.get(id);
+        if (entry == null || entry.mImage == null) return;
+        final Image image = entry.mImage.downscaled();
+        if (image == null) return;
+        mMemoryUsage += image.mBytes - entry.mImage.mBytes;
+        entry.mImage = image;
+        mChanged = true;
+    }
+
+    /**
+     * Replace a {@link Image#placeholder(int, int, float, float) placeholder} by the decoded image, unless it has been
+     * dropped since. Returns if it was replaced.
+     */
+    boolean replace(int id, Image placeholder, Image image) {
+        final Entry entry = mEntries.get(id);
+        if (entry == null || entry.mImage != placeholder) return false;
+        entry.mImage = image;
+        mMemoryUsage += image.mBytes;
+        mChanged = true;
+        trim(mMemoryBudget, id);
+        return true;
+    }
+
+    /** Drop the images which no row shows any more. */
+    void collect() {
+        if (mUnreferenced == 0) return;
+        for (Iterator<Entry> it = mEntries.values().iterator(); it.hasNext(); ) {
+            final Entry entry = it.next();
+            if (entry.mReferences > 0) continue;
+            if (entry.mImage != null) mMemoryUsage -= entry.mImage.mBytes;
+            it.remove();
+            mChanged = true;
+        }
+        mUnreferenced = 0;
+    }
+
+    /** Drop the images used least recently while they take more than the specified number of bytes. */
+    void trim(long bytes) {
+        trim(bytes, -1);
+    }
+
+    /** Drop the images used least recently other than the one with the specified id, see {@link #trim(long)}. */
+    private void trim(long bytes, int keptId) {
+        while (mMemoryUsage > bytes) {
+            Entry leastRecentlyUsed = null;
+            for (HashMap.Entry<Integer, Entry> e : mEntries.entrySet()) {
+                final Entry entry = e.getValue();
+                if (entry.mImage == null || entry.mImage.mPlaceholder || e.getKey() == keptId) continue;
+                if (leastRecentlyUsed == null || entry.mLastUse < leastRecentlyUsed.mLastUse) leastRecentlyUsed = entry;
+            }
+            if (leastRecentlyUsed == null) return;
+            mMemoryUsage -= leastRecentlyUsed.mImage.mBytes;
+            leastRecentlyUsed.mImage = null;
+            mChanged = true;
+        }
+    }
+
+    /** Limit the memory taken by the images to the specified number of bytes, dropping images if needed. */
+    void setMemoryBudget(long bytes) {
+        mMemoryBudget = bytes;
+        trim(bytes);
+    }
+
+    /** The number of bytes taken by the pixels of the images. */
+    long getMemoryUsage() {
+        return mMemoryUsage;
+    }
+
+    /** The image with the specified id, or null if there is none or its pixels have been dropped. */
+    Image get(int id) {
+        final Entry entry = mEntries.get(id);
+        return (entry == null) ? null : entry.mImage;
+    }
+
+    /** The images as they are now, after dropping the ones which no row shows, to be read from another thread. */
+    Snapshot snapshot() {
+        collect();
+        if (!mChanged) return mSnapshot;
+        int count = 0;
+        for (Entry entry : mEntries.values()) {
+            if (entry.mImage != null) count++;
+        }
+        final int[] ids = new int[count];
+        int i = 0;
+        for (HashMap.Entry<Integer, Entry> e : mEntries.entrySet()) {
+            if (e.getValue().mImage != null) ids[i++] = e.getKey();
+        }
+        Arrays.sort(ids);
+        final Image[] images = new Image[count];
+        for (i = 0; i < count; i++) images[i] = mEntries.get(ids[i]).mImage;
+        mSnapshot = new Snapshot(ids, images);
+        mChanged = false;
+        return mSnapshot;
+    }
+
+}
@@ -0,0 +1,382 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import android.graphics.Bitmap;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * The state of the kitty graphics protocol of an emulator: the command being received, and the images transmitted to
+ * be displayed later by their id, so that they are only sent once however often they are shown.
+ * <p>
+ * A command is sent as {@code ESC _ G <control data> ; <payload> ESC \}, where the control data are comma separated
+ * key=value pairs and the payload is base64 encoded. A large payload is split over several commands, all but the last
+ * with m=1, and is decoded as it arrives. Only direct transmission is supported, of RGB, RGBA or PNG data, optionally
+ * compressed with zlib.
+ * <p>
+ * See https://sw.kovidgoyal.net/kitty/graphics-protocol/.
+ */
+final class KittyGraphics {
+
+    /** The number of transmitted images kept, beyond which the ones transmitted first are forgotten. */
+    static final int MAX_IMAGES = 1024;
+    /** The number of pixels an image may have, beyond which a PNG image is scaled down and raw pixels are refused. */
+    static final int MAX_PIXELS = 4096 * 4096;
+    /** The number of columns or rows an image may be displayed over. */
+    static final int MAX_CELLS = 1000;
+
+    /** A command, with the keys of its control data. */
+    static final class Command {
+        /** The action, a: t to transmit, T to transmit and display, p to display, d to delete and q to query. */
+        char mAction = 't';
+        /** The format of the payload, f: 24 for RGB, 32 for RGBA and 100 for PNG. */
+        int mFormat = 32;
+        /** The transmission medium, t: d for direct, in the payload, which is the only one supported. */
+        char mMedium = 'd';
+        /** The compression of the payload, o: z for zlib, or 0 for none. */
+        char mCompression;
+        /** The width and height in pixels of RGB and RGBA data, s and v. */
+        int mWidth, mHeight;
+        /** The id of the image, i, its number, I, to which an id is assigned, and the id of the placement, p. */
+        int mImageId, mImageNumber, mPlacementId;
+        /** If more chunks of the payload follow, m. */
+        boolean mMore;
+        /** 1 to not send responses if successful, and 2 to not send any, q. */
+        int mQuiet;
+        /** The part of the image to display in pixels, x, y, w and h, the whole image by default. */
+        int mSourceX, mSourceY, mSourceWidth, mSourceHeight;
+        /** The number of columns and rows to display the image over, c and r, computed from its size by default. */
+        int mColumns, mRows;
+        /** The z-index, z: placements below zero are drawn below text. */
+        int mZ;
+        /** 1 to not move the cursor after displaying an image, C. */
+        int mCursorMovement;
+        /** What to delete, d: lowercase to delete placements, and uppercase to also forget their images. */
+        char mDelete = 'a';
+        /** The decoded payload, once all of it has arrived. */
+        byte[] mPayload;
+        /** The image transmitted by the command. */
+        Image mImage;
+
+        /** Parse control data, ignoring unknown keys and invalid values. */
+        static Command parse(String control) {
+            final Command command = new Command();
+            int start = 0;
+            while (start < control.length()) {
+                int end = control.indexOf(',', start);
+                if (end < 0) end = control.length();
+                if (end - start >= 3 && control.charAt(start + 1) == '=') {
+                    command.set(control.charAt(start), control.substring(start + 2, end));
+                }
+                start = end + 1;
+            }
+            return command;
+        }
+
+        private void set(char key, String value) {
+            switch (key) {
+                case 'a':
+                    mAction = value.charAt(0);
+                    return;
+                case 't':
+                    mMedium = value.charAt(0);
+                    return;
+                case 'o':
+                    mCompression = value.charAt(0);
+                    return;
+                case 'd':
+                    mDelete = value.charAt(0);
+                    return;
+            }
+            final int number;
+            try {
+                // Ids are unsigned 32 bit numbers:
+                number = (int) Long.parseLong(value);
+            } catch (NumberFormatException e) {
+                return;
+            }
+            switch (key) {
+                case 'f':
+                    mFormat = number;
+                    break;
+                case 's':
+                    mWidth = number;
+                    break;
+                case 'v':
+                    mHeight = number;
+                    break;
+                case 'i':
+                    mImageId = number;
+                    break;
+                case 'I':
+                    mImageNumber = number;
+                    break;
+                case 'p':
+                    mPlacementId = number;
+                    break;
+                case 'm':
+                    mMore = number == 1;
+                    break;
+                case 'q':
+                    mQuiet = number;
+                    break;
+                case 'x':
+                    mSourceX = number;
+                    break;
+                case 'y':
+                    mSourceY = number;
+                    break;
+                case 'w':
+                    mSourceWidth = number;
+                    break;
+                case 'h':
+                    mSourceHeight = number;
+                    break;
+                case 'c':
+                    mColumns = number;
+                    break;
+                case 'r':
+                    mRows = number;
+                    break;
+                case 'z':
+                    mZ = number;
+                    break;
+                case 'C':
+                    mCursorMovement = number;
+                    break;
+            }
+        }
+    }
+
+    /** A transmitted image. */
+    static final class Image {
+        /** The id of the image in the {@link ImageRegistry}. */
+        final int mId;
+        /** The size of the image in pixels, as transmitted. */
+        final int mWidth, mHeight;
+        /** The size of a cell when the image was transmitted, the size of a tile of it, see {@link ImagePlacement}. */
+        final int mCellWidth, mCellHeight;
+
+        Image(int id, int width, int height, int cellWidth, int cellHeight) {
+            mId = id;
+            mWidth = width;
+            mHeight = height;
+            mCellWidth = cellWidth;
+            mCellHeight = cellHeight;
+        }
+    }
+
+    private final TerminalEmulator mEmulator;
+    private final ImageRegistry mImages;
+    private final Base64Decoder mPayload = new Base64Decoder();
+    /** The command being received, which continues in further chunks if {@link Command#mMore} is set. */
+    private Command mCommand;
+    /** The transmitted images by id, retained in {@link #mImages}, in the order they were transmitted. */
+    private final LinkedHashMap<Integer, Image> mImagesById = new LinkedHashMap<>();
+    /** The id of the last image transmitted with each number. */
+    private final HashMap<Integer, Integer> mImageIdsByNumber = new HashMap<>();
+    /** The id tried first when assigning an id to an image transmitted with a number. */
+    private int mNextImageId = 1;
+
+    KittyGraphics(TerminalEmulator emulator, ImageRegistry images) {
+        mEmulator = emulator;
+        mImages = images;
+    }
+
+    /** Start receiving a command, or the next chunk of the command being received, with the specified control data. */
+    void start(String control) {
+        final Command command = Command.parse(control);
+        if (mCommand != null && mCommand.mMore) {
+            // The chunks after the first one only have the m and q keys:
+            mCommand.mMore = command.mMore;
+            if (command.mQuiet != 0) mCommand.mQuiet = command.mQuiet;
+            return;
+        }
+        mCommand = command;
+        final int bytesPerPixel = (command.mFormat == 24) ? 3 : 4;
+        mPayload.start((command.mFormat == 100 || command.mCompression != 0) ? 0
+            : (int) Math.min(Base64Decoder.MAX_LENGTH, (long) command.mWidth * command.mHeight * bytesPerPixel));
+    }
+
+    /** Decode the next character of the payload of the command being received. */
+    void consume(int c) {
+        mPayload.consume(c);
+    }
+
+    /** The command of which the last chunk has been received, or null if more chunks are to follow. */
+    Command end() {
+        final Command command = mCommand;
+        if (command == null || command.mMore) return null;
+        mCommand = null;
+        mPayload.finish();
+        command.mPayload = Arrays.copyOf(mPayload.getBuffer(), mPayload.getLength());
+        mPayload.reset();
+        return command;
+    }
+
+    /**
+     * Keep the image transmitted by a command, setting {@link Command#mImage}, or only check it for a query. The pixels
+     * are decoded on the {@link ImageLoader} thread, the image being shown as a placeholder in the meantime.
+     *
+     * @return an error to report, or null if successful
+     */
+    String transmit(Command command, int cellW, int cellH) {
+        if (command.mMedium != 'd') return "EINVAL:Only direct transmission is supported";
+        if (command.mImageId != 0 && command.mImageNumber != 0) return "EINVAL:Both an id and a number are specified";
+        final boolean raw = command.mFormat == 24 || command.mFormat == 32;
+        if (!raw && command.mFormat != 100) return "EINVAL:Unknown format";
+        final int bytesPerPixel = (command.mFormat == 24) ? 3 : 4;
+        // The size of raw pixels is checked before decompressing them, which also limits how much is decompressed:
+        if (raw && (command.mWidth <= 0 || command.mHeight <= 0)) return "EINVAL:The size of the image is not specified";
+        if (raw && (long) command.mWidth * command.mHeight > MAX_PIXELS) return "EINVAL:The image is too large";
+        final int rawLength = command.mWidth * command.mHeight * bytesPerPixel;
+        byte[] data = command.mPayload;
+        if (command.mCompression == 'z') {
+            data = inflate(data, raw ? rawLength : Base64Decoder.MAX_LENGTH);
+            if (data == null) return "EINVAL:The data could not be decompressed";
+        } else if (command.mCompression != 0) {
+            return "EINVAL:Unknown compression";
+        }
+
+        final int width, height;
+        final float scale;
+        final ImageLoader.Decoder decoder;
+        if (raw) {
+            width = command.mWidth;
+            height = command.mHeight;
+            scale = 1;
+            if (data.length < rawLength) return "ENODATA:Insufficient image data";
+            final byte[] pixels = data;
+            decoder = () -> {
+                final Bitmap bitmap = decodePixels(pixels, width, height, bytesPerPixel);
+                if (bitmap == null) return null;
+                return new ImageRegistry.Image(bitmap, width, height, cellW, cellH, bitmap.getAllocationByteCount());
+            };
+        } else {
+            final int[] size = ImageLoader.decodeSize(data, data.length);
+            if (size == null) return "EBADPNG:The image could not be decoded";
+            width = size[0];
+            height = size[1];
+            scale = (float) Math.min(1, Math.sqrt((double) MAX_PIXELS / ((long) width * height)));
+            final int scaledWidth = Math.max(1, (int) (scale * width));
+            final int scaledHeight = Math.max(1, (int) (scale * height));
+            final byte[] encoded = data;
+            decoder = () -> {
+                final Bitmap bitmap = ImageLoader.decodeBitmap(encoded, width, height, scaledWidth, scaledHeight);
+                if (bitmap == null) return null;
+                return new ImageRegistry.Image(bitmap, scaledWidth, scaledHeight, scale * cellW, scale * cellH,
+                    bitmap.getAllocationByteCount());
+            };
+        }
+        if (command.mAction == 'q') return null;
+
+        final ImageRegistry.Image placeholder = ImageRegistry.Image.placeholder((int) (scale * width),
+            (int) (scale * height), scale * cellW, scale * cellH);
+        final int id = mImages.add(placeholder);
+        if (id < 0) return "ENOSPC:Too many images";
+        mEmulator.loadImage(id, placeholder, decoder);
+        command.mImage = new Image(id, width, height, cellW, cellH);
+
+        if (command.mImageNumber != 0) {
+            while (mNextImageId == 0 || mImagesById.containsKey(mNextImageId)) mNextImageId++;
+            command.mImageId = mNextImageId++;
+            mImageIdsByNumber.put(command.mImageNumber, command.mImageId);
+        }
+        if (command.mImageId != 0) {
+            mImages.retain(id);
+            final Image old = mImagesById.remove(command.mImageId);
+            if (old != null) mImages.release(old.mId);
+            mImagesById.put(command.mImageId, command.mImage);
+            if (mImagesById.size() > MAX_IMAGES) {
+                final Iterator<Image> eldest = mImagesById.values().iterator();
+                mImages.release(eldest.next().mId);
+                eldest.remove();
+            }
+        }
+        return null;
+    }
+
+    /** The image a command refers to by id or number, or null if there is none. */
+    Image find(Command command) {
+        if (command.mImageNumber != 0) {
+            final Integer id = mImageIdsByNumber.get(command.mImageNumber);
+            if (id == null) return null;
+            command.mImageId = id;
+        }
+        return mImagesById.get(command.mImageId);
+    }
+
+    /**
+     * Forget the images with the specified ids in the {@link ImageRegistry}, which are dropped once no row shows them.
+     */
+    void remove(Collection<Integer> ids) {
+        for (Iterator<Image> it = mImagesById.values().iterator(); it.hasNext(); ) {
+            final Image image = it.next();
+            if (!ids.contains(image.mId)) continue;
+            mImages.release(image.mId);
+            it.remove();
+        }
+    }
+
+    /** Forget all images, and the command being received. */
+    void reset() {
+        for (Image image : mImagesById.values()) mImages.release(image.mId);
+        mImagesById.clear();
+        mImageIdsByNumber.clear();
+        mCommand = null;
+        mPayload.reset();
+    }
+
+    /** A bitmap of RGB or RGBA pixels, with 3 or 4 bytes per pixel. */
+    static Bitmap decodePixels(byte[] data, int width, int height, int bytesPerPixel) {
+        final int[] pixels = new int[width * height];
+        for (int i = 0, j = 0; i < pixels.length; i++, j += bytesPerPixel) {
+            final int alpha = (bytesPerPixel == 4) ? (data[j + 3] & 0xFF) : 0xFF;
+            pixels[i] = (alpha << 24) | ((data[j] & 0xFF) << 16) | ((data[j + 1] & 0xFF) << 8) | (data[j + 2] & 0xFF);
+        }
+        return Bitmap.createBitmap(pixels, width, height, Bitmap.Config.ARGB_8888);
+    }
+
+    /** Decompress zlib data, keeping at most maxLength bytes. Returns null if the data is not valid. */
+    static byte[] inflate(byte[] data, int maxLength) {
+        final Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] buffer = new byte[(int) Math.min(maxLength, Math.max(4096, 4L * data.length))];
+            int length = 0;
+            while (!inflater.finished() && length < maxLength) {
+                if (length == buffer.length) buffer = Arrays.copyOf(buffer, (int) Math.min(maxLength, 2L * length));
+                final int inflated = inflater.inflate(buffer, length, buffer.length - length);
+                if (inflated == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) return null;
+                length += inflated;
+            }
+            return (length == buffer.length) ? buffer : Arrays.copyOf(buffer, length);
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+}
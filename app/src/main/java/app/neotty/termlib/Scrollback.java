@@ -0,0 +1,327 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+
+/**
+ * Rows which have scrolled out of the transcript of a {@link TerminalBuffer}, kept outside of it in a more compact
+ * form. See {@link TerminalBuffer#setScrollback(Scrollback)}.
+ * <p>
+ * Rows are encoded into chunks of {@link #CHUNK_ROWS} rows, each starting with the offsets of its rows, and a chunk
+ * is handed to the subclass to be stored once it is full. The rows of the last few chunks read are kept decoded, so
+ * that scrolling through them or selecting text does not decode them again for each frame.
+ * <p>
+ * Rows are only ever appended, so snapshots on other threads can read the rows they know of while more are
+ * appended. Rows are identified by the number of rows appended before them, which stays the same when the oldest
+ * chunks are dropped.
+ */
+public abstract class Scrollback {
+
+    /** The number of rows in a chunk. */
+    static final int CHUNK_ROWS = 256;
+    /** The number of chunks kept decoded. */
+    private static final int HOT_CHUNKS = 4;
+    /** The size of the offsets starting each chunk. */
+    private static final int HEADER_SIZE = 4 * CHUNK_ROWS;
+
+    /** Set in the flags of a row if it is line wrapped. */
+    private static final int FLAG_LINE_WRAP = 1;
+    /** Set in the flags of a row if its text is stored with one byte per char. */
+    private static final int FLAG_LATIN1 = 2;
+
+    /** The number of rows to keep at least, after which the oldest chunks are dropped. */
+    private int mMaxRows;
+    /** The number of rows appended, of which all but the ones in the chunk being filled have been stored. */
+    private int mRows;
+    /** The number of chunks dropped, which come before the ones kept. */
+    private int mDroppedChunks;
+    private boolean mClosed;
+
+    /** The chunk being filled, with the offsets of its rows followed by the rows. */
+    private byte[] mPending = new byte[16 * 1024];
+    private int mPendingLength = HEADER_SIZE;
+
+    /** The rows of the chunks read last, least recently read first, decoded for {@link #mHotColumns} columns. */
+    private final LinkedHashMap<Integer, TerminalRow[]> mHotChunks = new LinkedHashMap<>(HOT_CHUNKS + 1, 1f, true);
+    private int mHotColumns;
+    private long mHotChunksMemoryUsage;
+
+    Scrollback(int maxRows) {
+        mMaxRows = maxRows;
+    }
+
+    /** The number of rows which can be read. */
+    public final synchronized int getRowCount() {
+        return mRows - mDroppedChunks * CHUNK_ROWS;
+    }
+
+    /** The index of the first row which can be read, which is the number of rows dropped. */
+    final synchronized int getFirstRowIndex() {
+        return mDroppedChunks * CHUNK_ROWS;
+    }
+
+    /** An estimate of the number of bytes of memory taken to keep the rows, not counting memory mapped files. */
+    public final synchronized long getMemoryUsage() {
+        return mPending.length + mHotChunksMemoryUsage + getChunksMemoryUsage();
+    }
+
+    /** Keep at least the specified number of rows, dropping the oldest chunks which are not needed for that. */
+    public final synchronized void setMaxRows(int maxRows) {
+        mMaxRows = maxRows;
+        dropChunksOverMaxRows();
+    }
+
+    /**
+     * Drop the rows kept decoded and then the oldest chunks kept in memory, until the memory used is at most the
+     * specified number of bytes or only the chunk being filled is left.
+     */
+    final synchronized void trimMemoryUsage(long bytes) {
+        if (getMemoryUsage() <= bytes) return;
+        clearHotChunks();
+        while (getMemoryUsage() > bytes && mDroppedChunks < mRows / CHUNK_ROWS
+            && getChunkMemoryUsage(mDroppedChunks) > 0) {
+            dropOldestChunk();
+        }
+    }
+
+    /** Forget all rows appended. */
+    public final synchronized void clear() {
+        mRows = 0;
+        mDroppedChunks = 0;
+        mPendingLength = HEADER_SIZE;
+        clearHotChunks();
+        if (mClosed) return;
+        try {
+            clearChunks();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Release what is used to keep the rows. Rows can no longer be read after this. */
+    public final synchronized void close() {
+        if (mClosed) return;
+        mClosed = true;
+        mPending = new byte[0];
+        clearHotChunks();
+        closeChunks();
+    }
+
+    /** Append a row, of which the first columns are kept. Images are not kept, as they are dropped with the row. */
+    final synchronized void append(TerminalRow row, int columns) {
+        if (mClosed) return;
+
+        final char[] text = row.mText;
+        final int charsUsed = row.getSpaceUsed();
+        boolean latin1 = true;
+        for (int i = 0; i < charsUsed && latin1; i++) latin1 = text[i] < 256;
+        int runs = 0;
+        for (int column = 0; column < columns; column = row.getStyleRunEnd(column)) runs++;
+
+        final int recordLength = 7 + charsUsed * (latin1 ? 1 : 2) + runs * 10;
+        if (mPendingLength + recordLength > mPending.length)
+            mPending = Arrays.copyOf(mPending, Math.max(2 * mPending.length, mPendingLength + recordLength));
+        final ByteBuffer buffer = ByteBuffer.wrap(mPending);
+        buffer.putInt(4 * (mRows % CHUNK_ROWS), mPendingLength);
+        buffer.position(mPendingLength);
+        buffer.putShort((short) columns);
+        buffer.putShort((short) charsUsed);
+        buffer.put((byte) ((row.mLineWrap ? FLAG_LINE_WRAP : 0) | (latin1 ? FLAG_LATIN1 : 0)));
+        for (int i = 0; i < charsUsed; i++) {
+            if (latin1) buffer.put((byte) text[i]);
+            else buffer.putChar(text[i]);
+        }
+        buffer.putShort((short) runs);
+        for (int column = 0; column < columns; ) {
+            final long style = row.getStyle(column);
+            column = row.getStyleRunEnd(column);
+            buffer.putShort((short) column);
+            buffer.putLong(style);
+        }
+        mPendingLength = buffer.position();
+
+        if (++mRows % CHUNK_ROWS != 0) return;
+        try {
+            writeChunk(mRows / CHUNK_ROWS - 1, mPending, mPendingLength);
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        mPendingLength = HEADER_SIZE;
+        dropChunksOverMaxRows();
+    }
+
+    /**
+     * Append the rows of another scrollback as they were appended to it, leaving out the oldest ones if this keeps fewer.
+     * Rows which cannot be read are left out too.
+     */
+    final synchronized void appendRowsOf(Scrollback source) {
+        synchronized (source) {
+            if (source.mClosed) return;
+            final int end = source.mRows;
+            int index = (int) Math.max(source.getFirstRowIndex(), (long) end - mMaxRows);
+            while (index < end) {
+                final int chunk = index / CHUNK_ROWS;
+                final ByteBuffer buffer;
+                try {
+                    buffer = (chunk == end / CHUNK_ROWS) ? ByteBuffer.wrap(source.mPending) : source.readChunk(chunk);
+                } catch (IOException e) {
+                    Log.e(EmulatorDebug.LOG_TAG, "cannot read scrollback rows to move", e);
+                    return;
+                }
+                for (; index < end && index / CHUNK_ROWS == chunk; index++) {
+                    final int rowInChunk = index % CHUNK_ROWS;
+                    final int columns = buffer.getShort(buffer.getInt(4 * rowInChunk));
+                    append(decodeRow(buffer, rowInChunk, columns), columns);
+                }
+            }
+        }
+    }
+
+    /** Drop the oldest chunks as long as there are enough rows without them. */
+    private void dropChunksOverMaxRows() {
+        while (mDroppedChunks < mRows / CHUNK_ROWS && mRows - (mDroppedChunks + 1) * CHUNK_ROWS >= mMaxRows) {
+            dropOldestChunk();
+        }
+    }
+
+    private void dropOldestChunk() {
+        dropChunk(mDroppedChunks);
+        removeHotChunk(mDroppedChunks++);
+    }
+
+    /**
+     * Read back a row, as a row with the specified number of columns which must only be read. Returns null if the row
+     * is not available, because it has been dropped or cleared or could not be read.
+     */
+    final synchronized TerminalRow readRow(int index, int columns) {
+        if (index < getFirstRowIndex() || index >= mRows || mClosed) return null;
+
+        final int chunk = index / CHUNK_ROWS;
+        if (chunk == mRows / CHUNK_ROWS) {
+            return decodeRow(ByteBuffer.wrap(mPending), index % CHUNK_ROWS, columns);
+        }
+
+        if (columns != mHotColumns) {
+            clearHotChunks();
+            mHotColumns = columns;
+        }
+        TerminalRow[] rows = mHotChunks.get(chunk);
+        if (rows == null) {
+            final ByteBuffer buffer;
+            try {
+                buffer = readChunk(chunk);
+            } catch (IOException e) {
+                fail(e);
+                return null;
+            }
+            rows = new TerminalRow[CHUNK_ROWS];
+            for (int i = 0; i < CHUNK_ROWS; i++) {
+                rows[i] = decodeRow(buffer, i, columns);
+                mHotChunksMemoryUsage += rows[i].getMemoryUsage();
+            }
+            mHotChunks.put(chunk, rows);
+            if (mHotChunks.size() > HOT_CHUNKS) removeHotChunk(mHotChunks.keySet().iterator().next());
+        }
+        return rows[index % CHUNK_ROWS];
+    }
+
+    /** Decode a row of a chunk encoded by {@link #append(TerminalRow, int)}. */
+    private static TerminalRow decodeRow(ByteBuffer buffer, int rowInChunk, int columns) {
+        int position = buffer.getInt(4 * rowInChunk);
+        final int storedColumns = buffer.getShort(position);
+        final int charsUsed = buffer.getShort(position + 2);
+        final int flags = buffer.get(position + 4);
+        position += 5;
+
+        final char[] text = new char[Math.max(charsUsed, storedColumns)];
+        if ((flags & FLAG_LATIN1) != 0) {
+            for (int i = 0; i < charsUsed; i++) text[i] = (char) (buffer.get(position++) & 0xFF);
+        } else {
+            for (int i = 0; i < charsUsed; i++, position += 2) text[i] = buffer.getChar(position);
+        }
+        TerminalRow row = new TerminalRow(storedColumns, text, charsUsed);
+        final int runs = buffer.getShort(position);
+        position += 2;
+        for (int run = 0, column = 0; run < runs; run++, position += 10) {
+            final int runEnd = buffer.getShort(position);
+            row.setStyle(column, runEnd, buffer.getLong(position + 2));
+            column = runEnd;
+        }
+        row.mLineWrap = (flags & FLAG_LINE_WRAP) != 0;
+
+        if (storedColumns != columns) {
+            // The screen has been resized since the row was appended, so cut or pad it:
+            TerminalRow resizedRow = new TerminalRow(columns, TextStyle.NORMAL);
+            int end = Math.min(storedColumns, columns);
+            // Do not cut a wide character in half:
+            if (end < storedColumns && row.findStartOfColumn(end - 1) == row.findStartOfColumn(end)) end--;
+            resizedRow.copyInterval(row, 0, end, 0);
+            resizedRow.mLineWrap = row.mLineWrap && columns <= storedColumns;
+            row = resizedRow;
+        }
+        row.freeze();
+        return row;
+    }
+
+    private void removeHotChunk(int chunk) {
+        final TerminalRow[] rows = mHotChunks.remove(chunk);
+        if (rows == null) return;
+        for (TerminalRow row : rows) mHotChunksMemoryUsage -= row.getMemoryUsage();
+    }
+
+    private void clearHotChunks() {
+        mHotChunks.clear();
+        mHotChunksMemoryUsage = 0;
+    }
+
+    /** Stop keeping rows after failing to store or read them. */
+    private void fail(IOException e) {
+        Log.e(EmulatorDebug.LOG_TAG, "scrollback failed, dropping " + getRowCount() + " rows", e);
+        close();
+        mRows = 0;
+        mDroppedChunks = 0;
+    }
+
+    /** Store a full chunk, of which the first length bytes of the data are used. The data is reused after this. */
+    abstract void writeChunk(int chunk, byte[] data, int length) throws IOException;
+
+    /** Read back a chunk stored by {@link #writeChunk(int, byte[], int)}, as a buffer starting with the chunk. */
+    abstract ByteBuffer readChunk(int chunk) throws IOException;
+
+    /** Forget the oldest chunk stored, which will no longer be read. */
+    abstract void dropChunk(int chunk);
+
+    /** Forget all chunks stored. */
+    abstract void clearChunks() throws IOException;
+
+    /** Forget all chunks stored, for good. */
+    abstract void closeChunks();
+
+    /** An estimate of the number of bytes of memory taken to keep the chunks stored. */
+    abstract long getChunksMemoryUsage();
+
+    /** The number of bytes of memory which dropping a stored chunk would release. */
+    abstract long getChunkMemoryUsage(int chunk);
+
+}
@@ -0,0 +1,121 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A {@link Scrollback} keeping all rows in a file, so that the history is not limited by the memory available.
+ * <p>
+ * Chunks are appended to the file and read back through a memory mapped window of it. Only the offset of each chunk
+ * and the chunk being filled are kept in memory.
+ */
+public final class ScrollbackFile extends Scrollback {
+
+    /** The size of the part of the file mapped at a time, unless a chunk is larger. */
+    private static final int WINDOW_SIZE = 1 << 20;
+
+    private final File mFile;
+    private final RandomAccessFile mRandomAccessFile;
+    private final FileChannel mChannel;
+    private long mFileLength;
+
+    /** The offset in the file of each chunk written. */
+    private long[] mChunkOffsets = new long[16];
+    private int mChunks;
+
+    /** The part of the file last mapped, starting at {@link #mWindowStart}. */
+    private MappedByteBuffer mWindow;
+    private long mWindowStart;
+
+    /** Create an empty scrollback file, replacing the file if it exists. */
+    public ScrollbackFile(File file) throws IOException {
+        super(Integer.MAX_VALUE);
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        mRandomAccessFile.setLength(0);
+        mChannel = mRandomAccessFile.getChannel();
+    }
+
+    @Override
+    void writeChunk(int chunk, byte[] data, int length) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+        long position = mFileLength;
+        while (buffer.hasRemaining()) position += mChannel.write(buffer, position);
+        if (mChunks == mChunkOffsets.length) mChunkOffsets = Arrays.copyOf(mChunkOffsets, 2 * mChunks);
+        mChunkOffsets[mChunks++] = mFileLength;
+        mFileLength = position;
+    }
+
+    @Override
+    ByteBuffer readChunk(int chunk) throws IOException {
+        final long chunkStart = mChunkOffsets[chunk];
+        final long chunkEnd = (chunk + 1 < mChunks) ? mChunkOffsets[chunk + 1] : mFileLength;
+        if (mWindow == null || chunkStart < mWindowStart || chunkEnd > mWindowStart + mWindow.capacity()) {
+            final long size = Math.min(Math.max(WINDOW_SIZE, chunkEnd - chunkStart), mFileLength - chunkStart);
+            mWindow = mChannel.map(FileChannel.MapMode.READ_ONLY, chunkStart, size);
+            mWindowStart = chunkStart;
+        }
+        final ByteBuffer buffer = mWindow.duplicate();
+        buffer.position((int) (chunkStart - mWindowStart));
+        buffer.limit((int) (chunkEnd - mWindowStart));
+        return buffer.slice();
+    }
+
+    @Override
+    void dropChunk(int chunk) {
+        // Left in the file, which is only appended to.
+    }
+
+    @Override
+    void clearChunks() throws IOException {
+        mChunks = 0;
+        mFileLength = 0;
+        mWindow = null;
+        mChannel.truncate(0);
+    }
+
+    @Override
+    void closeChunks() {
+        mWindow = null;
+        try {
+            mRandomAccessFile.close();
+        } catch (IOException e) {
+            // Ignore, deleting the file anyway.
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @Override
+    long getChunksMemoryUsage() {
+        return 8L * mChunkOffsets.length;
+    }
+
+    @Override
+    long getChunkMemoryUsage(int chunk) {
+        // The chunks are in the file.
+        return 0;
+    }
+
+}
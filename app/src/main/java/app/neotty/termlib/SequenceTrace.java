@@ -0,0 +1,197 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import java.util.Locale;
+
+/**
+ * Records what a {@link TerminalEmulator} spends its time on, for finding out which escape sequences make a program
+ * slow to display. Enabled with {@link TerminalEmulator#setSequenceTrace(SequenceTrace)}.
+ * <p>
+ * For each class of sequences the number processed, their bytes and the nanoseconds spent processing them are
+ * counted, and the last sequences processed are kept in a ring buffer allocated up front. Consecutive printed
+ * characters count as one print run.
+ */
+public final class SequenceTrace {
+
+    /** Printed characters, counted as runs. */
+    public static final int CLASS_PRINT = 0;
+    /** C0 control characters outside escape sequences, such as line feeds. */
+    public static final int CLASS_CONTROL = 1;
+    /** Select Graphic Rendition, "CSI Pm m". */
+    public static final int CLASS_SGR = 2;
+    /** Cursor position, "CSI Ps ; Ps H" and "CSI Ps ; Ps f". */
+    public static final int CLASS_CUP = 3;
+    /** Erase in display and erase in line, "CSI Ps J" and "CSI Ps K". */
+    public static final int CLASS_ERASE = 4;
+    /** Scrolling and inserting or deleting lines, "CSI Ps S", "CSI Ps T", "CSI Ps L" and "CSI Ps M". */
+    public static final int CLASS_SCROLL = 5;
+    /** Other control sequences. */
+    public static final int CLASS_CSI = 6;
+    /** Escape sequences which are not control sequences or strings. */
+    public static final int CLASS_ESC = 7;
+    /** Device control strings, including sixel graphics. */
+    public static final int CLASS_DCS = 8;
+    /** Operating system commands. */
+    public static final int CLASS_OSC = 9;
+    /** Application program commands. */
+    public static final int CLASS_APC = 10;
+    /** The number of classes, that is, one more than the largest CLASS_* constant. */
+    public static final int NUM_CLASSES = 11;
+
+    private static final String[] CLASS_NAMES = {"print", "control", "SGR", "CUP", "ED/EL", "scroll", "CSI", "ESC", "DCS",
+        "OSC", "APC"};
+
+    /** The number of bytes kept of each sequence in the ring buffer. */
+    private static final int TEXT_LENGTH = 32;
+
+    private final long[] mCounts = new long[NUM_CLASSES];
+    private final long[] mBytes = new long[NUM_CLASSES];
+    private final long[] mNanos = new long[NUM_CLASSES];
+
+    /**
+     * The ring buffer of the last sequences, with {@link #mSlots} entries of which {@link #mNext} is the sequence being
+     * recorded.
+     */
+    private final int mSlots;
+    private final byte[] mEntryClasses;
+    private final int[] mEntryBytes;
+    private final long[] mEntryNanos;
+    private final byte[] mEntryText;
+    private int mNext;
+    /** The number of finished entries, of which the last {@link #mSlots} - 1 are in the ring buffer. */
+    private long mEntries;
+    /** If the latest finished entry is a print run which the next printed characters should be added to. */
+    private boolean mPrintRunOpen;
+
+    /** Create a trace keeping the specified number of last sequences. */
+    public SequenceTrace(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity=" + capacity);
+        mSlots = capacity + 1;
+        mEntryClasses = new byte[mSlots];
+        mEntryBytes = new int[mSlots];
+        mEntryNanos = new long[mSlots];
+        mEntryText = new byte[mSlots * TEXT_LENGTH];
+    }
+
+    /** Forget everything recorded so far. */
+    public void reset() {
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            mCounts[i] = 0;
+            mBytes[i] = 0;
+            mNanos[i] = 0;
+        }
+        mEntryBytes[mNext] = 0;
+        mEntryNanos[mNext] = 0;
+        mEntries = 0;
+        mPrintRunOpen = false;
+    }
+
+    /** The number of sequences, or print runs, of the class processed. */
+    public long getCount(int sequenceClass) {
+        return mCounts[sequenceClass];
+    }
+
+    /** The number of bytes of the sequences of the class processed. */
+    public long getBytes(int sequenceClass) {
+        return mBytes[sequenceClass];
+    }
+
+    /** The nanoseconds spent processing the sequences of the class. */
+    public long getNanos(int sequenceClass) {
+        return mNanos[sequenceClass];
+    }
+
+    /** Add bytes of the sequence being processed, buffer[start] to buffer[end - 1], which took nanos to process. */
+    void add(byte[] buffer, int start, int end, long nanos) {
+        final int next = mNext;
+        final int textLength = Math.min(mEntryBytes[next], TEXT_LENGTH);
+        final int copyLength = Math.min(end - start, TEXT_LENGTH - textLength);
+        if (copyLength > 0) System.arraycopy(buffer, start, mEntryText, next * TEXT_LENGTH + textLength, copyLength);
+        mEntryBytes[next] += end - start;
+        mEntryNanos[next] += nanos;
+    }
+
+    /** Finish the sequence being processed, whose bytes have been {@link #add}ed, as one of the specified class. */
+    void finish(int sequenceClass) {
+        final int next = mNext;
+        mBytes[sequenceClass] += mEntryBytes[next];
+        mNanos[sequenceClass] += mEntryNanos[next];
+
+        if (sequenceClass == CLASS_PRINT && mPrintRunOpen) {
+            // Extend the latest entry, which is a print run, instead of starting a new one:
+            final int previous = (next == 0 ? mSlots : next) - 1;
+            final int previousLength = Math.min(mEntryBytes[previous], TEXT_LENGTH);
+            final int copyLength = Math.min(Math.min(mEntryBytes[next], TEXT_LENGTH), TEXT_LENGTH - previousLength);
+            if (copyLength > 0)
+                System.arraycopy(mEntryText, next * TEXT_LENGTH, mEntryText, previous * TEXT_LENGTH + previousLength, copyLength);
+            mEntryBytes[previous] += mEntryBytes[next];
+            mEntryNanos[previous] += mEntryNanos[next];
+        } else {
+            mCounts[sequenceClass]++;
+            mEntryClasses[next] = (byte) sequenceClass;
+            mEntries++;
+            mNext = (next + 1 == mSlots) ? 0 : next + 1;
+            mPrintRunOpen = (sequenceClass == CLASS_PRINT);
+        }
+        mEntryBytes[mNext] = 0;
+        mEntryNanos[mNext] = 0;
+    }
+
+    /** A table of the time spent per class of sequences, followed by the last sequences processed. */
+    public String getReport() {
+        StringBuilder report = new StringBuilder();
+        long totalNanos = 0;
+        for (long nanos : mNanos) totalNanos += nanos;
+
+        report.append(String.format(Locale.US, "%-8s %10s %12s %10s %10s %6s%n", "class", "count", "bytes", "total ms", "ns/each", "time"));
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            if (mCounts[i] == 0) continue;
+            report.append(String.format(Locale.US, "%-8s %10d %12d %10.1f %10d %5.1f%%%n", CLASS_NAMES[i], mCounts[i], mBytes[i],
+                mNanos[i] / 1e6, mNanos[i] / mCounts[i], totalNanos == 0 ? 0 : 100. * mNanos[i] / totalNanos));
+        }
+
+        final int entries = (int) Math.min(mEntries, mSlots - 1);
+        report.append(String.format(Locale.US, "%nLast %d sequences, oldest first:%n", entries));
+        for (int i = entries; i > 0; i--) {
+            final int entry = (mNext - i + mSlots) % mSlots;
+            report.append(String.format(Locale.US, "%10d ns  %-8s ", mEntryNanos[entry], CLASS_NAMES[mEntryClasses[entry]]));
+            appendText(report, entry);
+            report.append('\n');
+        }
+        return report.toString();
+    }
+
+    /** Append the kept bytes of an entry, with control characters and bytes outside ASCII escaped. */
+    private void appendText(StringBuilder report, int entry) {
+        final int length = Math.min(mEntryBytes[entry], TEXT_LENGTH);
+        for (int i = 0; i < length; i++) {
+            final int b = mEntryText[entry * TEXT_LENGTH + i] & 0xFF;
+            if (b == 27) {
+                report.append("ESC");
+            } else if (b < 32 || b == 127) {
+                report.append('^').append((char) (b ^ 64));
+            } else if (b < 127) {
+                report.append((char) b);
+            } else {
+                report.append(String.format(Locale.US, "\\x%02x", b));
+            }
+        }
+        if (mEntryBytes[entry] > length) report.append("... (").append(mEntryBytes[entry]).append(" bytes)");
+    }
+
+}
@@ -0,0 +1,276 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import java.util.Arrays;
+
+/**
+ * Incremental decoder for sixel graphics, fed one character at a time from the body of a "DCS Ps q" device control
+ * string. Pixels are painted into a plain ARGB array which is reused between images, so that the caller only needs
+ * to upload it to a bitmap once the image is complete.
+ * <p>
+ * See https://vt100.net/docs/vt3xx-gp/chapter14.html for the format.
+ */
+final class SixelDecoder {
+
+    /** Images are clipped to this many pixels in each direction. */
+    static final int MAX_SIZE = 4096;
+
+    /** Pixel buffers larger than this are not kept around between images. */
+    private static final int MAX_RETAINED_PIXELS = 1024 * 1024;
+
+    private static final int INITIAL_WIDTH = 128;
+    private static final int INITIAL_HEIGHT = 96;
+
+    private static final int MAX_PARAMETERS = 5;
+    private static final int MAX_PARAMETER_VALUE = 0xffff;
+
+    /** Sixel data, '$', '-' and introducers of the commands below. */
+    private static final int STATE_DATA = 0;
+    /** Graphics repeat introducer: "! Pn". */
+    private static final int STATE_REPEAT = 1;
+    /** Color introducer: "# Pc" or "# Pc; Pu; Px; Py; Pz". */
+    private static final int STATE_COLOR = 2;
+    /** Raster attributes: "" Pan; Pad; Ph; Pv". */
+    private static final int STATE_RASTER = 3;
+
+    /** The default VT340 color registers. */
+    private static final int[] INITIAL_COLOR_MAP = {0xFF000000, 0xFF3333CC, 0xFFCC2323, 0xFF33CC33, 0xFFCC33CC, 0xFF33CCCC,
+        0xFFCCCC33, 0xFF777777, 0xFF444444, 0xFF565699, 0xFF994444, 0xFF569956, 0xFF995699, 0xFF569999, 0xFF999956, 0xFFCCCCCC};
+
+    private final int[] mColorMap = new int[256];
+    private final int[] mParams = new int[MAX_PARAMETERS];
+    private int mParamCount;
+    private int mState;
+
+    /** Row-major ARGB pixels, {@link #mStride} pixels per row. */
+    private int[] mPixels = new int[INITIAL_WIDTH * INITIAL_HEIGHT];
+    private int mStride = INITIAL_WIDTH;
+
+    private int mColor;
+    private int mRepeat;
+    private int mX, mY;
+    private int mWidth, mHeight;
+
+    /** Prepare for a new image, forgetting the previous one. */
+    public void start() {
+        if (mPixels.length > MAX_RETAINED_PIXELS) {
+            mPixels = new int[INITIAL_WIDTH * INITIAL_HEIGHT];
+            mStride = INITIAL_WIDTH;
+        } else {
+            Arrays.fill(mPixels, 0, Math.min(mPixels.length, mHeight * mStride), 0);
+        }
+        System.arraycopy(INITIAL_COLOR_MAP, 0, mColorMap, 0, INITIAL_COLOR_MAP.length);
+        Arrays.fill(mColorMap, INITIAL_COLOR_MAP.length, mColorMap.length, 0);
+        mColor = mColorMap[0];
+        mState = STATE_DATA;
+        mRepeat = 1;
+        mX = mY = 0;
+        mWidth = mHeight = 0;
+    }
+
+    /** Process the next character of the sixel data. */
+    public void consume(int c) {
+        if (mState != STATE_DATA) {
+            if (c >= '0' && c <= '9') {
+                int value = mParams[mParamCount - 1] * 10 + (c - '0');
+                mParams[mParamCount - 1] = Math.min(value, MAX_PARAMETER_VALUE);
+                return;
+            } else if (c == ';') {
+                if (mParamCount < MAX_PARAMETERS) mParams[mParamCount++] = 0;
+                return;
+            }
+            finishCommand();
+        }
+
+        if (c >= '?' && c <= '~') {
+            paint(c - '?', mRepeat);
+            mRepeat = 1;
+            return;
+        }
+        switch (c) {
+            case '$': // Graphics carriage return.
+                mX = 0;
+                mRepeat = 1;
+                break;
+            case '-': // Graphics new line.
+                mX = 0;
+                mY += 6;
+                mRepeat = 1;
+                break;
+            case '!':
+                startCommand(STATE_REPEAT);
+                break;
+            case '#':
+                startCommand(STATE_COLOR);
+                break;
+            case '"':
+                startCommand(STATE_RASTER);
+                break;
+            default:
+                // Ignore everything else, as a VT340 does.
+                break;
+        }
+    }
+
+    /** Finish the image after the string terminator. */
+    public void finish() {
+        if (mState != STATE_DATA) finishCommand();
+    }
+
+    /** The width in pixels of the painted part of the image. */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /** The height in pixels of the painted part of the image, always a multiple of six. */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /** The painted pixels, see {@link #getStride()}. Only valid until the next call to {@link #start()}. */
+    public int[] getPixels() {
+        return mPixels;
+    }
+
+    /** The number of entries in {@link #getPixels()} between rows. */
+    public int getStride() {
+        return mStride;
+    }
+
+    private void startCommand(int state) {
+        mState = state;
+        mParams[0] = 0;
+        mParamCount = 1;
+    }
+
+    private void finishCommand() {
+        int state = mState;
+        mState = STATE_DATA;
+        switch (state) {
+            case STATE_REPEAT:
+                mRepeat = Math.max(1, mParams[0]);
+                break;
+            case STATE_COLOR:
+                setColor();
+                break;
+            case STATE_RASTER:
+                // Aspect ratio is not supported, but the size is a hint about how big a buffer is needed.
+                if (mParamCount >= 4) ensureCapacity(Math.min(mParams[2], MAX_SIZE), Math.min(mParams[3], MAX_SIZE));
+                break;
+        }
+    }
+
+    private void setColor() {
+        int register = mParams[0];
+        if (register >= mColorMap.length) return;
+        if (mParamCount >= 5) {
+            int x = mParams[2], y = mParams[3], z = mParams[4];
+            if (mParams[1] == 1) {
+                mColorMap[register] = hlsToArgb(x, y, z);
+            } else if (mParams[1] == 2) {
+                mColorMap[register] = 0xff000000 | (percentToByte(x) << 16) | (percentToByte(y) << 8) | percentToByte(z);
+            }
+        }
+        mColor = mColorMap[register];
+    }
+
+    private static int percentToByte(int percent) {
+        return Math.min(255, percent * 255 / 100);
+    }
+
+    /** Convert a DEC HLS color, where blue is at a hue angle of 0, to ARGB. */
+    private static int hlsToArgb(int hue, int lightness, int saturation) {
+        float l = Math.min(100, lightness) / 100f;
+        float s = Math.min(100, saturation) / 100f;
+        float h = ((hue + 240) % 360) / 60f;
+        float chroma = (1 - Math.abs(2 * l - 1)) * s;
+        float x = chroma * (1 - Math.abs(h % 2 - 1));
+        float r = 0, g = 0, b = 0;
+        switch ((int) h) {
+            case 0:
+                r = chroma;
+                g = x;
+                break;
+            case 1:
+                r = x;
+                g = chroma;
+                break;
+            case 2:
+                g = chroma;
+                b = x;
+                break;
+            case 3:
+                g = x;
+                b = chroma;
+                break;
+            case 4:
+                r = x;
+                b = chroma;
+                break;
+            default:
+                r = chroma;
+                b = x;
+                break;
+        }
+        float m = l - chroma / 2;
+        return 0xff000000 | (Math.round((r + m) * 255) << 16) | (Math.round((g + m) * 255) << 8) | Math.round((b + m) * 255);
+    }
+
+    /** Paint a sixel, i.e. a column of six pixels where bit 0 is the top one, repeat times. */
+    private void paint(int sixel, int repeat) {
+        int startX = mX;
+        int endX = Math.min(startX + repeat, MAX_SIZE);
+        mX = endX;
+        if (endX <= startX || mY + 6 > MAX_SIZE) return;
+
+        ensureCapacity(endX, mY + 6);
+        if (endX > mWidth) mWidth = endX;
+        if (mY + 6 > mHeight) mHeight = mY + 6;
+
+        final int[] pixels = mPixels;
+        final int color = mColor;
+        int offset = mY * mStride;
+        for (int bit = 0; bit < 6; bit++, offset += mStride) {
+            if ((sixel & (1 << bit)) == 0) continue;
+            if (repeat == 1) {
+                pixels[offset + startX] = color;
+            } else {
+                Arrays.fill(pixels, offset + startX, offset + endX, color);
+            }
+        }
+    }
+
+    /** Grow the pixel buffer, if necessary, so that it holds at least the specified number of columns and rows. */
+    private void ensureCapacity(int columns, int rows) {
+        int capacityRows = mPixels.length / mStride;
+        if (columns <= mStride && rows <= capacityRows) return;
+
+        int newStride = columns <= mStride ? mStride : Math.min(MAX_SIZE, Math.max(columns, mStride * 2));
+        int newRows = rows <= capacityRows ? capacityRows : Math.min(MAX_SIZE, Math.max(rows, capacityRows * 2));
+        if (newStride == mStride) {
+            mPixels = Arrays.copyOf(mPixels, newStride * newRows);
+        } else {
+            int[] newPixels = new int[newStride * newRows];
+            for (int row = 0; row < mHeight; row++)
+                System.arraycopy(mPixels, row * mStride, newPixels, row * newStride, mWidth);
+            mPixels = newPixels;
+            mStride = newStride;
+        }
+    }
+
+}
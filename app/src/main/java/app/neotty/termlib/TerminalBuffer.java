@@ -17,13 +17,11 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package app.neotty.termlib;
 
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Rect;
-import android.os.SystemClock;
 
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Set;
+import java.util.function.BiPredicate;
 
 /**
  * A circular buffer of {@link TerminalRow}:s which keeps notes about what is visible on a logical screen and the scroll
@@ -42,202 +40,213 @@ public final class TerminalBuffer {
     private int mActiveTranscriptRows = 0;
     /** The index in the circular buffer where the visible screen starts. */
     private int mScreenFirstRow = 0;
+    /**
+     * Incremented by {@link #snapshot()}. Rows of an older generation may be shared with a snapshot and are replaced by
+     * a copy before being modified, see {@link #getModifiableLine(int)}.
+     */
+    private int mGeneration;
+    /**
+     * The columns of each screen row which have changed since the last {@link #snapshot()}, from mDamageStart[row]
+     * (inclusive) to mDamageEnd[row] (exclusive). Rows outside the damage show what the row {@link #mScrollDelta} rows
+     * further down showed at the last snapshot.
+     */
+    private int[] mDamageStart, mDamageEnd;
+    /** The number of times the whole screen has scrolled up by one row since the last {@link #snapshot()}. */
+    private int mScrollDelta;
+    /** Holds the lines moved around by {@link #blockCopyLinesDown(int, int, int)}, to not allocate for each scroll. */
+    private TerminalRow[] mScrollScratch;
+    /** Where lines scrolling out of the transcript are kept, if anywhere, see {@link #setScrollback(Scrollback)}. */
+    private Scrollback mScrollback;
+    /** The number of lines in {@link #mScrollback}, which come before the transcript, and the index of the first. */
+    private int mSpilledRows;
+    private int mFirstSpilledRow;
+    /** The number of bytes the history may take, or 0 if not limited, see {@link #setMemoryBudget(long)}. */
+    private long mMemoryBudget;
+    /** The number of lines scrolled since the memory used was last compared with {@link #mMemoryBudget}. */
+    private int mRowsScrolledSinceBudgetCheck;
+    /** The number of lines to scroll between comparing the memory used with {@link #mMemoryBudget}. */
+    private static final int BUDGET_CHECK_ROWS = 256;
+    /**
+     * Rows which are no longer used nor shared with a snapshot, the first {@link #mPooledRows} of which are reused by
+     * {@link #newLine(long)}. Filled with the rows of the old geometry by {@link #resize}.
+     */
+    private TerminalRow[] mRowPool = new TerminalRow[0];
+    private int mPooledRows;
+    /**
+     * The rows of the history which {@link #resize} has left to {@link #continueReflow(int)}, as they were before, or
+     * null if there are none. The rows from mReflowStart to mReflowEnd are left, and go above the transcript, or into
+     * the scrollback while mReflowSpilling, which is once there is no room left above the transcript.
+     */
+    private TerminalRow[] mReflowSource;
+    private int mReflowStart, mReflowEnd;
+    private boolean mReflowSpilling;
+    /** Reflowed rows which did not fit above the transcript, which go into the scrollback after the rows left. */
+    private TerminalRow[] mReflowOverflow;
+    /** The style of the rows reflowed from {@link #mReflowSource}, which was the current style when resizing. */
+    private long mReflowStyle;
+    /** If rows may be put into {@link #mRowPool} once reflowed, which is not the case if some appear twice. */
+    private boolean mReflowReleasesRows;
+    /** The rows reflowed by {@link #reflowRows}, the first {@link #mReflowOutputRows} of which are used. */
+    private TerminalRow[] mReflowOutput = new TerminalRow[16];
+    private int mReflowOutputRows;
 
-    final private int MAX_SIXELS = 1024;
-    private Bitmap sixelBitmap[];
-    private int sixelCellW[];
-    private int sixelCellH[];
-    private int sixelWidth[];
-    private int sixelHeight[];
-    private int sixelNum = -1;
-    private int sixelX;
-    private int sixelY;
-    private int[] sixelColorMap;
-    private int sixelColor;
-    private long sixelLastGC;
-    private boolean sixelHasBitmaps = false;
-    final private int sixelInitialColorMap[] = {0xFF000000, 0xFF3333CC, 0xFFCC2323, 0xFF33CC33, 0xFFCC33CC, 0xFF33CCCC, 0xFFCCCC33, 0xFF777777,
-            0xFF444444, 0xFF565699, 0xFF994444, 0xFF569956, 0xFF995699, 0xFF569999, 0xFF999956, 0xFFCCCCCC};
-
-    private Bitmap resizeBitmap(Bitmap bm, int w, int h) {
-        int[] pixels = new int[bm.getAllocationByteCount()];
-        bm.getPixels(pixels, 0, bm.getWidth(), 0, 0, bm.getWidth(), bm.getHeight());
-        Bitmap newbm = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-        newbm.setPixels(pixels, 0, bm.getWidth(), 0, 0, bm.getWidth(), bm.getHeight());
-        return newbm;
-    }
-
-    public Bitmap getSixelBitmap(int codePoint, long style) {
-        int sn = (int)(style & 0xffff0000) >> 16 ;
-        return sixelBitmap[sn];
-    }
-
-    public Rect getSixelRect(int codePoint, long style ) {
-        int sn = (int)(style & 0xffff0000) >> 16 ;
-        int x = (int)((style >> 48) & 0xfff);
-        int y = (int)((style >> 32) & 0xfff);
-        Rect r = new Rect(x * sixelCellW[sn], y * sixelCellH[sn], (x+1) * sixelCellW[sn], (y+1) * sixelCellH[sn]);
-        return r;
-    }
-
-    public void sixelStart(int width, int height) {
-        sixelNum++;
-        if (sixelNum >= MAX_SIXELS) {
-            sixelNum = 0;
-        }
-        sixelBitmap[sixelNum] = Bitmap.createBitmap( width, height, Bitmap.Config.ARGB_8888);
-        sixelBitmap[sixelNum].eraseColor(0);
-        sixelWidth[sixelNum] = 0;
-        sixelHeight[sixelNum] = 0;
-        sixelX = 0;
-        sixelY = 0;
-        sixelColorMap = new int[256];
-        for (int i=0; i<16; i++) {
-            sixelColorMap[i] = sixelInitialColorMap[i];
-        }
-    }
-
-    public void sixelChar(int c, int rep) {
-        if (c == '$') {
-            sixelX = 0;
-            return;
-        }
-        if (c == '-') {
-            sixelX = 0;
-            sixelY += 6;
-            return;
-        }
-        if (sixelBitmap[sixelNum].getWidth() < sixelX + rep) {
-            sixelBitmap[sixelNum] = resizeBitmap(sixelBitmap[sixelNum], sixelX + rep + 100, sixelBitmap[sixelNum].getHeight());
-        }
-        if (sixelBitmap[sixelNum].getHeight() < sixelY + 6) {
-            // Very unlikely to resize both at the same time
-            sixelBitmap[sixelNum] = resizeBitmap(sixelBitmap[sixelNum], sixelBitmap[sixelNum].getWidth(), sixelY + 100);
-        }
-        while (rep-- > 0) {
-            if (c >= '?' && c <= '~') {
-                int b = c - '?';
-                for (int i = 0 ; i < 6 ; i++) {
-                    if ((b & (1<<i)) != 0) {
-                        sixelBitmap[sixelNum].setPixel(sixelX, sixelY + i, sixelColor);
-                    }
-                }
-                sixelX += 1;
-                if (sixelX > sixelWidth[sixelNum]) {
-                    sixelWidth[sixelNum] = sixelX;
-                }
-                if (sixelY + 6 > sixelHeight[sixelNum]) {
-                    sixelHeight[sixelNum] = sixelY + 6;
-                }
-            }
-        }
+    /** The images shown by the cells of this buffer, shared with the other buffer of the emulator. Null in a snapshot. */
+    private final ImageRegistry mImages;
+    /** The images as they were when this {@link #snapshot()} was taken, or null if this is not a snapshot. */
+    private final ImageRegistry.Snapshot mImageSnapshot;
+    /**
+     * The number of rows into the history after which images are {@link ImageRegistry#downscale(int) downscaled}, as
+     * they are not likely to be looked at closely any more.
+     */
+    private static final int FAR_HISTORY_ROWS = 1000;
+
+    /**
+     * The bitmap to draw for some of the cells of an image placement, the specified number of columns and rows of it
+     * from firstColumn and firstRow, setting source to the part of the bitmap they show. Returns null if the image has
+     * been dropped, in which case nothing is drawn for the cells.
+     */
+    public Bitmap getImageBitmap(ImagePlacement placement, int firstColumn, int columns, int firstRow, int rows, Rect source) {
+        final int id = placement.mImageId;
+        final ImageRegistry.Image image = (mImageSnapshot != null) ? mImageSnapshot.get(id) : mImages.get(id);
+        if (image == null || image.mBitmap == null) return null;
+        final float left = placement.mSourceColumn * image.mCellWidth, top = placement.mSourceRow * image.mCellHeight;
+        final float columnWidth = placement.mSourceColumns * image.mCellWidth / placement.mColumns;
+        final float rowHeight = placement.mSourceRows * image.mCellHeight / placement.mRows;
+        source.set((int) (left + firstColumn * columnWidth), (int) (top + firstRow * rowHeight),
+            (int) (left + (firstColumn + columns) * columnWidth), (int) (top + (firstRow + rows) * rowHeight));
+        return image.mBitmap;
     }
 
-    public void sixelSetColor(int col) {
-        if (col >= 0 && col < 256) {
-            sixelColor = sixelColorMap[col];
-        }
+    /**
+     * Place a decoded sixel image with its top left corner at the specified cell, scrolling the screen if needed.
+     *
+     * @param pixels row-major ARGB pixels of the image, stride entries per row
+     * @param style  the style of the cells under the image, which are cleared
+     * @return the number of lines the cursor should move down to end up below the image
+     */
+    public int sixelEnd(int[] pixels, int stride, int width, int height, int Y, int X, int cellW, int cellH, long style) {
+        int w = Math.min(mColumns - X, (width + cellW - 1) / cellW);
+        int h = (height + cellH - 1) / cellH;
+        if (w <= 0 || h <= 0) return 0;
+        Bitmap bm = Bitmap.createBitmap(w * cellW, h * cellH, Bitmap.Config.ARGB_8888);
+        bm.setPixels(pixels, 0, stride, 0, 0, Math.min(width, w * cellW), height);
+        final int id = mImages.add(new ImageRegistry.Image(bm, bm.getWidth(), bm.getHeight(), cellW, cellH,
+            bm.getAllocationByteCount()));
+        if (id < 0) return 0;
+        return placeImage(id, w, h, Y, X, style);
     }
 
-    public void sixelSetColor(int col, int r, int g, int b) {
-        if (col >= 0 && col < 256) {
-            int red = Math.min(255, r*255/100);
-            int green = Math.min(255, g*255/100);
-            int blue = Math.min(255, b*255/100);
-            sixelColor = 0xff000000 + (red << 16) + (green << 8) + blue;
-            sixelColorMap[col] = sixelColor;
-        }
+    /**
+     * Place an image of the {@link ImageRegistry}, which is w columns wide, or as many as fit on the screen, and h rows
+     * high, with its top left corner at the specified cell, scrolling the screen if needed. The cells under it are
+     * cleared with the specified style, and each row it covers shows a {@link ImagePlacement.Slice} of it. Returns the
+     * number of lines the cursor should move down to end up below it.
+     */
+    int placeImage(int id, int w, int h, int Y, int X, long style) {
+        w = Math.min(mColumns - X, w);
+        if (w <= 0 || h <= 0) return 0;
+        return placeImage(new ImagePlacement(id, w, h, 0), Y, X, style);
     }
 
-    public int sixelEnd(int Y, int X, int cellW, int cellH) {
-        sixelCellW[sixelNum] = cellW;
-        sixelCellH[sixelNum] = cellH;
-        int w = Math.min(mColumns - X,(sixelWidth[sixelNum] + cellW - 1) / cellW);
-        int h = (sixelHeight[sixelNum] + cellH - 1) / cellH;
+    /**
+     * Place an image placement with its top left corner at the specified cell, scrolling the screen if needed, as
+     * {@link #placeImage(int, int, int, int, int, long)} does. The cells under an
+     * {@link ImagePlacement#mOverlay overlay} are left as they are.
+     */
+    int placeImage(ImagePlacement placement, int Y, int X, long style) {
+        final int w = Math.min(mColumns - X, placement.mColumns), h = placement.mRows;
+        if (w <= 0 || h <= 0) return 0;
         int s = 0;
         for (int i=0; i<h; i++) {
             if (Y+i-s == mScreenRows) {
                 scrollDownOneLine(0, mScreenRows, TextStyle.NORMAL);
                 s++;
             }
-            for (int j=0; j<w ; j++) {
-                setChar(X+j, Y+i-s, '+', ((long)sixelNum << 16) | ((long)i << 32) | ((long)j << 48) | TextStyle.BITMAP);
-            }
+            if (placement.mOverlay) damage(Y+i-s, Y+i-s+1, X, X+w);
+            else blockSet(X, Y+i-s, w, 1, ' ', style);
+            getModifiableLine(externalToInternalRow(Y+i-s)).addImageSlice(new ImagePlacement.Slice(placement, X, 0, w, i));
         }
-        if (w * cellW < sixelBitmap[sixelNum].getWidth()) {
-            sixelBitmap[sixelNum] = Bitmap.createBitmap(sixelBitmap[sixelNum], 0, 0, w * cellW, sixelBitmap[sixelNum].getHeight());
+        // The rows which scrolled into the history were retained as they did, see freezeScrolledOutLines():
+        for (int row = 0; row < mScreenRows; row++) {
+            final TerminalRow line = mLines[externalToInternalRow(row)];
+            if (line != null) retainImages(line);
         }
-        sixelHasBitmaps = true;
-        sixelGC(30000);
         return h - s;
     }
 
-    public int[] addImage(byte[] image, int Y, int X, int cellW, int cellH, int width, int height, boolean aspect) {
-        Bitmap bm = BitmapFactory.decodeByteArray(image, 0, image.length);
-        if (bm == null) {
-            return new int[] {0,0};
-        }
-
-        if (width > 0 || height > 0) {
-            if (aspect) {
-                double wFactor = 9999.0;
-                double hFactor = 9999.0;
-                if (width > 0) {
-                    wFactor = (double)width / bm.getWidth();
-                }
-                if (height > 0) {
-                    hFactor = (double)height / bm.getHeight();
-                }
-                double factor = Math.min(wFactor, hFactor);
-                bm = Bitmap.createScaledBitmap(bm, (int)(factor * bm.getWidth()), (int)(factor * bm.getHeight()), true);
-            } else {
-                if (height <= 0) {
-                    height = bm.getHeight();
-                }
-                if (width <= 0) {
-                    width = bm.getWidth();
-                }
-                bm = Bitmap.createScaledBitmap(bm, width, height, true);
-            }
-            if (bm == null) {
-                return new int[] {0,0};
+    /**
+     * Remove the placements with a slice on the screen which the filter accepts, given the slice and its screen row,
+     * from the screen. Returns the number of placements removed.
+     */
+    int removeImagePlacements(BiPredicate<ImagePlacement.Slice, Integer> filter) {
+        final HashSet<ImagePlacement> placements = new HashSet<>();
+        for (int row = 0; row < mScreenRows; row++) {
+            final TerminalRow line = mLines[externalToInternalRow(row)];
+            final ImagePlacement.Slice[] slices = (line == null) ? null : line.getImageSlices();
+            if (slices == null) continue;
+            for (ImagePlacement.Slice slice : slices) {
+                if (filter.test(slice, row)) placements.add(slice.mPlacement);
             }
         }
-        sixelNum++;
-        if (sixelNum >= MAX_SIXELS) {
-            sixelNum = 0;
-        }
-        sixelBitmap[sixelNum] = bm;
-        sixelWidth[sixelNum] = sixelBitmap[sixelNum].getWidth();
-        sixelHeight[sixelNum] = sixelBitmap[sixelNum].getHeight();
-        if ((sixelWidth[sixelNum] % cellW) != 0 || (sixelHeight[sixelNum] % cellH) != 0) {
-            sixelBitmap[sixelNum] = resizeBitmap(bm, ((sixelWidth[sixelNum]-1) / cellW) * cellW + cellW, ((sixelHeight[sixelNum]-1) / cellH) * cellH + cellH);
+        if (placements.isEmpty()) return 0;
+        for (int row = 0; row < mScreenRows; row++) {
+            final int internalRow = externalToInternalRow(row);
+            final TerminalRow line = mLines[internalRow];
+            if (line == null || !line.showsAny(placements)) continue;
+            getModifiableLine(internalRow).removeImagePlacements(placements);
+            retainImages(mLines[internalRow]);
+            damage(row, row + 1, 0, mColumns);
         }
-        int lines = sixelEnd(Y, X, cellW, cellH);
-        return new int[] {lines, (sixelWidth[sixelNum] + cellW - 1) / cellW};
+        return placements.size();
     }
 
-    public void sixelGC(int timeDelta) {
-        if (!sixelHasBitmaps || sixelLastGC + timeDelta > SystemClock.uptimeMillis()) {
-            return;
+    /** Add the columns of the screen rows showing the image with the specified id to the damage, as it has changed. */
+    void damageImage(int id) {
+        for (int row = 0; row < mScreenRows; row++) {
+            final TerminalRow line = mLines[externalToInternalRow(row)];
+            final ImagePlacement.Slice[] slices = (line == null) ? null : line.getImageSlices();
+            if (slices == null) continue;
+            for (ImagePlacement.Slice slice : slices) {
+                if (slice.mPlacement.mImageId == id) damage(row, row + 1, slice.mColumn, slice.getEndColumn());
+            }
         }
-        Set<Integer> bitmaps = new HashSet<Integer>();
-        for (int line = 0; line < mLines.length; line++) {
-            if(mLines[line] != null && mLines[line].mHasBitmap) {
-                for (int column = 0; column < mColumns; column++) {
-                    final long st = mLines[line].getStyle(column);
-                    if (TextStyle.decodeBitmap(st)) {
-                        bitmaps.add((int)(st >> 16) & 0xffff);
-                    }
-                }
+    }
+
+    /**
+     * Retain the images shown by a row in {@link #mImages} and release the ones it no longer shows, after cells of the
+     * row showing images have been written or cleared.
+     */
+    private void retainImages(TerminalRow row) {
+        final int[] oldIds = row.mImageIds;
+        if (oldIds == null && row.getImageSlices() == null) return;
+        final int[] ids = row.findImageIds();
+        if (ids != null) {
+            for (int id : ids) {
+                if (contains(oldIds, id)) mImages.touch(id);
+                else mImages.retain(id);
             }
         }
-        for (int bm = 0; bm < MAX_SIXELS; bm++) {
-            if (bm != sixelNum && sixelBitmap[bm] != null && !bitmaps.contains(bm)) {
-                sixelBitmap[bm] = null;
+        if (oldIds != null) {
+            for (int id : oldIds) {
+                if (!contains(ids, id)) mImages.release(id);
             }
         }
-        sixelLastGC = SystemClock.uptimeMillis();
+        row.mImageIds = ids;
+    }
+
+    /** Release the images retained for a row, which is leaving this buffer. */
+    private void releaseImages(TerminalRow row) {
+        if (row == null || row.mImageIds == null) return;
+        for (int id : row.mImageIds) mImages.release(id);
+        row.mImageIds = null;
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        if (ids == null) return false;
+        for (int i : ids) {
+            if (i == id) return true;
+        }
+        return false;
     }
 
     /**
@@ -249,19 +258,91 @@ public final class TerminalBuffer {
      *                   the top of the screen.
      */
     public TerminalBuffer(int columns, int totalRows, int screenRows) {
+        this(columns, totalRows, screenRows, new ImageRegistry());
+    }
+
+    /** Create a transcript screen showing images of the specified registry, which may be shared with other buffers. */
+    TerminalBuffer(int columns, int totalRows, int screenRows, ImageRegistry images) {
         mColumns = columns;
         mTotalRows = totalRows;
         mScreenRows = screenRows;
         mLines = new TerminalRow[totalRows];
+        mDamageStart = new int[screenRows];
+        mDamageEnd = new int[screenRows];
+        mImages = images;
+        mImageSnapshot = null;
 
         blockSet(0, 0, columns, screenRows, ' ', TextStyle.NORMAL);
+    }
 
-        sixelBitmap = new Bitmap[MAX_SIXELS];
-        sixelCellW = new int[MAX_SIXELS];
-        sixelCellH = new int[MAX_SIXELS];
-        sixelWidth = new int[MAX_SIXELS];
-        sixelHeight = new int[MAX_SIXELS];
-        sixelLastGC = SystemClock.uptimeMillis();
+    /** Create a snapshot sharing the rows of the specified buffer, see {@link #snapshot()}. */
+    private TerminalBuffer(TerminalBuffer buffer) {
+        mLines = buffer.mLines.clone();
+        mTotalRows = buffer.mTotalRows;
+        mScreenRows = buffer.mScreenRows;
+        mColumns = buffer.mColumns;
+        mActiveTranscriptRows = buffer.mActiveTranscriptRows;
+        mScreenFirstRow = buffer.mScreenFirstRow;
+        mScrollback = buffer.mScrollback;
+        mSpilledRows = buffer.mSpilledRows;
+        mFirstSpilledRow = buffer.mFirstSpilledRow;
+        mDamageStart = buffer.mDamageStart;
+        mDamageEnd = buffer.mDamageEnd;
+        mScrollDelta = buffer.mScrollDelta;
+        mImages = null;
+        mImageSnapshot = buffer.mImages.snapshot();
+    }
+
+    /**
+     * Create a read-only copy of the current contents, which can be read from another thread while this buffer continues
+     * to be modified. Rows are shared until modified, so this only copies the array of row references.
+     * <p>
+     * The damage since the previous snapshot moves over to the new snapshot, see {@link #getDamageStartColumn(int)}.
+     */
+    public TerminalBuffer snapshot() {
+        TerminalBuffer snapshot = new TerminalBuffer(this);
+        mGeneration++;
+        mDamageStart = new int[mScreenRows];
+        mDamageEnd = new int[mScreenRows];
+        mScrollDelta = 0;
+        return snapshot;
+    }
+
+    /**
+     * The first column of the screen row which changed before this snapshot was taken, counting from the previous one.
+     * The row is undamaged if this is not less than {@link #getDamageEndColumn(int)}.
+     */
+    public int getDamageStartColumn(int row) {
+        return mDamageStart[row];
+    }
+
+    /** One after the last column of the screen row which changed, see {@link #getDamageStartColumn(int)}. */
+    public int getDamageEndColumn(int row) {
+        return mDamageEnd[row];
+    }
+
+    /**
+     * The number of rows the whole screen has scrolled up before this snapshot was taken, counting from the previous one.
+     * Undamaged rows show what the row this many rows further down showed in the previous snapshot.
+     */
+    public int getScrollDelta() {
+        return mScrollDelta;
+    }
+
+    /** Add columns from startColumn (inclusive) to endColumn (exclusive) of screen rows top to bottom to the damage. */
+    private void damage(int top, int bottom, int startColumn, int endColumn) {
+        startColumn = Math.max(startColumn, 0);
+        endColumn = Math.min(endColumn, mColumns);
+        bottom = Math.min(bottom, mDamageStart.length);
+        for (int row = Math.max(top, 0); row < bottom; row++) {
+            if (mDamageStart[row] >= mDamageEnd[row]) {
+                mDamageStart[row] = startColumn;
+                mDamageEnd[row] = endColumn;
+            } else {
+                if (startColumn < mDamageStart[row]) mDamageStart[row] = startColumn;
+                if (endColumn > mDamageEnd[row]) mDamageEnd[row] = endColumn;
+            }
+        }
     }
 
     public String getTranscriptText() {
@@ -296,7 +377,7 @@ public final class TerminalBuffer {
             } else {
                 x2 = columns;
             }
-            TerminalRow lineObject = mLines[externalToInternalRow(row)];
+            TerminalRow lineObject = getRow(row);
             int x1Index = lineObject.findStartOfColumn(x1);
             int x2Index = (x2 < mColumns) ? lineObject.findStartOfColumn(x2) : lineObject.getSpaceUsed();
             if (x2Index == x1Index) {
@@ -306,7 +387,7 @@ public final class TerminalBuffer {
             char[] line = lineObject.mText;
             int lastPrintingCharIndex = -1;
             int i;
-            boolean rowLineWrap = getLineWrap(row);
+            boolean rowLineWrap = lineObject.mLineWrap;
             if (rowLineWrap && x2 == columns) {
                 // If the line was wrapped, we shouldn't lose trailing space:
                 lastPrintingCharIndex = x2Index - 1;
@@ -325,12 +406,109 @@ public final class TerminalBuffer {
         return builder.toString();
     }
 
+    /** The number of rows of history above the screen, including those in the {@link #setScrollback scrollback}. */
     public int getActiveTranscriptRows() {
-        return mActiveTranscriptRows;
+        return mActiveTranscriptRows + mSpilledRows;
     }
 
     public int getActiveRows() {
-        return mActiveTranscriptRows + mScreenRows;
+        return getActiveTranscriptRows() + mScreenRows;
+    }
+
+    /**
+     * Keep the lines scrolling out of the transcript in a scrollback, which is closed when replaced, or drop them if null
+     * as is done by default. The lines of a replaced scrollback are moved into the new one, as far as it keeps them.
+     */
+    public void setScrollback(Scrollback scrollback) {
+        if (mScrollback != null && mScrollback != scrollback) {
+            if (scrollback != null) scrollback.appendRowsOf(mScrollback);
+            mScrollback.close();
+        }
+        mScrollback = scrollback;
+        updateSpilledRows();
+    }
+
+    /** Keep at least the specified number of rows in the scrollback, dropping the oldest ones not needed for that. */
+    public void setMaxScrollbackRows(int rows) {
+        if (mScrollback == null) return;
+        mScrollback.setMaxRows(rows);
+        updateSpilledRows();
+    }
+
+    /**
+     * An estimate of the number of bytes of memory taken by the rows and the scrollback. The images are not counted, as
+     * they are limited separately, see {@link ImageRegistry#setMemoryBudget(long)}.
+     */
+    public long getMemoryUsage() {
+        long bytes = 16 + 4L * mLines.length;
+        for (TerminalRow row : mLines) {
+            if (row != null) bytes += row.getMemoryUsage();
+        }
+        for (int i = 0; i < mPooledRows; i++) bytes += mRowPool[i].getMemoryUsage();
+        for (int i = mReflowStart; i < mReflowEnd; i++) {
+            if (mReflowSource[i] != null) bytes += mReflowSource[i].getMemoryUsage();
+        }
+        if (mReflowOverflow != null) {
+            for (TerminalRow row : mReflowOverflow) bytes += row.getMemoryUsage();
+        }
+        if (mScrollback != null) bytes += mScrollback.getMemoryUsage();
+        return bytes;
+    }
+
+    /**
+     * Trim the history when it takes more memory than the specified number of bytes, or 0 to not limit it. The memory
+     * used is checked each time a few hundred lines have scrolled, see {@link #trimHistory(long)}.
+     */
+    public void setMemoryBudget(long bytes) {
+        mMemoryBudget = bytes;
+        if (bytes > 0) trimHistory(bytes);
+    }
+
+    /**
+     * Trim the oldest history until the memory used is at most the specified number of bytes, or no history is left.
+     * The oldest rows of the transcript are moved to the scrollback, where they take less memory, and the oldest rows
+     * of the scrollback are dropped after that. Without a scrollback the rows of the transcript are dropped.
+     */
+    public void trimHistory(long bytes) {
+        trimRowPool(0);
+        long usage = getMemoryUsage();
+        if (usage <= bytes) return;
+        if (mReflowSource != null) {
+            // The history left to reflow is the oldest, so it goes first:
+            finishReflow();
+            usage = getMemoryUsage();
+        }
+
+        int rows = 0;
+        while (usage > bytes && rows < mActiveTranscriptRows) {
+            final TerminalRow row = mLines[externalToInternalRow(rows++ - mActiveTranscriptRows)];
+            if (row != null) usage -= row.getMemoryUsage();
+        }
+        final int firstRow = externalToInternalRow(-mActiveTranscriptRows);
+        for (int i = 0; i < rows; i++) {
+            final int row = (firstRow + i) % mTotalRows;
+            if (mScrollback != null) mScrollback.append(allocateFullLineIfNecessary(row), mColumns);
+            releaseImages(mLines[row]);
+            mLines[row] = null;
+        }
+        mActiveTranscriptRows -= rows;
+
+        if (mScrollback != null) {
+            final long scrollbackUsage = mScrollback.getMemoryUsage();
+            mScrollback.trimMemoryUsage(bytes - (getMemoryUsage() - scrollbackUsage));
+            updateSpilledRows();
+        }
+    }
+
+    /**
+     * The row at an external row, from -{@link #getActiveTranscriptRows()} to mScreenRows-1, which must only be read. A
+     * row from the scrollback is blank if it can no longer be read.
+     */
+    public TerminalRow getRow(int externalRow) {
+        if (externalRow >= -mActiveTranscriptRows) return allocateFullLineIfNecessary(externalToInternalRow(externalRow));
+        final int index = mFirstSpilledRow + mSpilledRows + mActiveTranscriptRows + externalRow;
+        TerminalRow row = (mScrollback == null) ? null : mScrollback.readRow(index, mColumns);
+        return (row == null) ? new TerminalRow(mColumns, TextStyle.NORMAL) : row;
     }
 
     /**
@@ -362,29 +540,36 @@ public final class TerminalBuffer {
     }
 
     public void setLineWrap(int row) {
-        mLines[externalToInternalRow(row)].mLineWrap = true;
+        getModifiableLine(externalToInternalRow(row)).mLineWrap = true;
     }
 
     public boolean getLineWrap(int row) {
-        return mLines[externalToInternalRow(row)].mLineWrap;
+        return (row < -mActiveTranscriptRows) ? getRow(row).mLineWrap : mLines[externalToInternalRow(row)].mLineWrap;
     }
 
     public void clearLineWrap(int row) {
-        mLines[externalToInternalRow(row)].mLineWrap = false;
+        getModifiableLine(externalToInternalRow(row)).mLineWrap = false;
     }
 
     /**
      * Resize the screen which this transcript backs. Currently, this only works if the number of columns does not
      * change or the rows expand (that is, it only works when shrinking the number of rows).
+     * <p>
+     * When the number of columns changes, only the lines shown on the new screen are reflowed, and the ones above them
+     * are left to {@link #continueReflow(int)}.
      *
      * @param newColumns The number of columns the screen should have.
      * @param newRows    The number of rows the screen should have.
      * @param cursor     An int[2] containing the (column, row) cursor location.
      */
     public void resize(int newColumns, int newRows, int newTotalRows, int[] cursor, long currentStyle, boolean altScreen) {
+        // The whole screen is damaged, see the end of this method:
+        mDamageStart = new int[newRows];
+        mDamageEnd = new int[newRows];
         // newRows > mTotalRows should not normally happen since mTotalRows is TRANSCRIPT_ROWS (10000):
         if (newColumns == mColumns && newRows <= mTotalRows) {
-            // Fast resize where just the rows changed.
+            // Fast resize where just the rows changed. The history left to reflow comes before rows revealed at the top:
+            if (newRows > mScreenRows + mActiveTranscriptRows) finishReflow();
             int shiftDownOfTopRow = mScreenRows - newRows;
             if (shiftDownOfTopRow > 0 && shiftDownOfTopRow < mScreenRows) {
                 // Shrinking. Check if we can skip blank rows at bottom below cursor.
@@ -400,8 +585,11 @@ public final class TerminalBuffer {
                 int actualShift = Math.max(shiftDownOfTopRow, -mActiveTranscriptRows);
                 if (shiftDownOfTopRow != actualShift) {
                     // The new lines revealed by the resizing are not all from the transcript. Blank the below ones.
-                    for (int i = 0; i < actualShift - shiftDownOfTopRow; i++)
-                        allocateFullLineIfNecessary((mScreenFirstRow + mScreenRows + i) % mTotalRows).clear(currentStyle);
+                    for (int i = 0; i < actualShift - shiftDownOfTopRow; i++) {
+                        final TerminalRow line = getModifiableLine((mScreenFirstRow + mScreenRows + i) % mTotalRows);
+                        releaseImages(line);
+                        line.clear(currentStyle);
+                    }
                     shiftDownOfTopRow = actualShift;
                 }
             }
@@ -411,127 +599,284 @@ public final class TerminalBuffer {
             mActiveTranscriptRows = altScreen ? 0 : Math.max(0, mActiveTranscriptRows + shiftDownOfTopRow);
             cursor[1] -= shiftDownOfTopRow;
             mScreenRows = newRows;
+            if (shiftDownOfTopRow > 0) freezeScrolledOutLines(shiftDownOfTopRow);
         } else {
-            // Copy away old state and update new:
-            TerminalRow[] oldLines = mLines;
-            mLines = new TerminalRow[newTotalRows];
-            for (int i = 0; i < newTotalRows; i++)
-                mLines[i] = new TerminalRow(newColumns, currentStyle);
+            // Reflow the rows of the history left by an earlier resize, followed by the rows of the buffer:
+            final int pendingRows = mReflowEnd - mReflowStart;
+            final int overflowRows = (mReflowOverflow == null) ? 0 : mReflowOverflow.length;
+            final int oldRows = mActiveTranscriptRows + mScreenRows;
+            final TerminalRow[] source = new TerminalRow[pendingRows + overflowRows + oldRows];
+            if (pendingRows > 0) System.arraycopy(mReflowSource, mReflowStart, source, 0, pendingRows);
+            if (overflowRows > 0) System.arraycopy(mReflowOverflow, 0, source, pendingRows, overflowRows);
+            for (int i = 0; i < oldRows; i++)
+                source[pendingRows + overflowRows + i] = mLines[externalToInternalRow(i - mActiveTranscriptRows)];
+            final int cursorRow = pendingRows + overflowRows + mActiveTranscriptRows + cursor[1];
+            // A screen taller than the old buffer shows some rows twice, which must not be released twice:
+            final boolean releasesRows = oldRows <= mTotalRows && (mReflowSource == null || mReflowReleasesRows);
+            endReflow();
+            // The rows outside of the screen and the transcript are dropped:
+            final int firstOldRow = externalToInternalRow(-mActiveTranscriptRows);
+            for (int i = 0; i < mLines.length; i++) {
+                if (i >= mTotalRows || (i - firstOldRow + mTotalRows) % mTotalRows >= oldRows) releaseImages(mLines[i]);
+            }
 
-            final int oldActiveTranscriptRows = mActiveTranscriptRows;
-            final int oldScreenFirstRow = mScreenFirstRow;
-            final int oldScreenRows = mScreenRows;
-            final int oldTotalRows = mTotalRows;
+            // Rows are only created as the source rows are copied to them, reusing the source rows which are not
+            // shared with a snapshot, so that a short history does not fill all of mLines:
+            mLines = new TerminalRow[newTotalRows];
+            mColumns = newColumns;
             mTotalRows = newTotalRows;
             mScreenRows = newRows;
             mActiveTranscriptRows = mScreenFirstRow = 0;
-            mColumns = newColumns;
 
-            int newCursorRow = -1;
-            int newCursorColumn = -1;
-            int oldCursorRow = cursor[1];
-            int oldCursorColumn = cursor[0];
-            boolean newCursorPlaced = false;
-
-            int currentOutputExternalRow = 0;
-            int currentOutputExternalColumn = 0;
-
-            // Loop over every character in the initial state.
-            // Blank lines should be skipped only if at end of transcript (just as is done in the "fast" resize), so we
-            // keep track how many blank lines we have skipped if we later on find a non-blank line.
-            int skippedBlankLines = 0;
-            for (int externalOldRow = -oldActiveTranscriptRows; externalOldRow < oldScreenRows; externalOldRow++) {
-                // Do what externalToInternalRow() does but for the old state:
-                int internalOldRow = oldScreenFirstRow + externalOldRow;
-                internalOldRow = (internalOldRow < 0) ? (oldTotalRows + internalOldRow) : (internalOldRow % oldTotalRows);
-
-                TerminalRow oldLine = oldLines[internalOldRow];
-                boolean cursorAtThisRow = externalOldRow == oldCursorRow;
-                // The cursor may only be on a non-null line, which we should not skip:
-                if (oldLine == null || (!(!newCursorPlaced && cursorAtThisRow)) && oldLine.isBlank()) {
-                    skippedBlankLines++;
-                    continue;
-                } else if (skippedBlankLines > 0) {
-                    // After skipping some blank lines we encounter a non-blank line. Insert the skipped blank lines.
-                    for (int i = 0; i < skippedBlankLines; i++) {
-                        if (currentOutputExternalRow == mScreenRows - 1) {
-                            scrollDownOneLine(0, mScreenRows, currentStyle);
-                        } else {
-                            currentOutputExternalRow++;
-                        }
-                        currentOutputExternalColumn = 0;
-                    }
-                    skippedBlankLines = 0;
-                }
+            // Only reflow the lines filling the new screen now, and leave the ones above them to continueReflow():
+            final int split = findReflowSplit(source, cursorRow, newRows);
+            mReflowReleasesRows = releasesRows;
+            cursor[1] = -1;
+            reflowRows(source, split, source.length, cursorRow, cursor, currentStyle);
 
-                int lastNonSpaceIndex = 0;
-                boolean justToCursor = false;
-                if (cursorAtThisRow || oldLine.mLineWrap) {
-                    // Take the whole line, either because of cursor on it, or if line wrapping.
-                    lastNonSpaceIndex = oldLine.getSpaceUsed();
-                    if (cursorAtThisRow) justToCursor = true;
-                } else {
-                    for (int i = 0; i < oldLine.getSpaceUsed(); i++)
-                        // NEWLY INTRODUCED BUG! Should not index oldLine.mStyle with char indices
-                        if (oldLine.mText[i] != ' '/* || oldLine.mStyle[i] != currentStyle */)
-                            lastNonSpaceIndex = i + 1;
-                }
+            final int outputRows = mReflowOutputRows;
+            final int screenTop = Math.max(0, outputRows - newRows);
+            final int keptRows = Math.min(screenTop, Math.max(0, newTotalRows - newRows));
+            final TerminalRow[] lostRows = Arrays.copyOf(mReflowOutput, screenTop - keptRows);
+            for (int i = 0; i < keptRows; i++) {
+                final TerminalRow row = mReflowOutput[screenTop - keptRows + i];
+                row.freeze();
+                mLines[i] = row;
+            }
+            mScreenFirstRow = mActiveTranscriptRows = keptRows;
+            for (int row = 0; row < newRows; row++) {
+                mLines[(keptRows + row) % newTotalRows] = (screenTop + row < outputRows) ? mReflowOutput[screenTop + row] : newLine(currentStyle);
+            }
+            Arrays.fill(mReflowOutput, 0, outputRows, null);
 
-                int currentOldCol = 0;
-                long styleAtCol = 0;
-                for (int i = 0; i < lastNonSpaceIndex; i++) {
-                    // Note that looping over java character, not cells.
-                    char c = oldLine.mText[i];
-                    int codePoint = (Character.isHighSurrogate(c)) ? Character.toCodePoint(c, oldLine.mText[++i]) : c;
-                    int displayWidth = WcWidth.width(codePoint);
-                    // Use the last style if this is a zero-width character:
-                    if (displayWidth > 0) styleAtCol = oldLine.getStyle(currentOldCol);
-
-                    // Line wrap as necessary:
-                    if (currentOutputExternalColumn + displayWidth > mColumns) {
-                        setLineWrap(currentOutputExternalRow);
-                        if (currentOutputExternalRow == mScreenRows - 1) {
-                            if (newCursorPlaced) newCursorRow--;
-                            scrollDownOneLine(0, mScreenRows, currentStyle);
-                        } else {
-                            currentOutputExternalRow++;
-                        }
-                        currentOutputExternalColumn = 0;
-                    }
+            if (split > 0 && (keptRows < newTotalRows - newRows || mScrollback != null)) {
+                mReflowSource = source;
+                mReflowEnd = split;
+                mReflowStyle = currentStyle;
+                // Without room above the transcript, the history goes into the scrollback before the lost rows:
+                mReflowSpilling = keptRows >= newTotalRows - newRows;
+                if (lostRows.length > 0) mReflowOverflow = lostRows;
+            } else {
+                // The history above the rows reflowed is dropped:
+                for (int i = 0; i < split; i++) releaseImages(source[i]);
+                spillRows(lostRows, lostRows.length);
+            }
+            trimRowPool(mScreenRows);
+            updateSpilledRows();
 
-                    int offsetDueToCombiningChar = ((displayWidth <= 0 && currentOutputExternalColumn > 0) ? 1 : 0);
-                    int outputColumn = currentOutputExternalColumn - offsetDueToCombiningChar;
-                    setChar(outputColumn, currentOutputExternalRow, codePoint, styleAtCol);
-
-                    if (displayWidth > 0) {
-                        if (oldCursorRow == externalOldRow && oldCursorColumn == currentOldCol) {
-                            newCursorColumn = currentOutputExternalColumn;
-                            newCursorRow = currentOutputExternalRow;
-                            newCursorPlaced = true;
-                        }
-                        currentOldCol += displayWidth;
-                        currentOutputExternalColumn += displayWidth;
-                        if (justToCursor && newCursorPlaced) break;
-                    }
+            if (cursor[1] >= 0) cursor[1] -= screenTop;
+            else cursor[0] = -1;
+        }
+
+        // Handle cursor scrolling off screen:
+        if (cursor[0] < 0 || cursor[1] < 0) cursor[0] = cursor[1] = 0;
+
+        damage(0, mScreenRows, 0, mColumns);
+        mScrollDelta = 0;
+    }
+
+    /** If {@link #resize} has left rows of the history to be reflowed by {@link #continueReflow(int)}. */
+    public boolean isReflowPending() {
+        return mReflowSource != null;
+    }
+
+    /**
+     * Reflow about the specified number of rows of the history which {@link #resize} has left, which is done last line
+     * first so that they go just above the transcript. Once there is no room left above the transcript, the remaining
+     * rows go into the scrollback in order, or are dropped without a scrollback. The history which has not been reflowed
+     * is not part of the transcript, and the scrollback is not available until all of it has been reflowed.
+     */
+    public void continueReflow(int rows) {
+        final TerminalRow[] source = mReflowSource;
+        if (source == null) return;
+
+        if (!mReflowSpilling) {
+            final int room = Math.max(0, mTotalRows - mScreenRows - mActiveTranscriptRows);
+            int start = Math.max(mReflowStart, mReflowEnd - rows);
+            while (start > mReflowStart && !endsLine(source[start - 1])) start--;
+            reflowRows(source, start, mReflowEnd, -1, null, mReflowStyle);
+
+            final int outputRows = mReflowOutputRows;
+            final int prependedRows = Math.min(outputRows, room);
+            for (int i = outputRows - 1; i >= outputRows - prependedRows; i--) {
+                mReflowOutput[i].freeze();
+                mLines[externalToInternalRow(-++mActiveTranscriptRows)] = mReflowOutput[i];
+            }
+            if (prependedRows < outputRows) mReflowOverflow = Arrays.copyOf(mReflowOutput, outputRows - prependedRows);
+            Arrays.fill(mReflowOutput, 0, outputRows, null);
+            mReflowEnd = start;
+            mReflowSpilling = prependedRows == room;
+            if (!mReflowSpilling && start == mReflowStart) mReflowSource = null;
+        } else if (mScrollback != null && mReflowStart < mReflowEnd) {
+            int end = (rows >= mReflowEnd - mReflowStart) ? mReflowEnd : mReflowStart + rows;
+            while (end < mReflowEnd && !endsLine(source[end - 1])) end++;
+            reflowRows(source, mReflowStart, end, -1, null, mReflowStyle);
+            spillRows(mReflowOutput, mReflowOutputRows);
+            Arrays.fill(mReflowOutput, 0, mReflowOutputRows, null);
+            mReflowStart = end;
+        } else {
+            // Nothing is left to reflow, or it is dropped without a scrollback:
+            for (int i = mReflowStart; i < mReflowEnd; i++) releaseImages(source[i]);
+            mReflowStart = mReflowEnd;
+        }
+
+        if (mReflowSpilling && mReflowStart == mReflowEnd) {
+            if (mReflowOverflow != null) spillRows(mReflowOverflow, mReflowOverflow.length);
+            mReflowSource = null;
+        }
+        if (mReflowSource == null) {
+            endReflow();
+            updateSpilledRows();
+        }
+        trimRowPool(mScreenRows);
+    }
+
+    /** Reflow all of the history which {@link #resize} has left, see {@link #continueReflow(int)}. */
+    public void finishReflow() {
+        while (mReflowSource != null) continueReflow(Integer.MAX_VALUE);
+    }
+
+    private void endReflow() {
+        mReflowSource = null;
+        mReflowStart = mReflowEnd = 0;
+        mReflowSpilling = false;
+        mReflowOverflow = null;
+    }
+
+    /** If reflowing a row is followed by a new row, as it is not blank and does not wrap. */
+    private static boolean endsLine(TerminalRow row) {
+        return row != null && !row.mLineWrap && !row.isBlank();
+    }
+
+    /**
+     * The first of the source rows to reflow for the screen, so that the rows from it onwards fill a screen with the
+     * specified number of rows and include the cursor, and the row before it {@link #endsLine(TerminalRow) ends a line}.
+     * Reflowing the rows before it separately then gives the rows above the ones reflowed from it.
+     */
+    private static int findReflowSplit(TerminalRow[] source, int cursorRow, int rows) {
+        int split = source.length;
+        // The blank rows at the end are skipped by reflowRows(), unless the cursor is on or below them:
+        while (split - 1 > cursorRow && (source[split - 1] == null || source[split - 1].isBlank())) split--;
+        final int lastRow = split - 1;
+        // Each row before the last one which does not wrap, or is blank and so skipped, starts a new row:
+        int newRows = 1;
+        while (split > 0) {
+            final TerminalRow row = source[split - 1];
+            if (split <= cursorRow && newRows >= rows && endsLine(row)) break;
+            if (--split < lastRow && (row == null || !row.mLineWrap || (split != cursorRow && row.isBlank()))) newRows++;
+        }
+        return split;
+    }
+
+    /**
+     * Reflow the source rows from the first row (inclusive) to the last row (exclusive) into new rows of mColumns
+     * columns with the specified style, in {@link #mReflowOutput}. If the cursor row is among them, the cursor column
+     * is read from cursor[0], and cursor is set to the column and output row the cursor moves to, if any.
+     */
+    private void reflowRows(TerminalRow[] source, int firstRow, int lastRow, int cursorRow, int[] cursor, long style) {
+        mReflowOutputRows = 0;
+        TerminalRow outputRow = addReflowOutputRow(style);
+        int outputColumn = 0;
+        final int cursorColumn = (cursor == null) ? -1 : cursor[0];
+        boolean cursorPlaced = false;
+
+        // Loop over every character in the initial state.
+        // Blank lines should be skipped only if at end of transcript (just as is done in the "fast" resize), so we
+        // keep track how many blank lines we have skipped if we later on find a non-blank line.
+        int skippedBlankLines = 0;
+        for (int sourceRow = firstRow; sourceRow < lastRow; sourceRow++) {
+            TerminalRow oldLine = source[sourceRow];
+            boolean cursorAtThisRow = sourceRow == cursorRow;
+            // The cursor may only be on a non-null line, which we should not skip:
+            if (oldLine == null || (!(!cursorPlaced && cursorAtThisRow)) && oldLine.isBlank()) {
+                skippedBlankLines++;
+                releaseImages(oldLine);
+                if (mReflowReleasesRows) releaseLine(oldLine);
+                continue;
+            } else if (skippedBlankLines > 0) {
+                // After skipping some blank lines we encounter a non-blank line. Insert the skipped blank lines.
+                for (int i = 0; i < skippedBlankLines; i++)
+                    outputRow = addReflowOutputRow(style);
+                outputColumn = 0;
+                skippedBlankLines = 0;
+            }
+
+            int lastNonSpaceIndex = 0;
+            boolean justToCursor = false;
+            if (cursorAtThisRow || oldLine.mLineWrap) {
+                // Take the whole line, either because of cursor on it, or if line wrapping.
+                lastNonSpaceIndex = oldLine.getSpaceUsed();
+                if (cursorAtThisRow) justToCursor = true;
+            } else {
+                for (int i = 0; i < oldLine.getSpaceUsed(); i++)
+                    // NEWLY INTRODUCED BUG! Should not index oldLine.mStyle with char indices
+                    if (oldLine.mText[i] != ' '/* || oldLine.mStyle[i] != currentStyle */)
+                        lastNonSpaceIndex = i + 1;
+            }
+
+            final TerminalRow firstOutputRow = outputRow;
+            final int firstOutputColumn = outputColumn;
+            int currentOldCol = 0;
+            long styleAtCol = 0;
+            for (int i = 0; i < lastNonSpaceIndex; i++) {
+                // Note that looping over java character, not cells.
+                char c = oldLine.mText[i];
+                int codePoint = (Character.isHighSurrogate(c)) ? Character.toCodePoint(c, oldLine.mText[++i]) : c;
+                int displayWidth = WcWidth.width(codePoint);
+                // Use the last style if this is a zero-width character:
+                if (displayWidth > 0) styleAtCol = oldLine.getStyle(currentOldCol);
+
+                // Line wrap as necessary:
+                if (outputColumn + displayWidth > mColumns) {
+                    outputRow.mLineWrap = true;
+                    outputRow = addReflowOutputRow(style);
+                    outputColumn = 0;
                 }
-                // Old row has been copied. Check if we need to insert newline if old line was not wrapping:
-                if (externalOldRow != (oldScreenRows - 1) && !oldLine.mLineWrap) {
-                    if (currentOutputExternalRow == mScreenRows - 1) {
-                        if (newCursorPlaced) newCursorRow--;
-                        scrollDownOneLine(0, mScreenRows, currentStyle);
-                    } else {
-                        currentOutputExternalRow++;
+
+                int offsetDueToCombiningChar = ((displayWidth <= 0 && outputColumn > 0) ? 1 : 0);
+                outputRow.setChar(outputColumn - offsetDueToCombiningChar, codePoint, styleAtCol);
+
+                if (displayWidth > 0) {
+                    if (cursorAtThisRow && cursorColumn == currentOldCol) {
+                        cursor[0] = outputColumn;
+                        cursor[1] = mReflowOutputRows - 1;
+                        cursorPlaced = true;
                     }
-                    currentOutputExternalColumn = 0;
+                    currentOldCol += displayWidth;
+                    outputColumn += displayWidth;
+                    if (justToCursor && cursorPlaced) break;
                 }
             }
-
-            cursor[0] = newCursorColumn;
-            cursor[1] = newCursorRow;
+            // The images shown by the row move along with the start of the row, and are cut off at the right edge:
+            final ImagePlacement.Slice[] slices = oldLine.getImageSlices();
+            if (slices != null) {
+                for (ImagePlacement.Slice slice : slices)
+                    firstOutputRow.addImageSlice(slice.moveTo(firstOutputColumn + slice.mColumn));
+            }
+            // Old row has been copied. Check if we need to insert newline if old line was not wrapping:
+            if (sourceRow != lastRow - 1 && !oldLine.mLineWrap) {
+                outputRow = addReflowOutputRow(style);
+                outputColumn = 0;
+            }
+            releaseImages(oldLine);
+            if (mReflowReleasesRows) releaseLine(oldLine);
         }
+        // The images move over from the source rows, which have been released, to the rows they are copied to:
+        for (int i = 0; i < mReflowOutputRows; i++) retainImages(mReflowOutput[i]);
+    }
 
-        // Handle cursor scrolling off screen:
-        if (cursor[0] < 0 || cursor[1] < 0) cursor[0] = cursor[1] = 0;
+    private TerminalRow addReflowOutputRow(long style) {
+        if (mReflowOutputRows == mReflowOutput.length)
+            mReflowOutput = Arrays.copyOf(mReflowOutput, 2 * mReflowOutputRows);
+        return mReflowOutput[mReflowOutputRows++] = newLine(style);
+    }
+
+    /** Append the first count of the rows, which leave this buffer, to {@link #mScrollback} if there is one. */
+    private void spillRows(TerminalRow[] rows, int count) {
+        for (int i = 0; i < count; i++) {
+            releaseImages(rows[i]);
+            if (mScrollback != null) mScrollback.append(rows[i], mColumns);
+        }
     }
 
     /**
@@ -540,19 +885,26 @@ public final class TerminalBuffer {
      *
      * @param srcInternal The first line to be copied.
      * @param len         The number of lines to be copied.
+     * @param distance    The number of lines to copy down, which are overwritten and so put back above the block.
      */
-    private void blockCopyLinesDown(int srcInternal, int len) {
+    private void blockCopyLinesDown(int srcInternal, int len, int distance) {
         if (len == 0) return;
         int totalRows = mTotalRows;
 
-        int start = len - 1;
-        // Save away line to be overwritten:
-        TerminalRow lineToBeOverWritten = mLines[(srcInternal + start + 1) % totalRows];
+        // Save away lines to be overwritten:
+        TerminalRow[] linesToBeOverWritten = mScrollScratch;
+        if (linesToBeOverWritten == null || linesToBeOverWritten.length < distance)
+            linesToBeOverWritten = mScrollScratch = new TerminalRow[distance];
+        for (int i = 0; i < distance; i++)
+            linesToBeOverWritten[i] = mLines[(srcInternal + len + i) % totalRows];
         // Do the copy from bottom to top.
-        for (int i = start; i >= 0; --i)
-            mLines[(srcInternal + i + 1) % totalRows] = mLines[(srcInternal + i) % totalRows];
-        // Put back overwritten line, now above the block:
-        mLines[(srcInternal) % totalRows] = lineToBeOverWritten;
+        for (int i = len - 1; i >= 0; --i)
+            mLines[(srcInternal + i + distance) % totalRows] = mLines[(srcInternal + i) % totalRows];
+        // Put back overwritten lines, now above the block:
+        for (int i = 0; i < distance; i++) {
+            mLines[(srcInternal + i) % totalRows] = linesToBeOverWritten[i];
+            linesToBeOverWritten[i] = null;
+        }
     }
 
     /**
@@ -563,48 +915,133 @@ public final class TerminalBuffer {
      * @param style        the style for the newly exposed line.
      */
     public void scrollDownOneLine(int topMargin, int bottomMargin, long style) {
+        scrollDown(topMargin, bottomMargin, 1, style);
+    }
+
+    /**
+     * Scroll the screen down the specified number of lines, with the same result as calling
+     * {@link #scrollDownOneLine(int, int, long)} that many times.
+     * <p>
+     * The screen location in the ring buffer moves all lines at once, so that only the lines outside of the margins
+     * need to be copied, and only when there are margins.
+     *
+     * @param topMargin    First line that is scrolled.
+     * @param bottomMargin One line after the last line that is scrolled.
+     * @param lines        The number of lines to scroll.
+     * @param style        the style for the newly exposed lines.
+     */
+    public void scrollDown(int topMargin, int bottomMargin, int lines, long style) {
         if (topMargin > bottomMargin - 1 || topMargin < 0 || bottomMargin > mScreenRows)
             throw new IllegalArgumentException("topMargin=" + topMargin + ", bottomMargin=" + bottomMargin + ", mScreenRows=" + mScreenRows);
 
-        // Copy the fixed topMargin lines one line down so that they remain on screen in same position:
-        blockCopyLinesDown(mScreenFirstRow, topMargin);
-        // Copy the fixed mScreenRows-bottomMargin lines one line down so that they remain on screen in same
-        // position:
-        blockCopyLinesDown(externalToInternalRow(bottomMargin), mScreenRows - bottomMargin);
+        // After a full turn of the ring buffer every line has been replaced by a blank one, which only need to be
+        // scrolled further if they are kept in the scrollback:
+        if (mScrollback == null) lines = Math.min(lines, mTotalRows);
+        mRowsScrolledSinceBudgetCheck += lines;
+        final boolean wholeScreen = topMargin == 0 && bottomMargin == mScreenRows;
+        while (lines > 0) {
+            // Lines scrolled past the top of a scrolling region are followed into the history by the blank lines
+            // exposed at its bottom, so scroll at most the height of the region at a time:
+            final int n = Math.min(wholeScreen ? lines : Math.min(lines, bottomMargin - topMargin), mTotalRows);
+            scrollDownLines(topMargin, bottomMargin, n, style);
+            lines -= n;
+        }
+
+        if (mMemoryBudget > 0 && mRowsScrolledSinceBudgetCheck >= BUDGET_CHECK_ROWS) {
+            mRowsScrolledSinceBudgetCheck = 0;
+            trimHistory(mMemoryBudget);
+        }
+    }
+
+    /** Scroll down n lines, which is at most the number of lines between the margins unless they are the whole screen. */
+    private void scrollDownLines(int topMargin, int bottomMargin, int n, long style) {
+        // The history left to reflow comes before the rows which would scroll out of the transcript:
+        if (mReflowSource != null && mActiveTranscriptRows + n > mTotalRows - mScreenRows) finishReflow();
+        if (mScrollback != null) spillLines(topMargin, n);
+
+        // Copy the fixed topMargin lines n lines down so that they remain on screen in same position, putting the
+        // first n scrolled lines above them:
+        blockCopyLinesDown(mScreenFirstRow, topMargin, n);
+        // Copy the fixed mScreenRows-bottomMargin lines n lines down so that they remain on screen in same
+        // position, putting the lines to be reused as blank lines above them:
+        blockCopyLinesDown(externalToInternalRow(bottomMargin), mScreenRows - bottomMargin, n);
+
+        if (topMargin == 0 && bottomMargin == mScreenRows) {
+            // The damage moves up along with the rows, and the blank rows at the bottom are new:
+            final int rowsKept = Math.max(0, mScreenRows - n);
+            System.arraycopy(mDamageStart, mScreenRows - rowsKept, mDamageStart, 0, rowsKept);
+            System.arraycopy(mDamageEnd, mScreenRows - rowsKept, mDamageEnd, 0, rowsKept);
+            for (int row = rowsKept; row < mScreenRows; row++) mDamageStart[row] = mDamageEnd[row] = 0;
+            damage(rowsKept, mScreenRows, 0, mColumns);
+            mScrollDelta += n;
+        } else {
+            damage(topMargin, bottomMargin, 0, mColumns);
+        }
 
         // Update the screen location in the ring buffer:
-        mScreenFirstRow = (mScreenFirstRow + 1) % mTotalRows;
+        mScreenFirstRow = (mScreenFirstRow + n) % mTotalRows;
+        freezeScrolledOutLines(n);
         // Note that the history has grown if not already full:
-        if (mActiveTranscriptRows < mTotalRows - mScreenRows) mActiveTranscriptRows++;
+        if (mActiveTranscriptRows < mTotalRows - mScreenRows)
+            mActiveTranscriptRows = Math.min(mActiveTranscriptRows + n, mTotalRows - mScreenRows);
+        // The images of the rows which have scrolled far into the history take less memory from now on:
+        for (int i = 0; i < n && FAR_HISTORY_ROWS + i <= mActiveTranscriptRows; i++) {
+            final TerminalRow line = mLines[externalToInternalRow(-FAR_HISTORY_ROWS - i)];
+            if (line == null || line.mImageIds == null) continue;
+            for (int id : line.mImageIds) mImages.downscale(id);
+        }
 
-        // Blank the newly revealed line above the bottom margin:
-        int blankRow = externalToInternalRow(bottomMargin - 1);
-        if (mLines[blankRow] == null) {
-            mLines[blankRow] = new TerminalRow(mColumns, style);
-        } else {
-            // find if a bitmap is completely scrolled out
-            Set<Integer> bitmaps = new HashSet<Integer>();
-            if(mLines[blankRow].mHasBitmap) {
-                for (int column = 0; column < mColumns; column++) {
-                    final long st = mLines[blankRow].getStyle(column);
-                    if (TextStyle.decodeBitmap(st)) {
-                        bitmaps.add((int)(st >> 16) & 0xffff);
-                    }
-                }
-                TerminalRow nextLine =  mLines[(blankRow + 1) % mTotalRows];
-                if(nextLine.mHasBitmap) {
-                    for (int column = 0; column < mColumns; column++) {
-                        final long st = nextLine.getStyle(column);
-                        if (TextStyle.decodeBitmap(st)) {
-                            bitmaps.remove((int)(st >> 16) & 0xffff);
-                        }
-                    }
-                }
-                for(Integer bm: bitmaps) {
-                    sixelBitmap[bm] = null;
-                }
+        // Blank the newly revealed lines above the bottom margin, which are reused from the end of the history:
+        final int firstBlankRow = (mScreenFirstRow + bottomMargin - n + mTotalRows) % mTotalRows;
+        for (int i = 0; i < n; i++) {
+            final int blankRow = (firstBlankRow + i) % mTotalRows;
+            final TerminalRow line = mLines[blankRow];
+            releaseImages(line);
+            if (line == null || line.mGeneration != mGeneration) {
+                // Not worth copying a row shared with a snapshot just to clear it.
+                mLines[blankRow] = newLine(style);
+            } else {
+                line.clear(style);
+                line.mLineWrap = false;
+            }
+        }
+    }
+
+    /** Append the lines which scrolling down n lines pushes out of the transcript to {@link #mScrollback}. */
+    private void spillLines(int topMargin, int n) {
+        final int lostRows = mActiveTranscriptRows + n - (mTotalRows - mScreenRows);
+        for (int i = 0; i < lostRows; i++) {
+            // The oldest lines of the transcript go first, followed by the lines scrolled if there are too few:
+            final int externalRow = (i < mActiveTranscriptRows) ? i - mActiveTranscriptRows : topMargin + i - mActiveTranscriptRows;
+            mScrollback.append(allocateFullLineIfNecessary(externalToInternalRow(externalRow)), mColumns);
+        }
+        if (lostRows > 0) updateSpilledRows();
+    }
+
+    private void updateSpilledRows() {
+        // The scrollback comes before the history left to reflow, so it is not available until that has been reflowed:
+        mSpilledRows = (mScrollback == null || mReflowSource != null) ? 0 : mScrollback.getRowCount();
+        mFirstSpilledRow = (mScrollback == null) ? 0 : mScrollback.getFirstRowIndex();
+    }
+
+    /**
+     * {@link TerminalRow#freeze() Freeze} the count lines which just scrolled into the history, and retain the images
+     * they show, which no longer change.
+     */
+    private void freezeScrolledOutLines(int count) {
+        count = Math.min(count, mTotalRows - mScreenRows);
+        for (int i = 1; i <= count; i++) {
+            final int row = (mScreenFirstRow - i + mTotalRows) % mTotalRows;
+            TerminalRow line = mLines[row];
+            if (line == null) continue;
+            if (line.mGeneration != mGeneration && !line.isFrozen()) {
+                // A row shared with a snapshot may be being drawn:
+                line = mLines[row] = line.frozenCopy();
+                line.mGeneration = mGeneration;
+            } else {
+                line.freeze();
             }
-            mLines[blankRow].clear(style);
+            retainImages(line);
         }
     }
 
@@ -628,8 +1065,12 @@ public final class TerminalBuffer {
         for (int y = 0; y < h; y++) {
             int y2 = copyingUp ? y : (h - (y + 1));
             TerminalRow sourceRow = allocateFullLineIfNecessary(externalToInternalRow(sy + y2));
-            allocateFullLineIfNecessary(externalToInternalRow(dy + y2)).copyInterval(sourceRow, sx, sx + w, dx);
+            TerminalRow destinationRow = getModifiableLine(externalToInternalRow(dy + y2));
+            destinationRow.copyInterval(sourceRow, sx, sx + w, dx);
+            retainImages(destinationRow);
         }
+        // Wide characters at the edges of the destination may have been split:
+        damage(dy, dy + h, dx - 1, dx + w + 1);
     }
 
     /**
@@ -642,24 +1083,100 @@ public final class TerminalBuffer {
             throw new IllegalArgumentException(
                 "illegal arguments: blockSet(" + sx + ", " + sy + ", " + w + ", " + h + ", " + val + ", " + mColumns + ", " + mScreenRows + ")");
         }
+        final boolean singleWidth = val < Character.MIN_SUPPLEMENTARY_CODE_POINT && WcWidth.width(val) == 1;
         for (int y = 0; y < h; y++) {
-            for (int x = 0; x < w; x++)
-                setChar(sx + x, sy + y, val, style);
+            if (val == ' ') {
+                getModifiableLine(externalToInternalRow(sy + y)).clearRange(sx, sx + w, style);
+            } else if (singleWidth) {
+                getModifiableLine(externalToInternalRow(sy + y)).fillRange(sx, sx + w, val, style);
+            } else {
+                for (int x = 0; x < w; x++)
+                    setChar(sx + x, sy + y, val, style);
+            }
             if (sx+w == mColumns && val == ' ') {
                 clearLineWrap(sy + y);
             }
+            retainImages(mLines[externalToInternalRow(sy + y)]);
         }
+        damage(sy, sy + h, sx - 1, sx + w + 1);
     }
 
     public TerminalRow allocateFullLineIfNecessary(int row) {
-        return (mLines[row] == null) ? (mLines[row] = new TerminalRow(mColumns, 0)) : mLines[row];
+        return (mLines[row] == null) ? (mLines[row] = newLine(0)) : mLines[row];
+    }
+
+    /** Get a row for modification, replacing it with a copy first if it may be shared with a {@link #snapshot()}. */
+    private TerminalRow getModifiableLine(int row) {
+        TerminalRow line = mLines[row];
+        if (line == null) {
+            line = mLines[row] = newLine(0);
+        } else if (line.mGeneration != mGeneration) {
+            line = mLines[row] = new TerminalRow(line);
+            line.mGeneration = mGeneration;
+        }
+        return line;
+    }
+
+    private TerminalRow newLine(long style) {
+        TerminalRow line;
+        if (mPooledRows > 0) {
+            line = mRowPool[--mPooledRows];
+            mRowPool[mPooledRows] = null;
+            line.reset(mColumns, style);
+        } else {
+            line = new TerminalRow(mColumns, style);
+        }
+        line.mGeneration = mGeneration;
+        return line;
+    }
+
+    /** Create a screen row if there is none, with the specified style rather than the one of {@link #newLine(long)}. */
+    private void createLineIfNecessary(int externalRow, long style) {
+        final int row = externalToInternalRow(externalRow);
+        if (mLines[row] == null) mLines[row] = newLine(style);
+    }
+
+    /** Put a row which is no longer used into {@link #mRowPool}, unless it may be shared with a snapshot. */
+    private void releaseLine(TerminalRow line) {
+        if (line == null || line.mGeneration != mGeneration) return;
+        if (mPooledRows == mRowPool.length)
+            mRowPool = Arrays.copyOf(mRowPool, Math.max(16, 2 * mPooledRows));
+        mRowPool[mPooledRows++] = line;
+    }
+
+    /** Keep at most the specified number of rows in {@link #mRowPool}, releasing the others to the garbage collector. */
+    private void trimRowPool(int maxRows) {
+        if (mPooledRows <= maxRows) return;
+        Arrays.fill(mRowPool, maxRows, mPooledRows, null);
+        mPooledRows = maxRows;
     }
 
     public void setChar(int column, int row, int codePoint, long style) {
         if (row >= mScreenRows || column >= mColumns)
             throw new IllegalArgumentException("row=" + row + ", column=" + column + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        damage(row, row + 1, column - 1, column + 2);
+        row = externalToInternalRow(row);
+        getModifiableLine(row).setChar(column, codePoint, style);
+    }
+
+    /** Set a run of printable ASCII characters, all with the same style, starting at the specified column. */
+    public void setAsciiChars(int column, int row, byte[] chars, int offset, int count, long style) {
+        if (count <= 0) return;
+        if (row >= mScreenRows || column + count > mColumns)
+            throw new IllegalArgumentException("row=" + row + ", column=" + column + ", count=" + count + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        damage(row, row + 1, column - 1, column + count + 1);
         row = externalToInternalRow(row);
-        allocateFullLineIfNecessary(row).setChar(column, codePoint, style);
+        getModifiableLine(row).setAsciiChars(column, chars, offset, count, style);
+    }
+
+    /** Set the columns from startColumn (inclusive) to endColumn (exclusive) to a code point of display width one. */
+    public void fillRange(int startColumn, int endColumn, int row, int codePoint, long style) {
+        if (startColumn >= endColumn) return;
+        if (row >= mScreenRows || startColumn < 0 || endColumn > mColumns)
+            throw new IllegalArgumentException("row=" + row + ", startColumn=" + startColumn + ", endColumn=" + endColumn + ", mScreenRows=" + mScreenRows + ", mColumns=" + mColumns);
+        damage(row, row + 1, startColumn - 1, endColumn + 1);
+        row = externalToInternalRow(row);
+        getModifiableLine(row).fillRange(startColumn, endColumn, codePoint, style);
     }
 
     public long getStyleAt(int externalRow, int column) {
@@ -670,9 +1187,10 @@ public final class TerminalBuffer {
     public void setOrClearEffect(int bits, boolean setOrClear, boolean reverse, boolean rectangular, int leftMargin, int rightMargin, int top, int left,
                                  int bottom, int right) {
         for (int y = top; y < bottom; y++) {
-            TerminalRow line = mLines[externalToInternalRow(y)];
+            TerminalRow line = getModifiableLine(externalToInternalRow(y));
             int startOfLine = (rectangular || y == top) ? left : leftMargin;
             int endOfLine = (rectangular || y + 1 == bottom) ? right : rightMargin;
+            damage(y, y + 1, startOfLine, endOfLine);
             for (int x = startOfLine; x < endOfLine; x++) {
                 long currentStyle = line.getStyle(x);
                 int foreColor = TextStyle.decodeForeColor(currentStyle);
@@ -686,12 +1204,17 @@ public final class TerminalBuffer {
                 } else {
                     effect &= ~bits;
                 }
-                line.mStyle[x] = TextStyle.encode(foreColor, backColor, effect);
+                line.setStyle(x, x + 1, TextStyle.encode(foreColor, backColor, effect));
             }
         }
     }
 
     public void clearTranscript() {
+        for (int row = -mActiveTranscriptRows; row < 0; row++) releaseImages(mLines[externalToInternalRow(row)]);
+        for (int i = mReflowStart; i < mReflowEnd; i++) releaseImages(mReflowSource[i]);
+        if (mReflowOverflow != null) {
+            for (TerminalRow row : mReflowOverflow) releaseImages(row);
+        }
         if (mScreenFirstRow < mActiveTranscriptRows) {
             Arrays.fill(mLines, mTotalRows + mScreenFirstRow - mActiveTranscriptRows, mTotalRows, null);
             Arrays.fill(mLines, 0, mScreenFirstRow, null);
@@ -699,9 +1222,8 @@ public final class TerminalBuffer {
             Arrays.fill(mLines, mScreenFirstRow - mActiveTranscriptRows, mScreenFirstRow, null);
         }
         mActiveTranscriptRows = 0;
-        for(int i = 0; i < MAX_SIXELS; i++) {
-            sixelBitmap[i] = null;
-        }
-        sixelHasBitmaps = false;
+        endReflow();
+        if (mScrollback != null) mScrollback.clear();
+        updateSpilledRows();
     }
 }
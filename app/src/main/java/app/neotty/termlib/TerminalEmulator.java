@@ -16,15 +16,18 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package app.neotty.termlib;
 
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.Locale;
 import java.util.Objects;
 import java.util.Stack;
+import java.util.function.BiPredicate;
 
 /**
  * Renders text into a screen. Contains all the terminal-specific knowledge and state. Emulates a subset of the X Window
@@ -104,10 +107,76 @@ public final class TerminalEmulator {
     /** Escape processing: APC */
     private static final int ESC_APC = 20;
     private static final int ESC_APC_ESC = 21;
+    /** The number of escape states, that is, one more than the largest ESC_* constant. */
+    private static final int NUM_ESCAPE_STATES = 22;
+
+    /** Parser action: Drop the code point. */
+    private static final byte ACTION_IGNORE = 0;
+    /** Parser action: Output the code point to the screen, {@link #emitCodePoint(int)}. */
+    private static final byte ACTION_PRINT = 1;
+    /** Parser action: Execute a C0 control character, {@link #executeControl(int)}. */
+    private static final byte ACTION_EXECUTE = 2;
+    /** Parser action: Add a digit or separator to the parameters of a control sequence, {@link #parseArg(int)}. */
+    private static final byte ACTION_PARAM = 3;
+    /** Parser action: Let the handler of the current escape state decide, {@link #dispatchEscapeState(int)}. */
+    private static final byte ACTION_DISPATCH = 4;
+
+    /** Columns in {@link #ESCAPE_ACTIONS}: one for each 7-bit code point and a last one for all non-ASCII. */
+    private static final int ESCAPE_ACTION_COLUMNS = 129;
+
+    /**
+     * The ACTION_* to take for a code point in each escape state, indexed by
+     * {@code escapeState * ESCAPE_ACTION_COLUMNS + min(codePoint, ESCAPE_ACTION_COLUMNS - 1)}, so that classifying a
+     * code point is a single array lookup. The actions are named after those of the DEC parser described at
+     * https://vt100.net/emu/dec_ansi_parser, but this is not a transition table: it holds no next state, and the
+     * handlers called by {@link #dispatchEscapeState(int)} still decide the next state of the sequences they parse.
+     */
+    private static final byte[] ESCAPE_ACTIONS = new byte[NUM_ESCAPE_STATES * ESCAPE_ACTION_COLUMNS];
+
+    static {
+        for (int state = 0; state < NUM_ESCAPE_STATES; state++) {
+            final boolean parameterState = state == ESC_CSI || state == ESC_CSI_QUESTIONMARK || state == ESC_CSI_BIGGERTHAN;
+            for (int c = 0; c < ESCAPE_ACTION_COLUMNS; c++) {
+                final byte action;
+                switch (c) {
+                    case 0: // NUL.
+                        action = ACTION_IGNORE;
+                        break;
+                    case 7: // BEL.
+                    case 8: // BS.
+                    case 9: // HT.
+                    case 10: // LF.
+                    case 11: // VT.
+                    case 12: // FF.
+                    case 13: // CR.
+                    case 14: // SO.
+                    case 15: // SI.
+                    case 24: // CAN.
+                    case 26: // SUB.
+                    case 27: // ESC.
+                        action = ACTION_EXECUTE;
+                        break;
+                    default:
+                        if (state == ESC_NONE) {
+                            action = (c < 32) ? ACTION_IGNORE : ACTION_PRINT;
+                        } else if (parameterState && ((c >= '0' && c <= '9') || c == ';' || c == ':')) {
+                            action = ACTION_PARAM;
+                        } else {
+                            action = ACTION_DISPATCH;
+                        }
+                        break;
+                }
+                ESCAPE_ACTIONS[state * ESCAPE_ACTION_COLUMNS + c] = action;
+            }
+        }
+    }
 
     /** The number of parameter arguments. This name comes from the ANSI standard for terminal escape codes. */
     private static final int MAX_ESCAPE_PARAMETERS = 16;
 
+    /** The number of colon separated sub-parameters kept for each parameter, as in "38:2::R:G:B". */
+    private static final int MAX_ESCAPE_SUB_PARAMETERS = 6;
+
     /** Needs to be large enough to contain reasonable OSC 52 pastes. */
     private static final int MAX_OSC_STRING_LENGTH = 8192;
 
@@ -146,14 +215,19 @@ public final class TerminalEmulator {
     private static final int DECSET_BIT_LEFTRIGHT_MARGIN_MODE = 1 << 11;
     /** Not really DECSET bit... - http://www.vt100.net/docs/vt510-rm/DECSACE */
     private static final int DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE = 1 << 12;
+    /** DECSET 2026 - synchronized output, see {@link #getSynchronizedOutputTimeLeft()}. */
+    private static final int DECSET_BIT_SYNCHRONIZED_OUTPUT = 1 << 13;
+
+    /** The longest time screen updates are held back by synchronized output, in case a frame is never finished. */
+    public static final int SYNCHRONIZED_OUTPUT_TIMEOUT_MILLIS = 150;
 
     private String mTitle;
     private final Stack<String> mTitleStack = new Stack<>();
 
     /** If processing first character of first parameter of {@link #ESC_CSI}. */
     private boolean mIsCSIStart;
-    /** The last character processed of a parameter of {@link #ESC_CSI}. */
-    private Integer mLastCSIArg;
+    /** The last character processed of a parameter of {@link #ESC_CSI}, or -1 if none. */
+    private int mLastCSIArg = -1;
 
     /** The cursor position. Between (0,0) and (mRows-1, mColumns-1). */
     private int mCursorRow, mCursorCol;
@@ -174,6 +248,10 @@ public final class TerminalEmulator {
     final TerminalBuffer mAltBuffer;
     /** The current screen buffer, pointing at either {@link #mMainBuffer} or {@link #mAltBuffer}. */
     private TerminalBuffer mScreen;
+    /** The images shown by both screen buffers. */
+    private final ImageRegistry mImages = new ImageRegistry();
+    /** The images transmitted by the kitty graphics protocol, and the command being received. */
+    private final KittyGraphics mKittyGraphics = new KittyGraphics(this, mImages);
 
     /** The terminal session this emulator is bound to. */
     private final TerminalOutput mSession;
@@ -182,6 +260,13 @@ public final class TerminalEmulator {
     private int mArgIndex;
     /** Holds the arguments of the current escape sequence. */
     private final int[] mArgs = new int[MAX_ESCAPE_PARAMETERS];
+    /**
+     * Holds the colon separated sub-parameters of the arguments of the current escape sequence. The sub-parameters of
+     * argument i start at index i * MAX_ESCAPE_SUB_PARAMETERS, and are -1 if omitted.
+     */
+    private final int[] mSubArgs = new int[MAX_ESCAPE_PARAMETERS * MAX_ESCAPE_SUB_PARAMETERS];
+    /** The number of sub-parameters of each argument of the current escape sequence, see {@link #mSubArgs}. */
+    private final int[] mSubArgCount = new int[MAX_ESCAPE_PARAMETERS];
 
     /** Holds OSC and device control arguments, which can be strings. */
     private final StringBuilder mOSCOrDeviceControlArgs = new StringBuilder();
@@ -196,8 +281,14 @@ public final class TerminalEmulator {
     private int mEscapeState;
     private boolean ESC_P_escape = false;
     private boolean ESC_P_sixel = false;
-    private ArrayList<Byte> ESC_OSC_data;
-    private int ESC_OSC_colon = 0;
+    /** Decodes the data of sixel device control strings, created when the first one arrives. */
+    private SixelDecoder mSixelDecoder;
+    /** Decodes the base64 file data of OSC 1337, created when the first file arrives. */
+    private Base64Decoder ESC_OSC_data;
+    /** The length of the arguments of OSC 1337 before its file data, or -1 if not collecting file data. */
+    private int ESC_OSC_colon = -1;
+    /** If the payload of a kitty graphics command, after its ';', is being decoded. */
+    private boolean ESC_APC_payload = false;
 
     private final SavedScreenState mSavedStateMain = new SavedScreenState();
     private final SavedScreenState mSavedStateAlt = new SavedScreenState();
@@ -210,6 +301,15 @@ public final class TerminalEmulator {
      */
     private int mCurrentDecSetFlags, mSavedDecSetFlags;
 
+    /** The last snapshot taken, which the damage of the next one is relative to. */
+    private TerminalSnapshot mLastSnapshot;
+
+    /** Records the time spent on escape sequences if not null, see {@link #setSequenceTrace(SequenceTrace)}. */
+    private SequenceTrace mSequenceTrace;
+
+    /** When synchronized output was last enabled, in {@link SystemClock#uptimeMillis()} time. */
+    long mSynchronizedOutputStart;
+
     /**
      * If insert mode (as opposed to replace mode) is active. In insert mode new characters are inserted, pushing
      * existing text to the right. Characters moved past the right margin are lost.
@@ -245,8 +345,8 @@ public final class TerminalEmulator {
     private int mEffect;
 
     /**
-     * The number of scrolled lines since last calling {@link #clearScrollCounter()}. Used for moving selection up along
-     * with the scrolling text.
+     * The number of scrolled lines since last calling {@link #clearScrollCounter()} or {@link #takeSnapshot()}. Used for
+     * moving selection up along with the scrolling text.
      */
     private int mScrollCounter = 0;
 
@@ -255,6 +355,9 @@ public final class TerminalEmulator {
      */
     private boolean mAutoScrollDisabled;
 
+    /** See {@link #setIncrementalReflow(boolean)}. */
+    private boolean mIncrementalReflow;
+
     private byte mUtf8ToFollow, mUtf8Index;
     private final byte[] mUtf8InputBuffer = new byte[4];
     private int mLastEmittedCodePoint = -1;
@@ -263,7 +366,7 @@ public final class TerminalEmulator {
 
     private int cellW = 12, cellH = 12;
 
-    public void setCellSize(int w, int h) {
+    public synchronized void setCellSize(int w, int h) {
         cellW = w;
         cellH = h;
     }
@@ -282,6 +385,10 @@ public final class TerminalEmulator {
             }
         }
         if (set) {
+            // Synchronized output is held back from when it was enabled, which repeating the DECSET does not extend.
+            if (internalBit == DECSET_BIT_SYNCHRONIZED_OUTPUT && !isDecsetInternalBitSet(internalBit)) {
+                mSynchronizedOutputStart = SystemClock.uptimeMillis();
+            }
             mCurrentDecSetFlags |= internalBit;
         } else {
             mCurrentDecSetFlags &= ~internalBit;
@@ -314,6 +421,8 @@ public final class TerminalEmulator {
                 return DECSET_BIT_MOUSE_PROTOCOL_SGR;
             case 2004:
                 return DECSET_BIT_BRACKETED_PASTE_MODE;
+            case 2026:
+                return DECSET_BIT_SYNCHRONIZED_OUTPUT;
             default:
                 return -1;
             // throw new IllegalArgumentException("unsupported decset: " + decsetBit);
@@ -322,8 +431,8 @@ public final class TerminalEmulator {
 
     public TerminalEmulator(TerminalOutput session, int columns, int rows, int transcriptRows) {
         mSession = session;
-        mScreen = mMainBuffer = new TerminalBuffer(columns, transcriptRows, rows);
-        mAltBuffer = new TerminalBuffer(columns, rows, rows);
+        mScreen = mMainBuffer = new TerminalBuffer(columns, transcriptRows, rows, mImages);
+        mAltBuffer = new TerminalBuffer(columns, rows, rows, mImages);
         mRows = rows;
         mColumns = columns;
         mTabStop = new boolean[mColumns];
@@ -334,6 +443,29 @@ public final class TerminalEmulator {
         return mScreen;
     }
 
+    /**
+     * Take a snapshot of the state needed for drawing the terminal, which is not affected by further input. The scroll
+     * counter is moved over to the snapshot.
+     */
+    public TerminalSnapshot takeSnapshot() {
+        TerminalSnapshot snapshot = new TerminalSnapshot(this, mScreen.snapshot(), mScrollCounter, mLastSnapshot);
+        mScrollCounter = 0;
+        mLastSnapshot = snapshot;
+        return snapshot;
+    }
+
+    /**
+     * Start recording the time spent on each class of escape sequences, and the last sequences processed, into the
+     * trace. Tracing is stopped with a null trace, and costs nothing when stopped.
+     */
+    public void setSequenceTrace(SequenceTrace trace) {
+        mSequenceTrace = trace;
+    }
+
+    public SequenceTrace getSequenceTrace() {
+        return mSequenceTrace;
+    }
+
     public boolean isAlternateBufferActive() {
         return mScreen == mAltBuffer;
     }
@@ -393,6 +525,7 @@ public final class TerminalEmulator {
         final int[] cursor = {mCursorCol, mCursorRow};
         int newTotalRows = (mScreen == mAltBuffer) ? mRows : mMainBuffer.mTotalRows;
         mScreen.resize(mColumns, mRows, newTotalRows, cursor, getStyle(), isAlternateBufferActive());
+        if (!mIncrementalReflow) mScreen.finishReflow();
         mCursorCol = cursor[0];
         mCursorRow = cursor[1];
     }
@@ -418,6 +551,16 @@ public final class TerminalEmulator {
         return isDecsetInternalBitSet(DECSET_BIT_SHOWING_CURSOR);
     }
 
+    /**
+     * If synchronized output (DECSET 2026) is active, the number of milliseconds that screen updates should still be
+     * held back while the program finishes its frame, otherwise 0.
+     */
+    public int getSynchronizedOutputTimeLeft() {
+        if (!isDecsetInternalBitSet(DECSET_BIT_SYNCHRONIZED_OUTPUT)) return 0;
+        long elapsed = SystemClock.uptimeMillis() - mSynchronizedOutputStart;
+        return (int) Math.max(0, SYNCHRONIZED_OUTPUT_TIMEOUT_MILLIS - elapsed);
+    }
+
     public boolean isKeypadApplicationMode() {
         return isDecsetInternalBitSet(DECSET_BIT_APPLICATION_KEYPAD);
     }
@@ -443,8 +586,220 @@ public final class TerminalEmulator {
      * @param length the number of bytes in the array to process
      */
     public void append(byte[] buffer, int length) {
-        for (int i = 0; i < length; i++)
-            processByte(buffer[i]);
+        if (mSequenceTrace != null) {
+            appendTraced(buffer, length);
+            return;
+        }
+        int i = 0;
+        while (i < length) {
+            final byte b = buffer[i];
+            if (b >= 32 && b < 127 && canAppendAsciiRun()) {
+                i = appendAsciiRun(buffer, i, length);
+            } else if (b < 0 && mUtf8ToFollow == 0) {
+                i = appendUtf8Sequence(buffer, i, length);
+            } else if (b == 10 && mEscapeState == ESC_NONE && mUtf8ToFollow == 0 && !ESC_P_sixel) {
+                i = appendLinefeeds(buffer, i, length);
+            } else {
+                processByte(b);
+                i++;
+            }
+        }
+    }
+
+    /** Same as {@link #append(byte[], int)}, but recording the time spent on each sequence in {@link #mSequenceTrace}. */
+    private void appendTraced(byte[] buffer, int length) {
+        final SequenceTrace trace = mSequenceTrace;
+        int i = 0;
+        while (i < length) {
+            final byte b = buffer[i];
+            final int stateBefore = mEscapeState;
+            final long startTime = System.nanoTime();
+            final int next;
+            if (b >= 32 && b < 127 && canAppendAsciiRun()) {
+                next = appendAsciiRun(buffer, i, length);
+            } else if (b < 0 && mUtf8ToFollow == 0) {
+                next = appendUtf8Sequence(buffer, i, length);
+            } else if (b == 10 && mEscapeState == ESC_NONE && mUtf8ToFollow == 0 && !ESC_P_sixel) {
+                next = appendLinefeeds(buffer, i, length);
+            } else {
+                processByte(b);
+                next = i + 1;
+            }
+            trace.add(buffer, i, next, System.nanoTime() - startTime);
+            if (mEscapeState == ESC_NONE) trace.finish(getSequenceClass(stateBefore, b));
+            i = next;
+        }
+    }
+
+    /** The {@link SequenceTrace} class of a sequence finished by the byte b processed in the escape state. */
+    private static int getSequenceClass(int escapeState, byte b) {
+        switch (escapeState) {
+            case ESC_NONE:
+                return (b >= 0 && b < 32) || b == 127 ? SequenceTrace.CLASS_CONTROL : SequenceTrace.CLASS_PRINT;
+            case ESC_CSI:
+                switch (b) {
+                    case 'm':
+                        return SequenceTrace.CLASS_SGR;
+                    case 'H':
+                    case 'f':
+                        return SequenceTrace.CLASS_CUP;
+                    case 'J':
+                    case 'K':
+                        return SequenceTrace.CLASS_ERASE;
+                    case 'S':
+                    case 'T':
+                    case 'L':
+                    case 'M':
+                        return SequenceTrace.CLASS_SCROLL;
+                    default:
+                        return SequenceTrace.CLASS_CSI;
+                }
+            case ESC_CSI_QUESTIONMARK:
+            case ESC_CSI_DOLLAR:
+            case ESC_CSI_BIGGERTHAN:
+            case ESC_CSI_QUESTIONMARK_ARG_DOLLAR:
+            case ESC_CSI_ARGS_SPACE:
+            case ESC_CSI_ARGS_ASTERIX:
+            case ESC_CSI_DOUBLE_QUOTE:
+            case ESC_CSI_SINGLE_QUOTE:
+            case ESC_CSI_EXCLAMATION:
+                return SequenceTrace.CLASS_CSI;
+            case ESC_P:
+                return SequenceTrace.CLASS_DCS;
+            case ESC_OSC:
+            case ESC_OSC_ESC:
+                return SequenceTrace.CLASS_OSC;
+            case ESC_APC:
+            case ESC_APC_ESC:
+                return SequenceTrace.CLASS_APC;
+            default:
+                return SequenceTrace.CLASS_ESC;
+        }
+    }
+
+    /**
+     * Process the run of line feeds and carriage returns starting with the line feed at buffer[start], scrolling once
+     * for all of the line feeds. Produces the same result as processing each byte, since a carriage return only moves
+     * the cursor to the left margin.
+     *
+     * @return the index of the first byte after the run.
+     */
+    private int appendLinefeeds(byte[] buffer, int start, int length) {
+        int linefeeds = 0;
+        boolean carriageReturn = false;
+        int end = start;
+        for (; end < length; end++) {
+            if (buffer[end] == 10) {
+                linefeeds++;
+            } else if (buffer[end] == 13) {
+                carriageReturn = true;
+            } else {
+                break;
+            }
+        }
+        doLinefeeds(linefeeds);
+        if (carriageReturn) setCursorCol(mLeftMargin);
+        return end;
+    }
+
+    /**
+     * If printable ASCII may be written directly by {@link #appendAsciiRun(byte[], int, int)}, which is the case when
+     * no escape sequence or UTF-8 sequence is being parsed, no line drawing character set is active, insert mode is off
+     * and the cursor is inside the right margin.
+     */
+    private boolean canAppendAsciiRun() {
+        return mEscapeState == ESC_NONE && mUtf8ToFollow == 0 && !mInsertMode
+            && !(mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1) && mCursorCol < mRightMargin;
+    }
+
+    /**
+     * Write the run of printable ASCII starting at buffer[start] into the screen, a row segment at a time. Produces the
+     * same result as calling {@link #emitCodePoint(int)} for each byte, with auto-wrapping handled once per row.
+     *
+     * @return the index of the first byte after the run.
+     */
+    private int appendAsciiRun(byte[] buffer, int start, int length) {
+        int end = start + 1;
+        while (end + 8 <= length && isPrintableAscii(readLong(buffer, end))) end += 8;
+        while (end < length && buffer[end] >= 32 && buffer[end] < 127) end++;
+
+        final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
+        final long style = getStyle();
+        int position = start;
+        while (position < end) {
+            if (autoWrap && mAboutToAutoWrap && mCursorCol == mRightMargin - 1) {
+                mScreen.setLineWrap(mCursorRow);
+                mCursorCol = mLeftMargin;
+                if (mCursorRow + 1 < mBottomMargin) {
+                    mCursorRow++;
+                } else {
+                    scrollDownOneLine();
+                }
+            }
+
+            final int cellsLeft = mRightMargin - mCursorCol;
+            int count = Math.min(end - position, cellsLeft);
+            if (!autoWrap && end - position > cellsLeft) {
+                // Without auto-wrap every character past the right margin overwrites the last column, so only the
+                // last one of them is visible:
+                mScreen.setAsciiChars(mCursorCol, mCursorRow, buffer, position, count - 1, style);
+                mScreen.setAsciiChars(mRightMargin - 1, mCursorRow, buffer, end - 1, 1, style);
+                count = end - position;
+                mCursorCol = mRightMargin - 1;
+            } else {
+                mScreen.setAsciiChars(mCursorCol, mCursorRow, buffer, position, count, style);
+                final int lastWrittenColumn = mCursorCol + count - 1;
+                if (autoWrap) mAboutToAutoWrap = (lastWrittenColumn == mRightMargin - 1);
+                mCursorCol = Math.min(lastWrittenColumn + 1, mRightMargin - 1);
+            }
+            position += count;
+        }
+
+        mLastEmittedCodePoint = buffer[end - 1];
+        return end;
+    }
+
+    /** Eight bytes of the buffer starting at the offset, packed into a long in an unspecified order. */
+    private static long readLong(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xFFL) | (buffer[offset + 1] & 0xFFL) << 8 | (buffer[offset + 2] & 0xFFL) << 16
+            | (buffer[offset + 3] & 0xFFL) << 24 | (buffer[offset + 4] & 0xFFL) << 32 | (buffer[offset + 5] & 0xFFL) << 40
+            | (buffer[offset + 6] & 0xFFL) << 48 | (buffer[offset + 7] & 0xFFL) << 56;
+    }
+
+    /** If all eight bytes packed into the long are printable ASCII, 0x20 to 0x7E. */
+    private static boolean isPrintableAscii(long bytes) {
+        final long highBits = 0x8080808080808080L;
+        // With no high bit set, a byte is at least 0x20 if adding 0x60 sets its high bit, and below 0x7F if adding 0x01
+        // does not. No carries cross into the next byte.
+        return (bytes & highBits) == 0 && ((bytes + 0x6060606060606060L) & highBits) == highBits
+            && ((bytes + 0x0101010101010101L) & highBits) == 0;
+    }
+
+    /**
+     * Decode the UTF-8 sequence starting with the non-ASCII byte at buffer[start] directly from the buffer. Invalid
+     * sequences and sequences continuing in the next buffer are left to {@link #processByte(byte)}.
+     *
+     * @return the index of the first byte after the processed bytes.
+     */
+    private int appendUtf8Sequence(byte[] buffer, int start, int length) {
+        final int leadByte = buffer[start] & 0xFF;
+        final int sequenceLength = (leadByte >= 0b11110000) ? 4 : ((leadByte >= 0b11100000) ? 3 : 2);
+        if (leadByte < 0b11000000 || leadByte >= 0b11111000 || start + sequenceLength > length) {
+            processByte(buffer[start]);
+            return start + 1;
+        }
+
+        int codePoint = leadByte & (0b01111111 >> sequenceLength);
+        for (int i = start + 1; i < start + sequenceLength; i++) {
+            final byte b = buffer[i];
+            if ((b & 0b11000000) != 0b10000000) {
+                processByte(buffer[start]);
+                return start + 1;
+            }
+            codePoint = (codePoint << 6) | (b & 0b00111111);
+        }
+        processDecodedCodePoint(codePoint, sequenceLength);
+        return start + sequenceLength;
     }
 
     private void processByte(byte byteToProcess) {
@@ -457,28 +812,9 @@ public final class TerminalEmulator {
                     int codePoint = (mUtf8InputBuffer[0] & firstByteMask);
                     for (int i = 1; i < mUtf8Index; i++)
                         codePoint = ((codePoint << 6) | (mUtf8InputBuffer[i] & 0b00111111));
-                    if (((codePoint <= 0b1111111) && mUtf8Index > 1) || (codePoint < 0b11111111111 && mUtf8Index > 2)
-                        || (codePoint < 0b1111111111111111 && mUtf8Index > 3)) {
-                        // Overlong encoding.
-                        codePoint = UNICODE_REPLACEMENT_CHAR;
-                    }
-
+                    int sequenceLength = mUtf8Index;
                     mUtf8Index = mUtf8ToFollow = 0;
-
-                    if (codePoint >= 0x80 && codePoint <= 0x9F) {
-                        // Sequence decoded to a C1 control character which we ignore. They are
-                        // not used nowadays and increases the risk of messing up the terminal state
-                        // on binary input. XTerm does not allow them in utf-8:
-                        // "It is not possible to use a C1 control obtained from decoding the
-                        // UTF-8 text" - http://invisible-island.net/xterm/ctlseqs/ctlseqs.html
-                    } else {
-                        switch (Character.getType(codePoint)) {
-                            case Character.UNASSIGNED:
-                            case Character.SURROGATE:
-                                codePoint = UNICODE_REPLACEMENT_CHAR;
-                        }
-                        processCodePoint(codePoint);
-                    }
+                    processDecodedCodePoint(codePoint, sequenceLength);
                 }
             } else {
                 // Not a UTF-8 continuation byte so replace the entire sequence up to now with the replacement char:
@@ -512,10 +848,50 @@ public final class TerminalEmulator {
         }
     }
 
+    /** Process a code point decoded from a UTF-8 sequence of the specified length. */
+    private void processDecodedCodePoint(int codePoint, int sequenceLength) {
+        if (((codePoint <= 0b1111111) && sequenceLength > 1) || (codePoint < 0b11111111111 && sequenceLength > 2)
+            || (codePoint < 0b1111111111111111 && sequenceLength > 3)) {
+            // Overlong encoding.
+            codePoint = UNICODE_REPLACEMENT_CHAR;
+        }
+
+        if (codePoint >= 0x80 && codePoint <= 0x9F) {
+            // Sequence decoded to a C1 control character which we ignore. They are
+            // not used nowadays and increases the risk of messing up the terminal state
+            // on binary input. XTerm does not allow them in utf-8:
+            // "It is not possible to use a C1 control obtained from decoding the
+            // UTF-8 text" - http://invisible-island.net/xterm/ctlseqs/ctlseqs.html
+            return;
+        }
+        if (UnassignedCodePoints.contains(codePoint)) codePoint = UNICODE_REPLACEMENT_CHAR;
+        processCodePoint(codePoint);
+    }
+
     public void processCodePoint(int b) {
-        switch (b) {
-            case 0: // Null character (NUL, ^@). Do nothing.
+        switch (ESCAPE_ACTIONS[mEscapeState * ESCAPE_ACTION_COLUMNS + Math.min(b, ESCAPE_ACTION_COLUMNS - 1)]) {
+            case ACTION_IGNORE:
+                break;
+            case ACTION_PRINT:
+                emitCodePoint(b);
+                break;
+            case ACTION_EXECUTE:
+                executeControl(b);
+                break;
+            case ACTION_PARAM:
+                parseArg(b);
+                break;
+            default: // ACTION_DISPATCH
+                mContinueSequence = false;
+                dispatchEscapeState(b);
+                if (!mContinueSequence) mEscapeState = ESC_NONE;
                 break;
+        }
+    }
+
+    /** Execute a C0 control character which has an effect regardless of the current escape state. */
+    private void executeControl(int b) {
+        switch (b) {
             case 7: // Bell (BEL, ^G, \a). If in an OSC sequence, BEL may terminate a string; otherwise signal bell.
                 if (mEscapeState == ESC_OSC) {
                     doOsc(b);
@@ -573,6 +949,7 @@ public final class TerminalEmulator {
                 if (mEscapeState != ESC_NONE) {
                     // FIXME: What is this??
                     mEscapeState = ESC_NONE;
+                    ESC_P_sixel = false;
                     emitCodePoint(127);
                 }
                 break;
@@ -592,294 +969,297 @@ public final class TerminalEmulator {
                     doOsc(b);
                 }
                 break;
-            default:
-                mContinueSequence = false;
-                switch (mEscapeState) {
-                    case ESC_NONE:
-                        if (b >= 32) emitCodePoint(b);
-                        break;
-                    case ESC:
-                        doEsc(b);
-                        break;
-                    case ESC_POUND:
-                        doEscPound(b);
-                        break;
-                    case ESC_SELECT_LEFT_PAREN: // Designate G0 Character Set (ISO 2022, VT100).
-                        mUseLineDrawingG0 = (b == '0');
-                        break;
-                    case ESC_SELECT_RIGHT_PAREN: // Designate G1 Character Set (ISO 2022, VT100).
-                        mUseLineDrawingG1 = (b == '0');
-                        break;
-                    case ESC_CSI:
-                        doCsi(b);
+        }
+    }
+
+    /** Process a code point in the context of the current escape sequence, {@link #mEscapeState}. */
+    private void dispatchEscapeState(int b) {
+        switch (mEscapeState) {
+            case ESC_NONE:
+                if (b >= 32) emitCodePoint(b);
+                break;
+            case ESC:
+                doEsc(b);
+                break;
+            case ESC_POUND:
+                doEscPound(b);
+                break;
+            case ESC_SELECT_LEFT_PAREN: // Designate G0 Character Set (ISO 2022, VT100).
+                mUseLineDrawingG0 = (b == '0');
+                break;
+            case ESC_SELECT_RIGHT_PAREN: // Designate G1 Character Set (ISO 2022, VT100).
+                mUseLineDrawingG1 = (b == '0');
+                break;
+            case ESC_CSI:
+                doCsi(b);
+                break;
+            case ESC_CSI_EXCLAMATION:
+                if (b == 'p') { // Soft terminal reset (DECSTR, http://vt100.net/docs/vt510-rm/DECSTR).
+                    reset(false);
+                } else {
+                    unknownSequence(b);
+                }
+                break;
+            case ESC_CSI_QUESTIONMARK:
+                doCsiQuestionMark(b);
+                break;
+            case ESC_CSI_BIGGERTHAN:
+                doCsiBiggerThan(b);
+                break;
+            case ESC_CSI_DOLLAR:
+                boolean originMode = isDecsetInternalBitSet(DECSET_BIT_ORIGIN_MODE);
+                int effectiveTopMargin = originMode ? mTopMargin : 0;
+                int effectiveBottomMargin = originMode ? mBottomMargin : mRows;
+                int effectiveLeftMargin = originMode ? mLeftMargin : 0;
+                int effectiveRightMargin = originMode ? mRightMargin : mColumns;
+                switch (b) {
+                    case 'v': // ${CSI}${SRC_TOP}${SRC_LEFT}${SRC_BOTTOM}${SRC_RIGHT}${SRC_PAGE}${DST_TOP}${DST_LEFT}${DST_PAGE}$v"
+                        // Copy rectangular area (DECCRA - http://vt100.net/docs/vt510-rm/DECCRA):
+                        // "If Pbs is greater than Pts, or Pls is greater than Prs, the terminal ignores DECCRA.
+                        // The coordinates of the rectangular area are affected by the setting of origin mode (DECOM).
+                        // DECCRA is not affected by the page margins.
+                        // The copied text takes on the line attributes of the destination area.
+                        // If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, then the value
+                        // is treated as the width or height of that page.
+                        // If the destination area is partially off the page, then DECCRA clips the off-page data.
+                        // DECCRA does not change the active cursor position."
+                        int topSource = Math.min(getArg(0, 1, true) - 1 + effectiveTopMargin, mRows);
+                        int leftSource = Math.min(getArg(1, 1, true) - 1 + effectiveLeftMargin, mColumns);
+                        // Inclusive, so do not subtract one:
+                        int bottomSource = Math.min(Math.max(getArg(2, mRows, true) + effectiveTopMargin, topSource), mRows);
+                        int rightSource = Math.min(Math.max(getArg(3, mColumns, true) + effectiveLeftMargin, leftSource), mColumns);
+                        // int sourcePage = getArg(4, 1, true);
+                        int destionationTop = Math.min(getArg(5, 1, true) - 1 + effectiveTopMargin, mRows);
+                        int destinationLeft = Math.min(getArg(6, 1, true) - 1 + effectiveLeftMargin, mColumns);
+                        // int destinationPage = getArg(7, 1, true);
+                        int heightToCopy = Math.min(mRows - destionationTop, bottomSource - topSource);
+                        int widthToCopy = Math.min(mColumns - destinationLeft, rightSource - leftSource);
+                        mScreen.blockCopy(leftSource, topSource, widthToCopy, heightToCopy, destinationLeft, destionationTop);
                         break;
-                    case ESC_CSI_EXCLAMATION:
-                        if (b == 'p') { // Soft terminal reset (DECSTR, http://vt100.net/docs/vt510-rm/DECSTR).
-                            reset(false);
-                        } else {
-                            unknownSequence(b);
+                    case '{': // ${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${"
+                        // Selective erase rectangular area (DECSERA - http://www.vt100.net/docs/vt510-rm/DECSERA).
+                    case 'x': // ${CSI}${CHAR};${TOP}${LEFT}${BOTTOM}${RIGHT}$x"
+                        // Fill rectangular area (DECFRA - http://www.vt100.net/docs/vt510-rm/DECFRA).
+                    case 'z': // ${CSI}$${TOP}${LEFT}${BOTTOM}${RIGHT}$z"
+                        // Erase rectangular area (DECERA - http://www.vt100.net/docs/vt510-rm/DECERA).
+                        boolean erase = b != 'x';
+                        boolean selective = b == '{';
+                        // Only DECSERA keeps visual attributes, DECERA does not:
+                        boolean keepVisualAttributes = erase && selective;
+                        int argIndex = 0;
+                        int fillChar = erase ? ' ' : getArg(argIndex++, -1, true);
+                        // "Pch can be any value from 32 to 126 or from 160 to 255. If Pch is not in this range, then the
+                        // terminal ignores the DECFRA command":
+                        if ((fillChar >= 32 && fillChar <= 126) || (fillChar >= 160 && fillChar <= 255)) {
+                            // "If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, the value
+                            // is treated as the width or height of that page."
+                            int top = Math.min(getArg(argIndex++, 1, true) + effectiveTopMargin, effectiveBottomMargin + 1);
+                            int left = Math.min(getArg(argIndex++, 1, true) + effectiveLeftMargin, effectiveRightMargin + 1);
+                            int bottom = Math.min(getArg(argIndex++, mRows, true) + effectiveTopMargin, effectiveBottomMargin);
+                            int right = Math.min(getArg(argIndex, mColumns, true) + effectiveLeftMargin, effectiveRightMargin);
+                            long style = getStyle();
+                            for (int row = top - 1; row < bottom; row++)
+                                for (int col = left - 1; col < right; col++)
+                                    if (!selective || (TextStyle.decodeEffect(mScreen.getStyleAt(row, col)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) == 0)
+                                        mScreen.setChar(col, row, fillChar, keepVisualAttributes ? mScreen.getStyleAt(row, col) : style);
                         }
                         break;
-                    case ESC_CSI_QUESTIONMARK:
-                        doCsiQuestionMark(b);
-                        break;
-                    case ESC_CSI_BIGGERTHAN:
-                        doCsiBiggerThan(b);
-                        break;
-                    case ESC_CSI_DOLLAR:
-                        boolean originMode = isDecsetInternalBitSet(DECSET_BIT_ORIGIN_MODE);
-                        int effectiveTopMargin = originMode ? mTopMargin : 0;
-                        int effectiveBottomMargin = originMode ? mBottomMargin : mRows;
-                        int effectiveLeftMargin = originMode ? mLeftMargin : 0;
-                        int effectiveRightMargin = originMode ? mRightMargin : mColumns;
-                        switch (b) {
-                            case 'v': // ${CSI}${SRC_TOP}${SRC_LEFT}${SRC_BOTTOM}${SRC_RIGHT}${SRC_PAGE}${DST_TOP}${DST_LEFT}${DST_PAGE}$v"
-                                // Copy rectangular area (DECCRA - http://vt100.net/docs/vt510-rm/DECCRA):
-                                // "If Pbs is greater than Pts, or Pls is greater than Prs, the terminal ignores DECCRA.
-                                // The coordinates of the rectangular area are affected by the setting of origin mode (DECOM).
-                                // DECCRA is not affected by the page margins.
-                                // The copied text takes on the line attributes of the destination area.
-                                // If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, then the value
-                                // is treated as the width or height of that page.
-                                // If the destination area is partially off the page, then DECCRA clips the off-page data.
-                                // DECCRA does not change the active cursor position."
-                                int topSource = Math.min(getArg(0, 1, true) - 1 + effectiveTopMargin, mRows);
-                                int leftSource = Math.min(getArg(1, 1, true) - 1 + effectiveLeftMargin, mColumns);
-                                // Inclusive, so do not subtract one:
-                                int bottomSource = Math.min(Math.max(getArg(2, mRows, true) + effectiveTopMargin, topSource), mRows);
-                                int rightSource = Math.min(Math.max(getArg(3, mColumns, true) + effectiveLeftMargin, leftSource), mColumns);
-                                // int sourcePage = getArg(4, 1, true);
-                                int destionationTop = Math.min(getArg(5, 1, true) - 1 + effectiveTopMargin, mRows);
-                                int destinationLeft = Math.min(getArg(6, 1, true) - 1 + effectiveLeftMargin, mColumns);
-                                // int destinationPage = getArg(7, 1, true);
-                                int heightToCopy = Math.min(mRows - destionationTop, bottomSource - topSource);
-                                int widthToCopy = Math.min(mColumns - destinationLeft, rightSource - leftSource);
-                                mScreen.blockCopy(leftSource, topSource, widthToCopy, heightToCopy, destinationLeft, destionationTop);
-                                break;
-                            case '{': // ${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${"
-                                // Selective erase rectangular area (DECSERA - http://www.vt100.net/docs/vt510-rm/DECSERA).
-                            case 'x': // ${CSI}${CHAR};${TOP}${LEFT}${BOTTOM}${RIGHT}$x"
-                                // Fill rectangular area (DECFRA - http://www.vt100.net/docs/vt510-rm/DECFRA).
-                            case 'z': // ${CSI}$${TOP}${LEFT}${BOTTOM}${RIGHT}$z"
-                                // Erase rectangular area (DECERA - http://www.vt100.net/docs/vt510-rm/DECERA).
-                                boolean erase = b != 'x';
-                                boolean selective = b == '{';
-                                // Only DECSERA keeps visual attributes, DECERA does not:
-                                boolean keepVisualAttributes = erase && selective;
-                                int argIndex = 0;
-                                int fillChar = erase ? ' ' : getArg(argIndex++, -1, true);
-                                // "Pch can be any value from 32 to 126 or from 160 to 255. If Pch is not in this range, then the
-                                // terminal ignores the DECFRA command":
-                                if ((fillChar >= 32 && fillChar <= 126) || (fillChar >= 160 && fillChar <= 255)) {
-                                    // "If the value of Pt, Pl, Pb, or Pr exceeds the width or height of the active page, the value
-                                    // is treated as the width or height of that page."
-                                    int top = Math.min(getArg(argIndex++, 1, true) + effectiveTopMargin, effectiveBottomMargin + 1);
-                                    int left = Math.min(getArg(argIndex++, 1, true) + effectiveLeftMargin, effectiveRightMargin + 1);
-                                    int bottom = Math.min(getArg(argIndex++, mRows, true) + effectiveTopMargin, effectiveBottomMargin);
-                                    int right = Math.min(getArg(argIndex, mColumns, true) + effectiveLeftMargin, effectiveRightMargin);
-                                    long style = getStyle();
-                                    for (int row = top - 1; row < bottom; row++)
-                                        for (int col = left - 1; col < right; col++)
-                                            if (!selective || (TextStyle.decodeEffect(mScreen.getStyleAt(row, col)) & TextStyle.CHARACTER_ATTRIBUTE_PROTECTED) == 0)
-                                                mScreen.setChar(col, row, fillChar, keepVisualAttributes ? mScreen.getStyleAt(row, col) : style);
+                    case 'r': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$r"
+                        // Change attributes in rectangular area (DECCARA - http://vt100.net/docs/vt510-rm/DECCARA).
+                    case 't': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$t"
+                        // Reverse attributes in rectangular area (DECRARA - http://www.vt100.net/docs/vt510-rm/DECRARA).
+                        boolean reverse = b == 't';
+                        // FIXME: "coordinates of the rectangular area are affected by the setting of origin mode (DECOM)".
+                        int top = Math.min(getArg(0, 1, true) - 1, effectiveBottomMargin) + effectiveTopMargin;
+                        int left = Math.min(getArg(1, 1, true) - 1, effectiveRightMargin) + effectiveLeftMargin;
+                        int bottom = Math.min(getArg(2, mRows, true) + 1, effectiveBottomMargin - 1) + effectiveTopMargin;
+                        int right = Math.min(getArg(3, mColumns, true) + 1, effectiveRightMargin - 1) + effectiveLeftMargin;
+                        if (mArgIndex >= 4) {
+                            if (mArgIndex >= mArgs.length) mArgIndex = mArgs.length - 1;
+                            for (int i = 4; i <= mArgIndex; i++) {
+                                int bits = 0;
+                                boolean setOrClear = true; // True if setting, false if clearing.
+                                switch (getArg(i, 0, false)) {
+                                    case 0: // Attributes off (no bold, no underline, no blink, positive image).
+                                        bits = (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE | TextStyle.CHARACTER_ATTRIBUTE_BLINK
+                                            | TextStyle.CHARACTER_ATTRIBUTE_INVERSE);
+                                        if (!reverse) setOrClear = false;
+                                        break;
+                                    case 1: // Bold.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
+                                        break;
+                                    case 4: // Underline.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+                                        break;
+                                    case 5: // Blink.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
+                                        break;
+                                    case 7: // Negative image.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
+                                        break;
+                                    case 22: // No bold.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
+                                        setOrClear = false;
+                                        break;
+                                    case 24: // No underline.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+                                        setOrClear = false;
+                                        break;
+                                    case 25: // No blink.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
+                                        setOrClear = false;
+                                        break;
+                                    case 27: // Positive image.
+                                        bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
+                                        setOrClear = false;
+                                        break;
                                 }
-                                break;
-                            case 'r': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$r"
-                                // Change attributes in rectangular area (DECCARA - http://vt100.net/docs/vt510-rm/DECCARA).
-                            case 't': // "${CSI}${TOP}${LEFT}${BOTTOM}${RIGHT}${ATTRIBUTES}$t"
-                                // Reverse attributes in rectangular area (DECRARA - http://www.vt100.net/docs/vt510-rm/DECRARA).
-                                boolean reverse = b == 't';
-                                // FIXME: "coordinates of the rectangular area are affected by the setting of origin mode (DECOM)".
-                                int top = Math.min(getArg(0, 1, true) - 1, effectiveBottomMargin) + effectiveTopMargin;
-                                int left = Math.min(getArg(1, 1, true) - 1, effectiveRightMargin) + effectiveLeftMargin;
-                                int bottom = Math.min(getArg(2, mRows, true) + 1, effectiveBottomMargin - 1) + effectiveTopMargin;
-                                int right = Math.min(getArg(3, mColumns, true) + 1, effectiveRightMargin - 1) + effectiveLeftMargin;
-                                if (mArgIndex >= 4) {
-                                    if (mArgIndex >= mArgs.length) mArgIndex = mArgs.length - 1;
-                                    for (int i = 4; i <= mArgIndex; i++) {
-                                        int bits = 0;
-                                        boolean setOrClear = true; // True if setting, false if clearing.
-                                        switch (getArg(i, 0, false)) {
-                                            case 0: // Attributes off (no bold, no underline, no blink, positive image).
-                                                bits = (TextStyle.CHARACTER_ATTRIBUTE_BOLD | TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE | TextStyle.CHARACTER_ATTRIBUTE_BLINK
-                                                    | TextStyle.CHARACTER_ATTRIBUTE_INVERSE);
-                                                if (!reverse) setOrClear = false;
-                                                break;
-                                            case 1: // Bold.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
-                                                break;
-                                            case 4: // Underline.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
-                                                break;
-                                            case 5: // Blink.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
-                                                break;
-                                            case 7: // Negative image.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
-                                                break;
-                                            case 22: // No bold.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BOLD;
-                                                setOrClear = false;
-                                                break;
-                                            case 24: // No underline.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
-                                                setOrClear = false;
-                                                break;
-                                            case 25: // No blink.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_BLINK;
-                                                setOrClear = false;
-                                                break;
-                                            case 27: // Positive image.
-                                                bits = TextStyle.CHARACTER_ATTRIBUTE_INVERSE;
-                                                setOrClear = false;
-                                                break;
-                                        }
-                                        if (reverse && !setOrClear) {
-                                            // Reverse attributes in rectangular area ignores non-(1,4,5,7) bits.
-                                        } else {
-                                            mScreen.setOrClearEffect(bits, setOrClear, reverse, isDecsetInternalBitSet(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE),
-                                                effectiveLeftMargin, effectiveRightMargin, top, left, bottom, right);
-                                        }
-                                    }
+                                if (reverse && !setOrClear) {
+                                    // Reverse attributes in rectangular area ignores non-(1,4,5,7) bits.
                                 } else {
-                                    // Do nothing.
+                                    mScreen.setOrClearEffect(bits, setOrClear, reverse, isDecsetInternalBitSet(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE),
+                                        effectiveLeftMargin, effectiveRightMargin, top, left, bottom, right);
                                 }
-                                break;
-                            default:
-                                unknownSequence(b);
-                        }
-                        break;
-                    case ESC_CSI_DOUBLE_QUOTE:
-                        if (b == 'q') {
-                            // http://www.vt100.net/docs/vt510-rm/DECSCA
-                            int arg = getArg0(0);
-                            if (arg == 0 || arg == 2) {
-                                // DECSED and DECSEL can erase characters.
-                                mEffect &= ~TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
-                            } else if (arg == 1) {
-                                // DECSED and DECSEL cannot erase characters.
-                                mEffect |= TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
-                            } else {
-                                unknownSequence(b);
                             }
                         } else {
-                            unknownSequence(b);
-                        }
-                        break;
-                    case ESC_CSI_SINGLE_QUOTE:
-                        if (b == '}') { // Insert Ps Column(s) (default = 1) (DECIC), VT420 and up.
-                            int columnsAfterCursor = mRightMargin - mCursorCol;
-                            int columnsToInsert = Math.min(getArg0(1), columnsAfterCursor);
-                            int columnsToMove = columnsAfterCursor - columnsToInsert;
-                            mScreen.blockCopy(mCursorCol, 0, columnsToMove, mRows, mCursorCol + columnsToInsert, 0);
-                            blockClear(mCursorCol, 0, columnsToInsert, mRows);
-                        } else if (b == '~') { // Delete Ps Column(s) (default = 1) (DECDC), VT420 and up.
-                            int columnsAfterCursor = mRightMargin - mCursorCol;
-                            int columnsToDelete = Math.min(getArg0(1), columnsAfterCursor);
-                            int columnsToMove = columnsAfterCursor - columnsToDelete;
-                            mScreen.blockCopy(mCursorCol + columnsToDelete, 0, columnsToMove, mRows, mCursorCol, 0);
-                        } else {
-                            unknownSequence(b);
+                            // Do nothing.
                         }
                         break;
-                    case ESC_PERCENT:
-                        break;
-                    case ESC_APC:
-                        doApc(b);
-                        break;
-                    case ESC_APC_ESC:
-                        doApcEsc(b);
-                        break;
-                    case ESC_OSC:
-                        doOsc(b);
-                        break;
-                    case ESC_OSC_ESC:
-                        doOscEsc(b);
-                        break;
-                    case ESC_P:
-                        doDeviceControl(b);
-                        break;
-                    case ESC_CSI_QUESTIONMARK_ARG_DOLLAR:
-                        if (b == 'p') {
-                            // Request DEC private mode (DECRQM).
-                            int mode = getArg0(0);
-                            int value;
-                            if (mode == 47 || mode == 1047 || mode == 1049) {
-                                // This state is carried by mScreen pointer.
-                                value = (mScreen == mAltBuffer) ? 1 : 2;
-                            } else {
-                                int internalBit = mapDecSetBitToInternalBit(mode);
-                                if (internalBit != -1) {
-                                    value = isDecsetInternalBitSet(internalBit) ? 1 : 2; // 1=set, 2=reset.
-                                } else {
-                                    Log.e(EmulatorDebug.LOG_TAG, "got DECRQM for unrecognized private DEC mode=" + mode);
-                                    value = 0; // 0=not recognized, 3=permanently set, 4=permanently reset
-                                }
-                            }
-                            mSession.write(String.format(Locale.US, "\033[?%d;%d$y", mode, value));
+                    default:
+                        unknownSequence(b);
+                }
+                break;
+            case ESC_CSI_DOUBLE_QUOTE:
+                if (b == 'q') {
+                    // http://www.vt100.net/docs/vt510-rm/DECSCA
+                    int arg = getArg0(0);
+                    if (arg == 0 || arg == 2) {
+                        // DECSED and DECSEL can erase characters.
+                        mEffect &= ~TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
+                    } else if (arg == 1) {
+                        // DECSED and DECSEL cannot erase characters.
+                        mEffect |= TextStyle.CHARACTER_ATTRIBUTE_PROTECTED;
+                    } else {
+                        unknownSequence(b);
+                    }
+                } else {
+                    unknownSequence(b);
+                }
+                break;
+            case ESC_CSI_SINGLE_QUOTE:
+                if (b == '}') { // Insert Ps Column(s) (default = 1) (DECIC), VT420 and up.
+                    int columnsAfterCursor = mRightMargin - mCursorCol;
+                    int columnsToInsert = Math.min(getArg0(1), columnsAfterCursor);
+                    int columnsToMove = columnsAfterCursor - columnsToInsert;
+                    mScreen.blockCopy(mCursorCol, 0, columnsToMove, mRows, mCursorCol + columnsToInsert, 0);
+                    blockClear(mCursorCol, 0, columnsToInsert, mRows);
+                } else if (b == '~') { // Delete Ps Column(s) (default = 1) (DECDC), VT420 and up.
+                    int columnsAfterCursor = mRightMargin - mCursorCol;
+                    int columnsToDelete = Math.min(getArg0(1), columnsAfterCursor);
+                    int columnsToMove = columnsAfterCursor - columnsToDelete;
+                    mScreen.blockCopy(mCursorCol + columnsToDelete, 0, columnsToMove, mRows, mCursorCol, 0);
+                } else {
+                    unknownSequence(b);
+                }
+                break;
+            case ESC_PERCENT:
+                break;
+            case ESC_APC:
+                doApc(b);
+                break;
+            case ESC_APC_ESC:
+                doApcEsc(b);
+                break;
+            case ESC_OSC:
+                doOsc(b);
+                break;
+            case ESC_OSC_ESC:
+                doOscEsc(b);
+                break;
+            case ESC_P:
+                doDeviceControl(b);
+                break;
+            case ESC_CSI_QUESTIONMARK_ARG_DOLLAR:
+                if (b == 'p') {
+                    // Request DEC private mode (DECRQM).
+                    int mode = getArg0(0);
+                    int value;
+                    if (mode == 47 || mode == 1047 || mode == 1049) {
+                        // This state is carried by mScreen pointer.
+                        value = (mScreen == mAltBuffer) ? 1 : 2;
+                    } else {
+                        int internalBit = mapDecSetBitToInternalBit(mode);
+                        if (internalBit != -1) {
+                            value = isDecsetInternalBitSet(internalBit) ? 1 : 2; // 1=set, 2=reset.
                         } else {
-                            unknownSequence(b);
+                            Log.e(EmulatorDebug.LOG_TAG, "got DECRQM for unrecognized private DEC mode=" + mode);
+                            value = 0; // 0=not recognized, 3=permanently set, 4=permanently reset
                         }
-                        break;
-                    case ESC_CSI_ARGS_SPACE:
-                        int arg = getArg0(0);
-                        switch (b) {
-                            case 'q': // "${CSI}${STYLE} q" - set cursor style (http://www.vt100.net/docs/vt510-rm/DECSCUSR).
-                                switch (arg) {
-                                    case 0: // Blinking block.
-                                    case 1: // Blinking block.
-                                    case 2: // Steady block.
-                                        mCursorStyle = CURSOR_STYLE_BLOCK;
-                                        break;
-                                    case 3: // Blinking underline.
-                                    case 4: // Steady underline.
-                                        mCursorStyle = CURSOR_STYLE_UNDERLINE;
-                                        break;
-                                    case 5: // Blinking bar (xterm addition).
-                                    case 6: // Steady bar (xterm addition).
-                                        mCursorStyle = CURSOR_STYLE_BAR;
-                                        break;
-                                }
+                    }
+                    mSession.write(String.format(Locale.US, "\033[?%d;%d$y", mode, value));
+                } else {
+                    unknownSequence(b);
+                }
+                break;
+            case ESC_CSI_ARGS_SPACE:
+                int arg = getArg0(0);
+                switch (b) {
+                    case 'q': // "${CSI}${STYLE} q" - set cursor style (http://www.vt100.net/docs/vt510-rm/DECSCUSR).
+                        switch (arg) {
+                            case 0: // Blinking block.
+                            case 1: // Blinking block.
+                            case 2: // Steady block.
+                                mCursorStyle = CURSOR_STYLE_BLOCK;
                                 break;
-                            case 't':
-                            case 'u':
-                                // Set margin-bell volume - ignore.
+                            case 3: // Blinking underline.
+                            case 4: // Steady underline.
+                                mCursorStyle = CURSOR_STYLE_UNDERLINE;
+                                break;
+                            case 5: // Blinking bar (xterm addition).
+                            case 6: // Steady bar (xterm addition).
+                                mCursorStyle = CURSOR_STYLE_BAR;
                                 break;
-                            default:
-                                unknownSequence(b);
                         }
                         break;
-                    case ESC_CSI_ARGS_ASTERIX:
-                        int attributeChangeExtent = getArg0(0);
-                        if (b == 'x' && (attributeChangeExtent >= 0 && attributeChangeExtent <= 2)) {
-                            // Select attribute change extent (DECSACE - http://www.vt100.net/docs/vt510-rm/DECSACE).
-                            setDecsetinternalBit(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE, attributeChangeExtent == 2);
-                        } else {
-                            unknownSequence(b);
-                        }
+                    case 't':
+                    case 'u':
+                        // Set margin-bell volume - ignore.
                         break;
                     default:
                         unknownSequence(b);
-                        break;
                 }
-                if (!mContinueSequence) mEscapeState = ESC_NONE;
+                break;
+            case ESC_CSI_ARGS_ASTERIX:
+                int attributeChangeExtent = getArg0(0);
+                if (b == 'x' && (attributeChangeExtent >= 0 && attributeChangeExtent <= 2)) {
+                    // Select attribute change extent (DECSACE - http://www.vt100.net/docs/vt510-rm/DECSACE).
+                    setDecsetinternalBit(DECSET_BIT_RECTANGULAR_CHANGEATTRIBUTE, attributeChangeExtent == 2);
+                } else {
+                    unknownSequence(b);
+                }
+                break;
+            default:
+                unknownSequence(b);
                 break;
         }
     }
 
     /** When in {@link #ESC_P} ("device control") sequence. */
     private void doDeviceControl(int b) {
-        boolean firstSixel = false;
-        if (!ESC_P_sixel && (b == '$' || b == '-' || b == '#')) {
-            //Check if sixel sequence that needs breaking
-            String dcs = mOSCOrDeviceControlArgs.toString();
-            if (dcs.matches("[0-9;]*q.*")) {
-                firstSixel = true;
-            }
+        if (ESC_P_sixel) {
+            doSixel(b);
+            return;
         }
-        if (firstSixel || (ESC_P_escape && b == '\\') || (ESC_P_sixel && (b == '$' || b == '-' || b == '#')))
+        if (b == 'q' && !ESC_P_escape && isSixelIntroducer()) {
+            // DCS P1 ; P2 ; P3 q s..s ST. Sixel graphics, decoded as the data arrives.
+            ESC_P_sixel = true;
+            if (mSixelDecoder == null) mSixelDecoder = new SixelDecoder();
+            mSixelDecoder.start();
+            continueSequence(mEscapeState);
+            return;
+        }
+        if (ESC_P_escape && b == '\\')
         // ESC \ terminates OSC
-        // Sixel sequences may be very long. '$' and '!' are natural for breaking the sequence.
         {
             String dcs = mOSCOrDeviceControlArgs.toString();
             // DCS $ q P t ST. Request Status String (DECRQSS)
@@ -973,95 +1353,6 @@ public final class TerminalEmulator {
                         Log.e(EmulatorDebug.LOG_TAG, "invalid device termcap/terminfo name of odd length: " + part);
                     }
                 }
-            } else if (ESC_P_sixel || dcs.matches("[0-9;]*q.*")) {
-                int pos = 0;
-                if (!ESC_P_sixel) {
-                    ESC_P_sixel = true;
-                    mScreen.sixelStart(100, 100);
-                    while (dcs.codePointAt(pos) != 'q') {
-                        pos++;
-                    }
-                    pos++;
-                }
-                if (b == '$' || b == '-') {
-                    // Add to string
-                    dcs = dcs + (char) b;
-                }
-                int rep = 1;
-                while (pos < dcs.length()) {
-                    if (dcs.codePointAt(pos) == '"') {
-                        pos++;
-                        int args[] = {0, 0, 0, 0};
-                        int arg = 0;
-                        while (pos < dcs.length() && ((dcs.codePointAt(pos) >= '0' && dcs.codePointAt(pos) <= '9') || dcs.codePointAt(pos) == ';')) {
-                            if (dcs.codePointAt(pos) >= '0' && dcs.codePointAt(pos) <= '9') {
-                                args[arg] = args[arg] * 10 + dcs.codePointAt(pos) - '0';
-                            } else {
-                                arg++;
-                                if (arg > 3) {
-                                    break;
-                                }
-                            }
-                            pos++;
-                        }
-                        if (pos == dcs.length()) {
-                            break;
-                        }
-                    } else if (dcs.codePointAt(pos) == '#') {
-                        int col = 0;
-                        pos++;
-                        while (pos < dcs.length() && dcs.codePointAt(pos) >= '0' && dcs.codePointAt(pos) <= '9') {
-                            col = col * 10 + dcs.codePointAt(pos++) - '0';
-                        }
-                        if (pos == dcs.length() || dcs.codePointAt(pos) != ';') {
-                            mScreen.sixelSetColor(col);
-                        } else {
-                            pos++;
-                            int args[] = {0, 0, 0, 0};
-                            int arg = 0;
-                            while (pos < dcs.length() && ((dcs.codePointAt(pos) >= '0' && dcs.codePointAt(pos) <= '9') || dcs.codePointAt(pos) == ';')) {
-                                if (dcs.codePointAt(pos) >= '0' && dcs.codePointAt(pos) <= '9') {
-                                    args[arg] = args[arg] * 10 + dcs.codePointAt(pos) - '0';
-                                } else {
-                                    arg++;
-                                    if (arg > 3) {
-                                        break;
-                                    }
-                                }
-                                pos++;
-                            }
-                            if (args[0] == 2) {
-                                mScreen.sixelSetColor(col, args[1], args[2], args[3]);
-                            }
-                        }
-                    } else if (dcs.codePointAt(pos) == '!') {
-                        rep = 0;
-                        pos++;
-                        while (pos < dcs.length() && dcs.codePointAt(pos) >= '0' && dcs.codePointAt(pos) <= '9') {
-                            rep = rep * 10 + dcs.codePointAt(pos++) - '0';
-                        }
-                    } else if (dcs.codePointAt(pos) == '$' || dcs.codePointAt(pos) == '-' || (dcs.codePointAt(pos) >= '?' && dcs.codePointAt(pos) <= '~')) {
-                        mScreen.sixelChar(dcs.codePointAt(pos++), rep);
-                        rep = 1;
-                    } else {
-                        pos++;
-                    }
-                }
-                if (b == '\\') {
-                    ESC_P_sixel = false;
-                    int n = mScreen.sixelEnd(mCursorRow, mCursorCol, cellW, cellH);
-                    for (; n > 0; n--) {
-                        doLinefeed();
-                    }
-                } else {
-                    mOSCOrDeviceControlArgs.setLength(0);
-                    if (b == '#') {
-                        mOSCOrDeviceControlArgs.appendCodePoint(b);
-                    }
-                    // Do not finish sequence
-                    continueSequence(mEscapeState);
-                    return;
-                }
             } else {
                 if (LOG_ESCAPE_SEQUENCES)
                     Log.e(EmulatorDebug.LOG_TAG, "unrecognized device control string: " + dcs);
@@ -1080,6 +1371,32 @@ public final class TerminalEmulator {
         }
     }
 
+    /** Whether the device control string so far, ended by a 'q', introduces sixel graphics. */
+    private boolean isSixelIntroducer() {
+        for (int i = 0; i < mOSCOrDeviceControlArgs.length(); i++) {
+            char c = mOSCOrDeviceControlArgs.charAt(i);
+            if (!((c >= '0' && c <= '9') || c == ';')) return false;
+        }
+        return true;
+    }
+
+    /** When in the data of a sixel device control string. */
+    private void doSixel(int b) {
+        if (ESC_P_escape && b == '\\') {
+            ESC_P_sixel = false;
+            SixelDecoder decoder = mSixelDecoder;
+            decoder.finish();
+            int n = mScreen.sixelEnd(decoder.getPixels(), decoder.getStride(), decoder.getWidth(), decoder.getHeight(),
+                mCursorRow, mCursorCol, cellW, cellH, getStyle());
+            if (n > 0) doLinefeeds(n);
+            finishSequence();
+        } else {
+            ESC_P_escape = false;
+            mSixelDecoder.consume(b);
+            continueSequence(mEscapeState);
+        }
+    }
+
     private int nextTabStop(int numTabs) {
         for (int i = mCursorCol + 1; i < mColumns; i++)
             if (mTabStop[i] && --numTabs == 0) return Math.min(i, mRightMargin);
@@ -1262,6 +1579,9 @@ public final class TerminalEmulator {
             case 2004:
                 // Bracketed paste mode - setting bit is enough.
                 break;
+            case 2026:
+                // Synchronized output, used by programs around each frame they draw - setting bit is enough.
+                break;
             default:
                 unknownParameter(externalBit);
                 break;
@@ -1352,19 +1672,25 @@ public final class TerminalEmulator {
         mEscapeState = ESC;
         mArgIndex = 0;
         Arrays.fill(mArgs, -1);
+        Arrays.fill(mSubArgCount, 0);
     }
 
     private void doLinefeed() {
+        doLinefeeds(1);
+    }
+
+    /** Move the cursor down the specified number of lines, scrolling once for all lines past the bottom margin. */
+    private void doLinefeeds(int count) {
         boolean belowScrollingRegion = mCursorRow >= mBottomMargin;
-        int newCursorRow = mCursorRow + 1;
+        int newCursorRow = mCursorRow + count;
         if (belowScrollingRegion) {
             // Move down (but not scroll) as long as we are above the last row.
             if (mCursorRow != mRows - 1) {
-                setCursorRow(newCursorRow);
+                setCursorRow(Math.min(newCursorRow, mRows - 1));
             }
         } else {
-            if (newCursorRow == mBottomMargin) {
-                scrollDownOneLine();
+            if (newCursorRow >= mBottomMargin) {
+                scrollDown(newCursorRow - mBottomMargin + 1);
                 newCursorRow = mBottomMargin - 1;
             }
             setCursorRow(newCursorRow);
@@ -1455,12 +1781,13 @@ public final class TerminalEmulator {
             case 'P': // Device control string
                 mOSCOrDeviceControlArgs.setLength(0);
                 ESC_P_escape = false;
+                ESC_P_sixel = false;
                 continueSequence(ESC_P);
                 break;
             case '[':
                 continueSequence(ESC_CSI);
                 mIsCSIStart = true;
-                mLastCSIArg = null;
+                mLastCSIArg = -1;
                 break;
             case '=': // DECKPAM
                 setDecsetinternalBit(DECSET_BIT_APPLICATION_KEYPAD, true);
@@ -1476,6 +1803,7 @@ public final class TerminalEmulator {
             case '_': // APC
                 mOSCOrDeviceControlArgs.setLength(0);
                 continueSequence(ESC_APC);
+                ESC_APC_payload = false;
                 break;
             default:
                 unknownSequence(b);
@@ -1644,9 +1972,7 @@ public final class TerminalEmulator {
             }
             break;
             case 'S': { // "${CSI}${N}S" - scroll up ${N} lines (default = 1) (SU).
-                final int linesToScroll = getArg0(1);
-                for (int i = 0; i < linesToScroll; i++)
-                    scrollDownOneLine();
+                scrollDown(getArg0(1));
                 break;
             }
             case 'T':
@@ -1692,8 +2018,7 @@ public final class TerminalEmulator {
                 break;
             case 'b': // Repeat the preceding graphic character Ps times (REP).
                 if (mLastEmittedCodePoint == -1) break;
-                final int numRepeat = getArg0(1);
-                for (int i = 0; i < numRepeat; i++) emitCodePoint(mLastEmittedCodePoint);
+                emitRepeatedCodePoint(mLastEmittedCodePoint, getArg0(1));
                 break;
             case 'c': // Primary Device Attributes (http://www.vt100.net/docs/vt510-rm/DA1) if argument is missing or zero.
                 // The important part that may still be used by some (tmux stores this value but does not currently use it)
@@ -1857,7 +2182,13 @@ public final class TerminalEmulator {
             } else if (code == 3) {
                 mEffect |= TextStyle.CHARACTER_ATTRIBUTE_ITALIC;
             } else if (code == 4) {
-                mEffect |= TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+                // "4:0" turns underlining off, while "4:1" to "4:5" select an underline style (single, double, curly,
+                // dotted or dashed), all of which are rendered as a single underline:
+                if (getSubArg(i, 0, 1) == 0) {
+                    mEffect &= ~TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+                } else {
+                    mEffect |= TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE;
+                }
             } else if (code == 5) {
                 mEffect |= TextStyle.CHARACTER_ATTRIBUTE_BLINK;
             } else if (code == 7) {
@@ -1886,6 +2217,36 @@ public final class TerminalEmulator {
                 mEffect &= ~TextStyle.CHARACTER_ATTRIBUTE_STRIKETHROUGH;
             } else if (code >= 30 && code <= 37) {
                 mForeColor = code - 30;
+            } else if ((code == 38 || code == 48 || code == 58) && mSubArgCount[i] > 0) {
+                // Extended color with colon separated sub-parameters: "38:2:${ID}:$R:$G:$B" (ITU T.416, with an
+                // optional color space id) or "38:2:$R:$G:$B" for a 24-bit color, and "38:5:$INDEX" for an indexed color.
+                // The underline color (58) is accepted but not rendered.
+                int color = -1;
+                switch (getSubArg(i, 0, -1)) {
+                    case 2:
+                        int rgbStart = (mSubArgCount[i] >= 5) ? 2 : 1;
+                        int red = getSubArg(i, rgbStart, 0), green = getSubArg(i, rgbStart + 1, 0), blue = getSubArg(i, rgbStart + 2, 0);
+                        if (red > 255 || green > 255 || blue > 255) {
+                            finishSequenceAndLogError("Invalid RGB: " + red + "," + green + "," + blue);
+                        } else {
+                            color = 0xff000000 | (red << 16) | (green << 8) | blue;
+                        }
+                        break;
+                    case 5:
+                        int index = getSubArg(i, 1, -1);
+                        if (index >= 0 && index < TextStyle.NUM_INDEXED_COLORS) color = index;
+                        break;
+                    default:
+                        if (LOG_ESCAPE_SEQUENCES) Log.w(EmulatorDebug.LOG_TAG, "invalid SGR color sub-parameters for " + code);
+                        break;
+                }
+                if (color != -1) {
+                    if (code == 38) {
+                        mForeColor = color;
+                    } else if (code == 48) {
+                        mBackColor = color;
+                    }
+                }
             } else if (code == 38 || code == 48) {
                 // Extended set foreground(38)/background (48) color.
                 // This is followed by either "2;$R;$G;$B" to set a 24-bit color or
@@ -1949,20 +2310,41 @@ public final class TerminalEmulator {
                 continueSequence(ESC_APC_ESC);
                 break;
             default:
+                collectApcData(b);
+                continueSequence(ESC_APC);
+        }
+    }
+
+    /**
+     * Collect the control data of a kitty graphics command, APC G, or decode its payload directly after the ';'. Other
+     * APC strings are ignored.
+     */
+    private void collectApcData(int b) {
+        if (ESC_APC_payload) {
+            mKittyGraphics.consume(b);
+        } else if (mOSCOrDeviceControlArgs.length() == 0 || mOSCOrDeviceControlArgs.charAt(0) == 'G') {
+            if (b == ';' && mOSCOrDeviceControlArgs.length() > 0) {
+                ESC_APC_payload = true;
+                mKittyGraphics.start(mOSCOrDeviceControlArgs.substring(1));
+            } else {
                 collectOSCArgs(b);
-                continueSequence(ESC_OSC);
+            }
         }
     }
 
     private void doApcEsc(int b) {
         switch (b) {
             case '\\':
+                if (mOSCOrDeviceControlArgs.length() > 0 && mOSCOrDeviceControlArgs.charAt(0) == 'G') {
+                    if (!ESC_APC_payload) mKittyGraphics.start(mOSCOrDeviceControlArgs.substring(1));
+                    doKittyGraphics();
+                }
                 break;
             default:
                 // The ESC character was not followed by a \, so insert the ESC and
                 // the current character in arg buffer.
-                collectOSCArgs(27);
-                collectOSCArgs(b);
+                collectApcData(27);
+                collectApcData(b);
                 continueSequence(ESC_APC);
                 break;
         }
@@ -1977,27 +2359,44 @@ public final class TerminalEmulator {
                 continueSequence(ESC_OSC_ESC);
                 break;
             default:
-                collectOSCArgs(b);
-                if (ESC_OSC_colon == -1 && b == ':') {
-                    // Collect base64 data for OSC 1337
-                    ESC_OSC_colon = mOSCOrDeviceControlArgs.length();
-                    ESC_OSC_data = new ArrayList<Byte>(65536);
-                } else if (ESC_OSC_colon >= 0 && mOSCOrDeviceControlArgs.length() - ESC_OSC_colon == 4) {
-                    try {
-                        byte[] decoded = Base64.decode(mOSCOrDeviceControlArgs.substring(ESC_OSC_colon), 0);
-                        for (int i = 0 ; i < decoded.length; i++) {
-                            ESC_OSC_data.add(decoded[i]);
-                        }
-                    } catch(Exception e) {
-                        // Ignore non-Base64 data.
-                    }
-                    mOSCOrDeviceControlArgs.setLength(ESC_OSC_colon);
-
-                }
+                collectOSCData(b);
                 break;
         }
     }
 
+    /** Collect an OSC argument character, or decode it directly if it is part of the file data of OSC 1337. */
+    private void collectOSCData(int b) {
+        if (ESC_OSC_colon >= 0) {
+            ESC_OSC_data.consume(b);
+            continueSequence(mEscapeState);
+            return;
+        }
+        collectOSCArgs(b);
+        if (b == ':' && mOSCOrDeviceControlArgs.indexOf("1337;File=") == 0) {
+            // OSC 1337 ; File = [arguments] : base64 data ST
+            ESC_OSC_colon = mOSCOrDeviceControlArgs.length();
+            if (ESC_OSC_data == null) ESC_OSC_data = new Base64Decoder();
+            ESC_OSC_data.start(getOSCFileSize());
+        }
+    }
+
+    /** The size argument of an OSC 1337 file transfer, or 0 if not given. */
+    private int getOSCFileSize() {
+        String args = mOSCOrDeviceControlArgs.toString();
+        int start = args.indexOf("size=");
+        while (start > 0 && args.charAt(start - 1) != '=' && args.charAt(start - 1) != ';') {
+            start = args.indexOf("size=", start + 1);
+        }
+        if (start < 0) return 0;
+        int size = 0;
+        for (int i = start + 5; i < args.length(); i++) {
+            char c = args.charAt(i);
+            if (c < '0' || c > '9') break;
+            size = Math.min(Base64Decoder.MAX_LENGTH, size * 10 + (c - '0'));
+        }
+        return size;
+    }
+
     private void doOscEsc(int b) {
         switch (b) {
             case '\\':
@@ -2006,8 +2405,8 @@ public final class TerminalEmulator {
             default:
                 // The ESC character was not followed by a \, so insert the ESC and
                 // the current character in arg buffer.
-                collectOSCArgs(27);
-                collectOSCArgs(b);
+                collectOSCData(27);
+                collectOSCData(b);
                 continueSequence(ESC_OSC);
                 break;
         }
@@ -2205,29 +2604,13 @@ public final class TerminalEmulator {
                         }
                     }
                     if (!inline) {
+                        if (ESC_OSC_colon >= 0) ESC_OSC_data.reset();
                         finishSequence();
                         return;
                     }
-                    if (ESC_OSC_colon >= 0 && mOSCOrDeviceControlArgs.length() > ESC_OSC_colon) {
-                        while (mOSCOrDeviceControlArgs.length() - ESC_OSC_colon < 4) {
-                            mOSCOrDeviceControlArgs.append('=');
-                        }
-                        try {
-                            byte[] decoded = Base64.decode(mOSCOrDeviceControlArgs.substring(ESC_OSC_colon), 0);
-                            for (int i = 0 ; i < decoded.length; i++) {
-                                ESC_OSC_data.add(decoded[i]);
-                            }
-                        } catch(Exception e) {
-                            // Ignore non-Base64 data.
-                        }
-                        mOSCOrDeviceControlArgs.setLength(ESC_OSC_colon);
-                    }
                     if (ESC_OSC_colon >= 0) {
-                        byte[] result = new byte[ESC_OSC_data.size()];
-                        for(int i = 0; i < ESC_OSC_data.size(); i++) {
-                            result[i] = ESC_OSC_data.get(i).byteValue();
-                        }
-                        int[] res = mScreen.addImage(result, mCursorRow, mCursorCol, cellW, cellH, width, height, aspect);
+                        ESC_OSC_data.finish();
+                        int[] res = addInlineImage(ESC_OSC_data.getBuffer(), ESC_OSC_data.getLength(), width, height, aspect);
                         int col = res[1] + mCursorCol;
                         if (col < mColumns -1) {
                             res[0] -= 1;
@@ -2238,7 +2621,7 @@ public final class TerminalEmulator {
                             doLinefeed();
                         }
                         mCursorCol = col;
-                        ESC_OSC_data.clear();
+                        ESC_OSC_data.reset();
                     } else {
                     }
                 } else if (textParameter.startsWith("ReportCellSize")) {
@@ -2301,14 +2684,22 @@ public final class TerminalEmulator {
     }
 
     private void scrollDownOneLine() {
-        mScrollCounter++;
+        scrollDown(1);
+    }
+
+    /** Scroll the scrolling region down the specified number of lines at once. */
+    private void scrollDown(int lines) {
+        mScrollCounter += lines;
         if (mLeftMargin != 0 || mRightMargin != mColumns) {
-            // Horizontal margin: Do not put anything into scroll history, just non-margin part of screen up.
-            mScreen.blockCopy(mLeftMargin, mTopMargin + 1, mRightMargin - mLeftMargin, mBottomMargin - mTopMargin - 1, mLeftMargin, mTopMargin);
-            // .. and blank bottom row between margins:
-            mScreen.blockSet(mLeftMargin, mBottomMargin - 1, mRightMargin - mLeftMargin, 1, ' ', mEffect);
+            // Scrolling more lines than the height of the region only blanks it again:
+            for (int i = Math.min(lines, mBottomMargin - mTopMargin); i > 0; i--) {
+                // Horizontal margin: Do not put anything into scroll history, just non-margin part of screen up.
+                mScreen.blockCopy(mLeftMargin, mTopMargin + 1, mRightMargin - mLeftMargin, mBottomMargin - mTopMargin - 1, mLeftMargin, mTopMargin);
+                // .. and blank bottom row between margins:
+                mScreen.blockSet(mLeftMargin, mBottomMargin - 1, mRightMargin - mLeftMargin, 1, ' ', mEffect);
+            }
         } else {
-            mScreen.scrollDownOneLine(mTopMargin, mBottomMargin, getStyle());
+            mScreen.scrollDown(mTopMargin, mBottomMargin, lines, getStyle());
         }
     }
 
@@ -2323,50 +2714,59 @@ public final class TerminalEmulator {
      * or omitted parameter indicates a default value for the sequence. For most
      * sequences, the default value is 1.
      *
+     * A parameter may be followed by sub-parameters separated by the : character, as in "38:2::R:G:B" (ITU T.416),
+     * which are stored in {@link #mSubArgs}.
+     *
      * https://vt100.net/docs/vt510-rm/chapter4.html#S4.3.3
      * */
-    private void parseArg(int inputByte) {
-        int[] bytes = new int[]{inputByte};
-        // Only doing this for ESC_CSI and not for other ESC_CSI_* since they seem to be using their
-        // own defaults with getArg*() calls, but there may be missed cases
-        if (mEscapeState == ESC_CSI) {
-            if ((mIsCSIStart && inputByte == ';') || // If sequence starts with a ; character, like \033[;m
-                    (!mIsCSIStart && mLastCSIArg != null && mLastCSIArg == ';'  && inputByte == ';')) {  // If sequence contains sequential ; characters, like \033[;;m
-                bytes = new int[]{'0', ';'}; // Assume 0 was passed
+    private void parseArg(int b) {
+        final boolean argInRange = mArgIndex < mArgs.length;
+        if (b >= '0' && b <= '9') {
+            if (argInRange) {
+                final int subArgCount = mSubArgCount[mArgIndex];
+                if (subArgCount == 0) {
+                    mArgs[mArgIndex] = appendDigit(mArgs[mArgIndex], b);
+                } else {
+                    final int subArgIndex = mArgIndex * MAX_ESCAPE_SUB_PARAMETERS + subArgCount - 1;
+                    mSubArgs[subArgIndex] = appendDigit(mSubArgs[subArgIndex], b);
+                }
             }
+            continueSequence(mEscapeState);
+        } else if (b == ';') {
+            // Only doing this for ESC_CSI and not for other ESC_CSI_* since they seem to be using their
+            // own defaults with getArg*() calls, but there may be missed cases.
+            // If sequence starts with a ; character, like \033[;m, or contains sequential ; characters, like
+            // \033[;;m, assume 0 was passed:
+            if (mEscapeState == ESC_CSI && (mIsCSIStart || mLastCSIArg == ';') && argInRange) mArgs[mArgIndex] = 0;
+            if (argInRange) mArgIndex++;
+            continueSequence(mEscapeState);
+        } else if (b == ':') {
+            if (argInRange) {
+                final int subArgCount = mSubArgCount[mArgIndex];
+                if (subArgCount < MAX_ESCAPE_SUB_PARAMETERS) {
+                    mSubArgs[mArgIndex * MAX_ESCAPE_SUB_PARAMETERS + subArgCount] = -1;
+                    mSubArgCount[mArgIndex] = subArgCount + 1;
+                }
+            }
+            continueSequence(mEscapeState);
+        } else {
+            unknownSequence(b);
         }
-
         mIsCSIStart = false;
+        mLastCSIArg = b;
+    }
 
-        for (int b : bytes) {
-            if (b >= '0' && b <= '9') {
-                if (mArgIndex < mArgs.length) {
-                    int oldValue = mArgs[mArgIndex];
-                    int thisDigit = b - '0';
-                    int value;
-                    if (oldValue >= 0) {
-                        value = oldValue * 10 + thisDigit;
-                    } else {
-                        value = thisDigit;
-                    }
-
-                    if (value > 9999) {
-                        value = 9999;
-                    }
+    /** Append a decimal digit to a parameter value which is -1 if not yet given, clamping it to 9999. */
+    private static int appendDigit(int oldValue, int digit) {
+        int value = (oldValue >= 0) ? oldValue * 10 + (digit - '0') : (digit - '0');
+        return (value > 9999) ? 9999 : value;
+    }
 
-                    mArgs[mArgIndex] = value;
-                }
-                continueSequence(mEscapeState);
-            } else if (b == ';') {
-                if (mArgIndex < mArgs.length) {
-                    mArgIndex++;
-                }
-                continueSequence(mEscapeState);
-            } else {
-                unknownSequence(b);
-            }
-            mLastCSIArg = b;
-        }
+    /** Get sub-parameter subIndex of argument argIndex, or defaultValue if not given. */
+    private int getSubArg(int argIndex, int subIndex, int defaultValue) {
+        if (subIndex >= mSubArgCount[argIndex]) return defaultValue;
+        int result = mSubArgs[argIndex * MAX_ESCAPE_SUB_PARAMETERS + subIndex];
+        return (result < 0) ? defaultValue : result;
     }
 
     private int getArg0(int defaultValue) {
@@ -2443,6 +2843,112 @@ public final class TerminalEmulator {
         mEscapeState = ESC_NONE;
     }
 
+    /** Map a character to the DEC Special Graphics character set, see http://www.vt100.net/docs/vt102-ug/table5-15.html. */
+    private static int mapLineDrawing(int codePoint) {
+        switch (codePoint) {
+            case '_':
+                codePoint = ' '; // Blank.
+                break;
+            case '`':
+                codePoint = '◆'; // Diamond.
+                break;
+            case '0':
+                codePoint = '█'; // Solid block;
+                break;
+            case 'a':
+                codePoint = '▒'; // Checker board.
+                break;
+            case 'b':
+                codePoint = '␉'; // Horizontal tab.
+                break;
+            case 'c':
+                codePoint = '␌'; // Form feed.
+                break;
+            case 'd':
+                codePoint = '\r'; // Carriage return.
+                break;
+            case 'e':
+                codePoint = '␊'; // Linefeed.
+                break;
+            case 'f':
+                codePoint = '°'; // Degree.
+                break;
+            case 'g':
+                codePoint = '±'; // Plus-minus.
+                break;
+            case 'h':
+                codePoint = '\n'; // Newline.
+                break;
+            case 'i':
+                codePoint = '␋'; // Vertical tab.
+                break;
+            case 'j':
+                codePoint = '┘'; // Lower right corner.
+                break;
+            case 'k':
+                codePoint = '┐'; // Upper right corner.
+                break;
+            case 'l':
+                codePoint = '┌'; // Upper left corner.
+                break;
+            case 'm':
+                codePoint = '└'; // Left left corner.
+                break;
+            case 'n':
+                codePoint = '┼'; // Crossing lines.
+                break;
+            case 'o':
+                codePoint = '⎺'; // Horizontal line - scan 1.
+                break;
+            case 'p':
+                codePoint = '⎻'; // Horizontal line - scan 3.
+                break;
+            case 'q':
+                codePoint = '─'; // Horizontal line - scan 5.
+                break;
+            case 'r':
+                codePoint = '⎼'; // Horizontal line - scan 7.
+                break;
+            case 's':
+                codePoint = '⎽'; // Horizontal line - scan 9.
+                break;
+            case 't':
+                codePoint = '├'; // T facing rightwards.
+                break;
+            case 'u':
+                codePoint = '┤'; // T facing leftwards.
+                break;
+            case 'v':
+                codePoint = '┴'; // T facing upwards.
+                break;
+            case 'w':
+                codePoint = '┬'; // T facing downwards.
+                break;
+            case 'x':
+                codePoint = '│'; // Vertical line.
+                break;
+            case 'y':
+                codePoint = '≤'; // Less than or equal to.
+                break;
+            case 'z':
+                codePoint = '≥'; // Greater than or equal to.
+                break;
+            case '{':
+                codePoint = 'π'; // Pi.
+                break;
+            case '|':
+                codePoint = '≠'; // Not equal to.
+                break;
+            case '}':
+                codePoint = '£'; // UK pound.
+                break;
+            case '~':
+                codePoint = '·'; // Centered dot.
+                break;
+        }
+        return codePoint;
+    }
+
     /**
      * Send a Unicode code point to the screen.
      *
@@ -2450,110 +2956,7 @@ public final class TerminalEmulator {
      */
     private void emitCodePoint(int codePoint) {
         mLastEmittedCodePoint = codePoint;
-        if (mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1) {
-            // http://www.vt100.net/docs/vt102-ug/table5-15.html.
-            switch (codePoint) {
-                case '_':
-                    codePoint = ' '; // Blank.
-                    break;
-                case '`':
-                    codePoint = '◆'; // Diamond.
-                    break;
-                case '0':
-                    codePoint = '█'; // Solid block;
-                    break;
-                case 'a':
-                    codePoint = '▒'; // Checker board.
-                    break;
-                case 'b':
-                    codePoint = '␉'; // Horizontal tab.
-                    break;
-                case 'c':
-                    codePoint = '␌'; // Form feed.
-                    break;
-                case 'd':
-                    codePoint = '\r'; // Carriage return.
-                    break;
-                case 'e':
-                    codePoint = '␊'; // Linefeed.
-                    break;
-                case 'f':
-                    codePoint = '°'; // Degree.
-                    break;
-                case 'g':
-                    codePoint = '±'; // Plus-minus.
-                    break;
-                case 'h':
-                    codePoint = '\n'; // Newline.
-                    break;
-                case 'i':
-                    codePoint = '␋'; // Vertical tab.
-                    break;
-                case 'j':
-                    codePoint = '┘'; // Lower right corner.
-                    break;
-                case 'k':
-                    codePoint = '┐'; // Upper right corner.
-                    break;
-                case 'l':
-                    codePoint = '┌'; // Upper left corner.
-                    break;
-                case 'm':
-                    codePoint = '└'; // Left left corner.
-                    break;
-                case 'n':
-                    codePoint = '┼'; // Crossing lines.
-                    break;
-                case 'o':
-                    codePoint = '⎺'; // Horizontal line - scan 1.
-                    break;
-                case 'p':
-                    codePoint = '⎻'; // Horizontal line - scan 3.
-                    break;
-                case 'q':
-                    codePoint = '─'; // Horizontal line - scan 5.
-                    break;
-                case 'r':
-                    codePoint = '⎼'; // Horizontal line - scan 7.
-                    break;
-                case 's':
-                    codePoint = '⎽'; // Horizontal line - scan 9.
-                    break;
-                case 't':
-                    codePoint = '├'; // T facing rightwards.
-                    break;
-                case 'u':
-                    codePoint = '┤'; // T facing leftwards.
-                    break;
-                case 'v':
-                    codePoint = '┴'; // T facing upwards.
-                    break;
-                case 'w':
-                    codePoint = '┬'; // T facing downwards.
-                    break;
-                case 'x':
-                    codePoint = '│'; // Vertical line.
-                    break;
-                case 'y':
-                    codePoint = '≤'; // Less than or equal to.
-                    break;
-                case 'z':
-                    codePoint = '≥'; // Greater than or equal to.
-                    break;
-                case '{':
-                    codePoint = 'π'; // Pi.
-                    break;
-                case '|':
-                    codePoint = '≠'; // Not equal to.
-                    break;
-                case '}':
-                    codePoint = '£'; // UK pound.
-                    break;
-                case '~':
-                    codePoint = '·'; // Centered dot.
-                    break;
-            }
-        }
+        if (mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1) codePoint = mapLineDrawing(codePoint);
 
         final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
         final int displayWidth = WcWidth.width(codePoint);
@@ -2591,6 +2994,50 @@ public final class TerminalEmulator {
         mCursorCol = Math.min(mCursorCol + displayWidth, mRightMargin - 1);
     }
 
+    /**
+     * Send a Unicode code point to the screen count times. Produces the same result as calling
+     * {@link #emitCodePoint(int)} count times, but single width characters are written a row segment at a time.
+     */
+    private void emitRepeatedCodePoint(int codePoint, int count) {
+        final int mappedCodePoint = (mUseLineDrawingUsesG0 ? mUseLineDrawingG0 : mUseLineDrawingG1) ? mapLineDrawing(codePoint) : codePoint;
+        if (mInsertMode || mCursorCol >= mRightMargin || mappedCodePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT
+            || WcWidth.width(mappedCodePoint) != 1) {
+            for (int i = 0; i < count; i++) emitCodePoint(codePoint);
+            return;
+        }
+
+        mLastEmittedCodePoint = codePoint;
+        final boolean autoWrap = isDecsetInternalBitSet(DECSET_BIT_AUTOWRAP);
+        final long style = getStyle();
+        int remaining = count;
+        while (remaining > 0) {
+            if (autoWrap && mAboutToAutoWrap && mCursorCol == mRightMargin - 1) {
+                mScreen.setLineWrap(mCursorRow);
+                mCursorCol = mLeftMargin;
+                if (mCursorRow + 1 < mBottomMargin) {
+                    mCursorRow++;
+                } else {
+                    scrollDownOneLine();
+                }
+            }
+
+            final int cellsLeft = mRightMargin - mCursorCol;
+            if (!autoWrap && remaining > cellsLeft) {
+                // Characters past the right margin overwrite the last column with the same character.
+                mScreen.fillRange(mCursorCol, mRightMargin, mCursorRow, mappedCodePoint, style);
+                mCursorCol = mRightMargin - 1;
+                return;
+            }
+
+            final int fillCount = Math.min(remaining, cellsLeft);
+            mScreen.fillRange(mCursorCol, mCursorCol + fillCount, mCursorRow, mappedCodePoint, style);
+            final int lastWrittenColumn = mCursorCol + fillCount - 1;
+            if (autoWrap) mAboutToAutoWrap = (lastWrittenColumn == mRightMargin - 1);
+            mCursorCol = Math.min(lastWrittenColumn + 1, mRightMargin - 1);
+            remaining -= fillCount;
+        }
+    }
+
     private void setCursorRow(int row) {
         mCursorRow = row;
         mAboutToAutoWrap = false;
@@ -2629,6 +3076,246 @@ public final class TerminalEmulator {
         mAutoScrollDisabled = disable;
     }
 
+    /**
+     * Keep the lines scrolling out of the transcript of the main screen in a scrollback, into which the lines of the
+     * replaced one are moved, or drop them if null. See {@link TerminalBuffer#setScrollback(Scrollback)}.
+     */
+    public void setScrollback(Scrollback scrollback) {
+        mMainBuffer.setScrollback(scrollback);
+    }
+
+    /** An estimate of the number of bytes of memory taken by the screens and the history, not counting images. */
+    public long getMemoryUsage() {
+        return mMainBuffer.getMemoryUsage() + mAltBuffer.getMemoryUsage();
+    }
+
+    /** See {@link TerminalBuffer#setMaxScrollbackRows(int)}. */
+    public void setMaxScrollbackRows(int rows) {
+        mMainBuffer.setMaxScrollbackRows(rows);
+    }
+
+    /** Limit the memory taken by the history of the main screen, see {@link TerminalBuffer#setMemoryBudget(long)}. */
+    public void setMemoryBudget(long bytes) {
+        mMainBuffer.setMemoryBudget(bytes);
+    }
+
+    /** Shrink the history of the main screen, see {@link TerminalBuffer#trimHistory(long)}. */
+    public void trimHistory(long bytes) {
+        mMainBuffer.trimHistory(bytes);
+    }
+
+    /**
+     * Place an encoded image at the cursor, reserving its cells right away while it is decoded on a background thread,
+     * see {@link ImageLoader}. Returns the number of lines the cursor should move down and the number of columns taken.
+     *
+     * @param width  the requested width in pixels, or 0 or less to not request one
+     * @param height the requested height in pixels, or 0 or less to not request one
+     */
+    private int[] addInlineImage(byte[] data, int length, int width, int height, boolean aspect) {
+        final int[] imageSize = ImageLoader.decodeSize(data, length);
+        if (imageSize == null) return new int[]{0, 0};
+        final int[] size = ImageLoader.computeSize(imageSize[0], imageSize[1], width, height, aspect, (mColumns - mCursorCol) * cellW);
+        final int columns = (size[0] + cellW - 1) / cellW, rows = (size[1] + cellH - 1) / cellH;
+        final int cellWidth = cellW, cellHeight = cellH;
+        final ImageRegistry.Image placeholder = ImageRegistry.Image.placeholder(columns * cellW, rows * cellH, cellW, cellH);
+        final int id = mImages.add(placeholder);
+        if (id < 0) return new int[]{0, 0};
+        final int lines = mScreen.placeImage(id, columns, rows, mCursorRow, mCursorCol, getStyle());
+
+        final byte[] encoded = Arrays.copyOf(data, length);
+        loadImage(id, placeholder,
+            () -> ImageLoader.decode(encoded, imageSize[0], imageSize[1], size[0], size[1], cellWidth, cellHeight));
+        return new int[]{lines, columns};
+    }
+
+    /** Execute a kitty graphics command once all of it has been received, see {@link KittyGraphics}. */
+    private void doKittyGraphics() {
+        final KittyGraphics.Command command = mKittyGraphics.end();
+        if (command == null) return;
+        String error = null;
+        switch (command.mAction) {
+            case 't':
+            case 'q':
+                error = mKittyGraphics.transmit(command, cellW, cellH);
+                break;
+            case 'T':
+                error = mKittyGraphics.transmit(command, cellW, cellH);
+                if (error == null) error = placeKittyImage(command, command.mImage);
+                break;
+            case 'p':
+                final KittyGraphics.Image image = mKittyGraphics.find(command);
+                error = (image == null) ? "ENOENT:No such image" : placeKittyImage(command, image);
+                break;
+            case 'd':
+                deleteKittyImages(command);
+                return;
+            default:
+                return;
+        }
+        // Only commands with an id or number are answered, unless the answer is suppressed:
+        if (command.mImageId == 0 && command.mImageNumber == 0) return;
+        if (command.mQuiet >= 2 || (error == null && command.mQuiet == 1)) return;
+        final StringBuilder response = new StringBuilder("\033_G");
+        if (command.mImageId != 0) response.append("i=").append(command.mImageId & 0xFFFFFFFFL).append(',');
+        if (command.mImageNumber != 0) response.append("I=").append(command.mImageNumber & 0xFFFFFFFFL).append(',');
+        response.setLength(response.length() - 1);
+        if (command.mPlacementId != 0) response.append(",p=").append(command.mPlacementId & 0xFFFFFFFFL);
+        response.append(';').append((error == null) ? "OK" : error).append("\033\\");
+        mSession.write(response.toString());
+    }
+
+    /**
+     * Display a transmitted image at the cursor as an {@link ImagePlacement#mOverlay overlay}, replacing the placement
+     * of the image with the same placement id, and move the cursor after it as for OSC 1337 unless told not to.
+     *
+     * @return an error to report, or null if successful
+     */
+    private String placeKittyImage(KittyGraphics.Command command, KittyGraphics.Image image) {
+        final int x = Math.max(0, Math.min(command.mSourceX, image.mWidth));
+        final int y = Math.max(0, Math.min(command.mSourceY, image.mHeight));
+        int width = image.mWidth - x, height = image.mHeight - y;
+        if (command.mSourceWidth > 0) width = Math.min(width, command.mSourceWidth);
+        if (command.mSourceHeight > 0) height = Math.min(height, command.mSourceHeight);
+        if (width <= 0 || height <= 0) return "EINVAL:The part of the image to display is empty";
+        int columns = command.mColumns, rows = command.mRows;
+        // The size is computed from the size of the image, or the one given, keeping the aspect ratio:
+        if (columns <= 0 && rows <= 0) {
+            columns = (width + cellW - 1) / cellW;
+            rows = (height + cellH - 1) / cellH;
+        } else if (columns <= 0) {
+            columns = (int) Math.ceil((double) rows * cellH * width / height / cellW);
+        } else if (rows <= 0) {
+            rows = (int) Math.ceil((double) columns * cellW * height / width / cellH);
+        }
+        columns = Math.max(1, Math.min(columns, KittyGraphics.MAX_CELLS));
+        rows = Math.max(1, Math.min(rows, KittyGraphics.MAX_CELLS));
+
+        if (command.mPlacementId != 0) {
+            mScreen.removeImagePlacements((slice, row) -> slice.mPlacement.mOverlay
+                && slice.mPlacement.mImageId == image.mId && slice.mPlacement.mPlacementId == command.mPlacementId);
+        }
+        final ImagePlacement placement = new ImagePlacement(image.mId, command.mPlacementId,
+            (float) x / image.mCellWidth, (float) y / image.mCellHeight, (float) width / image.mCellWidth,
+            (float) height / image.mCellHeight, columns, rows, command.mZ, true);
+        int lines = mScreen.placeImage(placement, mCursorRow, mCursorCol, getStyle());
+        if (command.mCursorMovement == 1) return null;
+        int col = columns + mCursorCol;
+        if (col < mColumns - 1) {
+            lines -= 1;
+        } else {
+            col = 0;
+        }
+        for (; lines > 0; lines--) {
+            doLinefeed();
+        }
+        mCursorCol = col;
+        return null;
+    }
+
+    /**
+     * Delete the placements of kitty graphics on the screen chosen by the d key of a command: a for all of them, i and
+     * n by image id or number, with a placement id if given, c at the cursor, p at the cell given by x and y, x in the
+     * column, y in the row and z with the z-index. An uppercase key also forgets the images of the deleted placements.
+     */
+    private void deleteKittyImages(KittyGraphics.Command command) {
+        final BiPredicate<ImagePlacement.Slice, Integer> filter;
+        final int column = (command.mDelete == 'c' || command.mDelete == 'C') ? mCursorCol : command.mSourceX - 1;
+        final int row = (command.mDelete == 'c' || command.mDelete == 'C') ? mCursorRow : command.mSourceY - 1;
+        final KittyGraphics.Image image;
+        switch (Character.toLowerCase(command.mDelete)) {
+            case 'a':
+                filter = (slice, sliceRow) -> true;
+                break;
+            case 'i':
+            case 'n':
+                if (command.mDelete == 'i' || command.mDelete == 'I') command.mImageNumber = 0;
+                image = mKittyGraphics.find(command);
+                if (image == null) return;
+                if (Character.isUpperCase(command.mDelete)) mKittyGraphics.remove(Collections.singleton(image.mId));
+                filter = (slice, sliceRow) -> slice.mPlacement.mImageId == image.mId
+                    && (command.mPlacementId == 0 || slice.mPlacement.mPlacementId == command.mPlacementId);
+                break;
+            case 'c':
+            case 'p':
+                filter = (slice, sliceRow) -> sliceRow == row
+                    && slice.mColumn <= column && column < slice.getEndColumn();
+                break;
+            case 'x':
+                filter = (slice, sliceRow) -> slice.mColumn <= column && column < slice.getEndColumn();
+                break;
+            case 'y':
+                filter = (slice, sliceRow) -> sliceRow == row;
+                break;
+            case 'z':
+                filter = (slice, sliceRow) -> slice.mPlacement.mZ == command.mZ;
+                break;
+            default:
+                return;
+        }
+        final boolean forget = Character.isUpperCase(command.mDelete);
+        final HashSet<Integer> removedImages = new HashSet<>();
+        mScreen.removeImagePlacements((slice, sliceRow) -> {
+            if (!slice.mPlacement.mOverlay || !filter.test(slice, sliceRow)) return false;
+            if (forget) removedImages.add(slice.mPlacement.mImageId);
+            return true;
+        });
+        if (forget) mKittyGraphics.remove(removedImages);
+    }
+
+    /**
+     * Decode an image on the {@link ImageLoader} thread, then show it instead of the placeholder with the specified id,
+     * unless the image has been dropped since.
+     */
+    void loadImage(int id, ImageRegistry.Image placeholder, ImageLoader.Decoder decoder) {
+        ImageLoader.execute(() -> {
+            final ImageRegistry.Image image = decoder.decode();
+            if (image == null) return;
+            // The session holds the lock on the emulator while using it:
+            synchronized (this) {
+                if (!mImages.replace(id, placeholder, image)) return;
+                mMainBuffer.damageImage(id);
+                mAltBuffer.damageImage(id);
+            }
+            mSession.onScreenChanged();
+        });
+    }
+
+    /** The number of bytes of memory taken by the images of both screens, which {@link #getMemoryUsage()} leaves out. */
+    public long getImageMemoryUsage() {
+        return mImages.getMemoryUsage();
+    }
+
+    /**
+     * Limit the memory taken by the images to the specified number of bytes, beyond which the images used least recently
+     * are dropped. See {@link ImageRegistry}.
+     */
+    public void setImageMemoryBudget(long bytes) {
+        mImages.setMemoryBudget(bytes);
+    }
+
+    /** Drop the images used least recently until they take at most the specified number of bytes. */
+    public void trimImages(long bytes) {
+        mImages.trim(bytes);
+    }
+
+    /**
+     * Only reflow the lines shown on the screen when resizing, leaving the history above them to
+     * {@link #continueReflow(int)}, instead of reflowing all of it at once.
+     */
+    public void setIncrementalReflow(boolean incremental) {
+        mIncrementalReflow = incremental;
+    }
+
+    /** If a resize has left history to be reflowed by {@link #continueReflow(int)}. */
+    public boolean isReflowPending() {
+        return mMainBuffer.isReflowPending();
+    }
+
+    /** Reflow about the specified number of rows of the history left by a resize, see {@link #setIncrementalReflow}. */
+    public void continueReflow(int rows) {
+        mMainBuffer.continueReflow(rows);
+    }
+
     /** Reset terminal state so user can interact with it regardless of present state. */
     public void reset(boolean erase) {
         if (erase) {
@@ -2665,6 +3352,7 @@ public final class TerminalEmulator {
         mUtf8Index = mUtf8ToFollow = 0;
 
         mColors.reset();
+        mKittyGraphics.reset();
     }
 
     public String getSelectedText(int x1, int y1, int x2, int y2) {
@@ -38,4 +38,11 @@ public abstract class TerminalOutput {
 
     /** Notify the terminal client that a bell character (ASCII 7, bell, BEL, \a, ^G)) has been received. */
     public abstract void onBell();
+
+    /**
+     * Notify the terminal client that the screen has changed without any input being fed to the emulator, as an image
+     * has finished decoding on another thread.
+     */
+    public void onScreenChanged() {
+    }
 }
@@ -17,46 +17,133 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package app.neotty.termlib;
 
 import java.util.Arrays;
+import java.util.Collection;
 
 /**
  * A row in a terminal, composed of a fixed number of cells.
  * <p>
  * The text in the row is stored in a char[] array, {@link #mText}, for quick access during rendering.
+ * <p>
+ * The styles are usually stored as runs of columns with the same style, since most rows only have a few of them. A
+ * row whose styles are changed into more than {@link #MAX_STYLE_RUNS} runs gets one style per column in
+ * {@link #mStyle} instead, until {@link #compactStyles()} is called when it is no longer edited.
+ * <p>
+ * Rows which scroll into the transcript are {@link #freeze() frozen} to take as little memory as possible. They can
+ * still be edited, which grows them again as needed.
  */
 public final class TerminalRow {
 
     private static final float SPARE_CAPACITY_FACTOR = 1.5f;
+    /** The number of style runs a row may be split into before it stores one style per column. */
+    static final int MAX_STYLE_RUNS = 16;
 
-    /** The number of columns in this terminal row. */
-    private final int mColumns;
+    /** The number of columns in this terminal row, which only changes when the row is {@link #reset(int, long) reset}. */
+    private int mColumns;
     /** The text filling this terminal row. */
     public char[] mText;
     /** The number of java char:s used in {@link #mText}. */
     private short mSpaceUsed;
     /** If this row has been line wrapped due to text output at the end of line. */
     boolean mLineWrap;
-    /** The style bits of each cell in the row. See {@link TextStyle}. */
-    final long[] mStyle;
+    /** The style bits of each cell in the row, see {@link TextStyle}, or null if the styles are kept as runs. */
+    long[] mStyle;
+    /**
+     * The style runs used while {@link #mStyle} is null: run i has the style mRunStyles[i] and ends before the column
+     * mRunEnds[i], and starts where the run before it ends. Adjacent runs have different styles.
+     */
+    private long[] mRunStyles;
+    private short[] mRunEnds;
+    private int mRuns;
     /** If this row might contain chars with width != 1, used for deactivating fast path */
     boolean mHasNonOneWidthOrSurrogateChars;
-    /** If this row has a bitmap. Used for performace only */
-    public boolean mHasBitmap;
+    /**
+     * The slices of the image placements shown by this row, in the order they were added, or null if none. Replaced
+     * rather than modified, so that it is shared by the copies of the row.
+     */
+    private ImagePlacement.Slice[] mImageSlices;
+    /**
+     * The ids of the images in the {@link ImageRegistry} which the buffer has retained for this row, or null if none.
+     * Replaced rather than modified, so that it is shared by the copies of the row. See {@link #findImageIds()}.
+     */
+    int[] mImageIds;
+    /**
+     * The index in {@link #mText} where each column starts, as returned by {@link #findStartOfColumn(int)}, valid for
+     * the first {@link #mColumnStartsValid} columns. Extended when looked up and truncated when the text changes, and
+     * only used if {@link #mHasNonOneWidthOrSurrogateChars}, since each column is otherwise a single java char.
+     * <p>
+     * A row shared with a snapshot may be looked up from several threads. They write the same entries, and only the
+     * thread modifying the row allocates the table, so it suffices that the entries are written before the count.
+     */
+    private short[] mColumnStarts;
+    private volatile int mColumnStartsValid;
+    /**
+     * The {@link TerminalBuffer} generation this row belongs to. Rows of older generations may be shared with a
+     * published snapshot, and are copied instead of being modified.
+     */
+    int mGeneration;
 
     /** Construct a blank row (containing only whitespace, ' ') with a specified style. */
     public TerminalRow(int columns, long style) {
         mColumns = columns;
         mText = new char[(int) (SPARE_CAPACITY_FACTOR * columns)];
-        mStyle = new long[columns];
+        mRunStyles = new long[2];
+        mRunEnds = new short[2];
         clear(style);
     }
 
+    /**
+     * Construct a row with the specified text, which must cover all columns, and the style {@link TextStyle#NORMAL}. The
+     * text array is used by the row, and must have a length of at least the number of columns.
+     */
+    TerminalRow(int columns, char[] text, int spaceUsed) {
+        mColumns = columns;
+        mText = text;
+        mSpaceUsed = (short) spaceUsed;
+        mRunStyles = new long[]{TextStyle.NORMAL};
+        mRunEnds = new short[]{(short) columns};
+        mRuns = 1;
+        for (int i = 0; i < spaceUsed; i++) {
+            if (spaceUsed != columns || Character.isSurrogate(text[i]) || WcWidth.width(text[i]) != 1) {
+                setHasNonOneWidthOrSurrogateChars();
+                break;
+            }
+        }
+    }
+
+    /** Construct a copy of a row, which can be modified while the original stays unchanged. */
+    TerminalRow(TerminalRow row) {
+        this(row, row.mText.length);
+    }
+
+    /** Construct a copy of a row with the specified capacity for text, which must fit the text of the row. */
+    private TerminalRow(TerminalRow row, int textCapacity) {
+        mColumns = row.mColumns;
+        mText = Arrays.copyOf(row.mText, textCapacity);
+        mSpaceUsed = row.mSpaceUsed;
+        mLineWrap = row.mLineWrap;
+        if (row.mStyle != null) {
+            mStyle = Arrays.copyOf(row.mStyle, row.mStyle.length);
+        } else {
+            mRunStyles = Arrays.copyOf(row.mRunStyles, row.mRuns);
+            mRunEnds = Arrays.copyOf(row.mRunEnds, row.mRuns);
+            mRuns = row.mRuns;
+        }
+        if (row.mHasNonOneWidthOrSurrogateChars) setHasNonOneWidthOrSurrogateChars();
+        mImageSlices = row.mImageSlices;
+        mImageIds = row.mImageIds;
+    }
+
     /** NOTE: The sourceX2 is exclusive. */
     public void copyInterval(TerminalRow line, int sourceX1, int sourceX2, int destinationX) {
-        mHasNonOneWidthOrSurrogateChars |= line.mHasNonOneWidthOrSurrogateChars;
+        if (this == line) line = new TerminalRow(line);
+        if (line.mHasNonOneWidthOrSurrogateChars) setHasNonOneWidthOrSurrogateChars();
+        final int firstSourceColumn = sourceX1, columnOffset = destinationX - sourceX1;
+        // The images shown by the columns are replaced by the ones of the copied columns, overlays included:
+        if (mImageSlices != null) removeImageSlices(destinationX, destinationX + sourceX2 - sourceX1, true);
         final int x1 = line.findStartOfColumn(sourceX1);
         final int x2 = line.findStartOfColumn(sourceX2);
         boolean startingFromSecondHalfOfWideChar = (sourceX1 > 0 && line.wideDisplayCharacterStartingAt(sourceX1 - 1));
-        final char[] sourceChars = (this == line) ? Arrays.copyOf(line.mText, line.mText.length) : line.mText;
+        final char[] sourceChars = line.mText;
         int latestNonCombiningWidth = 0;
         for (int i = x1; i < x2; i++) {
             char sourceChar = sourceChars[i];
@@ -74,87 +161,123 @@ public final class TerminalRow {
             }
             setChar(destinationX, codePoint, line.getStyle(sourceX1));
         }
+        // The images shown by the copied columns:
+        if (line.mImageSlices != null) {
+            for (ImagePlacement.Slice slice : line.mImageSlices) {
+                final ImagePlacement.Slice copied = slice.clip(firstSourceColumn, sourceX2);
+                if (copied != null) addImageSlice(copied.moveTo(copied.mColumn + columnOffset));
+            }
+        }
     }
 
     public int getSpaceUsed() {
         return mSpaceUsed;
     }
 
+    /** The number of columns in this terminal row. */
+    int getColumns() {
+        return mColumns;
+    }
+
     /** Note that the column may end of second half of wide character. */
     public int findStartOfColumn(int column) {
         if (column == mColumns) return getSpaceUsed();
+        if (!mHasNonOneWidthOrSurrogateChars) return column;
+        if (column >= mColumnStartsValid) findColumnStartsUpTo(column);
+        return mColumnStarts[column];
+    }
 
-        int currentColumn = 0;
-        int currentCharIndex = 0;
-        while (true) { // 0<2 1 < 2
-            int newCharIndex = currentCharIndex;
-            char c = mText[newCharIndex++]; // cci=1, cci=2
-            boolean isHigh = Character.isHighSurrogate(c);
-            int codePoint = isHigh ? Character.toCodePoint(c, mText[newCharIndex++]) : c;
-            int wcwidth = WcWidth.width(codePoint); // 1, 2
-            if (wcwidth > 0) {
-                currentColumn += wcwidth;
-                if (currentColumn == column) {
-                    while (newCharIndex < mSpaceUsed) {
-                        // Skip combining chars.
-                        if (Character.isHighSurrogate(mText[newCharIndex])) {
-                            if (WcWidth.width(Character.toCodePoint(mText[newCharIndex], mText[newCharIndex + 1])) <= 0) {
-                                newCharIndex += 2;
-                            } else {
-                                break;
-                            }
-                        } else if (WcWidth.width(mText[newCharIndex]) <= 0) {
-                            newCharIndex++;
-                        } else {
-                            break;
-                        }
-                    }
-                    return newCharIndex;
-                } else if (currentColumn > column) {
-                    // Wide column going past end.
-                    return currentCharIndex;
-                }
-            }
-            currentCharIndex = newCharIndex;
-        }
+    private void setHasNonOneWidthOrSurrogateChars() {
+        mHasNonOneWidthOrSurrogateChars = true;
+        if (mColumnStarts == null) mColumnStarts = new short[mColumns];
     }
 
-    private boolean wideDisplayCharacterStartingAt(int column) {
-        for (int currentCharIndex = 0, currentColumn = 0; currentCharIndex < mSpaceUsed; ) {
+    /** Extend {@link #mColumnStarts} to be valid up to and including the specified column. */
+    private void findColumnStartsUpTo(int column) {
+        final short[] starts = mColumnStarts;
+        int currentColumn = mColumnStartsValid;
+        // Continue after the character starting the last valid column, skipping any combining chars after it:
+        int currentCharIndex = 0;
+        if (currentColumn > 0) {
+            currentCharIndex = starts[currentColumn - 1];
+            currentCharIndex += Character.isHighSurrogate(mText[currentCharIndex]) ? 2 : 1;
+        }
+        while (currentColumn <= column && currentCharIndex < mSpaceUsed) {
+            final int startOfChar = currentCharIndex;
             char c = mText[currentCharIndex++];
             int codePoint = Character.isHighSurrogate(c) ? Character.toCodePoint(c, mText[currentCharIndex++]) : c;
-            int wcwidth = WcWidth.width(codePoint);
-            if (wcwidth > 0) {
-                if (currentColumn == column && wcwidth == 2) return true;
-                currentColumn += wcwidth;
-                if (currentColumn > column) return false;
-            }
+            // Both columns of a wide character start at it, while combining chars belong to the previous column:
+            for (int wcwidth = WcWidth.width(codePoint); wcwidth > 0 && currentColumn < mColumns; wcwidth--)
+                starts[currentColumn++] = (short) startOfChar;
         }
-        return false;
+        // The text should always cover every column:
+        while (currentColumn <= column) starts[currentColumn++] = mSpaceUsed;
+        mColumnStartsValid = currentColumn;
+    }
+
+    /** Truncate {@link #mColumnStarts} before text changes from the specified index in {@link #mText} onwards. */
+    private void invalidateColumnStartsFrom(int charIndex) {
+        int valid = mColumnStartsValid;
+        while (valid > 0 && mColumnStarts[valid - 1] >= charIndex) valid--;
+        mColumnStartsValid = valid;
+    }
+
+    private boolean wideDisplayCharacterStartingAt(int column) {
+        // Both columns of a wide character start at the same index, and it cannot start at the last column:
+        if (!mHasNonOneWidthOrSurrogateChars || column + 1 >= mColumns) return false;
+        return findStartOfColumn(column) == findStartOfColumn(column + 1);
     }
 
     public void clear(long style) {
         Arrays.fill(mText, ' ');
-        Arrays.fill(mStyle, style);
+        if (mStyle != null) {
+            Arrays.fill(mStyle, style);
+        } else {
+            mRunStyles[0] = style;
+            mRunEnds[0] = (short) mColumns;
+            mRuns = 1;
+        }
         mSpaceUsed = (short) mColumns;
         mHasNonOneWidthOrSurrogateChars = false;
-        mHasBitmap = false;
+        mImageSlices = null;
+        mColumnStartsValid = 0;
+    }
+
+    /**
+     * Turn this row into a blank row with the specified number of columns and style, as if it had just been constructed,
+     * reusing its arrays where they are large enough. Must not be called on a row which may be shared with a snapshot.
+     */
+    void reset(int columns, long style) {
+        if (mText.length < columns) mText = new char[(int) (SPARE_CAPACITY_FACTOR * columns)];
+        mStyle = null;
+        if (mRunStyles == null || mRunStyles.length < 2) {
+            mRunStyles = new long[2];
+            mRunEnds = new short[2];
+        }
+        if (mColumnStarts != null && mColumnStarts.length < columns) mColumnStarts = null;
+        mColumns = columns;
+        clear(style);
+        mLineWrap = false;
+        mImageIds = null;
     }
 
     // https://github.com/steven676/Android-Terminal-Emulator/commit/9a47042620bec87617f0b4f5d50568535668fe26
     public void setChar(int columnToSet, int codePoint, long style) {
-        mStyle[columnToSet] = style;
-
-        if (!mHasBitmap && TextStyle.decodeBitmap(style)) {
-            mHasBitmap = true;
+        if (mStyle != null) {
+            mStyle[columnToSet] = style;
+        } else {
+            setRunStyle(columnToSet, columnToSet + 1, style);
         }
 
         final int newCodePointDisplayWidth = WcWidth.width(codePoint);
+        if (mImageSlices != null) {
+            removeImageSlices(columnToSet, columnToSet + Math.max(1, newCodePointDisplayWidth), false);
+        }
 
         // Fast path when we don't have any chars with width != 1
         if (!mHasNonOneWidthOrSurrogateChars) {
             if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT || newCodePointDisplayWidth != 1) {
-                mHasNonOneWidthOrSurrogateChars = true;
+                setHasNonOneWidthOrSurrogateChars();
             } else {
                 mText[columnToSet] = (char) codePoint;
                 return;
@@ -188,6 +311,7 @@ public final class TerminalRow {
             // Last character.
             oldCharactersUsedForColumn = mSpaceUsed - oldStartOfColumnIndex;
         }
+        invalidateColumnStartsFrom(oldStartOfColumnIndex);
 
         // Find how many chars this column will need
         int newCharactersUsedForColumn = Character.charCount(codePoint);
@@ -257,14 +381,331 @@ public final class TerminalRow {
         }
     }
 
+    /**
+     * Set count printable ASCII characters (each of width 1) starting at columnToSet. Equivalent to calling
+     * {@link #setChar(int, int, long)} for each of them, but done with bulk array operations as long as the row only
+     * contains chars of width 1.
+     */
+    public void setAsciiChars(int columnToSet, byte[] chars, int offset, int count, long style) {
+        if (mHasNonOneWidthOrSurrogateChars) {
+            for (int i = 0; i < count; i++)
+                setChar(columnToSet + i, chars[offset + i], style);
+            return;
+        }
+
+        setStyle(columnToSet, columnToSet + count, style);
+        if (mImageSlices != null) removeImageSlices(columnToSet, columnToSet + count, false);
+        final char[] text = mText;
+        for (int i = 0; i < count; i++)
+            text[columnToSet + i] = (char) chars[offset + i];
+    }
+
+    /**
+     * Set the columns from startColumn (inclusive) to endColumn (exclusive) to a code point of display width one. Same
+     * as calling {@link #setChar(int, int, long)} for each of them, but only the columns at the ends of the range need
+     * to care about wide characters.
+     */
+    public void fillRange(int startColumn, int endColumn, int codePoint, long style) {
+        if (startColumn >= endColumn) return;
+        if (mImageSlices != null) removeImageSlices(startColumn, endColumn, false);
+
+        if (mHasNonOneWidthOrSurrogateChars) {
+            // Split wide characters crossing the ends of the range, so that it covers whole characters:
+            setChar(startColumn, codePoint, style);
+            setChar(endColumn - 1, codePoint, style);
+
+            final int startIndex = findStartOfColumn(startColumn);
+            final int endIndex = findStartOfColumn(endColumn);
+            invalidateColumnStartsFrom(startIndex);
+            final int javaCharDifference = (endColumn - startColumn) - (endIndex - startIndex);
+            if (javaCharDifference != 0) {
+                // Shift the rest of the line so that the range takes one java char per column.
+                char[] text = mText;
+                if (mSpaceUsed + javaCharDifference > text.length) {
+                    char[] newText = new char[text.length + mColumns];
+                    System.arraycopy(text, 0, newText, 0, startIndex);
+                    text = newText;
+                }
+                System.arraycopy(mText, endIndex, text, endIndex + javaCharDifference, mSpaceUsed - endIndex);
+                mText = text;
+                mSpaceUsed += javaCharDifference;
+            }
+            Arrays.fill(mText, startIndex, startIndex + endColumn - startColumn, (char) codePoint);
+        } else {
+            Arrays.fill(mText, startColumn, endColumn, (char) codePoint);
+        }
+        setStyle(startColumn, endColumn, style);
+    }
+
+    /** Clear the columns from startColumn (inclusive) to endColumn (exclusive) to spaces with the specified style. */
+    public void clearRange(int startColumn, int endColumn, long style) {
+        if (startColumn == 0 && endColumn == mColumns) {
+            clear(style);
+        } else {
+            fillRange(startColumn, endColumn, ' ', style);
+        }
+    }
+
+    /** The slices of the image placements shown by this row, in the order they were added, or null if there are none. */
+    public ImagePlacement.Slice[] getImageSlices() {
+        return mImageSlices;
+    }
+
+    /** Show a slice of an image placement over the columns it covers, clipped to the row. */
+    void addImageSlice(ImagePlacement.Slice slice) {
+        final ImagePlacement.Slice clipped = slice.clip(0, mColumns);
+        if (clipped == null) return;
+        final ImagePlacement.Slice[] slices = mImageSlices;
+        if (slices == null) {
+            mImageSlices = new ImagePlacement.Slice[]{clipped};
+        } else {
+            final ImagePlacement.Slice[] newSlices = Arrays.copyOf(slices, slices.length + 1);
+            newSlices[slices.length] = clipped;
+            mImageSlices = newSlices;
+        }
+    }
+
+    /**
+     * Stop showing images over the columns from startColumn (inclusive) to endColumn (exclusive), splitting slices. The
+     * {@link ImagePlacement#mOverlay overlays} are only cut if the overlays argument is set.
+     */
+    void removeImageSlices(int startColumn, int endColumn, boolean overlays) {
+        final ImagePlacement.Slice[] slices = mImageSlices;
+        if (slices == null || startColumn >= endColumn) return;
+        int overlapping = 0;
+        for (ImagePlacement.Slice slice : slices)
+            if (cuts(slice, startColumn, endColumn, overlays)) overlapping++;
+        if (overlapping == 0) return;
+
+        // Each slice overlapping the columns leaves at most the parts before and after them:
+        final ImagePlacement.Slice[] newSlices = new ImagePlacement.Slice[slices.length + overlapping];
+        int count = 0;
+        for (ImagePlacement.Slice slice : slices) {
+            if (!cuts(slice, startColumn, endColumn, overlays)) {
+                newSlices[count++] = slice;
+                continue;
+            }
+            final ImagePlacement.Slice before = slice.clip(slice.mColumn, startColumn);
+            final ImagePlacement.Slice after = slice.clip(endColumn, slice.getEndColumn());
+            if (before != null) newSlices[count++] = before;
+            if (after != null) newSlices[count++] = after;
+        }
+        mImageSlices = (count == 0) ? null : Arrays.copyOf(newSlices, count);
+    }
+
+    private static boolean cuts(ImagePlacement.Slice slice, int startColumn, int endColumn, boolean overlays) {
+        return slice.mColumn < endColumn && slice.getEndColumn() > startColumn
+            && (overlays || !slice.mPlacement.mOverlay);
+    }
+
+    /** If the row shows a slice of any of the specified placements. */
+    boolean showsAny(Collection<ImagePlacement> placements) {
+        if (mImageSlices == null) return false;
+        for (ImagePlacement.Slice slice : mImageSlices) {
+            if (placements.contains(slice.mPlacement)) return true;
+        }
+        return false;
+    }
+
+    /** Stop showing the slices of the specified placements. */
+    void removeImagePlacements(Collection<ImagePlacement> placements) {
+        final ImagePlacement.Slice[] slices = mImageSlices;
+        if (slices == null) return;
+        final ImagePlacement.Slice[] newSlices = new ImagePlacement.Slice[slices.length];
+        int count = 0;
+        for (ImagePlacement.Slice slice : slices) {
+            if (!placements.contains(slice.mPlacement)) newSlices[count++] = slice;
+        }
+        if (count < slices.length) mImageSlices = (count == 0) ? null : Arrays.copyOf(newSlices, count);
+    }
+
+    /** The ids of the images shown by this row, each once, or null if there are none. */
+    int[] findImageIds() {
+        final ImagePlacement.Slice[] slices = mImageSlices;
+        if (slices == null) return null;
+        int[] ids = null;
+        int count = 0;
+        for (ImagePlacement.Slice slice : slices) {
+            final int id = slice.mPlacement.mImageId;
+            int i = count;
+            while (i > 0 && ids[i - 1] != id) i--;
+            if (i > 0) continue;
+            if (ids == null) ids = new int[1];
+            else if (count == ids.length) ids = Arrays.copyOf(ids, 2 * count);
+            ids[count++] = id;
+        }
+        return (ids == null || count == ids.length) ? ids : Arrays.copyOf(ids, count);
+    }
+
     boolean isBlank() {
+        if (mImageSlices != null) return false;
         for (int charIndex = 0, charLen = getSpaceUsed(); charIndex < charLen; charIndex++)
             if (mText[charIndex] != ' ') return false;
         return true;
     }
 
     public final long getStyle(int column) {
-        return mStyle[column];
+        return (mStyle != null) ? mStyle[column] : mRunStyles[findRun(column)];
+    }
+
+    /**
+     * The column after the run of columns with the same style as the specified one, for iterating over the style runs
+     * of the row: {@code for (int c = 0; c < columns; c = getStyleRunEnd(c))}.
+     */
+    public int getStyleRunEnd(int column) {
+        final long[] styles = mStyle;
+        if (styles == null) return mRunEnds[findRun(column)];
+        final long style = styles[column];
+        while (++column < mColumns && styles[column] == style) ;
+        return column;
+    }
+
+    /** Set the style of the columns from startColumn (inclusive) to endColumn (exclusive). */
+    void setStyle(int startColumn, int endColumn, long style) {
+        if (mStyle != null) {
+            Arrays.fill(mStyle, startColumn, endColumn, style);
+        } else if (startColumn < endColumn) {
+            setRunStyle(startColumn, endColumn, style);
+        }
+    }
+
+    /**
+     * Go back to keeping the styles as runs, if they fit in fewer than half as many runs as there are columns. Called
+     * when the row is not expected to be edited any more, as it has scrolled into the transcript.
+     */
+    void compactStyles() {
+        final long[] styles = mStyle;
+        if (styles == null) return;
+        int runs = 1;
+        for (int column = 1; column < mColumns; column++)
+            if (styles[column] != styles[column - 1] && ++runs * 2 >= mColumns) return;
+
+        mRunStyles = new long[runs];
+        mRunEnds = new short[runs];
+        for (int column = 0, run = 0; column < mColumns; column = mRunEnds[run++]) {
+            mRunStyles[run] = styles[column];
+            mRunEnds[run] = (short) getStyleRunEnd(column);
+        }
+        mRuns = runs;
+        mStyle = null;
+    }
+
+    /**
+     * Let the row take as little memory as possible, since it has scrolled into the transcript where it is not expected
+     * to be edited: drop the spare capacity of {@link #mText} and keep the styles as runs, if they are not too many.
+     */
+    void freeze() {
+        if (mText.length > getFrozenTextCapacity()) mText = Arrays.copyOf(mText, getFrozenTextCapacity());
+        compactStyles();
+        if (mStyle == null && mRunStyles.length > mRuns) {
+            mRunStyles = Arrays.copyOf(mRunStyles, mRuns);
+            mRunEnds = Arrays.copyOf(mRunEnds, mRuns);
+        }
+    }
+
+    /** A {@link #freeze() frozen} copy of this row, for a row which is shared with a snapshot and so cannot change. */
+    TerminalRow frozenCopy() {
+        TerminalRow row = new TerminalRow(this, getFrozenTextCapacity());
+        row.freeze();
+        return row;
+    }
+
+    /** If {@link #freeze()} would not make any difference. */
+    boolean isFrozen() {
+        return mText.length == getFrozenTextCapacity() && mStyle == null && mRunStyles.length == mRuns;
+    }
+
+    /** An estimate of the number of bytes of memory taken by this row, not counting the images it shows. */
+    long getMemoryUsage() {
+        // An object header and the fields, followed by an array header and the elements of each array:
+        long bytes = 48 + 16 + 2L * mText.length;
+        if (mStyle != null) bytes += 16 + 8L * mStyle.length;
+        if (mRunStyles != null) bytes += 16 + 8L * mRunStyles.length + 16 + 2L * mRunEnds.length;
+        if (mColumnStarts != null) bytes += 16 + 2L * mColumnStarts.length;
+        if (mImageSlices != null) bytes += 16 + (4L + 32) * mImageSlices.length;
+        return bytes;
+    }
+
+    /** The text capacity of a frozen row, at least one char per column since that is what {@link #clear(long)} uses. */
+    private int getFrozenTextCapacity() {
+        return Math.max(mSpaceUsed, mColumns);
+    }
+
+    /** The index of the style run containing the column. */
+    private int findRun(int column) {
+        final short[] ends = mRunEnds;
+        int low = 0, high = mRuns - 1;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (ends[middle] <= column) low = middle + 1;
+            else high = middle;
+        }
+        return low;
+    }
+
+    /** Set the style of a range of columns while the styles are kept as runs, switching to {@link #mStyle} if needed. */
+    private void setRunStyle(int startColumn, int endColumn, long style) {
+        if (startColumn < 0 || endColumn > mColumns)
+            throw new IllegalArgumentException("startColumn=" + startColumn + ", endColumn=" + endColumn + ", mColumns=" + mColumns);
+        final int first = findRun(startColumn), last = findRun(endColumn - 1);
+        final long[] runStyles = mRunStyles;
+        final short[] runEnds = mRunEnds;
+        if (first == last && runStyles[first] == style) return;
+
+        // The runs before keptBefore and from keptAfter on are left as they are, while the runs in between are replaced
+        // by the new run and what remains of the first and last of them, merging runs with the same style:
+        int keptBefore = first, keptAfter = last + 1;
+        int newRunEnd = endColumn;
+        boolean splitFirst = false, splitLast = false;
+        if (startColumn > (first == 0 ? 0 : runEnds[first - 1])) {
+            splitFirst = runStyles[first] != style;
+        } else if (first > 0 && runStyles[first - 1] == style) {
+            keptBefore--;
+        }
+        if (endColumn < runEnds[last]) {
+            if (runStyles[last] == style) newRunEnd = runEnds[last];
+            else splitLast = true;
+        } else if (keptAfter < mRuns && runStyles[keptAfter] == style) {
+            newRunEnd = runEnds[keptAfter++];
+        }
+        final int newRunIndex = keptBefore + (splitFirst ? 1 : 0);
+        final int newRuns = newRunIndex + 1 + (splitLast ? 1 : 0) + mRuns - keptAfter;
+
+        if (newRuns > MAX_STYLE_RUNS) {
+            // Too many runs, so this row is being edited a lot:
+            final long[] styles = new long[mColumns];
+            for (int run = 0, column = 0; run < mRuns; run++) {
+                Arrays.fill(styles, column, runEnds[run], runStyles[run]);
+                column = runEnds[run];
+            }
+            Arrays.fill(styles, startColumn, endColumn, style);
+            mStyle = styles;
+            mRunStyles = null;
+            mRunEnds = null;
+            mRuns = 0;
+            return;
+        }
+
+        final long lastStyle = runStyles[last];
+        final short lastEnd = runEnds[last];
+        long[] newRunStyles = runStyles;
+        short[] newRunEnds = runEnds;
+        if (newRuns > runStyles.length) {
+            final int capacity = Math.min(MAX_STYLE_RUNS, Math.max(newRuns, 2 * runStyles.length));
+            newRunStyles = mRunStyles = Arrays.copyOf(runStyles, capacity);
+            newRunEnds = mRunEnds = Arrays.copyOf(runEnds, capacity);
+        }
+        final int newKeptAfter = newRuns - (mRuns - keptAfter);
+        System.arraycopy(runStyles, keptAfter, newRunStyles, newKeptAfter, mRuns - keptAfter);
+        System.arraycopy(runEnds, keptAfter, newRunEnds, newKeptAfter, mRuns - keptAfter);
+        if (splitFirst) newRunEnds[keptBefore] = (short) startColumn;
+        newRunStyles[newRunIndex] = style;
+        newRunEnds[newRunIndex] = (short) newRunEnd;
+        if (splitLast) {
+            newRunStyles[newRunIndex + 1] = lastStyle;
+            newRunEnds[newRunIndex + 1] = lastEnd;
+        }
+        mRuns = newRuns;
     }
 
 }
@@ -17,6 +17,7 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package app.neotty.termlib;
 
 import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.os.Handler;
 import android.os.Message;
 import android.system.ErrnoException;
@@ -24,6 +25,7 @@ import android.system.Os;
 import android.system.OsConstants;
 import android.util.Log;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -31,6 +33,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
+import java.util.Objects;
 import java.util.UUID;
 
 /**
@@ -38,7 +41,9 @@ import java.util.UUID;
  * <p>
  * The subprocess will be executed by the constructor, and when the size is made known by a call to
  * {@link #updateSize(int, int)} terminal emulation will begin and threads will be spawned to handle the subprocess I/O.
- * All terminal emulation and callback methods will be performed on the main thread.
+ * Output of the subprocess is processed by the terminal emulator on a separate thread, which holds the lock of the
+ * emulator while doing so. The main thread draws from a {@link TerminalSnapshot} published with each screen update, see
+ * {@link #getSnapshot()}. All callback methods will be performed on the main thread.
  * <p>
  * The child process may be exited forcefully by using the {@link #finishIfRunning()} method.
  * <p>
@@ -50,6 +55,14 @@ public final class TerminalSession extends TerminalOutput {
     public interface SessionChangedCallback {
         void onTextChanged(TerminalSession changedSession);
 
+        /**
+         * The screen changed, but only within the specified rectangle of cells after scrolling the screen up by
+         * scrollDelta rows. See {@link TerminalSnapshot#getDamageTop()}.
+         */
+        default void onTextChanged(TerminalSession changedSession, int top, int left, int bottom, int right, int scrollDelta) {
+            onTextChanged(changedSession);
+        }
+
         void onTitleChanged(TerminalSession changedSession);
 
         void onSessionFinished(TerminalSession finishedSession);
@@ -79,14 +92,29 @@ public final class TerminalSession extends TerminalOutput {
     }
 
     private static final int MSG_NEW_INPUT = 1;
+    private static final int MSG_TITLE_CHANGED = 2;
+    private static final int MSG_CLIPBOARD_TEXT = 3;
     private static final int MSG_PROCESS_EXITED = 4;
+    private static final int MSG_SYNCHRONIZED_OUTPUT_TIMEOUT = 5;
+    private static final int MSG_BELL = 6;
+    private static final int MSG_CONTINUE_REFLOW = 7;
+
+    /** The number of rows of history and screen kept as rows, which are reflowed on resize. */
+    private static final int TRANSCRIPT_ROWS = 2000;
+    /** The number of rows of history reflowed at a time after a resize, between which the main thread is free. */
+    private static final int REFLOW_SLICE_ROWS = 200;
 
     public final String mHandle = UUID.randomUUID().toString();
 
     TerminalEmulator mEmulator;
 
+    /** The state of {@link #mEmulator} as of the last screen update, only accessed from the main thread. */
+    private TerminalSnapshot mSnapshot;
+    /** The snapshot the callback was last informed about, which the damage reported next is relative to. */
+    private TerminalSnapshot mNotifiedSnapshot;
+
     /**
-     * A queue written to from a separate thread when the process outputs, and read by main thread to process by
+     * A queue written to from a separate thread when the process outputs, and read by the emulator thread to process by
      * terminal emulator.
      */
     final ByteQueue mProcessToTerminalIOQueue = new ByteQueue(4096);
@@ -107,6 +135,9 @@ public final class TerminalSession extends TerminalOutput {
     /** The exit status of the shell process. Only valid if ${@link #mShellPid} is -1. */
     int mShellExitStatus;
 
+    /** The exit status passed to {@link #finishProcessOutput(int)}, read by the emulator thread when it has finished. */
+    private int mProcessExitCode;
+
     /**
      * The file descriptor referencing the master half of a pseudo-terminal pair, resulting from calling
      * {@link JNI#createSubprocess(String[], String[], int[], int, int)}.
@@ -116,34 +147,56 @@ public final class TerminalSession extends TerminalOutput {
     /** Set by the application for user identification of session, not by terminal. */
     public String mSessionName;
 
+    /** See {@link #setScrollbackFile(File)}. */
+    private File mScrollbackFile;
+    /** See {@link #setTranscriptRows(int)}. */
+    private int mTranscriptRows = 5000;
+    /** See {@link #setMemoryBudget(long)}. */
+    private long mMemoryBudget;
+    /** See {@link #setImageMemoryBudget(long)}, or 0 to keep the default of the emulator. */
+    private long mImageMemoryBudget;
+
     @SuppressLint("HandlerLeak")
     final Handler mMainThreadHandler = new Handler() {
-        final byte[] mReceiveBuffer = new byte[4 * 1024];
-
         @Override
         public void handleMessage(Message msg) {
-            int bytesRead = mProcessToTerminalIOQueue.read(mReceiveBuffer, false);
-            if (bytesRead > 0) {
-                mEmulator.append(mReceiveBuffer, bytesRead);
+            if (msg.what == MSG_NEW_INPUT) {
+                int heldBack;
+                synchronized (mEmulator) {
+                    heldBack = mEmulator.getSynchronizedOutputTimeLeft();
+                    if (heldBack <= 0) mSnapshot = mEmulator.takeSnapshot();
+                }
+                if (heldBack > 0) {
+                    // Keep showing the last complete frame until the program has finished drawing the next one.
+                    if (!hasMessages(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT)) {
+                        sendEmptyMessageDelayed(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT, heldBack);
+                    }
+                } else {
+                    removeMessages(MSG_SYNCHRONIZED_OUTPUT_TIMEOUT);
+                    notifyScreenUpdate();
+                }
+            } else if (msg.what == MSG_SYNCHRONIZED_OUTPUT_TIMEOUT) {
+                publishSnapshot();
                 notifyScreenUpdate();
-            }
-
-            if (msg.what == MSG_PROCESS_EXITED) {
-                int exitCode = (Integer) msg.obj;
-                cleanupResources(exitCode);
-
-                String exitDescription = "\r\n[Process completed";
-                if (exitCode > 0) {
-                    // Non-zero process exit.
-                    exitDescription += " (code " + exitCode + ")";
-                } else if (exitCode < 0) {
-                    // Negated signal.
-                    exitDescription += " (signal " + (-exitCode) + ")";
+            } else if (msg.what == MSG_TITLE_CHANGED) {
+                mChangeCallback.onTitleChanged(TerminalSession.this);
+            } else if (msg.what == MSG_CLIPBOARD_TEXT) {
+                mChangeCallback.onClipboardText(TerminalSession.this, (String) msg.obj);
+            } else if (msg.what == MSG_BELL) {
+                mChangeCallback.onBell(TerminalSession.this);
+            } else if (msg.what == MSG_CONTINUE_REFLOW) {
+                boolean reflowPending;
+                synchronized (mEmulator) {
+                    mEmulator.continueReflow(REFLOW_SLICE_ROWS);
+                    reflowPending = mEmulator.isReflowPending();
                 }
-                exitDescription += "]";
-
-                byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
-                mEmulator.append(bytesToWrite, bytesToWrite.length);
+                publishSnapshot();
+                notifyScreenUpdate();
+                if (reflowPending) sendEmptyMessage(MSG_CONTINUE_REFLOW);
+            } else if (msg.what == MSG_PROCESS_EXITED) {
+                // The emulator thread has appended the remaining output and the exit description.
+                cleanupResources((Integer) msg.obj);
+                publishSnapshot();
                 notifyScreenUpdate();
                 mChangeCallback.onSessionFinished(TerminalSession.this);
             }
@@ -165,10 +218,116 @@ public final class TerminalSession extends TerminalOutput {
             initializeEmulator(columns, rows);
         } else {
             JNI.setPtyWindowSize(mTerminalFileDescriptor, rows, columns);
-            mEmulator.resize(columns, rows);
+            boolean reflowPending;
+            synchronized (mEmulator) {
+                mEmulator.resize(columns, rows);
+                reflowPending = mEmulator.isReflowPending();
+            }
+            publishSnapshot();
+            // Reflow the history above the screen a slice at a time, so that resizing stays responsive:
+            if (reflowPending && !mMainThreadHandler.hasMessages(MSG_CONTINUE_REFLOW)) {
+                mMainThreadHandler.sendEmptyMessage(MSG_CONTINUE_REFLOW);
+            }
+        }
+    }
+
+    /**
+     * Keep all lines scrolling out of the transcript in the specified file, replacing it, or only as many as
+     * {@link #setTranscriptRows(int)} allows compressed in memory if null, as is done by default. The lines already
+     * scrolled out are moved over, as far as they are kept. See {@link ScrollbackFile}.
+     */
+    public void setScrollbackFile(File file) {
+        // A new scrollback file would replace the one the lines are moved from:
+        if (Objects.equals(file, mScrollbackFile)) return;
+        mScrollbackFile = file;
+        if (mEmulator != null) {
+            synchronized (mEmulator) {
+                mEmulator.setScrollback(createScrollback());
+            }
+            publishSnapshot();
+        }
+    }
+
+    private Scrollback createScrollback() {
+        if (mScrollbackFile != null) {
+            try {
+                return new ScrollbackFile(mScrollbackFile);
+            } catch (IOException e) {
+                Log.e(EmulatorDebug.LOG_TAG, "cannot create scrollback file " + mScrollbackFile, e);
+            }
+        }
+        return new CompressedScrollback(getCompressedTranscriptRows());
+    }
+
+    /** The number of rows of history kept compressed, before the ones kept as rows, unless they are kept in a file. */
+    private int getCompressedTranscriptRows() {
+        return Math.max(0, mTranscriptRows - TRANSCRIPT_ROWS);
+    }
+
+    /**
+     * Keep about the specified number of rows of history, of which at most the last {@value #TRANSCRIPT_ROWS} are kept
+     * as rows and the ones before them compressed. Does not limit the rows kept in a file.
+     */
+    public void setTranscriptRows(int rows) {
+        mTranscriptRows = rows;
+        if (mEmulator != null && mScrollbackFile == null) {
+            synchronized (mEmulator) {
+                mEmulator.setMaxScrollbackRows(getCompressedTranscriptRows());
+            }
+            publishSnapshot();
         }
     }
 
+    /**
+     * Drop the oldest history when it takes more than the specified number of bytes of memory, or 0 to not limit it.
+     * See {@link TerminalBuffer#setMemoryBudget(long)}.
+     */
+    public void setMemoryBudget(long bytes) {
+        mMemoryBudget = bytes;
+        if (mEmulator != null) {
+            synchronized (mEmulator) {
+                mEmulator.setMemoryBudget(bytes);
+            }
+            publishSnapshot();
+        }
+    }
+
+    /** Limit the memory taken by images, see {@link TerminalEmulator#setImageMemoryBudget(long)}. */
+    public void setImageMemoryBudget(long bytes) {
+        mImageMemoryBudget = bytes;
+        if (mEmulator != null) {
+            synchronized (mEmulator) {
+                mEmulator.setImageMemoryBudget(bytes);
+            }
+            publishSnapshot();
+        }
+    }
+
+    /**
+     * Shrink the history and drop images as the system asks to release memory, see
+     * {@link ComponentCallbacks2#onTrimMemory(int)}.
+     */
+    public void trimMemory(int level) {
+        if (mEmulator == null) return;
+        // The part of the memory to keep, as a shift of the memory used:
+        final int shift;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            shift = 3;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            shift = 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            shift = 1;
+        } else {
+            return;
+        }
+        synchronized (mEmulator) {
+            mEmulator.trimHistory(mEmulator.getMemoryUsage() >> shift);
+            mEmulator.trimImages(mEmulator.getImageMemoryUsage() >> shift);
+        }
+        // Let go of the rows and images dropped, which the current snapshot still refers to:
+        publishSnapshot();
+    }
+
     /** The terminal title as set through escape sequences or null if none set. */
     public String getTitle() {
         return (mEmulator == null) ? null : mEmulator.getTitle();
@@ -181,7 +340,12 @@ public final class TerminalSession extends TerminalOutput {
      * @param rows    The number of rows in the terminal window.
      */
     public void initializeEmulator(int columns, int rows) {
-        mEmulator = new TerminalEmulator(this, columns, rows, /* transcript= */5000);
+        mEmulator = new TerminalEmulator(this, columns, rows, TRANSCRIPT_ROWS);
+        mEmulator.setIncrementalReflow(true);
+        mEmulator.setScrollback(createScrollback());
+        if (mMemoryBudget > 0) mEmulator.setMemoryBudget(mMemoryBudget);
+        if (mImageMemoryBudget > 0) mEmulator.setImageMemoryBudget(mImageMemoryBudget);
+        publishSnapshot();
 
         int[] processId = new int[1];
         mTerminalFileDescriptor = JNI.createSubprocess(mArgs, mEnv, processId, rows, columns);
@@ -198,7 +362,6 @@ public final class TerminalSession extends TerminalOutput {
                         int read = termIn.read(buffer);
                         if (read == -1) return;
                         if (!mProcessToTerminalIOQueue.write(buffer, 0, read)) return;
-                        mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
                     }
                 } catch (Exception e) {
                     // Ignore, just shutting down.
@@ -206,6 +369,13 @@ public final class TerminalSession extends TerminalOutput {
             }
         }.start();
 
+        new Thread("TermSessionEmulator[pid=" + mShellPid + "]") {
+            @Override
+            public void run() {
+                appendProcessOutput();
+            }
+        }.start();
+
         new Thread("TermSessionOutputWriter[pid=" + mShellPid + "]") {
             @Override
             public void run() {
@@ -225,13 +395,55 @@ public final class TerminalSession extends TerminalOutput {
         new Thread("TermSessionWaiter[pid=" + mShellPid + "]") {
             @Override
             public void run() {
-                int processExitCode = JNI.waitFor(mShellPid);
-                mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, processExitCode));
+                finishProcessOutput(JNI.waitFor(mShellPid));
             }
         }.start();
 
     }
 
+    /**
+     * Append the output of the process to the emulator, run by the emulator thread. Once the process has exited, the
+     * output still queued is appended before the exit description, and only then is the main thread told of the exit.
+     */
+    void appendProcessOutput() {
+        final byte[] buffer = new byte[4096];
+        while (true) {
+            int bytesRead = mProcessToTerminalIOQueue.read(buffer, true);
+            if (bytesRead == -1) break;
+            synchronized (mEmulator) {
+                mEmulator.append(buffer, bytesRead);
+            }
+            // A pending message will see this input, as the snapshot is taken when it is handled.
+            if (!mMainThreadHandler.hasMessages(MSG_NEW_INPUT)) {
+                mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
+            }
+        }
+        if (!mProcessToTerminalIOQueue.isFinished()) return;
+
+        final int exitCode = mProcessExitCode;
+        String exitDescription = "\r\n[Process completed";
+        if (exitCode > 0) {
+            // Non-zero process exit.
+            exitDescription += " (code " + exitCode + ")";
+        } else if (exitCode < 0) {
+            // Negated signal.
+            exitDescription += " (signal " + (-exitCode) + ")";
+        }
+        exitDescription += "]";
+
+        byte[] bytesToWrite = exitDescription.getBytes(StandardCharsets.UTF_8);
+        synchronized (mEmulator) {
+            mEmulator.append(bytesToWrite, bytesToWrite.length);
+        }
+        mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_PROCESS_EXITED, exitCode));
+    }
+
+    /** Called when the process has exited, after which no more output is queued for {@link #appendProcessOutput()}. */
+    void finishProcessOutput(int exitCode) {
+        mProcessExitCode = exitCode;
+        mProcessToTerminalIOQueue.finish();
+    }
+
     /** Write data to the shell process. */
     @Override
     public void write(byte[] data, int offset, int count) {
@@ -275,18 +487,67 @@ public final class TerminalSession extends TerminalOutput {
         write(mUtf8InputBuffer, 0, bufferPosition);
     }
 
+    /**
+     * The emulator of this session. It is concurrently updated by the emulator thread, so reading its screen requires
+     * holding its lock; prefer {@link #getSnapshot()} for that.
+     */
     public TerminalEmulator getEmulator() {
         return mEmulator;
     }
 
+    /** The state of the terminal as of the last screen update, or null if the emulator has not been initialized. */
+    public TerminalSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /** Replace the snapshot returned by {@link #getSnapshot()} with the current state of the emulator. */
+    private void publishSnapshot() {
+        synchronized (mEmulator) {
+            mSnapshot = mEmulator.takeSnapshot();
+        }
+    }
+
+    /**
+     * Start or stop recording which escape sequences the emulator spends its time on.
+     *
+     * @param capacity the number of last sequences to keep, or 0 to stop recording.
+     */
+    public void setSequenceTraceCapacity(int capacity) {
+        if (mEmulator == null) return;
+        synchronized (mEmulator) {
+            mEmulator.setSequenceTrace(capacity > 0 ? new SequenceTrace(capacity) : null);
+        }
+    }
+
+    /** A report of the time spent per class of escape sequences since tracing started, or null if not tracing. */
+    public String getSequenceTraceReport() {
+        if (mEmulator == null) return null;
+        synchronized (mEmulator) {
+            SequenceTrace trace = mEmulator.getSequenceTrace();
+            return trace == null ? null : trace.getReport();
+        }
+    }
+
     /** Notify the {@link #mChangeCallback} that the screen has changed. */
     protected void notifyScreenUpdate() {
-        mChangeCallback.onTextChanged(this);
+        TerminalSnapshot snapshot = mSnapshot;
+        if (snapshot != null && snapshot.follows(mNotifiedSnapshot)) {
+            mChangeCallback.onTextChanged(this, snapshot.getDamageTop(), snapshot.getDamageLeft(),
+                snapshot.getDamageBottom(), snapshot.getDamageRight(), snapshot.getScrollDelta());
+        } else if (snapshot != null) {
+            mChangeCallback.onTextChanged(this, 0, 0, snapshot.mRows, snapshot.mColumns, 0);
+        } else {
+            mChangeCallback.onTextChanged(this);
+        }
+        mNotifiedSnapshot = snapshot;
     }
 
     /** Reset state for terminal emulator state. */
     public void reset(boolean erase) {
-        mEmulator.reset(erase);
+        synchronized (mEmulator) {
+            mEmulator.reset(erase);
+        }
+        publishSnapshot();
         notifyScreenUpdate();
     }
 
@@ -316,7 +577,7 @@ public final class TerminalSession extends TerminalOutput {
 
     @Override
     public void titleChanged(String oldTitle, String newTitle) {
-        mChangeCallback.onTitleChanged(this);
+        mMainThreadHandler.sendEmptyMessage(MSG_TITLE_CHANGED);
     }
 
     public synchronized boolean isRunning() {
@@ -330,12 +591,17 @@ public final class TerminalSession extends TerminalOutput {
 
     @Override
     public void clipboardText(String text) {
-        mChangeCallback.onClipboardText(this, text);
+        mMainThreadHandler.sendMessage(mMainThreadHandler.obtainMessage(MSG_CLIPBOARD_TEXT, text));
     }
 
     @Override
     public void onBell() {
-        mChangeCallback.onBell(this);
+        mMainThreadHandler.sendEmptyMessage(MSG_BELL);
+    }
+
+    @Override
+    public void onScreenChanged() {
+        if (!mMainThreadHandler.hasMessages(MSG_NEW_INPUT)) mMainThreadHandler.sendEmptyMessage(MSG_NEW_INPUT);
     }
 
     public int getPid() {
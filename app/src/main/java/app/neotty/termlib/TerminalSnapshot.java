@@ -0,0 +1,172 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import java.util.Arrays;
+
+/**
+ * The state of a {@link TerminalEmulator} needed for drawing it and selecting text, as of a point in time.
+ * <p>
+ * A snapshot is not changed when the emulator processes more input, so it can be read on the main thread without
+ * locking while the emulator runs on its own thread. See {@link TerminalEmulator#takeSnapshot()}.
+ * <p>
+ * Each snapshot knows the part of the screen which differs from the snapshot taken before it, so that only that part
+ * needs to be drawn again. See {@link #getDamageTop()} and {@link #getScrollDelta()}.
+ */
+public final class TerminalSnapshot {
+
+    /** The number of rows and columns of the screen. */
+    public final int mRows, mColumns;
+
+    /** A copy of {@link TerminalColors#mCurrentColors}. */
+    public final int[] mCurrentColors;
+
+    private final TerminalBuffer mScreen;
+    private final int mCursorRow, mCursorCol, mCursorStyle;
+    private final boolean mShowingCursor, mReverseVideo, mAlternateBufferActive;
+    private final int mScrollCounter;
+
+    /** The emulator this is a snapshot of, and the number of snapshots taken of it before this one. */
+    private final TerminalEmulator mEmulator;
+    private final int mNumber;
+    /** The rectangle of cells which differ from the previous snapshot, empty if mDamageTop == mDamageBottom. */
+    private int mDamageTop, mDamageBottom, mDamageLeft, mDamageRight;
+
+    TerminalSnapshot(TerminalEmulator emulator, TerminalBuffer screen, int scrollCounter, TerminalSnapshot previous) {
+        mRows = emulator.mRows;
+        mColumns = emulator.mColumns;
+        mCurrentColors = emulator.mColors.mCurrentColors.clone();
+        mScreen = screen;
+        mCursorRow = emulator.getCursorRow();
+        mCursorCol = emulator.getCursorCol();
+        mCursorStyle = emulator.getCursorStyle();
+        mShowingCursor = emulator.isShowingCursor();
+        mReverseVideo = emulator.isReverseVideo();
+        mAlternateBufferActive = emulator.isAlternateBufferActive();
+        mScrollCounter = scrollCounter;
+        mEmulator = emulator;
+        mNumber = (previous == null) ? 0 : previous.mNumber + 1;
+
+        if (previous == null || previous.mRows != mRows || previous.mColumns != mColumns
+            || previous.mAlternateBufferActive != mAlternateBufferActive || previous.mReverseVideo != mReverseVideo
+            || !Arrays.equals(previous.mCurrentColors, mCurrentColors)) {
+            addDamage(0, mRows, 0, mColumns);
+            return;
+        }
+        for (int row = 0; row < mRows; row++) {
+            int start = screen.getDamageStartColumn(row), end = screen.getDamageEndColumn(row);
+            if (start < end) addDamage(row, row + 1, start, end);
+        }
+        int scrollDelta = screen.getScrollDelta();
+        if (scrollDelta != 0 || previous.mCursorRow != mCursorRow || previous.mCursorCol != mCursorCol
+            || previous.mShowingCursor != mShowingCursor || previous.mCursorStyle != mCursorStyle) {
+            // The cursor is drawn over a cell, which may be the first half of a wide character:
+            int previousCursorRow = previous.mCursorRow - scrollDelta;
+            if (previous.mShowingCursor && previousCursorRow >= 0)
+                addDamage(previousCursorRow, previousCursorRow + 1, previous.mCursorCol, previous.mCursorCol + 2);
+            if (mShowingCursor) addDamage(mCursorRow, mCursorRow + 1, mCursorCol, mCursorCol + 2);
+        }
+    }
+
+    private void addDamage(int top, int bottom, int left, int right) {
+        right = Math.min(right, mColumns);
+        if (mDamageTop == mDamageBottom) {
+            mDamageTop = top;
+            mDamageBottom = bottom;
+            mDamageLeft = left;
+            mDamageRight = right;
+        } else {
+            mDamageTop = Math.min(mDamageTop, top);
+            mDamageBottom = Math.max(mDamageBottom, bottom);
+            mDamageLeft = Math.min(mDamageLeft, left);
+            mDamageRight = Math.max(mDamageRight, right);
+        }
+    }
+
+    /** The screen and transcript, which must only be read. */
+    public TerminalBuffer getScreen() {
+        return mScreen;
+    }
+
+    public int getCursorRow() {
+        return mCursorRow;
+    }
+
+    public int getCursorCol() {
+        return mCursorCol;
+    }
+
+    /** {@link TerminalEmulator#CURSOR_STYLE_BAR}, {@link TerminalEmulator#CURSOR_STYLE_BLOCK} or {@link TerminalEmulator#CURSOR_STYLE_UNDERLINE} */
+    public int getCursorStyle() {
+        return mCursorStyle;
+    }
+
+    public boolean isShowingCursor() {
+        return mShowingCursor;
+    }
+
+    public boolean isReverseVideo() {
+        return mReverseVideo;
+    }
+
+    public boolean isAlternateBufferActive() {
+        return mAlternateBufferActive;
+    }
+
+    /** The number of lines scrolled into the transcript since the previous snapshot was taken. */
+    public int getScrollCounter() {
+        return mScrollCounter;
+    }
+
+    /** If this snapshot was taken right after the specified one, so that the damage is relative to it. */
+    public boolean follows(TerminalSnapshot previous) {
+        return previous != null && previous.mEmulator == mEmulator && previous.mNumber + 1 == mNumber;
+    }
+
+    /**
+     * The first row of the rectangle of cells which differ from the previous snapshot, after scrolling the previous
+     * snapshot up by {@link #getScrollDelta()} rows. The rectangle is empty if this is equal to {@link #getDamageBottom()}.
+     */
+    public int getDamageTop() {
+        return mDamageTop;
+    }
+
+    /** One after the last row of the damaged rectangle, see {@link #getDamageTop()}. */
+    public int getDamageBottom() {
+        return mDamageBottom;
+    }
+
+    /** The first column of the damaged rectangle, see {@link #getDamageTop()}. */
+    public int getDamageLeft() {
+        return mDamageLeft;
+    }
+
+    /** One after the last column of the damaged rectangle, see {@link #getDamageTop()}. */
+    public int getDamageRight() {
+        return mDamageRight;
+    }
+
+    /** The number of rows the whole screen has scrolled up since the previous snapshot, see {@link #getDamageTop()}. */
+    public int getScrollDelta() {
+        return mScreen.getScrollDelta();
+    }
+
+    public String getSelectedText(int x1, int y1, int x2, int y2) {
+        return mScreen.getSelectedText(x1, y1, x2, y2);
+    }
+
+}
@@ -19,7 +19,7 @@ package app.neotty.termlib;
 /**
  * <p>
  * Encodes effects, foreground and background colors into a 64 bit long, which are stored for each cell in a terminal
- * row in {@link TerminalRow#mStyle}.
+ * row, see {@link TerminalRow#getStyle(int)}.
  * </p>
  * <p>
  * The bit layout is:
@@ -51,8 +51,6 @@ public final class TextStyle {
     private final static int CHARACTER_ATTRIBUTE_TRUECOLOR_FOREGROUND = 1 << 9;
     /** If true (24-bit) color is used for the cell for foreground. */
     private final static int CHARACTER_ATTRIBUTE_TRUECOLOR_BACKGROUND= 1 << 10;
-    /** If true, character represents a bitmap slice, not text. */
-    public final static int BITMAP = 1 << 15;
 
     public final static int COLOR_INDEX_FOREGROUND = 256;
     public final static int COLOR_INDEX_BACKGROUND = 257;
@@ -104,8 +102,4 @@ public final class TextStyle {
     public static int decodeEffect(long style) {
         return (int) (style & 0b11111111111);
     }
-
-    public static boolean decodeBitmap(long style) {
-        return (style & 0x8000) != 0;
-    }
 }
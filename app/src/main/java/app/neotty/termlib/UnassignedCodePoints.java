@@ -0,0 +1,304 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The code points which are unassigned or surrogates in Unicode 17.0.0, and so are replaced when decoding input.
+ * <p>
+ * Generated by scripts/generate-wcwidth.py from the Unicode character database, do not edit.
+ */
+final class UnassignedCodePoints {
+
+    /** The number of bits of a code point which select a code point within a page. */
+    private static final int PAGE_SHIFT = 8;
+
+    /** The index in {@link #LEAVES} of the bits of each page of code points, as an unsigned byte. */
+    private static final byte[] PAGES = toBytes(
+            "\000\000\000\001\000\002\000\003\004\005\006\007\010\011\012\013\014\000\015\016\000\000\017\020\021"
+            + "\022\023\024\025\000\000\026\027\030\000\000\031\000\000\000\000\000\000\032\033\034\035\036\037 !\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\042\000#$%&'(\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000)********\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000+,\000-./012345\0006789:;<=>?@ABCDEFGHIJKLMN\000\000\000OPQ"
+            + "*********R\000\000\000\000S\000\000\000\000\000\000\000\000\000\000\000\000\000\000T\000\000U**********"
+            + "****************V******\000\000WX*YZ[\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\134]*********************************^\000_`*********a"
+            + "***************b\000cdefghijkl\000\000m****nopq*rstuvw**xyz*{|}\000\000\000~\177\200\000\201\202****"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\203\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\204\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\205\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\206\000\000\207*********\000\000\210*****\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\211\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\212***********"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "**************************************************************************\213\214*********************"
+            + "*******************************************************************************************************"
+            + "*******************************************************************************************************"
+            + "***************************\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\215\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\215");
+
+    /** The bits of the code points of each distinct page, set if unassigned or a surrogate, lowest first. */
+    private static final byte[] LEAVES = toBytes(
+            "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\003\017(\000"
+            + "\000\004\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\001\000\000\000\200\001"
+            + "\000\000\000\000\000\030\001\000\000\000\000\000\000\377\000\000\000x\340\377\000@\000\000\000\000\000"
+            + "\000\000\030\000\000\000\000\000\000\000\000\000\000\000\000\374\377\000\000\000\000\000\000\000\030"
+            + "\000\000\000\000\000\300\000\200\000\000\000\260\000\370\000\000\000\000|\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\020`\006\000"
+            + "\000\002:\014`\206\177O0\000\000\200\021x\006\000\000\002\222,x\306\375\241?\000\200\377\021@\004\000"
+            + "\000\002\022\014@\304\376\3770\000\374\001\021`\006\000\000\002\022\014`\306\037O0\000\000\377\0238\302"
+            + ")\3478\000<8\302~\377?\000\000\370\000 \002\000\000\002\000\014 \302\237\3100\000\177\000\000 \002\000"
+            + "\000\002\020\014 \302\237\2170\000\361\377\000 \002\000\000\000\000\000 \002\017\0000\000\000\000\021"
+            + "\000\200\003\000\000\004\320\200{\240\000?\000\343\377\001\000\000\000\000\000\000x\000\000\000\360\377"
+            + "\377\377\377)\010\000\000P\000\000\300\240\200\000\014\377\377\377\377\000\000\000\000\000\000\000\000"
+            + "\000\001\000\000\000\340\001\000\000\000\000\001\000\000\000 \000 \000\370\377\377\377\377\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000@\337\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\302\200\302\000\000\000\000\000\302\000\000\000\000"
+            + "\302\200\302\000\200\000\000\000\000\000\000\000\302\000\000\000\000\000\000\000\000\030\000\000\000"
+            + "\340\000\000\000\374\000\000\000\000\000\000\000\000\000\000\300\300\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\340\000\000\000\000\000\000\000\000\000\000\000\376\000"
+            + "\000\300\177\000\000\200\377\000\000\360\377\000 \362\377\000\000\000\000\000\000\000\000\000\000\000"
+            + "\300\000\374\000\374\000\000\000\374\000\000\000\000\000\000\000\000\000\000\000\376\000\000\000\000"
+            + "\000\370\000\000\000\000\000\000\000\000\300\377\000\000\000\200\000\360\000\360\016\000\000\000\000"
+            + "\300\340\377\000\000\000\000\000\360\000\000\000\374\0008\000\000\000\000\000\000\0000\000\000\000\000"
+            + "\000\000\000\200\000\000\000`\000\374\000\374\000\300\000\000\000\000\000\300\000\360\377\377\000\000"
+            + "\000\000\000\000\000\000\000 \000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\360\017\000\000\000\000\000\000\000\007\000\034\000\000\000\000\000\000\000\370\000\000\000"
+            + "\000\000\030\000\377\000\000\000\000\000\370\000\000\300\300\000\000\000\000\300\300\000U\000\000\000"
+            + "\300\000\000\000\000\000\000 \000 \0000\020\000\000#\200\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000 \000\014\000\000\200\000\340\000\000\000\000\374\377\000\000\000\000\376\377\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\360\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\374\377\377\000\370\377\377\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\0000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\360\001\000\000\000"
+            + "\000@\337\000\000\000\000\000\000\000\177\376\177\000\000\200\377\200\200\200\200\200\200\200\200\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\300\377\377\377\377\000\000\000\004\000\000"
+            + "\000\000\000\000\000\000\000\000\360\377\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\300\377\377\377\000\000\000\000\000\000\000\000\000\000"
+            + "\001\000\000\000\000\000\000\000\000\000\200\001\000\000\000\000\000\000\000\000\000\000\000\000\037"
+            + "\000\000\000\000\000\001\000\000\000\000\000\000\000\000\000\000\200\000\000\000\000\000\000\000\000"
+            + "\000\000\300\177\000\000\000\000\000\200\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\340\000\000\000\000\000\000\200\377\000\000\000\000\000\000\000\000\000\000\000"
+            + "\360\377\377\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\377\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\340\377\377\001\000\000\000\000\000\000\340\000\374\000\000\000\000\000\000\000\377"
+            + "\000\000\000\000\000\000\000\000\300?\000\374\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\360\177\000\000\000\340\000\000\000\000\000\000\000\000\000@\000<\000\000\000\200\000\000\000\000\000"
+            + "\000\200\377\000\300\000\014\000\000\000\000\000\000\000\000\000\000\000\000\370\377\377\007\000\000"
+            + "\200\377\201\201\201\377\200\200\000\000\000\000\000\000\000\360\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\300\000\374\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\360\377\000\000\200\007\000\000\000\000\000\360\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\300\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\374\377\377\377\377\200\377\007\037\000\000\200\240$\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\377\377\377\377\000\000\000\000\000\374\000\000\000"
+            + "\000\000\000\010\000\200\360 \000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000`\001\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\200\003\003\003"
+            + "\343\200\200\377\301\000\020\000\000\200\000\000H\000\300\000\300\377\377\377\377\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\370x\000\000\000\000\000p\000\000\000\000\000\000\000\000\000"
+            + "\000\200\000\340\376\377\377\377\377\377\000\000\000\000\000\300\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\377\377\377\377\000\000\000\340\000\000\000\000\000\000\376\377\000\000\000\360\000\000"
+            + "\000\000\360\037\000\000\000\370\000\000\000\000\000\370\000\000\000@\000\000\000\000\360\000\300\377"
+            + "\377\377\377\377\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\300\000"
+            + "\374\000\000\000\000\360\000\000\000\000\360\000\000\000\000\000\377\000\000\000\000\000\000\360\177"
+            + "\000\010\000\010H\000\004\000\004\344\000\000\000\000\000\000\360\377\000\000\000\000\000\000\200\377"
+            + "\000\000\300\377\000\377\377\377@\000\000\000\000\000\002\370\377\377\377\377\377\377\377\377\300\002"
+            + "\000\000\000\000@n\000\000@\000\000\000\000\000\000\000\000\200\177\000\377\377\377\377\377\377\000\000"
+            + "\310\007\000\000\000p\000\000\000|\000\000\000\374\377\377\377\377\000\000\000\000\000\000\000\017\000"
+            + "\000\003\000\000\000\000\000\220\017\020\001\000\000\300x\000\376\000\376\000\000\000\000\000\000\000"
+            + "\000\377\377\377\377\000\000\000\000\200\007\200\377\000\000\000\000\000\000\300\001\000\000\300\000"
+            + "\000\000\370\000\000\000\374\341\377\001\377\377\377\377\377\377\377\377\377\377\000\000\000\000\000"
+            + "\000\000\000\000\376\377\377\377\377\377\377\000\000\000\000\000\000\370\377\000\000\000\000\000\000"
+            + "\370\003\000\000\000\000\000\377\000\374\000\000\000\000\300\001\000\000\300?\377\377\377\377\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\000\000\000\200\000"
+            + "\000\000\000\000\304\374\377\003\377\000\376\377\377\377\003\000\000\000\000\000\377\000\000\000\000"
+            + "\000\374\377\377\000\000\000\374\377\377\377\377\000\000\000\360\377\377\000\000\200\377\000\000\000"
+            + "\000\000\000\000\000\000\300\003\000\000\000\300\177\000\000\000\000\000\000\000\000\370\337\000\000"
+            + "\000\376\000\374\000\000\000\000\000\000 \000\000\377\000\000\000\000\200\377\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\001\000\340\377\000\000\004\000\000\000\000\000\374\377\377\377\377\377\377"
+            + "\377\200B\000@\000\374\000\000\000\000\000\000\000\370\000\374\020`\006\000\000\002\022\004`\306~\0370"
+            + "\340\340\377\000\264\000\000\000\000@\000Z\010@\376\371\377\377\377\000\000\000\000\000\000\000\000\000"
+            + "\000\000\020\374\377\377\377\000\000\000\000\000\000\000\000\000\377\000\374\377\377\377\377\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\377\377\377\000\000\000\000\000\000\300\000\000\000\000"
+            + "\300\377\377\377\377\000\000\000\000\000\000\000\000\340\377\000\374\000\340\377\377\000\000\000\000"
+            + "\000\000\000\374\000\374\000\000\360\377\377\377\000\000\000\030\000\360\000\000\200\377\377\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\000\000\000\000\000\000"
+            + "\000\360\377\377\377\377\377\377\377\377\377\377\377\377\000\000\000\000\000\000\000\000\000\000\370"
+            + "\177\200\015\220\000\000\000@\006\200\377\000\374\377\377\377\377\377\377\377\377\000\003\000\000\000"
+            + "\000\000\003\340\377\377\377\000\000\000\000\000\000\000\000\000\377\000\000\000\000\000\000\000\000"
+            + "\000\000\370\377\000\000\000\000\000\000\000\000\000\376\000\374\377\377\377\377\377\377\377\377\377"
+            + "\377\000\377\377\377\377\377\377\377\377\377\377\377\000\000\000\000\374\377\000\374\000\002\000\000"
+            + "\000\000\200\000\300\377\000\000\000\340\000\000\000\000\003\000\000\001\200\377\377\377\377\377\377"
+            + "\377\377\377\200\004\000\000\000\000\200K\000\377\000\374@\002\000\000\000\200\004\376\000\374\000\000"
+            + "\000\000\000\360\000\374\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\000\000\000\376\000\000\002\000\000\000\0008\000\000\000"
+            + "\370\377\377\377\377\377\377\377\377\377\377\376\377\000\000\000\000\000\000\374\177\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\374\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\000\000\000\000\000\000\000\000\000\000\000\000\000\200\340\377\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\360\377\377\377\377\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\000\000\000\000\000\000\000\000\000\000\000\000\370\377\000"
+            + "\000\000\000\000\000\000\000\000\000\300\377\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\370\000\000\000\000\000\000\000\000\200\377\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\000\000\000\000\000"
+            + "\000\000\374\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\377\000\000\000\000\000\000\000\376\000\000\000\200\000<\000\000\000\000\000\000\000\000\000\200"
+            + "\000\374\000\000\000\300\300\377\000\000\000\000\000\000\000\000\300\377\000\004\004\000\000\037\000"
+            + "\000\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\000\000"
+            + "\000\000\000\000\000\374\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\377\377\000\000\000\000\000\000\000\000\000\000\000\370\000\000\000\006\000\000\360\377"
+            + "\377\377\377\377\000\000\000\000\000\000\000\000\000x\000\000\000\000\000\000\000\177\000\000\377\377"
+            + "\377\377\377\377\377\377\340\377\200\377\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\300\377\377\377\377\177\000\000\000\200\377\377\377\377"
+            + "\377\377\377\377\377\377\377\377\000\000\000\000\000\000\000\000\000\000\000\000\000\000\370\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\377\020\220\000\000\000\000\370\377\373\377\377\377\330\377\017\377\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\360\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\370\000\340\000\376\000\014\360\377\377\377\377\377\377\377\377\377"
+            + "\377\377\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\340\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\360\003\000\000\376\377\000\000\376\377\000\000\000\000\000\300\000\000\200"
+            + "\377\000\000\000\000\000\000\000\000\000\000\000\000\000\000\360\377\377\377\377\377\377\377\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\300\377\000\000\000\000\200\001\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\370\377\377\000\000\000\000\000\000\000\000\300\377\377\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\000\000\360\377\000\000\360\377\000\000\000\000\000\000"
+            + "\000\000\000\000\200\377\000\000\000\376\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\000\000\000\000\000\000\000\000\000\000 \000\000\000\000\000\000\000\000 \233!\000\024\020\000\000"
+            + "\000\000\000\000\000@\030  \000\000\000\204\240\003\002\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\300\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\0000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\360\377\007\001\000\377\377\377\377\377\377"
+            + "\377\377\377\377\000\000\000\200\037\370\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\200\000\000\006$\370\000\000\000\000\000\000\000\300\377"
+            + "\377\377\177\377\377\377\377\377\377\377\377\377\377\377\377\377\377\000\000\000\000\000\340\000\300"
+            + "\000<\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\000\000\000\200\377\377\000\000\000"
+            + "\000\000\000\000|\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\377\377\000\000\000\000\000\374\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\377\000\000\000\000\000x\377\377\377\377\377\377\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\000\000\000\200\000\000\300?\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\200\220\000\200\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000`\000\200\377\377\377\377\377\000\000\000\000\000\000\000\000\000\360\000<\377\377\377"
+            + "\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\377\377\377\001\000\000\000\000\000\000\000\340\377\377\377\377\377\377\377\377\377\001"
+            + "\000\000\000\000\000\000\300\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\377\377\377\020\000\000\000i\001\010\365{\025iUi\010\010\241\000\004\000\360\021\004\000"
+            + "\360\377\377\377\377\377\377\374\377\000\000\000\000\000\360\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\360\377\000\200\001\000\001\000\001\000\000\000\300\377\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\300\377\377\377\377\377\377?\000\000\000\370\377\000"
+            + "\000\000\000\000\360\000\376\374\377\300\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\377\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\016\000\340\000\340\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\374\000\360\376\377\000\360\000\000\000\000\000"
+            + "\000\000\377\000\374\000\000\000\000\000\377\000\000\000\300\000\360\374\377\000\376\377\377\377\377"
+            + "\000\000\000\000\000\000\000\000\000\000\000\377\000\300\000\340\0008\000\000\000\000\000\000\200\036"
+            + "\000`\000x\000\376\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\010\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\370\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\377\377\377\377\000\000\000\300\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\300\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\376\377\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\300\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\000\000\000\300"
+            + "\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377"
+            + "\377\377\377\000\000\000\000\000\000\000\000\000\370\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\374\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\375\377\377\377\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\377\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\377\377\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000\000"
+            + "\000\000\000\000\000\000\000\000\000\000\000\000\300");
+
+    /** The bytes of a string holding a byte per char, which is shorter than an array initializer in a class file. */
+    private static byte[] toBytes(String chars) {
+        return chars.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /** If the code point is unassigned, a surrogate or outside of the range of code points. */
+    static boolean contains(int codePoint) {
+        final int page = codePoint >>> PAGE_SHIFT;
+        if (page >= PAGES.length) return true;
+        final int leaf = (PAGES[page] & 0xFF) << (PAGE_SHIFT - 3);
+        return ((LEAVES[leaf | ((codePoint & ((1 << PAGE_SHIFT) - 1)) >> 3)] >> (codePoint & 7)) & 1) != 0;
+    }
+
+}
@@ -20,11 +20,14 @@ import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
+import android.graphics.Rect;
 import android.graphics.RectF;
 import android.graphics.Typeface;
 
+import app.neotty.termlib.ImagePlacement;
 import app.neotty.termlib.TerminalBuffer;
 import app.neotty.termlib.TerminalEmulator;
+import app.neotty.termlib.TerminalSnapshot;
 import app.neotty.termlib.TerminalRow;
 import app.neotty.termlib.TextStyle;
 import app.neotty.termlib.WcWidth;
@@ -54,6 +57,22 @@ final class TerminalRenderer {
 
     private final float[] asciiMeasures = new float[127];
 
+    /** The part of the canvas being drawn, so that rows outside of it can be skipped. */
+    private final Rect mClipBounds = new Rect();
+
+    /** The same slice of an image placement on consecutive rows, which is drawn at once. */
+    private static final class ImageRun {
+        ImagePlacement.Slice mFirstSlice, mLastSlice;
+        /** The first row of the run, relative to the top row drawn, and the number of rows. */
+        int mTopRow, mRows;
+    }
+
+    /** The runs of image slices on the rows being drawn, sorted by z-order, reused from one frame to the next. */
+    private ImageRun[] mImageRuns = new ImageRun[0];
+    private int mImageRunCount;
+    private final Rect mImageSource = new Rect();
+    private final RectF mImageDestination = new RectF();
+
     TerminalRenderer(int textSize, Typeface typeface) {
         mTextSize = textSize;
         mTypeface = typeface;
@@ -75,34 +94,37 @@ final class TerminalRenderer {
     }
 
     /** Render the terminal to a canvas with at a specified row scroll, and an optional rectangular selection. */
-    public final void render(TerminalEmulator mEmulator, Canvas canvas, int topRow,
+    public final void render(TerminalSnapshot snapshot, Canvas canvas, int topRow,
                              int selectionY1, int selectionY2, int selectionX1, int selectionX2) {
-        final boolean reverseVideo = mEmulator.isReverseVideo();
-        final int endRow = topRow + mEmulator.mRows;
-        final int columns = mEmulator.mColumns;
-        final int cursorCol = mEmulator.getCursorCol();
-        final int cursorRow = mEmulator.getCursorRow();
-        final boolean cursorVisible = mEmulator.isShowingCursor();
-        final TerminalBuffer screen = mEmulator.getScreen();
-        final int[] palette = mEmulator.mColors.mCurrentColors;
-        final int cursorShape = mEmulator.getCursorStyle();
-        mEmulator.setCellSize((int)mFontWidth, (int)mFontLineSpacing);
+        final boolean reverseVideo = snapshot.isReverseVideo();
+        final int endRow = topRow + snapshot.mRows;
+        final int columns = snapshot.mColumns;
+        final int cursorCol = snapshot.getCursorCol();
+        final int cursorRow = snapshot.getCursorRow();
+        final boolean cursorVisible = snapshot.isShowingCursor();
+        final TerminalBuffer screen = snapshot.getScreen();
+        final int[] palette = snapshot.mCurrentColors;
+        final int cursorShape = snapshot.getCursorStyle();
 
         if (reverseVideo)
             canvas.drawColor(palette[TextStyle.COLOR_INDEX_FOREGROUND], PorterDuff.Mode.SRC);
 
+        canvas.getClipBounds(mClipBounds);
+        collectImages(screen, topRow, endRow);
+        drawImages(canvas, screen, columns, true);
         float heightOffset = mFontLineSpacingAndAscent;
         for (int row = topRow; row < endRow; row++) {
             heightOffset += mFontLineSpacing;
+            if (heightOffset - mFontLineSpacing >= mClipBounds.bottom || heightOffset <= mClipBounds.top) continue;
 
             final int cursorX = (row == cursorRow && cursorVisible) ? cursorCol : -1;
             int selx1 = -1, selx2 = -1;
             if (row >= selectionY1 && row <= selectionY2) {
                 if (row == selectionY1) selx1 = selectionX1;
-                selx2 = (row == selectionY2) ? selectionX2 : mEmulator.mColumns;
+                selx2 = (row == selectionY2) ? selectionX2 : columns;
             }
 
-            TerminalRow lineObject = screen.allocateFullLineIfNecessary(screen.externalToInternalRow(row));
+            TerminalRow lineObject = screen.getRow(row);
             final char[] line = lineObject.mText;
             final int charsUsedInLine = lineObject.getSpaceUsed();
 
@@ -114,30 +136,20 @@ final class TerminalRenderer {
             boolean lastRunFontWidthMismatch = false;
             int currentCharIndex = 0;
             float measuredWidthForRun = 0.f;
+            // The style of the current column, which is the same until the end of its style run:
+            long style = 0;
+            int styleRunEnd = 0;
 
             for (int column = 0; column < columns; ) {
                 final char charAtIndex = line[currentCharIndex];
                 final boolean charIsHighsurrogate = Character.isHighSurrogate(charAtIndex);
                 final int charsForCodePoint = charIsHighsurrogate ? 2 : 1;
                 final int codePoint = charIsHighsurrogate ? Character.toCodePoint(charAtIndex, line[currentCharIndex + 1]) : charAtIndex;
-                final long style = lineObject.getStyle(column);
-                if (TextStyle.decodeBitmap(style)) {
-                    Bitmap bm = mEmulator.getScreen().getSixelBitmap(codePoint, style);
-                    if (bm != null) {
-                        float left = column * mFontWidth;
-                        float top = heightOffset - mFontLineSpacing;
-                        RectF r = new RectF(left, top, left + mFontWidth, top + mFontLineSpacing);
-                        canvas.drawBitmap(mEmulator.getScreen().getSixelBitmap(codePoint, style), mEmulator.getScreen().getSixelRect(codePoint, style), r, null);
-                    }
-                    column += 1;
-                    measuredWidthForRun = 0.f;
-                    lastRunStyle = 0;
-                    lastRunInsideCursor = false;
-                    lastRunStartColumn = column;
-                    lastRunStartIndex = currentCharIndex;
-                    lastRunFontWidthMismatch = false;
-                    currentCharIndex += charsForCodePoint;
-                    continue;
+                boolean styleChanged = false;
+                if (column >= styleRunEnd) {
+                    style = lineObject.getStyle(column);
+                    styleRunEnd = lineObject.getStyleRunEnd(column);
+                    styleChanged = style != lastRunStyle;
                 }
                 final int codePointWcWidth = WcWidth.width(codePoint);
                 final boolean insideCursor = (cursorX == column || (codePointWcWidth == 2 && cursorX == column + 1));
@@ -151,11 +163,11 @@ final class TerminalRenderer {
                     currentCharIndex, charsForCodePoint);
                 final boolean fontWidthMismatch = Math.abs(measuredCodePointWidth / mFontWidth - codePointWcWidth) > 0.01;
 
-                if (style != lastRunStyle || insideCursor != lastRunInsideCursor || insideSelection != lastRunInsideSelection || fontWidthMismatch || lastRunFontWidthMismatch) {
+                if (styleChanged || insideCursor != lastRunInsideCursor || insideSelection != lastRunInsideSelection || fontWidthMismatch || lastRunFontWidthMismatch) {
                     if (column > 0) {
                         final int columnWidthSinceLastRun = column - lastRunStartColumn;
                         final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-                        int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
+                        int cursorColor = lastRunInsideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
                         boolean invertCursorTextColor = false;
                         if (lastRunInsideCursor && cursorShape == TerminalEmulator.CURSOR_STYLE_BLOCK) {
                             invertCursorTextColor = true;
@@ -184,7 +196,7 @@ final class TerminalRenderer {
 
             final int columnWidthSinceLastRun = columns - lastRunStartColumn;
             final int charsSinceLastRun = currentCharIndex - lastRunStartIndex;
-            int cursorColor = lastRunInsideCursor ? mEmulator.mColors.mCurrentColors[TextStyle.COLOR_INDEX_CURSOR] : 0;
+            int cursorColor = lastRunInsideCursor ? palette[TextStyle.COLOR_INDEX_CURSOR] : 0;
             boolean invertCursorTextColor = false;
             if (lastRunInsideCursor && cursorShape == TerminalEmulator.CURSOR_STYLE_BLOCK) {
                 invertCursorTextColor = true;
@@ -192,6 +204,71 @@ final class TerminalRenderer {
             drawTextRun(canvas, line, palette, heightOffset, lastRunStartColumn, columnWidthSinceLastRun, lastRunStartIndex, charsSinceLastRun,
                 measuredWidthForRun, cursorColor, cursorShape, lastRunStyle, reverseVideo || invertCursorTextColor || lastRunInsideSelection);
         }
+        drawImages(canvas, screen, columns, false);
+    }
+
+    /**
+     * Collect the image slices on the rows from topRow (inclusive) to endRow (exclusive) into {@link #mImageRuns},
+     * merging the slices of a placement on consecutive rows so that each placement is drawn with one bitmap.
+     */
+    private void collectImages(TerminalBuffer screen, int topRow, int endRow) {
+        int count = 0;
+        for (int row = topRow; row < endRow; row++) {
+            final ImagePlacement.Slice[] slices = screen.getRow(row).getImageSlices();
+            if (slices == null) continue;
+            for (ImagePlacement.Slice slice : slices) {
+                ImageRun run = null;
+                for (int i = 0; i < count; i++) {
+                    final ImageRun r = mImageRuns[i];
+                    if (r.mTopRow + r.mRows == row - topRow && r.mLastSlice.isContinuedBy(slice)) {
+                        run = r;
+                        break;
+                    }
+                }
+                if (run != null) {
+                    run.mLastSlice = slice;
+                    run.mRows++;
+                    continue;
+                }
+                if (count == mImageRuns.length) {
+                    final ImageRun[] runs = new ImageRun[Math.max(8, 2 * count)];
+                    System.arraycopy(mImageRuns, 0, runs, 0, count);
+                    for (int i = count; i < runs.length; i++) runs[i] = new ImageRun();
+                    mImageRuns = runs;
+                }
+                // Keep the runs sorted by z-order, and in the order they were found among the same z-order:
+                final int z = slice.mPlacement.mZ;
+                int i = count;
+                run = mImageRuns[count++];
+                while (i > 0 && mImageRuns[i - 1].mFirstSlice.mPlacement.mZ > z) {
+                    mImageRuns[i] = mImageRuns[i - 1];
+                    i--;
+                }
+                mImageRuns[i] = run;
+                run.mFirstSlice = run.mLastSlice = slice;
+                run.mTopRow = row - topRow;
+                run.mRows = 1;
+            }
+        }
+        mImageRunCount = count;
+    }
+
+    /** Draw the {@link #collectImages collected} images which are below text, or the ones which are above it. */
+    private void drawImages(Canvas canvas, TerminalBuffer screen, int columns, boolean belowText) {
+        for (int i = 0; i < mImageRunCount; i++) {
+            final ImageRun run = mImageRuns[i];
+            final ImagePlacement.Slice slice = run.mFirstSlice;
+            if ((slice.mPlacement.mZ < 0) != belowText) continue;
+            final int shownColumns = Math.min(slice.mColumns, columns - slice.mColumn);
+            if (shownColumns <= 0) continue;
+            final Bitmap bitmap = screen.getImageBitmap(slice.mPlacement, slice.mPlacementColumn, shownColumns,
+                slice.mRow, run.mRows, mImageSource);
+            if (bitmap == null) continue;
+            final float left = slice.mColumn * mFontWidth;
+            final float top = mFontLineSpacingAndAscent + run.mTopRow * mFontLineSpacing;
+            mImageDestination.set(left, top, left + shownColumns * mFontWidth, top + run.mRows * mFontLineSpacing);
+            canvas.drawBitmap(bitmap, mImageSource, mImageDestination, null);
+        }
     }
 
     private void drawTextRun(Canvas canvas, char[] text, int[] palette, float y, int startColumn, int runWidthColumns,
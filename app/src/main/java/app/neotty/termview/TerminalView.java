@@ -21,6 +21,7 @@ import android.content.ClipData;
 import android.content.ClipboardManager;
 import android.content.Context;
 import android.graphics.Canvas;
+import android.graphics.Rect;
 import android.graphics.Typeface;
 import android.os.Build;
 import android.text.Editable;
@@ -52,6 +53,7 @@ import app.neotty.termlib.KeyHandler;
 import app.neotty.termlib.TerminalBuffer;
 import app.neotty.termlib.TerminalEmulator;
 import app.neotty.termlib.TerminalSession;
+import app.neotty.termlib.TerminalSnapshot;
 
 /** View displaying and interacting with a {@link TerminalSession}. */
 public final class TerminalView extends View {
@@ -63,6 +65,10 @@ public final class TerminalView extends View {
     public TerminalSession mTermSession;
     /** Our terminal emulator whose session is {@link #mTermSession}. */
     public TerminalEmulator mEmulator;
+    /** The last snapshot of {@link #mEmulator} seen by {@link #onScreenUpdated(boolean)}. */
+    private TerminalSnapshot mLastSnapshot;
+    /** The damaged cells passed on from {@link #onScreenUpdated(int, int, int, int, int)}. */
+    private final Rect mDamage = new Rect();
 
     public TerminalRenderer mRenderer;
 
@@ -168,7 +174,7 @@ public final class TerminalView extends View {
                 if (mouseTrackingAtStartOfFling) {
                     mScroller.fling(0, 0, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.mRows / 2, mEmulator.mRows / 2);
                 } else {
-                    mScroller.fling(0, mTopRow, 0, -(int) (velocityY * SCALE), 0, 0, -mEmulator.getScreen().getActiveTranscriptRows(), 0);
+                    mScroller.fling(0, mTopRow, 0, -(int) (velocityY * SCALE), 0, 0, -mTermSession.getSnapshot().getScreen().getActiveTranscriptRows(), 0);
                 }
 
                 post(new Runnable() {
@@ -244,6 +250,7 @@ public final class TerminalView extends View {
 
         mTermSession = session;
         mEmulator = null;
+        mLastSnapshot = null;
         mCombiningAccent = 0;
 
         updateSize();
@@ -358,17 +365,19 @@ public final class TerminalView extends View {
 
     @Override
     protected int computeVerticalScrollRange() {
-        return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows();
+        return mEmulator == null ? 1 : mTermSession.getSnapshot().getScreen().getActiveRows();
     }
 
     @Override
     protected int computeVerticalScrollExtent() {
-        return mEmulator == null ? 1 : mEmulator.mRows;
+        return mEmulator == null ? 1 : mTermSession.getSnapshot().mRows;
     }
 
     @Override
     protected int computeVerticalScrollOffset() {
-        return mEmulator == null ? 1 : mEmulator.getScreen().getActiveRows() + mTopRow - mEmulator.mRows;
+        if (mEmulator == null) return 1;
+        TerminalSnapshot snapshot = mTermSession.getSnapshot();
+        return snapshot.getScreen().getActiveRows() + mTopRow - snapshot.mRows;
     }
 
     public void onScreenUpdated() {
@@ -376,14 +385,38 @@ public final class TerminalView extends View {
     }
 
     public void onScreenUpdated(boolean skipScrolling) {
+        onScreenUpdated(skipScrolling, null);
+    }
+
+    /**
+     * Update the view after the screen changed only within the specified rectangle of cells, after scrolling up by
+     * scrollDelta rows, so that only that part needs to be drawn again. See {@link TerminalSnapshot#getDamageTop()}.
+     */
+    public void onScreenUpdated(int top, int left, int bottom, int right, int scrollDelta) {
+        if (scrollDelta != 0) {
+            onScreenUpdated(true, null);
+        } else {
+            mDamage.set(left, top, right, bottom);
+            onScreenUpdated(true, mDamage);
+        }
+    }
+
+    /** Update the view, drawing again only the damaged rectangle of cells if not null and possible. */
+    private void onScreenUpdated(boolean skipScrolling, Rect damage) {
         if (mEmulator == null) return;
 
-        int rowsInHistory = mEmulator.getScreen().getActiveTranscriptRows();
+        TerminalSnapshot snapshot = mTermSession.getSnapshot();
+        // The damage is relative to the previous snapshot, so only usable if that is what is shown at the bottom:
+        if (damage != null && (mTopRow != 0 || !snapshot.follows(mLastSnapshot))) damage = null;
+        // Damage of the whole screen, as from a change of colors, includes the margins outside of the cells:
+        if (damage != null && damage.top == 0 && damage.bottom >= snapshot.mRows && damage.left == 0 && damage.right >= snapshot.mColumns) damage = null;
+        int rowsInHistory = snapshot.getScreen().getActiveTranscriptRows();
         if (mTopRow < -rowsInHistory) mTopRow = -rowsInHistory;
 
         if (isSelectingText() || mEmulator.isAutoScrollDisabled()) {
             // Do not scroll when selecting text.
-            int rowShift = mEmulator.getScrollCounter();
+            // The scroll counter of a snapshot is only to be applied once.
+            int rowShift = (snapshot == mLastSnapshot) ? 0 : snapshot.getScrollCounter();
             if (-mTopRow + rowShift > rowsInHistory) {
                 // .. unless we're hitting the end of history transcript, in which
                 // case we abort text selection and scroll to end.
@@ -413,9 +446,17 @@ public final class TerminalView extends View {
             mTopRow = 0;
         }
 
-        mEmulator.clearScrollCounter();
+        mLastSnapshot = snapshot;
 
-        invalidate();
+        if (damage == null || mTopRow != 0 || isSelectingText()) {
+            invalidate();
+        } else if (!damage.isEmpty()) {
+            // One column and pixel more on each side, for glyphs drawn outside of their cells:
+            invalidate((int) ((damage.left - 1) * mRenderer.mFontWidth),
+                damage.top * mRenderer.mFontLineSpacing + mRenderer.mFontLineSpacingAndAscent - 1,
+                (int) Math.ceil((damage.right + 1) * mRenderer.mFontWidth),
+                damage.bottom * mRenderer.mFontLineSpacing + mRenderer.mFontLineSpacingAndAscent + 1);
+        }
         if (mAccessibilityEnabled) setContentDescription(getText());
     }
 
@@ -474,7 +515,7 @@ public final class TerminalView extends View {
                 // e.g. less, which shifts to the alt screen without mouse handling.
                 handleKeyCode(up ? KeyEvent.KEYCODE_DPAD_UP : KeyEvent.KEYCODE_DPAD_DOWN, 0);
             } else {
-                mTopRow = Math.min(0, Math.max(-(mEmulator.getScreen().getActiveTranscriptRows()), mTopRow + (up ? -1 : 1)));
+                mTopRow = Math.min(0, Math.max(-(mTermSession.getSnapshot().getScreen().getActiveTranscriptRows()), mTopRow + (up ? -1 : 1)));
                 if (!awakenScrollBars()) invalidate();
             }
         }
@@ -739,6 +780,7 @@ public final class TerminalView extends View {
             scrollTo(0, 0);
             invalidate();
         }
+        mEmulator.setCellSize((int) mRenderer.mFontWidth, (int) mRenderer.mFontLineSpacing);
     }
 
     @Override
@@ -751,7 +793,7 @@ public final class TerminalView extends View {
             if (mTextSelectionCursorController != null) {
                 mTextSelectionCursorController.getSelectors(sel);
             }
-            mRenderer.render(mEmulator, canvas, mTopRow, sel[0], sel[1], sel[2], sel[3]);
+            mRenderer.render(mTermSession.getSnapshot(), canvas, mTopRow, sel[0], sel[1], sel[2], sel[3]);
 
             // render the text selection handles
             renderTextSelection();
@@ -763,7 +805,8 @@ public final class TerminalView extends View {
     }
 
     private CharSequence getText() {
-        return mEmulator.getScreen().getSelectedText(0, mTopRow, mEmulator.mColumns, mTopRow + mEmulator.mRows);
+        TerminalSnapshot snapshot = mTermSession.getSnapshot();
+        return snapshot.getSelectedText(0, mTopRow, snapshot.mColumns, mTopRow + snapshot.mRows);
     }
 
     public int getCursorX(float x) {
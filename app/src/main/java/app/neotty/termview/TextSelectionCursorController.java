@@ -30,6 +30,7 @@ import android.view.View;
 
 import app.neotty.R;
 import app.neotty.termlib.TerminalBuffer;
+import app.neotty.termlib.TerminalSnapshot;
 import app.neotty.termlib.WcWidth;
 
 public class TextSelectionCursorController implements CursorController {
@@ -113,13 +114,14 @@ public class TextSelectionCursorController implements CursorController {
         mSelX1 = mSelX2 = cx;
         mSelY1 = mSelY2 = cy;
 
-        TerminalBuffer screen = terminalView.mEmulator.getScreen();
+        TerminalSnapshot snapshot = terminalView.mTermSession.getSnapshot();
+        TerminalBuffer screen = snapshot.getScreen();
         if (!" ".equals(screen.getSelectedText(mSelX1, mSelY1, mSelX1, mSelY1))) {
             // Selecting something other than whitespace. Expand to word.
             while (mSelX1 > 0 && !"".equals(screen.getSelectedText(mSelX1 - 1, mSelY1, mSelX1 - 1, mSelY1))) {
                 mSelX1--;
             }
-            while (mSelX2 < terminalView.mEmulator.mColumns - 1 && !"".equals(screen.getSelectedText(mSelX2 + 1, mSelY1, mSelX2 + 1, mSelY1))) {
+            while (mSelX2 < snapshot.mColumns - 1 && !"".equals(screen.getSelectedText(mSelX2 + 1, mSelY1, mSelX2 + 1, mSelY1))) {
                 mSelX2++;
             }
         }
@@ -152,7 +154,7 @@ public class TextSelectionCursorController implements CursorController {
 
                 switch (item.getItemId()) {
                     case ACTION_COPY:
-                        String selectedText = terminalView.mEmulator.getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2).trim();
+                        String selectedText = terminalView.mTermSession.getSnapshot().getSelectedText(mSelX1, mSelY1, mSelX2, mSelY2).trim();
                         terminalView.mTermSession.clipboardText(selectedText);
                         terminalView.stopTextSelectionMode();
                         break;
@@ -222,8 +224,9 @@ public class TextSelectionCursorController implements CursorController {
 
     @Override
     public void updatePosition(TextSelectionHandleView handle, int x, int y) {
-        TerminalBuffer screen = terminalView.mEmulator.getScreen();
-        final int scrollRows = screen.getActiveRows() - terminalView.mEmulator.mRows;
+        TerminalSnapshot snapshot = terminalView.mTermSession.getSnapshot();
+        TerminalBuffer screen = snapshot.getScreen();
+        final int scrollRows = screen.getActiveRows() - snapshot.mRows;
         if (handle == mStartHandle) {
             mSelX1 = terminalView.getCursorX(x);
             mSelY1 = terminalView.getCursorY(y);
@@ -234,8 +237,8 @@ public class TextSelectionCursorController implements CursorController {
             if (mSelY1 < -scrollRows) {
                 mSelY1 = -scrollRows;
 
-            } else if (mSelY1 > terminalView.mEmulator.mRows - 1) {
-                mSelY1 = terminalView.mEmulator.mRows - 1;
+            } else if (mSelY1 > snapshot.mRows - 1) {
+                mSelY1 = snapshot.mRows - 1;
 
             }
 
@@ -246,7 +249,7 @@ public class TextSelectionCursorController implements CursorController {
                 mSelX1 = mSelX2;
             }
 
-            if (!terminalView.mEmulator.isAlternateBufferActive()) {
+            if (!snapshot.isAlternateBufferActive()) {
                 int topRow = terminalView.getTopRow();
 
                 if (mSelY1 <= topRow) {
@@ -254,7 +257,7 @@ public class TextSelectionCursorController implements CursorController {
                     if (topRow < -scrollRows) {
                         topRow = -scrollRows;
                     }
-                } else if (mSelY1 >= topRow + terminalView.mEmulator.mRows) {
+                } else if (mSelY1 >= topRow + snapshot.mRows) {
                     topRow++;
                     if (topRow > 0) {
                         topRow = 0;
@@ -275,8 +278,8 @@ public class TextSelectionCursorController implements CursorController {
 
             if (mSelY2 < -scrollRows) {
                 mSelY2 = -scrollRows;
-            } else if (mSelY2 > terminalView.mEmulator.mRows - 1) {
-                mSelY2 = terminalView.mEmulator.mRows - 1;
+            } else if (mSelY2 > snapshot.mRows - 1) {
+                mSelY2 = snapshot.mRows - 1;
             }
 
             if (mSelY1 > mSelY2) {
@@ -286,7 +289,7 @@ public class TextSelectionCursorController implements CursorController {
                 mSelX2 = mSelX1;
             }
 
-            if (!terminalView.mEmulator.isAlternateBufferActive()) {
+            if (!snapshot.isAlternateBufferActive()) {
                 int topRow = terminalView.getTopRow();
 
                 if (mSelY2 <= topRow) {
@@ -294,7 +297,7 @@ public class TextSelectionCursorController implements CursorController {
                     if (topRow < -scrollRows) {
                         topRow = -scrollRows;
                     }
-                } else if (mSelY2 >= topRow + terminalView.mEmulator.mRows) {
+                } else if (mSelY2 >= topRow + snapshot.mRows) {
                     topRow++;
                     if (topRow > 0) {
                         topRow = 0;
@@ -0,0 +1,82 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class Base64DecoderTest extends TestCase {
+
+	private final Base64Decoder mDecoder = new Base64Decoder();
+
+	private byte[] decode(String data, int expectedLength) {
+		mDecoder.start(expectedLength);
+		for (int i = 0; i < data.length(); i++)
+			mDecoder.consume(data.charAt(i));
+		mDecoder.finish();
+		return Arrays.copyOf(mDecoder.getBuffer(), mDecoder.getLength());
+	}
+
+	private void assertDecodesTo(String data, String expected) {
+		assertEquals(expected, new String(decode(data, 0)));
+	}
+
+	public void testPadding() {
+		assertDecodesTo("", "");
+		assertDecodesTo("YQ==", "a");
+		assertDecodesTo("YWI=", "ab");
+		assertDecodesTo("YWJj", "abc");
+		// Unpadded data is accepted at the end:
+		assertDecodesTo("YQ", "a");
+		assertDecodesTo("YWI", "ab");
+		// Concatenated padded strings:
+		assertDecodesTo("YQ==YWI=YWJj", "aababc");
+	}
+
+	public void testIgnoresCharactersOutsideAlphabet() {
+		assertDecodesTo("YW\r\nJj\tZG\u00e9Vm", "abcdef");
+	}
+
+	public void testUrlSafeAlphabet() {
+		assertTrue(Arrays.equals(new byte[]{(byte) 0xfb, (byte) 0xff}, decode("-_8", 0)));
+		assertTrue(Arrays.equals(new byte[]{(byte) 0xfb, (byte) 0xff}, decode("+/8", 0)));
+	}
+
+	public void testLargeRandomData() {
+		Random random = new Random(1234);
+		for (int size : new int[]{1, 1000, 100000, 2 * 1024 * 1024 + 1}) {
+			byte[] data = new byte[size];
+			random.nextBytes(data);
+			String encoded = java.util.Base64.getMimeEncoder().encodeToString(data);
+			assertTrue(Arrays.equals(data, decode(encoded, 0)));
+			assertTrue(Arrays.equals(data, decode(encoded, size)));
+			// Exactly the expected size should be allocated when known up front:
+			if (size > 4096) assertEquals(size, mDecoder.getBuffer().length);
+		}
+	}
+
+	public void testResetReleasesLargeBuffers() {
+		byte[] data = new byte[1024 * 1024];
+		decode(java.util.Base64.getEncoder().encodeToString(data), data.length);
+		mDecoder.reset();
+		assertEquals(0, mDecoder.getLength());
+		assertTrue(mDecoder.getBuffer().length < data.length);
+	}
+
+}
@@ -62,6 +62,17 @@ public class ByteQueueTest extends TestCase {
 		assertFalse(q.write(new byte[]{1, 2, 3}, 0, 3));
 	}
 
+	public void testReadStoredBytesAfterFinishing() throws Exception {
+		ByteQueue q = new ByteQueue(10);
+		assertTrue(q.write(new byte[]{1, 2, 3}, 0, 3));
+		q.finish();
+		assertFalse(q.write(new byte[]{4}, 0, 1));
+		byte[] arr = new byte[10];
+		assertEquals(3, q.read(arr, true));
+		assertEquals(-1, q.read(arr, true));
+		assertTrue(q.isFinished());
+	}
+
 	public void testReadNonBlocking() throws Exception {
 		ByteQueue q = new ByteQueue(10);
 		assertEquals(0, q.read(new byte[128], false));
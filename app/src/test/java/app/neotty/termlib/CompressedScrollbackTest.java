@@ -0,0 +1,155 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class CompressedScrollbackTest extends TestCase {
+
+	private static final int COLUMNS = 40;
+
+	private static final int[] CODE_POINTS = {'a', 'b', ' ', '$', 0xE9, 0x679C, 0x1D11E, 0x20731};
+
+	/** A random row, which is the same for the same seed. */
+	private static TerminalRow randomRow(long seed) {
+		Random random = new Random(seed);
+		TerminalRow row = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+		for (int i = random.nextInt(30); i > 0; i--) {
+			int codePoint = CODE_POINTS[random.nextInt(CODE_POINTS.length)];
+			row.setChar(random.nextInt(COLUMNS - 1), codePoint, TextStyle.encode(random.nextInt(16), random.nextInt(16), random.nextInt(4)));
+		}
+		row.mLineWrap = random.nextBoolean();
+		return row;
+	}
+
+	private static void assertRowsEqual(TerminalRow expected, TerminalRow actual) {
+		assertEquals(new String(expected.mText, 0, expected.getSpaceUsed()), new String(actual.mText, 0, actual.getSpaceUsed()));
+		assertEquals(expected.mLineWrap, actual.mLineWrap);
+		for (int column = 0; column < COLUMNS; column++) {
+			assertEquals(expected.findStartOfColumn(column), actual.findStartOfColumn(column));
+			assertEquals(expected.getStyle(column), actual.getStyle(column));
+		}
+	}
+
+	public void testRoundTrip() {
+		CompressedScrollback scrollback = new CompressedScrollback(Integer.MAX_VALUE);
+		final int count = 5 * Scrollback.CHUNK_ROWS + 100;
+		for (int i = 0; i < count; i++) scrollback.append(randomRow(i), COLUMNS);
+		assertEquals(count, scrollback.getRowCount());
+
+		// More chunks than are kept decoded, read both in order and back and forth:
+		for (int i = 0; i < count; i++) assertRowsEqual(randomRow(i), scrollback.readRow(i, COLUMNS));
+		for (int i = count - 1; i >= 0; i -= 97) assertRowsEqual(randomRow(i), scrollback.readRow(i, COLUMNS));
+		assertNull(scrollback.readRow(count, COLUMNS));
+		scrollback.close();
+	}
+
+	public void testOldestChunksDropped() {
+		CompressedScrollback scrollback = new CompressedScrollback(3 * Scrollback.CHUNK_ROWS);
+		final int count = 5 * Scrollback.CHUNK_ROWS + 10;
+		for (int i = 0; i < count; i++) scrollback.append(randomRow(i), COLUMNS);
+
+		// Whole chunks are dropped, keeping at least as many rows as asked for:
+		assertEquals(3 * Scrollback.CHUNK_ROWS + 10, scrollback.getRowCount());
+		assertEquals(2 * Scrollback.CHUNK_ROWS, scrollback.getFirstRowIndex());
+		assertNull(scrollback.readRow(2 * Scrollback.CHUNK_ROWS - 1, COLUMNS));
+		for (int i = 2 * Scrollback.CHUNK_ROWS; i < count; i++) assertRowsEqual(randomRow(i), scrollback.readRow(i, COLUMNS));
+
+		scrollback.clear();
+		assertEquals(0, scrollback.getRowCount());
+		assertEquals(0, scrollback.getFirstRowIndex());
+		assertNull(scrollback.readRow(0, COLUMNS));
+		scrollback.close();
+	}
+
+	public void testSetMaxRows() {
+		CompressedScrollback scrollback = new CompressedScrollback(Integer.MAX_VALUE);
+		final int count = 4 * Scrollback.CHUNK_ROWS + 10;
+		for (int i = 0; i < count; i++) scrollback.append(randomRow(i), COLUMNS);
+
+		scrollback.setMaxRows(Scrollback.CHUNK_ROWS);
+		assertEquals(Scrollback.CHUNK_ROWS + 10, scrollback.getRowCount());
+		assertEquals(3 * Scrollback.CHUNK_ROWS, scrollback.getFirstRowIndex());
+		assertRowsEqual(randomRow(3 * Scrollback.CHUNK_ROWS), scrollback.readRow(3 * Scrollback.CHUNK_ROWS, COLUMNS));
+
+		// The chunk being filled is kept:
+		scrollback.setMaxRows(0);
+		assertEquals(10, scrollback.getRowCount());
+		assertRowsEqual(randomRow(count - 1), scrollback.readRow(count - 1, COLUMNS));
+		scrollback.close();
+	}
+
+	public void testAppendRowsOf() {
+		CompressedScrollback source = new CompressedScrollback(Integer.MAX_VALUE);
+		final int count = 4 * Scrollback.CHUNK_ROWS + 10;
+		for (int i = 0; i < count; i++) source.append(randomRow(i), COLUMNS);
+
+		// Only the last rows are read when the new scrollback keeps fewer, starting at the first row:
+		CompressedScrollback scrollback = new CompressedScrollback(Scrollback.CHUNK_ROWS + 20);
+		scrollback.appendRowsOf(source);
+		assertEquals(Scrollback.CHUNK_ROWS + 20, scrollback.getRowCount());
+		assertEquals(0, scrollback.getFirstRowIndex());
+		for (int i = 0; i < scrollback.getRowCount(); i++) {
+			assertRowsEqual(randomRow(count - Scrollback.CHUNK_ROWS - 20 + i), scrollback.readRow(i, COLUMNS));
+		}
+		source.close();
+		scrollback.close();
+	}
+
+	public void testTrimMemoryUsage() {
+		CompressedScrollback scrollback = new CompressedScrollback(Integer.MAX_VALUE);
+		final int count = 4 * Scrollback.CHUNK_ROWS + 10;
+		for (int i = 0; i < count; i++) scrollback.append(randomRow(i), COLUMNS);
+		scrollback.readRow(0, COLUMNS);
+
+		// The decoded rows go first, followed by the oldest chunks:
+		final long memoryUsage = scrollback.getMemoryUsage();
+		scrollback.trimMemoryUsage(memoryUsage - 1);
+		assertEquals(count, scrollback.getRowCount());
+		assertTrue(scrollback.getMemoryUsage() < memoryUsage);
+		scrollback.trimMemoryUsage(scrollback.getMemoryUsage() - 1);
+		assertEquals(count - Scrollback.CHUNK_ROWS, scrollback.getRowCount());
+		scrollback.trimMemoryUsage(0);
+		assertEquals(10, scrollback.getRowCount());
+		scrollback.close();
+	}
+
+	public void testMemoryUsage() {
+		CompressedScrollback scrollback = new CompressedScrollback(Integer.MAX_VALUE);
+		TerminalRow prompt = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+		for (int i = 0; i < 20; i++) prompt.setChar(i, "user@host:~/src/app$".charAt(i), TextStyle.NORMAL);
+		long rowsMemoryUsage = 0;
+		for (int i = 0; i < 10 * Scrollback.CHUNK_ROWS; i++) {
+			scrollback.append(prompt, COLUMNS);
+			rowsMemoryUsage += prompt.getMemoryUsage();
+		}
+		// Repeated rows compress to far less than the rows themselves:
+		assertTrue(scrollback.getCompressedSize() < rowsMemoryUsage / 50);
+		assertTrue(scrollback.getMemoryUsage() < rowsMemoryUsage / 10);
+
+		// Reading a row keeps its chunk decoded, which is accounted for:
+		long before = scrollback.getMemoryUsage();
+		scrollback.readRow(0, COLUMNS);
+		assertTrue(scrollback.getMemoryUsage() >= before + Scrollback.CHUNK_ROWS * prompt.getMemoryUsage() / 2);
+		scrollback.clear();
+		assertTrue(scrollback.getMemoryUsage() < before);
+		scrollback.close();
+	}
+
+}
@@ -60,6 +60,13 @@ public class ControlSequenceIntroducerTest extends TerminalTestCase {
 		// This shows that REP outputs the last emitted code point and not the one relative to the
 		// current cursor position:
 		withTerminalSized(5, 2).enterString("abcde\033[2G\033[2b\n").assertLinesAre("aeede", "     ");
+		// Repeating across lines wraps and scrolls like printing the characters would:
+		withTerminalSized(3, 2).enterString("a\033[7b").assertLinesAre("aaa", "aa ").assertCursorAt(1, 2);
+		assertEquals("aaaaaaaa", mTerminal.getScreen().getTranscriptText());
+		withTerminalSized(3, 2).enterString("\033[?7la\033[7b").assertLinesAre("aaa", "   ").assertCursorAt(0, 2);
+		// Repeating over wide characters and in the line drawing character set:
+		withTerminalSized(5, 2).enterString("日本\033[2Gx\033[2b").assertLinesAre(" xxx ", "     ");
+		withTerminalSized(3, 2).enterString("\033(0q\033[2b").assertLinesAre("───", "   ");
 	}
 
 	/** CSI 3 J  Clear scrollback (xterm, libvte; non-standard). */
@@ -111,6 +111,10 @@ public class CursorAndScreenTest extends TerminalTestCase {
 		withTerminalSized(5, 2).enterString("nice").enterString("\033[G\033[4h枝").assertLinesAre("枝nic", "     ");
 		withTerminalSized(5, 2).enterString("nice").enterString("\033[2G\033[4h枝").assertLinesAre("n枝ic", "     ");
 		withTerminalSized(5, 2).enterString("n枝ce").enterString("\033[G\033[4ha").assertLinesAre("an枝c", "     ");
+		// Colors should move along with the characters:
+		withTerminalSized(5, 2).enterString("\033[31mAB\033[32mC\033[0m\033[G\033[2@").assertLinesAre("  ABC", "     ");
+		final int f = TextStyle.COLOR_INDEX_FOREGROUND;
+		assertForegroundIndices(effectLine(f, f, 1, 1, 2), effectLine(f, f, f, f, f));
 	}
 
 	/** HPA—Horizontal Position Absolute (http://www.vt100.net/docs/vt510-rm/HPA) */
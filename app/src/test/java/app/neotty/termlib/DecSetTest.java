@@ -91,4 +91,40 @@ public class DecSetTest extends TerminalTestCase {
 		enterString("\033[?7hhij").assertLinesAre("abh", "ij ", "   ");
 	}
 
+	/** DECSET 2026, synchronized output, holds back screen updates while a program draws a frame. */
+	public void testSynchronizedOutput() {
+		withTerminalSized(3, 3);
+		assertEquals(0, mTerminal.getSynchronizedOutputTimeLeft());
+		assertEnteringStringGivesResponse("\033[?2026$p", "\033[?2026;2$y");
+
+		enterString("\033[?2026hab");
+		assertTrue(mTerminal.getSynchronizedOutputTimeLeft() > 0);
+		assertTrue(mTerminal.getSynchronizedOutputTimeLeft() <= TerminalEmulator.SYNCHRONIZED_OUTPUT_TIMEOUT_MILLIS);
+		assertEnteringStringGivesResponse("\033[?2026$p", "\033[?2026;1$y");
+
+		enterString("c\033[?2026l").assertLinesAre("abc", "   ", "   ");
+		assertEquals(0, mTerminal.getSynchronizedOutputTimeLeft());
+		assertEnteringStringGivesResponse("\033[?2026$p", "\033[?2026;2$y");
+
+		enterString("\033[?2026h");
+		mTerminal.reset(false);
+		assertEquals("Terminal reset(false) should end synchronized output", 0, mTerminal.getSynchronizedOutputTimeLeft());
+	}
+
+	/** The timeout of synchronized output runs from when it was enabled, however it was enabled. */
+	public void testSynchronizedOutputTimeout() {
+		withTerminalSized(3, 3).enterString("\033[?2026h");
+		mTerminal.mSynchronizedOutputStart -= TerminalEmulator.SYNCHRONIZED_OUTPUT_TIMEOUT_MILLIS;
+		assertEquals(0, mTerminal.getSynchronizedOutputTimeLeft());
+		// Repeating the DECSET does not hold back the screen any longer:
+		enterString("\033[?2026h");
+		assertEquals(0, mTerminal.getSynchronizedOutputTimeLeft());
+
+		// Restoring the saved bit enables it anew:
+		enterString("\033[?2026s\033[?2026l");
+		mTerminal.mSynchronizedOutputStart -= TerminalEmulator.SYNCHRONIZED_OUTPUT_TIMEOUT_MILLIS;
+		enterString("\033[?2026r");
+		assertTrue(mTerminal.getSynchronizedOutputTimeLeft() > 0);
+	}
+
 }
@@ -16,6 +16,8 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package app.neotty.termlib;
 
+import java.io.File;
+
 public class HistoryTest extends TerminalTestCase {
 
 	public void testHistory() {
@@ -45,4 +47,88 @@ public class HistoryTest extends TerminalTestCase {
 		enterString("LMN").assertLinesAre("111", "IJK", "LMN", "444").assertHistoryStartsWith("FGH", "CDE");
 	}
 
+	public void testHistorySpilledToScrollbackFile() throws Exception {
+		File file = File.createTempFile("scrollback", null);
+		withTerminalSized(3, 3);
+		mTerminal.getScreen().setScrollback(new ScrollbackFile(file));
+		enterString("AAABBBCCCDDDEEEFFFGGGHHHIIIJJJKKKLLL");
+		// Six rows in the transcript, with the three before them having been appended to the file:
+		assertLinesAre("JJJ", "KKK", "LLL");
+		assertEquals(9, mTerminal.getScreen().getActiveTranscriptRows());
+		assertHistoryStartsWith("III", "HHH", "GGG", "FFF", "EEE", "DDD", "CCC", "BBB", "AAA");
+		assertTrue(mTerminal.getScreen().getLineWrap(-9));
+		assertEquals("AAABBBCCCDDDEEEFFFGGGHHHIIIJJJKKKLLL", mTerminal.getScreen().getTranscriptText());
+
+		// A scroll region only pushes the rows scrolled out of it into the history:
+		enterString("\033[2;3r\033[3H\nMMM");
+		assertLinesAre("JJJ", "LLL", "MMM");
+		assertHistoryStartsWith("KKK", "III", "HHH", "GGG", "FFF", "EEE", "DDD", "CCC", "BBB", "AAA");
+
+		mTerminal.getScreen().clearTranscript();
+		assertEquals(0, mTerminal.getScreen().getActiveTranscriptRows());
+		mTerminal.getScreen().setScrollback(null);
+		assertFalse(file.exists());
+	}
+
+	public void testHistoryMovedToNewScrollback() throws Exception {
+		File file = File.createTempFile("scrollback", null);
+		withTerminalSized(3, 3);
+		mTerminal.getScreen().setScrollback(new ScrollbackFile(file));
+		enterString("AAABBBCCCDDDEEEFFFGGGHHHIIIJJJKKKLLL");
+		mTerminal.getScreen().setScrollback(new CompressedScrollback(Integer.MAX_VALUE));
+		assertFalse(file.exists());
+		assertEquals(9, mTerminal.getScreen().getActiveTranscriptRows());
+		assertHistoryStartsWith("III", "HHH", "GGG", "FFF", "EEE", "DDD", "CCC", "BBB", "AAA");
+		enterString("MMM");
+		assertHistoryStartsWith("JJJ", "III", "HHH", "GGG", "FFF", "EEE", "DDD", "CCC", "BBB", "AAA");
+		mTerminal.getScreen().setScrollback(null);
+	}
+
+	public void testHistoryTrimmed() {
+		mTerminal = new TerminalEmulator(mOutput, 10, 3, 100);
+		TerminalBuffer screen = mTerminal.getScreen();
+		screen.setScrollback(new CompressedScrollback(Integer.MAX_VALUE));
+		StringBuilder expected = new StringBuilder();
+		for (int i = 0; i < 150; i++) {
+			enterString("line " + i + "\r\n");
+			expected.append("line ").append(i).append('\n');
+		}
+		final String transcript = screen.getTranscriptText();
+		assertEquals(expected.toString().trim(), transcript);
+		assertEquals(148, screen.getActiveTranscriptRows());
+
+		// The oldest rows of the transcript are moved to the scrollback, keeping the whole history:
+		final long memoryUsage = screen.getMemoryUsage();
+		screen.trimHistory(memoryUsage - 1);
+		assertTrue(screen.getMemoryUsage() < memoryUsage);
+		assertEquals(148, screen.getActiveTranscriptRows());
+		assertEquals(transcript, screen.getTranscriptText());
+		screen.trimHistory(0);
+		assertEquals(148, screen.getActiveTranscriptRows());
+		assertEquals(transcript, screen.getTranscriptText());
+
+		// Without a scrollback they are dropped, but not the screen:
+		screen.setScrollback(null);
+		screen.trimHistory(0);
+		assertEquals(0, screen.getActiveTranscriptRows());
+		assertLinesAre("line 148  ", "line 149  ", "          ");
+	}
+
+	public void testHistoryWithinMemoryBudget() {
+		mTerminal = new TerminalEmulator(mOutput, 10, 3, 1000);
+		TerminalBuffer screen = mTerminal.getScreen();
+		for (int i = 0; i < 100; i++) enterString("line " + i + "\r\n");
+		final long budget = screen.getMemoryUsage();
+		screen.setMemoryBudget(budget);
+		for (int i = 100; i < 2000; i++) enterString("line " + i + "\r\n");
+		// The history is trimmed each time a few hundred lines have scrolled:
+		assertTrue(screen.getActiveTranscriptRows() < 100 + 256);
+		assertLinesAre("line 1998 ", "line 1999 ", "          ");
+		assertHistoryStartsWith("line 1997 ", "line 1996 ");
+
+		screen.setMemoryBudget(0);
+		for (int i = 2000; i < 3000; i++) enterString("line " + i + "\r\n");
+		assertEquals(997, screen.getActiveTranscriptRows());
+	}
+
 }
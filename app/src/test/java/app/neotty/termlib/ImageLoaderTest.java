@@ -0,0 +1,69 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import junit.framework.TestCase;
+
+public class ImageLoaderTest extends TestCase {
+
+	private static void assertSize(int width, int height, int[] size) {
+		assertEquals(width + "x" + height, size[0] + "x" + size[1]);
+	}
+
+	public void testComputeSize() {
+		// Shown at its own size if it fits:
+		assertSize(400, 300, ImageLoader.computeSize(400, 300, -1, -1, true, 960));
+		// Scaled down to the width left on the screen, such as a photo of 4000x3000 pixels:
+		assertSize(960, 720, ImageLoader.computeSize(4000, 3000, -1, -1, true, 960));
+		// Scaled to fit the requested size, even if larger than the image:
+		assertSize(200, 150, ImageLoader.computeSize(4000, 3000, 200, 200, true, 960));
+		assertSize(800, 600, ImageLoader.computeSize(400, 300, -1, 600, true, 960));
+		// Stretched to the requested size without keeping the aspect ratio:
+		assertSize(100, 300, ImageLoader.computeSize(400, 300, 100, -1, false, 960));
+		assertSize(2000, 50, ImageLoader.computeSize(400, 300, 2000, 50, false, 960));
+	}
+
+	public void testComputeSampleSize() {
+		assertEquals(1, ImageLoader.computeSampleSize(400, 300, 400, 300));
+		assertEquals(1, ImageLoader.computeSampleSize(400, 300, 800, 600));
+		assertEquals(1, ImageLoader.computeSampleSize(4000, 3000, 2001, 1500));
+		assertEquals(2, ImageLoader.computeSampleSize(4000, 3000, 2000, 1500));
+		assertEquals(4, ImageLoader.computeSampleSize(4000, 3000, 960, 720));
+		// Not smaller than the size shown in either direction:
+		assertEquals(2, ImageLoader.computeSampleSize(4000, 3000, 200, 1000));
+	}
+
+	public void testPlaceholderReplacedOnce() {
+		ImageRegistry registry = new ImageRegistry();
+		ImageRegistry.Image placeholder = ImageRegistry.Image.placeholder(40, 20, 10, 10);
+		int id = registry.add(placeholder);
+		registry.retain(id);
+		assertEquals(0, registry.getMemoryUsage());
+		// Nothing to downscale or drop before the pixels have been decoded:
+		registry.downscale(id);
+		registry.trim(0);
+		assertSame(placeholder, registry.get(id));
+
+		ImageRegistry.Image image = new ImageRegistry.Image(null, 40, 20, 10, 10, 3200);
+		assertTrue(registry.replace(id, placeholder, image));
+		assertSame(image, registry.get(id));
+		assertEquals(3200, registry.getMemoryUsage());
+		assertFalse(registry.replace(id, placeholder, image));
+		assertSame(image, registry.snapshot().get(id));
+	}
+
+}
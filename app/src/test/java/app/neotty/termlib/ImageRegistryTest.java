@@ -0,0 +1,141 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class ImageRegistryTest extends TestCase {
+
+	private final ImageRegistry mRegistry = new ImageRegistry();
+
+	/** An image of 10x10 pixel cells taking the specified number of bytes, without pixels as unit tests have none. */
+	private static ImageRegistry.Image image(long bytes) {
+		return new ImageRegistry.Image(null, 40, 20, 10, 10, bytes);
+	}
+
+	public void testDroppedOnceNoRowShowsIt() {
+		ImageRegistry.Image image = image(100);
+		int id = mRegistry.add(image);
+		mRegistry.retain(id);
+		mRegistry.retain(id);
+		mRegistry.release(id);
+		mRegistry.collect();
+		assertSame(image, mRegistry.get(id));
+		assertEquals(100, mRegistry.getMemoryUsage());
+
+		mRegistry.release(id);
+		mRegistry.collect();
+		assertNull(mRegistry.get(id));
+		assertEquals(0, mRegistry.getMemoryUsage());
+	}
+
+	public void testUnretainedImageDroppedByNextAdd() {
+		int first = mRegistry.add(image(100));
+		int second = mRegistry.add(image(100));
+		assertTrue(first != second);
+		assertNull(mRegistry.get(first));
+		assertNotNull(mRegistry.get(second));
+		assertEquals(100, mRegistry.getMemoryUsage());
+	}
+
+	public void testBudgetDropsLeastRecentlyUsed() {
+		mRegistry.setMemoryBudget(300);
+		int a = mRegistry.add(image(100));
+		mRegistry.retain(a);
+		int b = mRegistry.add(image(100));
+		mRegistry.retain(b);
+		mRegistry.touch(a);
+		int c = mRegistry.add(image(150));
+		mRegistry.retain(c);
+		assertNotNull(mRegistry.get(a));
+		assertNull(mRegistry.get(b));
+		assertNotNull(mRegistry.get(c));
+		assertEquals(250, mRegistry.getMemoryUsage());
+
+		// The id of a dropped image stays taken while rows show it:
+		int d = mRegistry.add(image(10));
+		assertTrue(d != a && d != b && d != c);
+		mRegistry.retain(d);
+		mRegistry.release(d);
+
+		// The image just added is kept even if it does not fit on its own:
+		int e = mRegistry.add(image(1000));
+		assertNotNull(mRegistry.get(e));
+		assertNull(mRegistry.get(a));
+		assertNull(mRegistry.get(c));
+
+		mRegistry.trim(0);
+		assertNull(mRegistry.get(e));
+		assertEquals(0, mRegistry.getMemoryUsage());
+	}
+
+	public void testDownscale() {
+		int id = mRegistry.add(image(3200));
+		mRegistry.retain(id);
+		mRegistry.downscale(id);
+		ImageRegistry.Image image = mRegistry.get(id);
+		assertEquals(20, image.mWidth);
+		assertEquals(10, image.mHeight);
+		assertEquals(5f, image.mCellWidth);
+		assertEquals(5f, image.mCellHeight);
+		assertEquals(800, mRegistry.getMemoryUsage());
+
+		// Only downscaled once:
+		mRegistry.downscale(id);
+		assertSame(image, mRegistry.get(id));
+	}
+
+	public void testSnapshot() {
+		ImageRegistry.Snapshot empty = mRegistry.snapshot();
+		assertSame(empty, mRegistry.snapshot());
+
+		ImageRegistry.Image image = image(100);
+		int id = mRegistry.add(image);
+		mRegistry.retain(id);
+		ImageRegistry.Snapshot snapshot = mRegistry.snapshot();
+		assertNull(empty.get(id));
+		assertSame(image, snapshot.get(id));
+		assertSame(snapshot, mRegistry.snapshot());
+
+		// Replacing the image does not change the snapshot taken before:
+		mRegistry.downscale(id);
+		assertSame(image, snapshot.get(id));
+		assertNotSame(image, mRegistry.snapshot().get(id));
+
+		mRegistry.release(id);
+		assertNull(mRegistry.snapshot().get(id));
+	}
+
+	public void testRowImageIds() {
+		TerminalRow row = new TerminalRow(10, TextStyle.NORMAL);
+		assertNull(row.findImageIds());
+		row.addImageSlice(new ImagePlacement.Slice(new ImagePlacement(7, 4, 3, 0), 0, 0, 4, 2));
+		row.addImageSlice(new ImagePlacement.Slice(new ImagePlacement(3, 2, 1, 0), 4, 0, 2, 0));
+		row.addImageSlice(new ImagePlacement.Slice(new ImagePlacement(7, 1, 1, 0), 6, 0, 1, 0));
+		assertTrue(Arrays.equals(new int[]{7, 3}, row.findImageIds()));
+
+		// Text written over an image leaves the rest of it:
+		row.setChar(5, 'a', TextStyle.NORMAL);
+		row.fillRange(0, 4, 'b', TextStyle.NORMAL);
+		assertTrue(Arrays.equals(new int[]{3, 7}, row.findImageIds()));
+		row.clear(TextStyle.NORMAL);
+		assertNull(row.findImageIds());
+	}
+
+}
@@ -0,0 +1,150 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+public class KittyGraphicsTest extends TerminalTestCase {
+
+	/** Two RGBA pixels. */
+	private static final String PIXELS = "AAAAAAAAAAA=";
+
+	/** Transmit the two RGBA pixels with the specified id. */
+	private void transmit(int id) {
+		enterString("\033_Gf=32,s=2,v=1,q=1,i=" + id + ";" + PIXELS + "\033\\");
+	}
+
+	private ImagePlacement.Slice[] getSlices(int row) {
+		return mTerminal.getScreen().allocateFullLineIfNecessary(row).getImageSlices();
+	}
+
+	public void testParse() {
+		KittyGraphics.Command command = KittyGraphics.Command.parse("a=T,f=100,i=4294967295,p=7,z=-1,m=1,q=2,x=,C=1,unknown");
+		assertEquals('T', command.mAction);
+		assertEquals(100, command.mFormat);
+		assertEquals(-1, command.mImageId);
+		assertEquals(7, command.mPlacementId);
+		assertEquals(-1, command.mZ);
+		assertTrue(command.mMore);
+		assertEquals(2, command.mQuiet);
+		assertEquals(0, command.mSourceX);
+		assertEquals(1, command.mCursorMovement);
+		assertEquals('d', command.mMedium);
+	}
+
+	public void testTransmitInChunks() {
+		withTerminalSized(5, 3);
+		assertEnteringStringGivesResponse("\033_Ga=t,f=32,s=2,v=1,i=7,m=1;AAAAAAAA\033\\", "");
+		assertEnteringStringGivesResponse("\033_Gm=0;AAA=\033\\", "\033_Gi=7;OK\033\\");
+		// The image is displayed by id, without transmitting it again:
+		assertEnteringStringGivesResponse("\033_Ga=p,i=7\033\\", "\033_Gi=7;OK\033\\");
+		assertEquals(1, getSlices(0).length);
+		// A number gets an id assigned:
+		assertEnteringStringGivesResponse("\033_GI=3,s=2,v=1;" + PIXELS + "\033\\", "\033_Gi=1,I=3;OK\033\\");
+		assertEnteringStringGivesResponse("\033_Ga=p,I=3,q=1\033\\", "");
+		assertEquals(2, getSlices(0).length);
+	}
+
+	public void testErrors() {
+		withTerminalSized(5, 3);
+		assertEnteringStringGivesResponse("\033_Ga=p,i=9\033\\", "\033_Gi=9;ENOENT:No such image\033\\");
+		assertEnteringStringGivesResponse("\033_Ga=p,i=9,q=2\033\\", "");
+		assertEnteringStringGivesResponse("\033_Gi=9,f=24;AAAA\033\\", "\033_Gi=9;EINVAL:The size of the image is not specified\033\\");
+		assertEnteringStringGivesResponse("\033_Gi=9,s=2,v=2;" + PIXELS + "\033\\", "\033_Gi=9;ENODATA:Insufficient image data\033\\");
+		// The size of raw pixels is checked before decompressing them:
+		assertEnteringStringGivesResponse("\033_Ga=t,f=32,o=z,s=-1,v=1,i=9;eJwDAAAAAAE=\033\\", "\033_Gi=9;EINVAL:The size of the image is not specified\033\\");
+		assertEnteringStringGivesResponse("\033_Ga=t,f=32,o=z,s=100000,v=100000,i=9;eJwDAAAAAAE=\033\\", "\033_Gi=9;EINVAL:The image is too large\033\\");
+		assertEnteringStringGivesResponse("\033_Ga=t,f=32,o=z,s=2,v=1,i=9;eJwDAAAAAAE=\033\\", "\033_Gi=9;ENODATA:Insufficient image data\033\\");
+		assertEnteringStringGivesResponse("\033_Gi=9,t=f;L3RtcC9pbWFnZQ==\033\\", "\033_Gi=9;EINVAL:Only direct transmission is supported\033\\");
+		// Without an id nothing is answered:
+		assertEnteringStringGivesResponse("\033_Ga=p\033\\", "");
+		// A query only checks the image:
+		assertEnteringStringGivesResponse("\033_Ga=q,i=9,s=2,v=1;" + PIXELS + "\033\\", "\033_Gi=9;OK\033\\");
+		assertEnteringStringGivesResponse("\033_Ga=p,i=9\033\\", "\033_Gi=9;ENOENT:No such image\033\\");
+	}
+
+	public void testPlacement() {
+		withTerminalSized(5, 3).enterString("ab");
+		transmit(1);
+		enterString("\033_Ga=p,i=1,c=1,r=2\033\\");
+		// The cursor is moved after the last column, on the last row:
+		assertCursorAt(1, 3);
+		ImagePlacement.Slice slice = getSlices(0)[0];
+		assertEquals(3, slice.getEndColumn());
+		assertEquals(1, slice.mPlacement.mColumns);
+		assertEquals(2, slice.mPlacement.mRows);
+		assertEquals(1, getSlices(1).length);
+		// The placement is drawn over the cells, which are kept and can be written:
+		assertLinesAre("ab   ", "     ", "     ");
+		enterString("\033[2;3Hxy").assertLinesAre("ab   ", "  xy ", "     ");
+		assertEquals(1, getSlices(1).length);
+
+		// Placing the same placement id again moves it, and the cursor is left as it is with C=1:
+		enterString("\033[H\033_Ga=p,i=1,p=5,c=1,r=1\033\\\033[3;1H\033_Ga=p,i=1,p=5,C=1\033\\");
+		assertCursorAt(2, 0);
+		assertEquals(1, getSlices(0).length);
+		assertEquals(5, getSlices(2)[0].mPlacement.mPlacementId);
+		// Cleared rows no longer show them:
+		enterString("\033[2J");
+		assertNull(getSlices(0));
+		assertNull(getSlices(2));
+	}
+
+	public void testDelete() {
+		withTerminalSized(5, 3);
+		transmit(1);
+		transmit(2);
+		enterString("\033_Ga=p,i=1,C=1,q=1\033\\\033[2;1H\033_Ga=p,i=2,C=1,z=-1,q=1\033\\\033[3;1H\033_Ga=p,i=2,p=4,C=1,q=1\033\\");
+		enterString("\033_Ga=d,d=i,i=2,p=4\033\\");
+		assertNull(getSlices(2));
+		assertNotNull(getSlices(1));
+		enterString("\033_Ga=d,d=z,z=-1\033\\");
+		assertNull(getSlices(1));
+		enterString("\033_Ga=d,d=p,x=1,y=1\033\\");
+		assertNull(getSlices(0));
+
+		// Deleting the placements of an image with an uppercase key also forgets the image:
+		enterString("\033[H\033_Ga=p,i=1,C=1,q=1\033\\\033_Ga=d,d=A\033\\");
+		assertNull(getSlices(0));
+		assertEnteringStringGivesResponse("\033_Ga=p,i=1\033\\", "\033_Gi=1;ENOENT:No such image\033\\");
+		assertEnteringStringGivesResponse("\033_Ga=p,i=2\033\\", "\033_Gi=2;OK\033\\");
+		enterString("\033_Ga=d,d=I,i=2\033\\");
+		assertNull(getSlices(0));
+		assertEnteringStringGivesResponse("\033_Ga=p,i=2\033\\", "\033_Gi=2;ENOENT:No such image\033\\");
+	}
+
+	public void testOtherApplicationProgramCommandsIgnored() {
+		withTerminalSized(5, 2).enterString("\033_Xhello;world\033\\ab").assertLinesAre("ab   ", "     ");
+	}
+
+	public void testInflate() {
+		byte[] data = new byte[10000];
+		Arrays.fill(data, (byte) 42);
+		Deflater deflater = new Deflater();
+		deflater.setInput(data);
+		deflater.finish();
+		byte[] compressed = new byte[data.length];
+		compressed = Arrays.copyOf(compressed, deflater.deflate(compressed));
+		deflater.end();
+		assertTrue(Arrays.equals(data, KittyGraphics.inflate(compressed, data.length)));
+		assertEquals(100, KittyGraphics.inflate(compressed, 100).length);
+		assertNull(KittyGraphics.inflate(Arrays.copyOf(compressed, 4), data.length));
+		assertNull(KittyGraphics.inflate(data, data.length));
+	}
+
+}
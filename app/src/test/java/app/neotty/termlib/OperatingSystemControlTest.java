@@ -39,6 +39,16 @@ public class OperatingSystemControlTest extends TerminalTestCase {
 		assertEquals(mTerminal.mColors.mCurrentColors[8], 0xFF0000FF);
 	}
 
+	public void testSetColorWithColonSyntax() throws Exception {
+		// Colons are only special in the file data of OSC 1337:
+		withTerminalSized(4, 4).enterString("\033]4;5;rgb:00/ff/ab\007");
+		assertEquals(0xFF00FFAB, mTerminal.mColors.mCurrentColors[5]);
+	}
+
+	public void testApplicationProgramCommandIgnored() throws Exception {
+		withTerminalSized(4, 2).enterString("\033_Ga=T:xyz\033\\ab").assertLinesAre("ab  ", "    ");
+	}
+
 	void assertIndexColorsMatch(int[] expected) {
 		for (int i = 0; i < 255; i++)
 			assertEquals("index=" + i, expected[i], mTerminal.mColors.mCurrentColors[i]);
@@ -16,6 +16,11 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 package app.neotty.termlib;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
 public class ResizeTest extends TerminalTestCase {
 
 	public void testResizeWhenHasHistory() {
@@ -204,6 +209,55 @@ public class ResizeTest extends TerminalTestCase {
 		resize(5, 3).assertLinesAre("     ", "AB DE", "     ");
 	}
 
+	public void testResizeOnlyCreatesRowsWithContent() {
+		mTerminal = new TerminalEmulator(mOutput, 5, 3, 1000);
+		enterString("11111\r\n22222\r\n33333\r\n44444").assertLinesAre("22222", "33333", "44444");
+		Set<TerminalRow> oldRows = Collections.newSetFromMap(new IdentityHashMap<TerminalRow, Boolean>());
+		for (TerminalRow row : mTerminal.getScreen().mLines) if (row != null) oldRows.add(row);
+
+		resize(4, 3).assertLinesAre("3   ", "4444", "4   ");
+		assertEquals("11111\n22222\n33333\n44444", mTerminal.getScreen().getTranscriptText());
+		int rows = 0, reusedRows = 0;
+		for (TerminalRow row : mTerminal.getScreen().mLines) {
+			if (row == null) continue;
+			rows++;
+			if (oldRows.contains(row)) reusedRows++;
+		}
+		assertEquals(8, rows);
+		assertTrue(reusedRows > 0);
+	}
+
+	public void testIncrementalReflow() {
+		StringBuilder input = new StringBuilder();
+		for (int i = 0; i < 60; i++) input.append("\r\n").append(i).append(i % 3 == 0 ? "abcdefghijklmnop" : "xyz");
+
+		for (int totalRows : new int[]{1000, 20}) {
+			TerminalEmulator incremental = new TerminalEmulator(mOutput, 12, 5, totalRows);
+			incremental.setIncrementalReflow(true);
+			mTerminal = new TerminalEmulator(mOutput, 12, 5, totalRows);
+			for (TerminalEmulator emulator : new TerminalEmulator[]{incremental, mTerminal}) {
+				emulator.setScrollback(new CompressedScrollback(1000));
+				byte[] bytes = input.toString().getBytes(StandardCharsets.UTF_8);
+				emulator.append(bytes, bytes.length);
+			}
+
+			incremental.resize(7, 4);
+			resize(7, 4);
+			assertTrue(incremental.isReflowPending());
+			assertFalse(mTerminal.isReflowPending());
+			for (int row = 0; row < 4; row++) {
+				assertEquals(mTerminal.getScreen().getSelectedText(0, row, 7, row),
+						incremental.getScreen().getSelectedText(0, row, 7, row));
+			}
+			assertEquals(mTerminal.getCursorRow(), incremental.getCursorRow());
+			assertEquals(mTerminal.getCursorCol(), incremental.getCursorCol());
+
+			while (incremental.isReflowPending()) incremental.continueReflow(3);
+			assertEquals(mTerminal.getScreen().getTranscriptText(), incremental.getScreen().getTranscriptText());
+			assertEquals(mTerminal.getScreen().getActiveTranscriptRows(), incremental.getScreen().getActiveTranscriptRows());
+		}
+	}
+
 	public void testResizeWithWideChars() {
 		final int rows = 3, cols = 4;
 		String twoCharsWidthOne = new String(Character.toChars(TerminalRowTest.TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1));
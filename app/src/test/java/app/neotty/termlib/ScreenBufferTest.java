@@ -61,4 +61,77 @@ public class ScreenBufferTest extends TerminalTestCase {
 		withTerminalSized(5, 3).enterString("ABC\r\nFG");
 		assertEquals("ABC\nFG", mTerminal.getScreen().getSelectedText(0, 0, 1, 1, true, true));
 	}
+
+	public void testSnapshot() {
+		withTerminalSized(5, 3).enterString("ABC\r\nFG");
+		TerminalSnapshot snapshot = mTerminal.takeSnapshot();
+		enterString("\033[HX\r\n\r\nHI\r\nJK\033[2;1HL");
+		assertLinesAre("FG   ", "LI   ", "JK   ");
+		assertEquals("ABC\nFG", snapshot.getScreen().getTranscriptText());
+		assertEquals(0, snapshot.getScrollCounter());
+		assertEquals(1, snapshot.getCursorRow());
+		assertEquals(2, snapshot.getCursorCol());
+
+		snapshot = mTerminal.takeSnapshot();
+		enterString("\033[2J");
+		assertEquals("XBC\nFG\nLI\nJK", snapshot.getScreen().getTranscriptText());
+		assertEquals(1, snapshot.getScrollCounter());
+		assertEquals(0, mTerminal.takeSnapshot().getScrollCounter());
+	}
+
+	public void testSnapshotDamage() {
+		withTerminalSized(5, 3).enterString("ABC\r\nFG");
+		TerminalSnapshot first = mTerminal.takeSnapshot();
+		assertDamage(first, 0, 0, 3, 5);
+
+		enterString("x");
+		TerminalSnapshot snapshot = mTerminal.takeSnapshot();
+		assertTrue(snapshot.follows(first));
+		assertFalse(first.follows(snapshot));
+		// The written cell with its neighbours, and the old and new cursor cells:
+		assertDamage(snapshot, 1, 1, 2, 5);
+		assertEquals(0, snapshot.getScrollDelta());
+
+		snapshot = mTerminal.takeSnapshot();
+		assertDamage(snapshot, 0, 0, 0, 0);
+
+		enterString("\r\n\r\nab");
+		snapshot = mTerminal.takeSnapshot();
+		assertEquals(1, snapshot.getScrollDelta());
+		assertEquals(3, snapshot.getDamageBottom());
+		assertEquals(0, mTerminal.takeSnapshot().getScrollDelta());
+
+		mTerminal.resize(6, 3);
+		assertDamage(mTerminal.takeSnapshot(), 0, 0, 3, 6);
+	}
+
+	public void testStylesCompactedInHistory() {
+		withTerminalSized(60, 3);
+		for (int i = 0; i < 20; i++) enterString("\033[3" + (i % 2) + "mx");
+		TerminalBuffer screen = mTerminal.getScreen();
+		assertNotNull(screen.mLines[screen.externalToInternalRow(0)].mStyle);
+		// Shared with a snapshot, so the row in the history should be a compacted copy:
+		TerminalRow row = screen.mLines[screen.externalToInternalRow(0)];
+		mTerminal.takeSnapshot();
+
+		enterString("\r\n\r\n\r\n");
+		assertNotNull(row.mStyle);
+		TerminalRow historyRow = screen.mLines[screen.externalToInternalRow(-1)];
+		assertNull(historyRow.mStyle);
+		assertEquals(row.getStyle(0), historyRow.getStyle(0));
+		assertEquals(row.getStyle(1), historyRow.getStyle(1));
+		assertEquals(1, historyRow.getStyleRunEnd(0));
+		assertEquals(60, historyRow.getStyleRunEnd(20));
+	}
+
+	private static void assertDamage(TerminalSnapshot snapshot, int top, int left, int bottom, int right) {
+		if (top == bottom) {
+			assertEquals(snapshot.getDamageTop(), snapshot.getDamageBottom());
+			return;
+		}
+		assertEquals(top, snapshot.getDamageTop());
+		assertEquals(left, snapshot.getDamageLeft());
+		assertEquals(bottom, snapshot.getDamageBottom());
+		assertEquals(right, snapshot.getDamageRight());
+	}
 }
@@ -142,4 +142,32 @@ public class ScrollRegionTest extends TerminalTestCase {
 				"   xxx"
 			);
 	}
+
+	public void testScrollUpSeveralLines() {
+		withTerminalSized(2, 4).enterString("1\r\n2\r\n3\r\n4\033[2S").assertLinesAre("3 ", "4 ", "  ", "  ");
+		assertHistoryStartsWith("2 ", "1 ");
+		enterString("\033[9S").assertLinesAre("  ", "  ", "  ", "  ");
+		assertEquals(4, mTerminal.getScreen().getActiveTranscriptRows());
+
+		// With a scroll region, as one line at a time:
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5\033[2;4r\033[2S").assertLinesAre("1 ", "4 ", "  ", "  ", "5 ");
+		withTerminalSized(2, 5).enterString("1\r\n2\r\n3\r\n4\r\n5\033[2;4r\033[5S").assertLinesAre("1 ", "  ", "  ", "  ", "5 ");
+		// With left and right margins:
+		withTerminalSized(3, 3).enterString("ABC\r\nDEF\r\nGHI\033[?69h\033[2;3s\033[2S").assertLinesAre("AHI", "D  ", "G  ");
+	}
+
+	public void testLinefeedBurst() {
+		withTerminalSized(2, 3).enterString("1\r\n2\r\n3\n\n\r\n\nx").assertLinesAre("  ", "  ", "x ");
+		assertHistoryStartsWith("  ", "3 ", "2 ");
+
+		// The same when the linefeeds arrive one at a time:
+		withTerminalSized(2, 3).enterString("1\r\n2\r\n3");
+		for (String s : new String[]{"\n", "\n", "\r", "\n", "\n", "x"}) enterString(s);
+		assertLinesAre("  ", "  ", "x ");
+		assertHistoryStartsWith("  ", "3 ", "2 ");
+
+		// Below the scroll region the cursor stops at the last row:
+		withTerminalSized(2, 5).enterString("\033[1;2r\033[4;1H\n\n\n\nx").assertLinesAre("  ", "  ", "  ", "  ", "x ");
+		assertCursorAt(4, 1);
+	}
 }
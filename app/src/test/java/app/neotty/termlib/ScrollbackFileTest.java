@@ -0,0 +1,119 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class ScrollbackFileTest extends TestCase {
+
+	private static final int COLUMNS = 20;
+
+	private File mFile;
+	private ScrollbackFile mScrollback;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		mFile = File.createTempFile("scrollback", null);
+		mScrollback = new ScrollbackFile(mFile);
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		mScrollback.close();
+		assertFalse(mFile.exists());
+		super.tearDown();
+	}
+
+	private static TerminalRow rowOf(String text, long style) {
+		TerminalRow row = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+		int column = 0;
+		for (int i = 0; i < text.length(); ) {
+			int codePoint = text.codePointAt(i);
+			row.setChar(column, codePoint, style);
+			column += WcWidth.width(codePoint);
+			i += Character.charCount(codePoint);
+		}
+		return row;
+	}
+
+	private static void assertRowsEqual(TerminalRow expected, TerminalRow actual) {
+		assertEquals(new String(expected.mText, 0, expected.getSpaceUsed()), new String(actual.mText, 0, actual.getSpaceUsed()));
+		assertEquals(expected.mLineWrap, actual.mLineWrap);
+		for (int column = 0; column < COLUMNS; column++) {
+			assertEquals(expected.findStartOfColumn(column), actual.findStartOfColumn(column));
+			assertEquals(expected.getStyle(column), actual.getStyle(column));
+		}
+	}
+
+	public void testRoundTrip() {
+		final long red = TextStyle.encode(1, TextStyle.COLOR_INDEX_BACKGROUND, TextStyle.CHARACTER_ATTRIBUTE_BOLD);
+		TerminalRow[] rows = {
+			rowOf("hello", TextStyle.NORMAL),
+			rowOf("café résumé", red),
+			rowOf("果枝 wide", red),
+			rowOf("𝄞 clef", TextStyle.NORMAL),
+			rowOf("", TextStyle.NORMAL),
+		};
+		rows[0].setStyle(2, 7, red);
+		rows[1].mLineWrap = true;
+		for (TerminalRow row : rows) mScrollback.append(row, COLUMNS);
+
+		assertEquals(rows.length, mScrollback.getRowCount());
+		for (int i = 0; i < rows.length; i++) assertRowsEqual(rows[i], mScrollback.readRow(i, COLUMNS));
+		assertNull(mScrollback.readRow(rows.length, COLUMNS));
+	}
+
+	public void testRowsInWrittenChunks() {
+		final int count = 3 * ScrollbackFile.CHUNK_ROWS + 7;
+		for (int i = 0; i < count; i++) {
+			TerminalRow row = rowOf("line " + i + (i % 3 == 0 ? " 果" : ""), TextStyle.encode(i % 8, i % 5, 0));
+			row.mLineWrap = (i % 2 == 0);
+			mScrollback.append(row, COLUMNS);
+		}
+		assertEquals(count, mScrollback.getRowCount());
+		// Read out of order to move the mapped window back and forth:
+		for (int i : new int[]{count - 1, 0, ScrollbackFile.CHUNK_ROWS, 2 * ScrollbackFile.CHUNK_ROWS - 1, 5}) {
+			TerminalRow expected = rowOf("line " + i + (i % 3 == 0 ? " 果" : ""), TextStyle.encode(i % 8, i % 5, 0));
+			expected.mLineWrap = (i % 2 == 0);
+			assertRowsEqual(expected, mScrollback.readRow(i, COLUMNS));
+		}
+
+		mScrollback.clear();
+		assertEquals(0, mScrollback.getRowCount());
+		assertNull(mScrollback.readRow(0, COLUMNS));
+		mScrollback.append(rowOf("again", TextStyle.NORMAL), COLUMNS);
+		assertRowsEqual(rowOf("again", TextStyle.NORMAL), mScrollback.readRow(0, COLUMNS));
+	}
+
+	public void testReadWithOtherColumns() {
+		TerminalRow row = rowOf("0123456789abcdefgh果", TextStyle.NORMAL);
+		row.mLineWrap = true;
+		mScrollback.append(row, COLUMNS);
+
+		TerminalRow narrower = mScrollback.readRow(0, 19);
+		assertEquals("0123456789abcdefgh ", new String(narrower.mText, 0, narrower.getSpaceUsed()));
+		assertTrue(narrower.mLineWrap);
+
+		TerminalRow wider = mScrollback.readRow(0, 25);
+		assertEquals("0123456789abcdefgh果     ", new String(wider.mText, 0, wider.getSpaceUsed()));
+		assertFalse(wider.mLineWrap);
+	}
+
+}
@@ -0,0 +1,95 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+public class SequenceTraceTest extends TerminalTestCase {
+
+	public void testCountsPerClass() {
+		SequenceTrace trace = new SequenceTrace(16);
+		withTerminalSized(5, 3).mTerminal.setSequenceTrace(trace);
+		enterString("\033[31mab\033[2;3Hcé\033[Kd\r\n\033[2J\033[S\033]0;title\007\033[5b\033Pq#1~\033\\");
+		assertEquals(1, trace.getCount(SequenceTrace.CLASS_SGR));
+		assertEquals(5, trace.getBytes(SequenceTrace.CLASS_SGR));
+		assertEquals(1, trace.getCount(SequenceTrace.CLASS_CUP));
+		assertEquals(2, trace.getCount(SequenceTrace.CLASS_ERASE));
+		assertEquals(1, trace.getCount(SequenceTrace.CLASS_SCROLL));
+		assertEquals(1, trace.getCount(SequenceTrace.CLASS_OSC));
+		assertEquals(1, trace.getCount(SequenceTrace.CLASS_CSI));
+		assertEquals(1, trace.getCount(SequenceTrace.CLASS_DCS));
+		assertEquals(2, trace.getCount(SequenceTrace.CLASS_CONTROL));
+		// "ab", "cé" and "d", where the UTF-8 sequence continues the run:
+		assertEquals(3, trace.getCount(SequenceTrace.CLASS_PRINT));
+		assertEquals(6, trace.getBytes(SequenceTrace.CLASS_PRINT));
+
+		String report = trace.getReport();
+		assertTrue(report, report.contains("ESC[31m\n"));
+		assertTrue(report, report.contains("c\\xc3\\xa9\n"));
+		assertTrue(report, report.contains("ESC]0;title^G\n"));
+	}
+
+	public void testSequencesSplitAcrossAppends() {
+		SequenceTrace trace = new SequenceTrace(16);
+		withTerminalSized(5, 3).mTerminal.setSequenceTrace(trace);
+		enterString("\033[1");
+		enterString(";1");
+		assertEquals(0, trace.getCount(SequenceTrace.CLASS_CUP));
+		enterString("Hx");
+		assertEquals(1, trace.getCount(SequenceTrace.CLASS_CUP));
+		assertEquals(6, trace.getBytes(SequenceTrace.CLASS_CUP));
+		assertTrue(trace.getReport(), trace.getReport().contains("ESC[1;1H\n"));
+	}
+
+	public void testLinefeedBurst() {
+		SequenceTrace trace = new SequenceTrace(16);
+		withTerminalSized(5, 3).mTerminal.setSequenceTrace(trace);
+		enterString("a\n\r\n\n\rb");
+		// The line feeds and carriage returns are processed at once, as without tracing:
+		assertEquals(1, trace.getCount(SequenceTrace.CLASS_CONTROL));
+		assertEquals(5, trace.getBytes(SequenceTrace.CLASS_CONTROL));
+		assertTrue(trace.getReport(), trace.getReport().contains("^J^M^J^J^M\n"));
+		assertLinesAre("     ", "     ", "b    ");
+	}
+
+	public void testRingBufferKeepsLastSequences() {
+		SequenceTrace trace = new SequenceTrace(3);
+		withTerminalSized(5, 3).mTerminal.setSequenceTrace(trace);
+		enterString("\033[1m\033[2m\033[3m\033[4m\033[5m");
+		assertEquals(5, trace.getCount(SequenceTrace.CLASS_SGR));
+		String report = trace.getReport();
+		assertTrue(report, report.contains("Last 3 sequences"));
+		assertFalse(report, report.contains("ESC[2m"));
+		assertTrue(report, report.indexOf("ESC[3m") < report.indexOf("ESC[4m"));
+		assertTrue(report, report.indexOf("ESC[4m") < report.indexOf("ESC[5m"));
+
+		trace.reset();
+		assertEquals(0, trace.getCount(SequenceTrace.CLASS_SGR));
+		assertTrue(trace.getReport(), trace.getReport().contains("Last 0 sequences"));
+	}
+
+	public void testSameScreenWithTracing() {
+		String input = "\033[31mhello\033[2;3Hworld\033[4h日本\033[4l\033(0qqq\033(B\033[3b\r\n\033[?7lno wrap here\033[1J";
+		withTerminalSized(7, 3).enterString(input);
+		String expected = mTerminal.getScreen().getTranscriptTextWithoutJoinedLines();
+		int expectedRow = mTerminal.getCursorRow(), expectedCol = mTerminal.getCursorCol();
+
+		withTerminalSized(7, 3).mTerminal.setSequenceTrace(new SequenceTrace(4));
+		enterString(input);
+		assertEquals(expected, mTerminal.getScreen().getTranscriptTextWithoutJoinedLines());
+		assertCursorAt(expectedRow, expectedCol);
+	}
+
+}
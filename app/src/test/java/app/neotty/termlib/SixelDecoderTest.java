@@ -0,0 +1,147 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import junit.framework.TestCase;
+
+public class SixelDecoderTest extends TestCase {
+
+	private static final int[] PALETTE = {0xFF000000, 0xFFFF0000, 0xFF00FF00, 0xFF0000FF, 0xFFFFFF00, 0xFF00FFFF, 0xFFFF00FF,
+		0xFFFFFFFF};
+
+	private final SixelDecoder mDecoder = new SixelDecoder();
+
+	private void decode(String data) {
+		mDecoder.start();
+		for (int i = 0; i < data.length(); i++)
+			mDecoder.consume(data.charAt(i));
+		mDecoder.finish();
+	}
+
+	private int pixelAt(int x, int y) {
+		return mDecoder.getPixels()[y * mDecoder.getStride() + x];
+	}
+
+	/** The palette index of a pixel in the test image: diagonal stripes with some noise. */
+	private static int imageColorAt(int x, int y) {
+		int noise = ((x * 7919) ^ (y * 104729)) % 23 == 0 ? 3 : 0;
+		return ((x + y) / 24 + noise) % PALETTE.length;
+	}
+
+	/** Encode an image the way img2sixel does: one pass per color and band, with run length encoding. */
+	private static String encodeImage(int width, int height) {
+		StringBuilder result = new StringBuilder();
+		result.append("\"1;1;").append(width).append(';').append(height);
+		for (int i = 0; i < PALETTE.length; i++) {
+			int color = PALETTE[i];
+			result.append('#').append(i).append(";2;").append(((color >> 16) & 0xff) * 100 / 255).append(';')
+				.append(((color >> 8) & 0xff) * 100 / 255).append(';').append((color & 0xff) * 100 / 255);
+		}
+		for (int band = 0; band < height; band += 6) {
+			for (int i = 0; i < PALETTE.length; i++) {
+				result.append('#').append(i);
+				int x = 0;
+				while (x < width) {
+					int sixel = 0;
+					for (int bit = 0; bit < 6 && band + bit < height; bit++)
+						if (imageColorAt(x, band + bit) == i) sixel |= 1 << bit;
+					int run = 1;
+					while (x + run < width) {
+						int next = 0;
+						for (int bit = 0; bit < 6 && band + bit < height; bit++)
+							if (imageColorAt(x + run, band + bit) == i) next |= 1 << bit;
+						if (next != sixel) break;
+						run++;
+					}
+					char c = (char) ('?' + sixel);
+					if (run > 3) {
+						result.append('!').append(run).append(c);
+					} else {
+						for (int j = 0; j < run; j++) result.append(c);
+					}
+					x += run;
+				}
+				result.append('$');
+			}
+			result.append('-');
+		}
+		return result.toString();
+	}
+
+	public void testImageEncodedLikeImg2sixel() {
+		decode(encodeImage(640, 480));
+		assertEquals(640, mDecoder.getWidth());
+		assertEquals(480, mDecoder.getHeight());
+		for (int y = 0; y < 480; y++)
+			for (int x = 0; x < 640; x++)
+				if (pixelAt(x, y) != PALETTE[imageColorAt(x, y)])
+					fail("Wrong pixel at (" + x + ", " + y + "): " + Integer.toHexString(pixelAt(x, y)));
+	}
+
+	public void testRepeatAndBandMoves() {
+		decode("#1!3~$#2?@-~");
+		assertEquals(3, mDecoder.getWidth());
+		assertEquals(12, mDecoder.getHeight());
+		assertEquals(0xFF3333CC, pixelAt(0, 0));
+		// Overpainted after the graphics carriage return:
+		assertEquals(0xFFCC2323, pixelAt(1, 0));
+		assertEquals(0xFF3333CC, pixelAt(2, 5));
+		assertEquals(0xFFCC2323, pixelAt(0, 6));
+		assertEquals(0, pixelAt(1, 6));
+	}
+
+	public void testColorIntroducers() {
+		decode("#7;2;100;0;0~#8;1;120;50;100~#7~");
+		assertEquals(0xFFFF0000, pixelAt(0, 0));
+		// HLS with blue at 0 degrees, so 120 degrees is red:
+		assertEquals(0xFFFF0000, pixelAt(1, 0));
+		assertEquals(0xFFFF0000, pixelAt(2, 0));
+		// Registers are reset between images:
+		decode("#7~");
+		assertEquals(0xFF777777, pixelAt(0, 0));
+	}
+
+	public void testRasterAttributesAndReuse() {
+		decode("\"1;1;2000;12#1!2000~");
+		assertEquals(2000, mDecoder.getWidth());
+		assertTrue(mDecoder.getStride() >= 2000);
+		assertEquals(0xFF3333CC, pixelAt(1999, 5));
+		// The next image should not see pixels of the previous one:
+		decode("#1?");
+		assertEquals(1, mDecoder.getWidth());
+		assertEquals(0, pixelAt(0, 0));
+		assertEquals(0, pixelAt(1999, 5));
+	}
+
+	public void testClippedToMaximumSize() {
+		decode("#1!9999~-!5~");
+		assertEquals(SixelDecoder.MAX_SIZE, mDecoder.getWidth());
+		assertEquals(0xFF3333CC, pixelAt(SixelDecoder.MAX_SIZE - 1, 0));
+		assertEquals(0xFF3333CC, pixelAt(4, 11));
+	}
+
+	public void testRepeatsBeyondMaximumSize() {
+		// Enough repeats to overflow the position if it was not clipped:
+		StringBuilder data = new StringBuilder("#1");
+		for (int i = 0; i < 33000; i++)
+			data.append("!65535?");
+		decode(data.append("!5~").toString());
+		assertEquals(SixelDecoder.MAX_SIZE, mDecoder.getWidth());
+		assertEquals(6, mDecoder.getHeight());
+	}
+
+}
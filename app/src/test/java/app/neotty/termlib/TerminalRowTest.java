@@ -208,8 +208,8 @@ public class TerminalRowTest extends TestCase {
 
 	public void testSurrogateCharsWithNormalDisplayWidth() {
 		// These requires a UTF-16 surrogate pair, and has a display width of one.
-		int first = 0x1D306;
-		int second = 0x1D307;
+		int first = 0x1D11E;
+		int second = 0x1D11F;
 		// Assert the above statement:
 		assertEquals(2, Character.toChars(first).length);
 		assertEquals(2, Character.toChars(second).length);
@@ -445,4 +445,193 @@ public class TerminalRowTest extends TestCase {
 		// assertEquals(' ', line.mText[line.findStartOfColumn(COLUMNS - 1)]);
 	}
 
+	public void testColumnStartsAfterRandomChanges() {
+		int[] codePoints = {'a', ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, TWO_JAVA_CHARS_DISPLAY_WIDTH_TWO_1,
+			TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, DIARESIS_CODEPOINT};
+		Random random = new Random(1234);
+		for (int i = 0; i < 2000; i++) {
+			int column = random.nextInt(COLUMNS - 1);
+			if (random.nextInt(8) == 0) {
+				row.fillRange(column, column + 1 + random.nextInt(COLUMNS - column), 'b', 0);
+			} else {
+				row.setChar(column, codePoints[random.nextInt(codePoints.length)], 0);
+			}
+			// Only look up some columns, so that the lookups also start from a partially valid table:
+			if (random.nextBoolean()) assertColumnStarts(random.nextInt(COLUMNS + 1));
+		}
+		assertColumnStarts(COLUMNS);
+	}
+
+	public void testStyleRuns() {
+		long red = TextStyle.encode(1, TextStyle.COLOR_INDEX_BACKGROUND, 0);
+		row.setChar(0, 'a', red);
+		row.fillRange(10, 20, 'b', red);
+		row.setChar(15, 'c', TextStyle.NORMAL);
+		assertNull(row.mStyle);
+		assertEquals(red, row.getStyle(0));
+		assertEquals(TextStyle.NORMAL, row.getStyle(1));
+		assertEquals(1, row.getStyleRunEnd(0));
+		assertEquals(10, row.getStyleRunEnd(1));
+		assertEquals(15, row.getStyleRunEnd(12));
+		assertEquals(16, row.getStyleRunEnd(15));
+		assertEquals(20, row.getStyleRunEnd(16));
+		assertEquals(COLUMNS, row.getStyleRunEnd(20));
+
+		// Setting a style to what it already is, or merging runs, should not split them:
+		row.setChar(15, 'c', red);
+		assertEquals(20, row.getStyleRunEnd(10));
+		row.fillRange(1, 10, 'd', red);
+		assertEquals(20, row.getStyleRunEnd(0));
+
+		for (int column = 0; column < TerminalRow.MAX_STYLE_RUNS; column += 2)
+			row.setChar(column, 'e', TextStyle.NORMAL);
+		assertNotNull(row.mStyle);
+		assertEquals(TextStyle.NORMAL, row.getStyle(0));
+		assertEquals(red, row.getStyle(1));
+		assertEquals(2, row.getStyleRunEnd(1));
+		assertEquals(COLUMNS, row.getStyleRunEnd(20));
+
+		row.compactStyles();
+		assertNull(row.mStyle);
+		assertEquals(red, row.getStyle(1));
+		assertEquals(TextStyle.NORMAL, row.getStyle(TerminalRow.MAX_STYLE_RUNS - 2));
+		assertEquals(20, row.getStyleRunEnd(TerminalRow.MAX_STYLE_RUNS - 1));
+	}
+
+	public void testFreeze() {
+		long red = TextStyle.encode(1, TextStyle.COLOR_INDEX_BACKGROUND, 0);
+		row.setChar(0, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, red);
+		row.setChar(1, 'a', red);
+		row.setChar(2, 'b', TextStyle.NORMAL);
+		row.mLineWrap = true;
+		assertFalse(row.isFrozen());
+
+		TerminalRow frozen = row.frozenCopy();
+		assertTrue(frozen.isFrozen());
+		assertFalse(row.isFrozen());
+		row.freeze();
+		assertTrue(row.isFrozen());
+		assertEquals(COLUMNS + 1, row.mText.length);
+		assertTrue(frozen.mLineWrap);
+		for (TerminalRow r : new TerminalRow[]{row, frozen}) {
+			this.row = r;
+			assertLineStartsWith(TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, 'a', 'b', ' ');
+			assertColumnCharIndicesStartsWith(0, 2, 3, 4);
+			assertEquals(red, row.getStyle(1));
+			assertEquals(TextStyle.NORMAL, row.getStyle(2));
+		}
+
+		// Editing a frozen row grows it again:
+		frozen.setChar(3, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_2, red);
+		frozen.setChar(COLUMNS - 1, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_2, red);
+		assertFalse(frozen.isFrozen());
+		assertEquals(COLUMNS + 3, frozen.getSpaceUsed());
+		this.row = frozen;
+		assertLineStartsWith(TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, 'a', 'b', TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_2, ' ');
+		assertEquals(red, frozen.getStyle(3));
+		assertEquals(TextStyle.NORMAL, frozen.getStyle(4));
+		assertEquals(red, frozen.getStyle(COLUMNS - 1));
+	}
+
+	public void testReset() {
+		long red = TextStyle.encode(1, TextStyle.COLOR_INDEX_BACKGROUND, 0);
+		for (int i = 0; i < COLUMNS; i++) row.setChar(i, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_1, i % 2 == 0 ? red : TextStyle.NORMAL);
+		row.mLineWrap = true;
+		assertNotNull(row.mStyle);
+
+		row.reset(COLUMNS / 2, red);
+		assertFalse(row.mLineWrap);
+		assertNull(row.mStyle);
+		assertEquals(COLUMNS / 2, row.getSpaceUsed());
+		assertTrue(row.isBlank());
+		assertEquals(red, row.getStyle(COLUMNS / 2 - 1));
+		assertEquals(COLUMNS / 2, row.getStyleRunEnd(0));
+		row.setChar(COLUMNS / 2 - 1, TWO_JAVA_CHARS_DISPLAY_WIDTH_ONE_2, TextStyle.NORMAL);
+		assertColumnCharIndicesStartsWith(0, 1, 2);
+		assertEquals(COLUMNS / 2 + 1, row.getSpaceUsed());
+
+		// Growing the row past its text capacity:
+		row.reset(2 * COLUMNS, TextStyle.NORMAL);
+		assertEquals(2 * COLUMNS, row.getSpaceUsed());
+		row.setChar(2 * COLUMNS - 1, 'a', red);
+		assertEquals('a', row.mText[2 * COLUMNS - 1]);
+		assertEquals(red, row.getStyle(2 * COLUMNS - 1));
+		assertEquals(TextStyle.NORMAL, row.getStyle(COLUMNS));
+	}
+
+	public void testStyleRunsAfterRandomChanges() {
+		long[] expectedStyles = new long[COLUMNS];
+		Arrays.fill(expectedStyles, TextStyle.NORMAL);
+		Random random = new Random(4321);
+		for (int i = 0; i < 5000; i++) {
+			int startColumn = random.nextInt(COLUMNS);
+			int endColumn = startColumn + 1 + (random.nextBoolean() ? 0 : random.nextInt(COLUMNS - startColumn));
+			long style = random.nextInt(4);
+			row.fillRange(startColumn, endColumn, 'x', style);
+			Arrays.fill(expectedStyles, startColumn, endColumn, style);
+			if (random.nextInt(20) == 0) row.compactStyles();
+			if (random.nextInt(50) == 0) {
+				row.clear(TextStyle.NORMAL);
+				Arrays.fill(expectedStyles, TextStyle.NORMAL);
+			}
+
+			for (int column = 0; column < COLUMNS; ) {
+				int runEnd = row.getStyleRunEnd(column);
+				assertTrue(runEnd > column);
+				for (int c = column; c < runEnd; c++) assertEquals(expectedStyles[column], row.getStyle(c));
+				for (int c = column; c < runEnd; c++) assertEquals(expectedStyles[column], expectedStyles[c]);
+				if (runEnd < COLUMNS) assertTrue(expectedStyles[runEnd] != expectedStyles[column]);
+				column = runEnd;
+			}
+		}
+	}
+
+	public void testImageSlices() {
+		ImagePlacement placement = new ImagePlacement(0, 10, 2, 0);
+		row.addImageSlice(new ImagePlacement.Slice(placement, 5, 0, 10, 1));
+		assertFalse(row.isBlank());
+
+		// Writing over the middle of a slice splits it:
+		row.setChar(8, ONE_JAVA_CHAR_DISPLAY_WIDTH_TWO_1, TextStyle.NORMAL);
+		ImagePlacement.Slice[] slices = row.getImageSlices();
+		assertEquals(2, slices.length);
+		assertSlice(slices[0], placement, 5, 0, 3);
+		assertSlice(slices[1], placement, 10, 5, 5);
+		assertEquals(1, slices[1].mRow);
+
+		// Copying columns copies the part of the slices in them:
+		TerminalRow other = new TerminalRow(COLUMNS, TextStyle.NORMAL);
+		other.copyInterval(row, 12, 20, 0);
+		slices = other.getImageSlices();
+		assertEquals(1, slices.length);
+		assertSlice(slices[0], placement, 0, 7, 3);
+
+		// Slices are cut off at the end of the row:
+		other.addImageSlice(new ImagePlacement.Slice(placement, COLUMNS - 2, 0, 10, 0));
+		assertSlice(other.getImageSlices()[1], placement, COLUMNS - 2, 0, 2);
+
+		other.clearRange(0, COLUMNS, TextStyle.NORMAL);
+		assertNull(other.getImageSlices());
+		assertTrue(other.isBlank());
+	}
+
+	private static void assertSlice(ImagePlacement.Slice slice, ImagePlacement placement, int column, int placementColumn, int columns) {
+		assertSame(placement, slice.mPlacement);
+		assertEquals(column, slice.mColumn);
+		assertEquals(placementColumn, slice.mPlacementColumn);
+		assertEquals(columns, slice.mColumns);
+	}
+
+	/** Check that findStartOfColumn() for the first columns agrees with walking the row text from its start. */
+	private void assertColumnStarts(int columns) {
+		int column = 0;
+		for (int i = 0; i < row.getSpaceUsed() && column < columns; ) {
+			int codePoint = Character.codePointAt(row.mText, i);
+			int width = WcWidth.width(codePoint);
+			for (int j = 0; j < width && column < columns; j++) assertEquals("column " + column, i, row.findStartOfColumn(column++));
+			i += Character.charCount(codePoint);
+		}
+		if (columns == COLUMNS) assertEquals(row.getSpaceUsed(), row.findStartOfColumn(COLUMNS));
+	}
+
 }
@@ -0,0 +1,62 @@
+/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+public class TerminalSessionTest extends TestCase {
+
+	private TerminalSession mSession;
+
+	@Override
+	protected void setUp() {
+		mSession = new TerminalSession(new String[0], new String[0], "/", null);
+		mSession.mEmulator = new TerminalEmulator(mSession, 30, 3, 6);
+	}
+
+	private void writeOutput(String output) {
+		byte[] bytes = output.getBytes(StandardCharsets.UTF_8);
+		assertTrue(mSession.mProcessToTerminalIOQueue.write(bytes, 0, bytes.length));
+	}
+
+	private String getTranscript() {
+		return mSession.mEmulator.getScreen().getTranscriptText();
+	}
+
+	public void testOutputQueuedAtExitAppendedFirst() {
+		writeOutput("last output");
+		mSession.finishProcessOutput(3);
+		// Output arriving after the exit has been seen is not appended after the exit description:
+		assertFalse(mSession.mProcessToTerminalIOQueue.write(new byte[]{'x'}, 0, 1));
+		mSession.appendProcessOutput();
+		assertEquals("last output\n[Process completed (code 3)]", getTranscript());
+	}
+
+	public void testOutputAndExitOnEmulatorThread() throws Exception {
+		Thread emulatorThread = new Thread(mSession::appendProcessOutput);
+		emulatorThread.start();
+		writeOutput("first\r\n");
+		writeOutput("second");
+		mSession.finishProcessOutput(-9);
+		emulatorThread.join(10000);
+		assertFalse(emulatorThread.isAlive());
+		assertEquals("first\nsecond\n[Process completed (signal 9)]", getTranscript());
+	}
+
+}
@@ -222,6 +222,51 @@ public class TerminalTest extends TerminalTestCase {
 		assertEquals(expectedBackground, mTerminal.mBackColor);
 	}
 
+	public void testSelectGraphicsSubParameters() {
+		withTerminalSized(5, 5);
+		int expectedForeground = 0xff000000 | (255 << 16) | (127 << 8) | 2;
+		int expectedBackground = 0xff000000 | (1 << 16) | (2 << 8) | 254;
+
+		// 24 bit colors with an empty color space id:
+		enterString("\033[38:2::255:127:2m");
+		assertEquals(expectedForeground, mTerminal.mForeColor);
+		assertEquals(TextStyle.COLOR_INDEX_BACKGROUND, mTerminal.mBackColor);
+		enterString("\033[0;48:2:1:1:2:254m");
+		assertEquals(TextStyle.COLOR_INDEX_FOREGROUND, mTerminal.mForeColor);
+		assertEquals(expectedBackground, mTerminal.mBackColor);
+
+		// 24 bit colors without color space id, mixed with other parameters:
+		enterString("\033[0;1;38:2:255:127:2;48:2:1:2:254m");
+		assertEquals(expectedForeground, mTerminal.mForeColor);
+		assertEquals(expectedBackground, mTerminal.mBackColor);
+		assertEquals(TextStyle.CHARACTER_ATTRIBUTE_BOLD, effectOfNewChar());
+
+		// 256 colors:
+		enterString("\033[38:5:119;48:5:129m");
+		assertEquals(119, mTerminal.mForeColor);
+		assertEquals(129, mTerminal.mBackColor);
+
+		// Underline color is accepted but ignored, and does not affect following parameters:
+		enterString("\033[0;58:2::1:2:3;31m");
+		assertEquals(1, mTerminal.mForeColor);
+		assertEquals(0, effectOfNewChar());
+
+		// Underline styles:
+		enterString("\033[4:3m");
+		assertEquals(TextStyle.CHARACTER_ATTRIBUTE_UNDERLINE, effectOfNewChar());
+		enterString("\033[4:0m");
+		assertEquals(0, effectOfNewChar());
+
+		// Text after the sequence is output as usual:
+		enterString("\033[H\033[38:2::1:2:3mab").assertLinesAre("ab   ", "     ", "     ", "     ", "     ");
+	}
+
+	/** Output a character at the top left corner and return its effect bits, excluding the truecolor flags. */
+	private int effectOfNewChar() {
+		enterString("\033[Hx");
+		return TextStyle.decodeEffect(mTerminal.getScreen().getStyleAt(0, 0)) & 0b111111111;
+	}
+
 	public void testBackgroundColorErase() {
 		final int rows = 3;
 		final int cols = 3;
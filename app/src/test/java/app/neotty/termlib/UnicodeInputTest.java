@@ -81,6 +81,39 @@ public class UnicodeInputTest extends TerminalTestCase {
 		assertLineStartsWith(0, TerminalEmulator.UNICODE_REPLACEMENT_CHAR, (int) 'Y', ' ');
 	}
 
+	public void testUnassignedCodePointsTable() {
+		// Code points are never unassigned again, so those assigned in the Unicode version of the JVM are assigned in the table:
+		for (int codePoint = 0; codePoint <= Character.MAX_CODE_POINT; codePoint++) {
+			int type = Character.getType(codePoint);
+			if (type == Character.SURROGATE) {
+				if (!UnassignedCodePoints.contains(codePoint)) fail("Surrogate U+" + Integer.toHexString(codePoint));
+			} else if (type != Character.UNASSIGNED && UnassignedCodePoints.contains(codePoint)) {
+				fail("Assigned U+" + Integer.toHexString(codePoint));
+			}
+		}
+		assertTrue(UnassignedCodePoints.contains(0x0378));
+		assertTrue(UnassignedCodePoints.contains(0xFDD0));
+		assertTrue(UnassignedCodePoints.contains(Character.MAX_CODE_POINT));
+		assertFalse(UnassignedCodePoints.contains(0xE000));
+		// The last ideograph of CJK Unified Ideographs Extension J, added in Unicode 17:
+		assertFalse(UnassignedCodePoints.contains(0x33479));
+		assertTrue(UnassignedCodePoints.contains(0x3347A));
+		assertTrue(UnassignedCodePoints.contains(Character.MAX_CODE_POINT + 1));
+		assertTrue(UnassignedCodePoints.contains(-1));
+	}
+
+	public void testSequencesSplitAcrossAppends() throws Exception {
+		byte[] input = "abcdefghij\u00e9\u679d\ud83d\ude00x".getBytes("UTF-8");
+		for (int split = 1; split < input.length; split++) {
+			withTerminalSized(20, 2);
+			mTerminal.append(input, split);
+			byte[] rest = new byte[input.length - split];
+			System.arraycopy(input, split, rest, 0, rest.length);
+			mTerminal.append(rest, rest.length);
+			assertLinesAre("abcdefghij\u00e9\u679d\ud83d\ude00x    ", "                    ");
+		}
+	}
+
 	public void testStuff() {
 		withTerminalSized(80, 24);
 		byte[] b = new byte[]{(byte) 0xf3, (byte) 0x82, (byte) 0x95, (byte) 0x81, (byte) 0x61, (byte) 0x38, (byte) 0xe7, (byte) 0x8f,
@@ -63,6 +63,7 @@ public class WcWidthTest extends TestCase {
 		assertWidthIs(0, 0x0302);
 		assertWidthIs(0, 0x0308);
 		assertWidthIs(0, 0xFE0F);
+		assertWidthIs(0, 0x1AC1); // COMBINING LEFT PARENTHESIS ABOVE LEFT (Unicode 14).
 	}
 
 	public void testWordJoiner() {
@@ -92,6 +93,14 @@ public class WcWidthTest extends TestCase {
 		assertWidthIs(2, 0x1F428); // KOALA.
 		assertWidthIs(2, 0x231a);  // WATCH.
 		assertWidthIs(2, 0x1F643); // UPSIDE-DOWN FACE (Unicode 8).
+		assertWidthIs(2, 0x1FAE8); // SHAKING FACE (Unicode 15).
+	}
+
+	public void testOutsideOfUnicode() {
+		assertWidthIs(0, -1);
+		assertWidthIs(1, 0x10FFFD);
+		assertWidthIs(1, 0x110000);
+		assertWidthIs(1, Integer.MAX_VALUE);
 	}
 
 }
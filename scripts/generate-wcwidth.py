@@ -0,0 +1,282 @@
+#!/usr/bin/env python3
+"""
+Generate app/src/main/java/app/neotty/termlib/WcWidth.java and
+UnassignedCodePoints.java from the Unicode character database.
+
+Usage: generate-wcwidth.py UCD_DIR
+
+UCD_DIR is an unpacked https://www.unicode.org/Public/<version>/ucd/, of
+which EastAsianWidth.txt and extracted/DerivedGeneralCategory.txt are read.
+
+The widths follow https://github.com/jquast/wcwidth, except that control
+characters have width 0 instead of -1:
+- 0 for nonspacing and enclosing marks (Mn and Me), C0 and C1 controls and
+  the invisible characters in ZERO_WIDTH_EXTRA.
+- 2 for wide and fullwidth characters (W and F in EastAsianWidth.txt).
+- 1 for everything else.
+
+The widths of each page of 256 code points are packed with 2 bits per code
+point, and the pages which are the same are only kept once. WcWidth.width()
+then looks up the page in PAGES and the width in LEAVES.
+
+The code points which are unassigned or surrogates (Cn and Cs in
+DerivedGeneralCategory.txt) are packed in the same way with 1 bit per code
+point for UnassignedCodePoints.contains(), so that the input which is
+replaced agrees with the widths.
+"""
+
+import os
+import re
+import sys
+
+PAGE_SHIFT = 8
+PAGE_SIZE = 1 << PAGE_SHIFT
+CODE_POINTS = 0x110000
+
+# Not marks, but shown as nothing by terminals:
+ZERO_WIDTH_EXTRA = [
+    (0x0000, 0x0000),  # Null
+    (0x034f, 0x034f),  # Combining Grapheme Joiner
+    (0x200b, 0x200f),  # Zero Width Space..Right-to-left Mark
+    (0x2028, 0x2029),  # Line Separator..Paragraph Separator
+    (0x202a, 0x202e),  # Left-to-right Embedding..Right-to-left Override
+    (0x2060, 0x2063),  # Word Joiner..Invisible Separator
+]
+
+OUTPUT_DIR = os.path.join(os.path.dirname(os.path.abspath(__file__)), os.pardir,
+                          'app', 'src', 'main', 'java', 'app', 'neotty', 'termlib')
+
+
+def read_property(path, default):
+    """Read a UCD file of 'range ; value' lines into a list with a value per code point."""
+    values = [default] * CODE_POINTS
+    version = None
+    with open(path, encoding='utf-8') as f:
+        for line in f:
+            match = re.match(r'#\s*\w+-(\d+\.\d+\.\d+)\.txt', line)
+            if match and version is None:
+                version = match.group(1)
+            # Ranges missing from the data lines default to the values of @missing lines, which come first:
+            line = re.sub(r'^#\s*@missing:', '', line).split('#')[0].strip()
+            if not line:
+                continue
+            code_points, value = [field.strip() for field in line.split(';')[:2]]
+            first, _, last = code_points.partition('..')
+            first = int(first, 16)
+            last = int(last, 16) if last else first
+            values[first:last + 1] = [value] * (last - first + 1)
+    return values, version
+
+
+def find_file(ucd_dir, name):
+    for path in (os.path.join(ucd_dir, name), os.path.join(ucd_dir, 'extracted', name)):
+        if os.path.exists(path):
+            return path
+    sys.exit('%s not found in %s' % (name, ucd_dir))
+
+
+def compute_widths(ucd_dir, categories):
+    east_asian_widths, _ = read_property(find_file(ucd_dir, 'EastAsianWidth.txt'), 'N')
+
+    widths = [1] * CODE_POINTS
+    for code_point in range(CODE_POINTS):
+        if categories[code_point] in ('Mn', 'Me'):
+            widths[code_point] = 0
+        elif east_asian_widths[code_point] in ('W', 'F'):
+            widths[code_point] = 2
+    for first, last in ZERO_WIDTH_EXTRA + [(0x00, 0x1f), (0x7f, 0x9f)]:
+        widths[first:last + 1] = [0] * (last - first + 1)
+    return widths
+
+
+def build_tables(values, bits):
+    """Pack the values of each page with the number of bits per code point, keeping the distinct pages once."""
+    per_byte = 8 // bits
+    pages = []
+    leaves = []
+    leaf_of_page = {}
+    for start in range(0, CODE_POINTS, PAGE_SIZE):
+        packed = bytearray(PAGE_SIZE // per_byte)
+        for i in range(PAGE_SIZE):
+            packed[i // per_byte] |= values[start + i] << ((i % per_byte) * bits)
+        packed = bytes(packed)
+        if packed not in leaf_of_page:
+            leaf_of_page[packed] = len(leaf_of_page)
+            leaves.append(packed)
+        pages.append(leaf_of_page[packed])
+    if len(leaves) > 256:
+        sys.exit('%d leaves do not fit in a byte' % len(leaves))
+    return bytes(pages), b''.join(leaves)
+
+
+def escape(data):
+    """The chars of a Java string literal with a char per byte, with octal escapes which are always 3 digits long."""
+    out = []
+    for byte in data:
+        if byte < 0x20 or byte >= 0x7f or chr(byte) in '"\\':
+            out.append('\\%03o' % byte)
+        else:
+            out.append(chr(byte))
+    return out
+
+
+def string_literal(data, indent):
+    """A Java string literal with a char per byte, split over lines of at most 120 columns."""
+    lines = []
+    line = ''
+    for char in escape(data):
+        if len(indent) + 2 + len(line) + len(char) + 3 > 120:
+            lines.append(line)
+            line = ''
+        line += char
+    lines.append(line)
+    return ('\n' + indent + '+ ').join('"%s"' % line for line in lines)
+
+
+WCWIDTH_TEMPLATE = '''/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Implementation of wcwidth(3) for Unicode %(version)s.
+ * Widths as in https://github.com/jquast/wcwidth but we return 0 for unprintable characters.
+ * <p>
+ * Generated by scripts/generate-wcwidth.py from the Unicode character database, do not edit.
+ */
+public final class WcWidth {
+
+    /** The version of Unicode which the widths are for. */
+    public static final String UNICODE_VERSION = "%(version)s";
+
+    /** The number of bits of a code point which select a code point within a page. */
+    private static final int PAGE_SHIFT = %(page_shift)d;
+
+    /** The index in {@link #LEAVES} of the widths of each page of code points, as an unsigned byte. */
+    private static final byte[] PAGES = toBytes(
+            %(pages)s);
+
+    /** The widths of the code points of each distinct page, packed with 2 bits per code point, lowest first. */
+    private static final byte[] LEAVES = toBytes(
+            %(leaves)s);
+
+    /** The bytes of a string holding a byte per char, which is shorter than an array initializer in a class file. */
+    private static byte[] toBytes(String chars) {
+        return chars.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /** Return the terminal display width of a code point: 0, 1 || 2. */
+    public static int width(int ucs) {
+        final int page = ucs >>> PAGE_SHIFT;
+        if (page >= PAGES.length) return (ucs < 0) ? 0 : 1;
+        final int leaf = (PAGES[page] & 0xFF) << (PAGE_SHIFT - 2);
+        return (LEAVES[leaf | ((ucs & ((1 << PAGE_SHIFT) - 1)) >> 2)] >> ((ucs & 3) << 1)) & 3;
+    }
+
+    /** The width at an index position in a java char array. */
+    public static int width(char[] chars, int index) {
+        char c = chars[index];
+        return Character.isHighSurrogate(c) ? width(Character.toCodePoint(c, chars[index + 1])) : width(c);
+    }
+
+}
+'''
+
+UNASSIGNED_TEMPLATE = '''/*
+*************************************************************************
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*************************************************************************
+*/
+package app.neotty.termlib;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The code points which are unassigned or surrogates in Unicode %(version)s, and so are replaced when decoding input.
+ * <p>
+ * Generated by scripts/generate-wcwidth.py from the Unicode character database, do not edit.
+ */
+final class UnassignedCodePoints {
+
+    /** The number of bits of a code point which select a code point within a page. */
+    private static final int PAGE_SHIFT = %(page_shift)d;
+
+    /** The index in {@link #LEAVES} of the bits of each page of code points, as an unsigned byte. */
+    private static final byte[] PAGES = toBytes(
+            %(pages)s);
+
+    /** The bits of the code points of each distinct page, set if unassigned or a surrogate, lowest first. */
+    private static final byte[] LEAVES = toBytes(
+            %(leaves)s);
+
+    /** The bytes of a string holding a byte per char, which is shorter than an array initializer in a class file. */
+    private static byte[] toBytes(String chars) {
+        return chars.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    /** If the code point is unassigned, a surrogate or outside of the range of code points. */
+    static boolean contains(int codePoint) {
+        final int page = codePoint >>> PAGE_SHIFT;
+        if (page >= PAGES.length) return true;
+        final int leaf = (PAGES[page] & 0xFF) << (PAGE_SHIFT - 3);
+        return ((LEAVES[leaf | ((codePoint & ((1 << PAGE_SHIFT) - 1)) >> 3)] >> (codePoint & 7)) & 1) != 0;
+    }
+
+}
+'''
+
+
+def write_tables(name, template, version, values, bits):
+    pages, leaves = build_tables(values, bits)
+    indent = ' ' * 12
+    output = os.path.join(OUTPUT_DIR, name)
+    with open(output, 'w', encoding='utf-8') as f:
+        f.write(template % {
+            'version': version,
+            'page_shift': PAGE_SHIFT,
+            'pages': string_literal(pages, indent),
+            'leaves': string_literal(leaves, indent),
+        })
+    print('%s: Unicode %s, %d bytes of pages and %d bytes of leaves' % (
+        os.path.normpath(output), version, len(pages), len(leaves)))
+
+
+def main():
+    if len(sys.argv) != 2:
+        sys.exit(__doc__.strip())
+    categories, version = read_property(find_file(sys.argv[1], 'DerivedGeneralCategory.txt'), 'Cn')
+    if version is None:
+        sys.exit('cannot tell the Unicode version from DerivedGeneralCategory.txt')
+    write_tables('WcWidth.java', WCWIDTH_TEMPLATE, version, compute_widths(sys.argv[1], categories), 2)
+    unassigned = [1 if category in ('Cn', 'Cs') else 0 for category in categories]
+    write_tables('UnassignedCodePoints.java', UNASSIGNED_TEMPLATE, version, unassigned, 1)
+
+
+if __name__ == '__main__':
+    main()